@@ -18,4 +18,10 @@
 
 # If you keep the line number information, uncomment this to
 # hide the original source file name.
-#-renamesourcefileattribute SourceFile
\ No newline at end of file
+#-renamesourcefileattribute SourceFile
+
+# Tracing is for debug builds only. Strip the calls recording trace events from release builds,
+# along with building their arguments.
+-assumenosideeffects class uw.gotimegeese.controllerapp.metrics.TraceBuffer {
+    public static void trace(...);
+}
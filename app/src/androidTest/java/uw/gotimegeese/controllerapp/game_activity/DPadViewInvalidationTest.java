@@ -0,0 +1,100 @@
+package uw.gotimegeese.controllerapp.game_activity;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+import android.view.View;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that a change of direction only invalidates the arms of {@code DPadView} whose appearance
+ * changed, rather than the whole view, and that moves within an arm invalidate nothing. The dirty
+ * area only matters to software rendering; the frame times under hardware rendering are measured
+ * by {@code DPadFrameBenchmark} in the benchmark module.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DPadViewInvalidationTest {
+
+    private static final int SIZE_PX = 500;
+
+    private final List<Rect> invalidated = new ArrayList<>();
+    private DPadView dPadView;
+    private long downTime;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            dPadView = new DPadView(context) {
+                @SuppressWarnings("deprecation")
+                @Override
+                public void invalidate(Rect dirty) {
+                    invalidated.add(new Rect(dirty));
+                    super.invalidate(dirty);
+                }
+            };
+            dPadView.measure(View.MeasureSpec.makeMeasureSpec(SIZE_PX, View.MeasureSpec.EXACTLY),
+                    View.MeasureSpec.makeMeasureSpec(SIZE_PX, View.MeasureSpec.EXACTLY));
+            dPadView.layout(0, 0, SIZE_PX, SIZE_PX);
+        });
+    }
+
+    @Test
+    public void changingDirection_invalidatesOnlyTheOldAndNewArms() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            // Pressing the bottom arm invalidates just that arm.
+            _touch(MotionEvent.ACTION_DOWN, 250, 450);
+            assertEquals(1, invalidated.size());
+            Rect bottom = invalidated.get(0);
+            assertTrue(bottom.contains(250, 450));
+            _assertSmallerThanTheView(bottom);
+
+            // Moving within the arm changes nothing on screen.
+            invalidated.clear();
+            _touch(MotionEvent.ACTION_MOVE, 260, 440);
+            assertTrue(invalidated.isEmpty());
+
+            // Sliding to the right arm invalidates the bottom arm and the right one, and nothing
+            // else.
+            _touch(MotionEvent.ACTION_MOVE, 450, 250);
+            assertEquals(2, invalidated.size());
+            assertEquals(bottom, invalidated.get(0));
+            Rect right = invalidated.get(1);
+            assertTrue(right.contains(450, 250));
+            assertFalse(right.contains(250, 450));
+            _assertSmallerThanTheView(right);
+
+            // Lifting the finger only invalidates the arm that was pressed.
+            invalidated.clear();
+            _touch(MotionEvent.ACTION_UP, 450, 250);
+            assertEquals(1, invalidated.size());
+            assertEquals(right, invalidated.get(0));
+        });
+    }
+
+    private void _touch(int action, float x, float y) {
+        long now = SystemClock.uptimeMillis();
+        if (action == MotionEvent.ACTION_DOWN) {
+            downTime = now;
+        }
+        MotionEvent event = MotionEvent.obtain(downTime, now, action, x, y, 0);
+        dPadView.onTouchEvent(event);
+        event.recycle();
+    }
+
+    private static void _assertSmallerThanTheView(Rect rect) {
+        assertTrue("Invalidated " + rect, rect.width() * rect.height() < SIZE_PX * SIZE_PX / 2);
+    }
+}
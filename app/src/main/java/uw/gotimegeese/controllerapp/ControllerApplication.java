@@ -0,0 +1,99 @@
+package uw.gotimegeese.controllerapp;
+
+import android.app.Application;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import uw.gotimegeese.controllerapp.metrics.TraceBuffer;
+
+/**
+ * Turns on tracing of the input path in debug builds, and makes sure the trace is dumped when the
+ * app crashes. Also holds the thread the app's files are written on.
+ */
+public class ControllerApplication extends Application {
+
+    private static final String TAG = "Trace";
+
+    // Created on first use, see getDiskExecutor().
+    private static class DiskExecutorHolder {
+        static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "ControllerApplication-disk");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the executor that writes the app's files off the main thread. Tasks run one at a
+     * time in the order they were submitted, so that a file is only opened again once the
+     * previous task done with it finished. It is never shut down.
+     */
+    @NonNull
+    public static ExecutorService getDiskExecutor() {
+        return DiskExecutorHolder.EXECUTOR;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        StartupTrace.beginInputReady();
+        if (!BuildConfig.DEBUG) {
+            return;
+        }
+        TraceBuffer.setEnabled(true);
+
+        // Dump the trace before handing the crash to the default handler, which kills the app.
+        Thread.UncaughtExceptionHandler defaultHandler =
+                Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, ex) -> {
+            try {
+                dumpTrace(this, "crash in " + thread.getName());
+            } catch (Throwable ignored) {
+                // Don't let the dump get in the way of reporting the crash.
+            }
+            if (defaultHandler != null) {
+                defaultHandler.uncaughtException(thread, ex);
+            }
+        });
+    }
+
+    /**
+     * Writes the shared trace to logcat and to {@code trace.txt} in the app's files directory.
+     * Blocks while writing, so it should only be called on the main thread when crashing; see
+     * {@link #getDiskExecutor()}.
+     *
+     * @return the file the trace was written to, or {@code null} if writing it failed.
+     */
+    public static File dumpTrace(@NonNull Context context, @NonNull String reason) {
+        StringWriter text = new StringWriter();
+        PrintWriter writer = new PrintWriter(text);
+        writer.println("Trace dump (" + reason + "), "
+                + TraceBuffer.getShared().getRecordedCount() + " events recorded");
+        TraceBuffer.getShared().dump(writer);
+        writer.flush();
+
+        // Logcat truncates long messages, so log line by line.
+        for (String line : text.toString().split("\n")) {
+            Log.d(TAG, line);
+        }
+
+        File file = new File(context.getFilesDir(), "trace.txt");
+        try (FileWriter fileWriter = new FileWriter(file)) {
+            fileWriter.write(text.toString());
+            return file;
+        } catch (IOException ex) {
+            Log.e(TAG, Log.getStackTraceString(ex));
+            return null;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package uw.gotimegeese.controllerapp;
+
+import android.os.Build;
+import android.os.Trace;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Marks the milestones of a launch as sections of the system trace, which the startup benchmarks
+ * measure. The sections span several callbacks, so they are async sections, which are only
+ * recorded on Android 10 and later. Each section is recorded at most once per process. Only used
+ * on the main thread.
+ */
+public final class StartupTrace {
+
+    /** From the creation of the app until {@code GameActivity} shows a session to steer. */
+    public static final String INPUT_READY = "InputReady";
+    /** From the first touch in {@code GameActivity} until the direction it caused is sent. */
+    public static final String FIRST_INPUT = "FirstInput";
+
+    // Sections with the same name are told apart by cookie, but there is only ever one of each.
+    private static final int COOKIE = 0;
+
+    private static boolean inputReadyBegun, inputReadyEnded, firstInputBegun, firstInputEnded;
+
+    private StartupTrace() {}
+
+    static void beginInputReady() {
+        if (!inputReadyBegun) {
+            inputReadyBegun = true;
+            _begin(INPUT_READY);
+        }
+    }
+
+    public static void endInputReady() {
+        if (inputReadyBegun && !inputReadyEnded) {
+            inputReadyEnded = true;
+            _end(INPUT_READY);
+        }
+    }
+
+    /**
+     * Marks a touch, which only begins the {@link #FIRST_INPUT} section once input is ready.
+     */
+    public static void beginFirstInput() {
+        if (inputReadyEnded && !firstInputBegun) {
+            firstInputBegun = true;
+            _begin(FIRST_INPUT);
+        }
+    }
+
+    public static void endFirstInput() {
+        if (firstInputBegun && !firstInputEnded) {
+            firstInputEnded = true;
+            _end(FIRST_INPUT);
+        }
+    }
+
+    private static void _begin(@NonNull String section) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(section, COOKIE);
+        }
+    }
+
+    private static void _end(@NonNull String section) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(section, COOKIE);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package uw.gotimegeese.controllerapp.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.util.Collections;
+import java.util.List;
+
+import uw.gotimegeese.controllerapp.lobby.AdvertisementSource;
+import uw.gotimegeese.controllerapp.lobby.LobbyAdvertisement;
+
+/**
+ * Scans for the {@code LobbyAdvertisement}s of the games around us over Bluetooth LE. The scan is
+ * filtered in the controller by company identifier and magic byte, so that the app is only woken
+ * up for lobby advertisements.
+ * <p>
+ * Scanning requires the location permission on Android 6 and later.
+ */
+@RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+public class BleAdvertisementSource implements AdvertisementSource {
+
+    // Returned through onSourceFailed() when Bluetooth is off and there is no scanner.
+    public static final int ERROR_NO_SCANNER = -1;
+
+    private final BluetoothAdapter bluetoothAdapter;
+
+    private BluetoothLeScanner scanner;
+    private ScanCallback scanCallback;
+
+    public BleAdvertisementSource(@NonNull BluetoothAdapter bluetoothAdapter) {
+        this.bluetoothAdapter = bluetoothAdapter;
+    }
+
+    /**
+     * Returns whether this device can scan for advertisements at all.
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    @Override
+    public void start(@NonNull Callback callback) {
+        stop();
+        scanner = bluetoothAdapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            callback.onSourceFailed(ERROR_NO_SCANNER);
+            return;
+        }
+
+        ScanFilter filter = new ScanFilter.Builder()
+                .setManufacturerData(LobbyAdvertisement.COMPANY_ID,
+                        new byte[] {(byte) LobbyAdvertisement.MAGIC}, new byte[] {(byte) 0xff})
+                .build();
+        // The lobby is only shown while the user is looking at it, so favour latency over power.
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .build();
+        scanCallback = new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                _onResult(result, callback);
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                for (ScanResult result : results) {
+                    _onResult(result, callback);
+                }
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                callback.onSourceFailed(errorCode);
+            }
+        };
+        try {
+            scanner.startScan(Collections.singletonList(filter), settings, scanCallback);
+        } catch (SecurityException | IllegalStateException ex) {
+            // Bluetooth was turned off or the permission revoked in the meantime.
+            scanCallback = null;
+            callback.onSourceFailed(ERROR_NO_SCANNER);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (scanner != null && scanCallback != null) {
+            try {
+                scanner.stopScan(scanCallback);
+            } catch (IllegalStateException ignored) {
+                // Bluetooth is off, so the scan is stopped already.
+            }
+        }
+        scanner = null;
+        scanCallback = null;
+    }
+
+    private static void _onResult(@Nullable ScanResult result, @NonNull Callback callback) {
+        ScanRecord record = result != null ? result.getScanRecord() : null;
+        if (record == null) {
+            return;
+        }
+        LobbyAdvertisement advertisement = LobbyAdvertisement.parse(
+                record.getManufacturerSpecificData(LobbyAdvertisement.COMPANY_ID));
+        if (advertisement != null) {
+            callback.onAdvertisement(advertisement, result.getRssi());
+        }
+    }
+}
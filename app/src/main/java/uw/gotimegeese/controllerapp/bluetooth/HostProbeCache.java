@@ -0,0 +1,104 @@
+package uw.gotimegeese.controllerapp.bluetooth;
+
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.UUID;
+
+/**
+ * Remembers which bonded devices turned out to host a game, i.e. advertise
+ * {@code Constants.SERVER_UUID} in their SDP records, so that the device list can be filtered
+ * right away on later launches instead of after probing every device again. Entries expire after
+ * a TTL, a shorter one for devices that aren't hosts since a device may start hosting at any time.
+ * <p>
+ * Kept free of Android classes: entries are persisted through a {@link Storage}, e.g. backed by
+ * {@code SharedPreferences}, and time is read from an injectable {@link Clock}.
+ */
+public class HostProbeCache {
+
+    public static final int STATUS_UNKNOWN = 0;
+    public static final int STATUS_HOST = 1;
+    public static final int STATUS_NOT_HOST = 2;
+
+    public interface Storage {
+
+        /**
+         * Returns the value stored for {@code key}, or {@code null} if there is none.
+         */
+        @Nullable
+        String get(@NonNull String key);
+
+        void put(@NonNull String key, @NonNull String value);
+    }
+
+    public interface Clock {
+
+        long currentTimeMillis();
+    }
+
+    private final Storage storage;
+    private final Clock clock;
+    private final long hostTtlMs;
+    private final long notHostTtlMs;
+
+    public HostProbeCache(@NonNull Storage storage, @NonNull Clock clock, long hostTtlMs,
+                          long notHostTtlMs) {
+        this.storage = storage;
+        this.clock = clock;
+        this.hostTtlMs = hostTtlMs;
+        this.notHostTtlMs = notHostTtlMs;
+    }
+
+    /**
+     * Returns one of the {@code STATUS_*} constants for the device with the given address.
+     * Expired entries are reported as {@code STATUS_UNKNOWN}.
+     */
+    public int lookup(@NonNull String address) {
+        String value = storage.get(address);
+        if (value == null) {
+            return STATUS_UNKNOWN;
+        }
+
+        // Entries are stored as "<status>:<time probed>".
+        int separator = value.indexOf(':');
+        int status;
+        long probedAt;
+        try {
+            status = Integer.parseInt(value.substring(0, separator));
+            probedAt = Long.parseLong(value.substring(separator + 1));
+        } catch (RuntimeException ex) {
+            return STATUS_UNKNOWN;
+        }
+        if (status != STATUS_HOST && status != STATUS_NOT_HOST) {
+            return STATUS_UNKNOWN;
+        }
+        long age = clock.currentTimeMillis() - probedAt;
+        long ttl = status == STATUS_HOST ? hostTtlMs : notHostTtlMs;
+        return age >= 0 && age < ttl ? status : STATUS_UNKNOWN;
+    }
+
+    /**
+     * Records the outcome of probing the device with the given address.
+     */
+    public void record(@NonNull String address, boolean isHost) {
+        int status = isHost ? STATUS_HOST : STATUS_NOT_HOST;
+        storage.put(address, status + ":" + clock.currentTimeMillis());
+    }
+
+    /**
+     * Returns whether {@code uuid}, as reported by a device's SDP records, is
+     * {@code Constants.SERVER_UUID}. Some Bluetooth stacks report 128 bit UUIDs with their bytes
+     * reversed, so those match as well.
+     */
+    public static boolean isServerUuid(@NonNull UUID uuid) {
+        return uuid.equals(SERVER_UUID) || uuid.equals(reverseBytes(SERVER_UUID));
+    }
+
+    @NonNull
+    public static UUID reverseBytes(@NonNull UUID uuid) {
+        return new UUID(Long.reverseBytes(uuid.getLeastSignificantBits()),
+                Long.reverseBytes(uuid.getMostSignificantBits()));
+    }
+}
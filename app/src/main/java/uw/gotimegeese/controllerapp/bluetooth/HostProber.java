@@ -0,0 +1,236 @@
+package uw.gotimegeese.controllerapp.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds out which bonded devices host a game by fetching their SDP records and looking for
+ * {@code Constants.SERVER_UUID}, without connecting to them. Results are cached in a
+ * {@code HostProbeCache} persisted in {@code SharedPreferences}.
+ * <p>
+ * Probes run on a small bounded pool: the Bluetooth stack serialises SDP queries to some extent,
+ * but keeping a few in flight means one unresponsive device doesn't hold up all the others.
+ */
+public class HostProber implements Closeable {
+
+    public interface Listener {
+
+        /**
+         * Called on the main thread once a device has been probed. Probes that failed or timed
+         * out aren't reported.
+         */
+        void onProbed(@NonNull BluetoothDevice device, boolean isHost);
+    }
+
+    // How many probes may be in flight at once.
+    private static final int POOL_SIZE = 3;
+
+    // How long we wait for a device's SDP records before giving up on it.
+    private static final long SDP_TIMEOUT_MS = 12_000;
+
+    private static final long HOST_TTL_MS = 7 * 24 * 60 * 60 * 1000L;
+    private static final long NOT_HOST_TTL_MS = 24 * 60 * 60 * 1000L;
+
+    private static final String PREFERENCES_NAME = "host_probe_cache";
+
+    /**
+     * A probe waiting for the {@code ACTION_UUID} broadcast of its device.
+     */
+    private static class PendingProbe {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Parcelable[] uuids;
+    }
+
+    private final Context context;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final HostProbeCache cache;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<String, PendingProbe> pendingProbes = new ConcurrentHashMap<>();
+    private final BroadcastReceiver uuidReceiver = new UuidReceiver();
+
+    private volatile boolean closed;
+    // Only accessed on the main thread.
+    private boolean receiverRegistered;
+
+    public HostProber(@NonNull Context context, @NonNull Listener listener) {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+
+        SharedPreferences preferences = this.context.getSharedPreferences(PREFERENCES_NAME,
+                Context.MODE_PRIVATE);
+        cache = new HostProbeCache(new HostProbeCache.Storage() {
+            @Nullable
+            @Override
+            public String get(@NonNull String key) {
+                return preferences.getString(key, null);
+            }
+
+            @Override
+            public void put(@NonNull String key, @NonNull String value) {
+                preferences.edit().putString(key, value).apply();
+            }
+        }, System::currentTimeMillis, HOST_TTL_MS, NOT_HOST_TTL_MS);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "HostProber-" + threadCount.incrementAndGet()));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns what the cache knows about {@code device}, as one of the
+     * {@code HostProbeCache.STATUS_*} constants.
+     */
+    public int getCachedStatus(@NonNull BluetoothDevice device) {
+        return cache.lookup(device.getAddress());
+    }
+
+    /**
+     * Probes {@code device} in the background, unless it is already being probed. Must be
+     * called on the main thread.
+     */
+    public void probe(@NonNull BluetoothDevice device) {
+        if (closed) {
+            return;
+        }
+        // The receiver is only registered once there is something to probe, which keeps it off
+        // the app's startup path when every device is cached.
+        if (!receiverRegistered) {
+            context.registerReceiver(uuidReceiver, new IntentFilter(BluetoothDevice.ACTION_UUID));
+            receiverRegistered = true;
+        }
+        PendingProbe probe = new PendingProbe();
+        if (pendingProbes.putIfAbsent(device.getAddress(), probe) != null) {
+            return;
+        }
+        executor.execute(() -> _probe(device, probe));
+    }
+
+    /**
+     * Abandons the probes in progress. Their results are neither cached nor reported.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        executor.shutdownNow();
+        if (receiverRegistered) {
+            context.unregisterReceiver(uuidReceiver);
+            receiverRegistered = false;
+        }
+        handler.removeCallbacksAndMessages(null);
+    }
+
+    private void _probe(@NonNull BluetoothDevice device, @NonNull PendingProbe probe) {
+        String address = device.getAddress();
+        Boolean isHost = null;
+        try {
+            // The UUIDs from the last SDP query are often already known, in which case a fresh
+            // query is only needed if they don't include ours.
+            isHost = _containsServerUuid(device.getUuids()) ? Boolean.TRUE : null;
+            if (isHost == null) {
+                _cancelDiscovery();
+                if (device.fetchUuidsWithSdp()
+                        && probe.done.await(SDP_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                        && probe.uuids != null) {
+                    isHost = _containsServerUuid(probe.uuids);
+                }
+            }
+        } catch (InterruptedException ignored) {
+        } catch (SecurityException ex) {
+            Log.e("HostProber", Log.getStackTraceString(ex));
+        } finally {
+            pendingProbes.remove(address, probe);
+        }
+
+        if (isHost == null || closed) {
+            return;
+        }
+        cache.record(address, isHost);
+        boolean result = isHost;
+        handler.post(() -> {
+            if (!closed) {
+                listener.onProbed(device, result);
+            }
+        });
+    }
+
+    /**
+     * Cancels any ongoing discovery, which slows SDP queries down considerably. This needs the
+     * {@code BLUETOOTH_ADMIN} permission; without it the probe is merely slower, so it goes ahead
+     * anyway.
+     */
+    private static void _cancelDiscovery() {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter == null) {
+            return;
+        }
+        try {
+            adapter.cancelDiscovery();
+        } catch (SecurityException ex) {
+            Log.w("HostProber", "Unable to cancel discovery", ex);
+        }
+    }
+
+    private static boolean _containsServerUuid(@Nullable Parcelable[] uuids) {
+        if (uuids == null) {
+            return false;
+        }
+        for (Parcelable uuid : uuids) {
+            if (uuid instanceof ParcelUuid
+                    && HostProbeCache.isServerUuid(((ParcelUuid) uuid).getUuid())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hands the UUIDs reported by {@code ACTION_UUID} broadcasts to the probes waiting for them.
+     */
+    private class UuidReceiver extends BroadcastReceiver {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent == null || !BluetoothDevice.ACTION_UUID.equals(intent.getAction())) {
+                return;
+            }
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            if (device == null) {
+                return;
+            }
+            PendingProbe probe = pendingProbes.get(device.getAddress());
+            if (probe != null && probe.done.getCount() > 0) {
+                probe.uuids = intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID);
+                probe.done.countDown();
+            }
+        }
+    }
+}
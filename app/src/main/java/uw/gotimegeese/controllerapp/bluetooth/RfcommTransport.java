@@ -0,0 +1,91 @@
+package uw.gotimegeese.controllerapp.bluetooth;
+
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import uw.gotimegeese.controllerapp.connection.ControllerTransport;
+
+/**
+ * A {@code ControllerTransport} over an RFCOMM socket to the game server's
+ * {@code Constants.SERVER_UUID} service record. The socket is secure (authenticated and
+ * encrypted) unless requested otherwise; insecure sockets skip the link key exchange and may come
+ * up faster, but only work if the server listens for them.
+ */
+public class RfcommTransport implements ControllerTransport {
+
+    private final BluetoothDevice device;
+    private final boolean secure;
+
+    private BluetoothSocket socket;
+    private boolean closed;
+
+    public RfcommTransport(@NonNull BluetoothDevice device) {
+        this(device, true);
+    }
+
+    public RfcommTransport(@NonNull BluetoothDevice device, boolean secure) {
+        this.device = device;
+        this.secure = secure;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        BluetoothSocket socket = secure
+                ? device.createRfcommSocketToServiceRecord(SERVER_UUID)
+                : device.createInsecureRfcommSocketToServiceRecord(SERVER_UUID);
+        synchronized (this) {
+            if (closed) {
+                socket.close();
+                throw new IOException("Transport closed");
+            }
+            this.socket = socket;
+        }
+        socket.connect();
+    }
+
+    @NonNull
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return _getSocket().getInputStream();
+    }
+
+    @NonNull
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return _getSocket().getOutputStream();
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+        String name = device.getName();
+        return name != null ? name : device.getAddress();
+    }
+
+    @Override
+    public void close() throws IOException {
+        BluetoothSocket socket;
+        synchronized (this) {
+            closed = true;
+            socket = this.socket;
+        }
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    private synchronized BluetoothSocket _getSocket() throws IOException {
+        if (socket == null) {
+            throw new IOException("Transport not connected");
+        }
+        return socket;
+    }
+}
@@ -6,6 +6,9 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.util.TypedValue;
 import android.view.MotionEvent;
@@ -14,14 +17,22 @@ import android.view.View;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import uw.gotimegeese.controllerapp.input.DirectionClassifier;
+import uw.gotimegeese.controllerapp.input.InputRecorder;
+import uw.gotimegeese.controllerapp.metrics.SessionAccounting;
+import uw.gotimegeese.controllerapp.metrics.TraceBuffer;
+
 public class DPadView extends View {
 
     public interface OnDirectionChangedListener {
 
         /**
-         * @param direction 0 = down, 1 = right, 2 = up, 3 = left, -1 = no input.
+         * @param direction      0 = down, 1 = right, 2 = up, 3 = left, -1 = no input. These are
+         *                       the {@code DirectionClassifier.DIR_*} constants.
+         * @param eventTimeNanos the time of the touch event that caused the change, in the time
+         *                       base of {@code System.nanoTime()}.
          */
-        void onDirectionChanged(int direction);
+        void onDirectionChanged(int direction, long eventTimeNanos);
     }
 
     // Constants for the geometry of the widget's visual appearance.
@@ -40,14 +51,38 @@ public class DPadView extends View {
     // consider it to have moved.
     private static final float TOUCH_PRECISION_DIP = 1.5f;
 
-    private final Path path = new Path();
+    // Parameters of predictive input: how far ahead the finger's movement is extrapolated, and
+    // how fast in DIPs per millisecond it must move for a prediction to be made.
+    private static final long PREDICTION_LOOKAHEAD_MS = 24;
+    private static final float PREDICTION_MIN_SPEED_DIP_PER_MS = 0.3f;
+    // Predictive input also steadies the classification, which would otherwise let the predictions
+    // flap: how far past the diagonal the finger must go before the direction switches axes, as a
+    // fraction of the offset along the current axis, and the radius of the dead zone around the
+    // center, as a fraction of the widget's radius.
+    private static final float PREDICTION_HYSTERESIS = 0.15f;
+    private static final float PREDICTION_DEAD_ZONE_RATIO = 0.1f;
+
+    // Placeholder for "no finger followed". Pointer ids are never negative.
+    private static final int INVALID_POINTER_ID = -1;
+
     private final Paint dPadPaint = new Paint(), contourPaint = new Paint();
 
-    private float touchPrecisionPx;
-    private float touchX = -1, touchY = -1;
-    private float touchDir = -1;
+    // The geometry of the widget, computed whenever its size changes. The arms are indexed by
+    // direction.
+    private final Path[] armPaths = new Path[4];
+    private final Rect[] armBounds = new Rect[4];
+    private float contourCx, contourCy, contourRadius;
+
+    private final DirectionClassifier classifier = new DirectionClassifier();
+    private int touchDir = -1;
+    private int activePointerId = INVALID_POINTER_ID;
+    private float deadZoneRatio;
 
     private OnDirectionChangedListener listener;
+    private InputRecorder recorder;
+    private SessionAccounting accounting;
+    // The classifier's sample counts already added to the accounting.
+    private long accountedSamples, accountedIgnoredSamples;
 
     public DPadView(Context context) {
         super(context);
@@ -65,6 +100,11 @@ public class DPadView extends View {
     }
 
     private void _init() {
+        for (int i = 0; i < 4; i++) {
+            armPaths[i] = new Path();
+            armBounds[i] = new Rect();
+        }
+
         // Prepare the Paint objects we use to draw.
         dPadPaint.setAntiAlias(true);
         dPadPaint.setStyle(Paint.Style.FILL);
@@ -73,8 +113,8 @@ public class DPadView extends View {
         contourPaint.setColor(CONTOUR_COLOR);
 
         // Compute the precision used in handling touch input from the device's display metrics.
-        touchPrecisionPx = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, TOUCH_PRECISION_DIP,
-                getResources().getDisplayMetrics());
+        classifier.setPrecision(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
+                TOUCH_PRECISION_DIP, getResources().getDisplayMetrics()));
     }
 
     @Override
@@ -98,15 +138,25 @@ public class DPadView extends View {
     }
 
     @Override
-    protected void onDraw(Canvas canvas) {
-        // Calculate the parameters we'll use to draw the widget.
-        float cx = getWidth() * 0.5f;
-        float cy = getHeight() * 0.5f;
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        _buildGeometry(w, h);
+    }
+
+    /**
+     * Computes the paths of the D-Pad's arms and the parameters of the contour for the given size.
+     * This is the only place doing trigonometry, so drawing a frame is just a matter of filling
+     * the cached paths.
+     */
+    private void _buildGeometry(int width, int height) {
+        float cx = width * 0.5f;
+        float cy = height * 0.5f;
         float radius = Math.min(cx, cy);
 
-        // Draw the D-Pad portion of the widget.
+        RectF bounds = new RectF();
         for (int i = 0; i < 4; i++) {
             double angle = i * Math.PI / 2;
+            Path path = armPaths[i];
             path.rewind();
             path.moveTo(cx + (i % 2 == 0 ? 0 : 2 - i) * radius * DPAD_CENTER_OFFSET,
                     cy + (i % 2 == 0 ? 1 - i : 0) * radius * DPAD_CENTER_OFFSET);
@@ -115,68 +165,201 @@ public class DPadView extends View {
             _rLineTo(path, radius * DPAD_RATIO_3, angle + (Math.PI / 2));
             _rLineTo(path, radius * DPAD_RATIO_2, angle - Math.PI);
             path.close();
+            path.computeBounds(bounds, true);
+            bounds.roundOut(armBounds[i]);
+        }
+
+        classifier.setCenter(cx, cy);
+        classifier.setDeadZone(radius * deadZoneRatio);
+        _recordConfig();
+        contourCx = cx;
+        contourCy = cy;
+        contourRadius = radius * (1 - 0.5f * CONTOUR_RATIO);
+        contourPaint.setStrokeWidth(radius * CONTOUR_RATIO);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (accounting != null) {
+            accounting.onRedraw();
+        }
+        // Draw the D-Pad portion of the widget.
+        for (int i = 0; i < 4; i++) {
             dPadPaint.setColor(touchDir == i ? DPAD_COLOR_PRESSED : DPAD_COLOR_NORMAL);
-            canvas.drawPath(path, dPadPaint);
+            canvas.drawPath(armPaths[i], dPadPaint);
         }
 
         // Draw the contour around the perimeter of the widget.
-        contourPaint.setStrokeWidth(radius * CONTOUR_RATIO);
-        canvas.drawCircle(cx, cy, radius * (1 - 0.5f * CONTOUR_RATIO), contourPaint);
+        canvas.drawCircle(contourCx, contourCy, contourRadius, contourPaint);
     }
 
     /**
-     * Intended to only be used in the implementation for {@code onDraw()}. Draws a line from the
-     * current location in the path at the given bearing.
+     * Intended to only be used in the implementation for {@code _buildGeometry()}. Draws a line
+     * from the current location in the path at the given bearing.
      */
     private void _rLineTo(@NonNull Path path, float length, double angle) {
         path.rLineTo((float) (length * Math.sin(angle)), (float) (length * Math.cos(angle)));
     }
 
+    /**
+     * Changes the direction shown as pressed and invalidates only the arms whose appearance
+     * changed. This only helps software rendering: with hardware acceleration, the default, the
+     * dirty area is ignored and the whole view is redrawn from the cached paths. Frame times are
+     * measured by {@code DPadFrameBenchmark}.
+     */
+    @SuppressWarnings("deprecation")
+    private void _setTouchDir(int newDir) {
+        int oldDir = touchDir;
+        touchDir = newDir;
+        if (oldDir != -1) {
+            invalidate(armBounds[oldDir]);
+        }
+        if (newDir != -1) {
+            invalidate(armBounds[newDir]);
+        }
+    }
+
     @SuppressLint("ClickableViewAccessibility")
     @Override
     public boolean onTouchEvent(MotionEvent event) {
-        int action = event.getAction();
-        if (action == MotionEvent.ACTION_CANCEL || action == MotionEvent.ACTION_UP) {
-            touchDir = -1;
-            if (listener != null) {
-                listener.onDirectionChanged(-1);
+        int oldDir = classifier.getDirection();
+        // MotionEvent timestamps are in the uptimeMillis() time base, which on Android is the
+        // same monotonic clock as System.nanoTime().
+        long eventTimeNanos = event.getEventTime() * 1_000_000L;
+
+        // The D-Pad follows a single finger, the first one to touch it. Other fingers resting on
+        // it are ignored, unless the followed one is lifted, in which case another one takes
+        // over. Fingers on other views arrive there, since touches are split between views.
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                    // Ask for moves to be delivered as soon as they arrive rather than batched
+                    // until the next frame.
+                    requestUnbufferedDispatch(event);
+                }
+                activePointerId = event.getPointerId(0);
+                TraceBuffer.trace(TraceBuffer.EVENT_TOUCH_DOWN, eventTimeNanos, activePointerId);
+                _onSamples(event, 0);
+                break;
+            case MotionEvent.ACTION_POINTER_DOWN:
+                if (activePointerId == INVALID_POINTER_ID) {
+                    int index = event.getActionIndex();
+                    activePointerId = event.getPointerId(index);
+                    _onSample(event.getX(index), event.getY(index), eventTimeNanos);
+                }
+                break;
+            case MotionEvent.ACTION_MOVE: {
+                int index = event.findPointerIndex(activePointerId);
+                if (index != -1) {
+                    _onSamples(event, index);
+                }
+                break;
             }
-            invalidate();
-        } else if (action == MotionEvent.ACTION_DOWN || action == MotionEvent.ACTION_MOVE) {
-            float newX = event.getX();
-            float newY = event.getY();
-
-            // Only handle the change if the we currently don't have a direction or if the user's
-            // finger has moved a significant enough distance to warrant an update.
-            if (touchDir == -1 || Math.abs(touchX - newX) > touchPrecisionPx
-                    || Math.abs(touchY - newY) > touchPrecisionPx) {
-                // First and foremost, update the position of the user's finger.
-                touchX = newX;
-                touchY = newY;
-
-                // Compute the new direction from the position of the user's finger.
-                int newDir;
-                float dx = newX - getWidth() * 0.5f;
-                float dy = newY - getHeight() * 0.5f;
-                if (Math.abs(dx) > Math.abs(dy)) {
-                    newDir = dx > 0 ? 1 : 3;
-                } else {
-                    newDir = dy > 0 ? 0 : 2;
+            case MotionEvent.ACTION_POINTER_UP:
+                if (event.getPointerId(event.getActionIndex()) == activePointerId) {
+                    int index = event.getActionIndex() == 0 ? 1 : 0;
+                    activePointerId = event.getPointerId(index);
+                    _onSample(event.getX(index), event.getY(index), eventTimeNanos);
                 }
-
-                // If needed, update the client with the new direction and invalidate the view.
-                if (touchDir != newDir) {
-                    touchDir = newDir;
-                    if (listener != null) {
-                        listener.onDirectionChanged(newDir);
-                    }
-                    invalidate();
+                break;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                TraceBuffer.trace(TraceBuffer.EVENT_TOUCH_UP, eventTimeNanos, activePointerId);
+                activePointerId = INVALID_POINTER_ID;
+                if (recorder != null) {
+                    recorder.recordRelease(eventTimeNanos);
+                }
+                if (classifier.onRelease(eventTimeNanos) && recorder != null) {
+                    recorder.recordDirection(DirectionClassifier.DIR_NONE,
+                            classifier.getChangeTimeNanos());
                 }
+                break;
+        }
+
+        // If needed, update the client with the new direction and invalidate the view. The
+        // direction may have changed more than once within a batch, in which case only the final
+        // one is reported, along with the time at which it was first detected.
+        int newDir = classifier.getDirection();
+        if (oldDir != newDir) {
+            TraceBuffer.trace(TraceBuffer.EVENT_DIRECTION, classifier.getChangeTimeNanos(), newDir);
+            if (listener != null) {
+                listener.onDirectionChanged(newDir, classifier.getChangeTimeNanos());
             }
+            _setTouchDir(newDir);
+        }
+        if (accounting != null) {
+            _accountSamples();
         }
         return true;
     }
 
+    private void _accountSamples() {
+        long samples = classifier.getSampleCount(), ignored = classifier.getIgnoredSampleCount();
+        accounting.addTouchSamples(samples - accountedSamples, ignored - accountedIgnoredSamples);
+        accountedSamples = samples;
+        accountedIgnoredSamples = ignored;
+    }
+
+    /**
+     * Intended to only be used in the implementation for {@code onTouchEvent()}. Feeds the
+     * classifier the samples of one pointer in a move event. Moves are batched, so the samples
+     * are walked through in the order they happened; this tells us when the finger crossed into a
+     * new direction rather than when the batch was delivered.
+     */
+    private void _onSamples(@NonNull MotionEvent event, int pointerIndex) {
+        int historySize = event.getHistorySize();
+        for (int h = 0; h < historySize; h++) {
+            _onSample(event.getHistoricalX(pointerIndex, h),
+                    event.getHistoricalY(pointerIndex, h),
+                    event.getHistoricalEventTime(h) * 1_000_000L);
+        }
+        _onSample(event.getX(pointerIndex), event.getY(pointerIndex),
+                event.getEventTime() * 1_000_000L);
+    }
+
+    /**
+     * Intended to only be used in the implementation for {@code onTouchEvent()}. Feeds one sample
+     * to the classifier and, if recording, records it along with any change of direction.
+     */
+    private void _onSample(float x, float y, long timeNanos) {
+        if (recorder != null) {
+            recorder.recordSample(x, y, timeNanos);
+        }
+        if (classifier.onSample(x, y, timeNanos) && recorder != null) {
+            recorder.recordDirection(classifier.getDirection(), classifier.getChangeTimeNanos());
+        }
+    }
+
+    private void _recordConfig() {
+        if (recorder != null) {
+            recorder.recordConfig(classifier);
+        }
+    }
+
+    /**
+     * Enables or disables predictive input, in which a direction is reported as soon as the
+     * user's finger is moving fast and steadily towards it, before actually reaching it. Along
+     * with it come hysteresis at the diagonals and a dead zone around the center, so that the
+     * classification is the plain one while predictive input is off.
+     */
+    public void setPredictiveInputEnabled(boolean enabled) {
+        float minSpeedPxPerMs = TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP,
+                PREDICTION_MIN_SPEED_DIP_PER_MS, getResources().getDisplayMetrics());
+        classifier.setPrediction(enabled, PREDICTION_LOOKAHEAD_MS * 1_000_000L, minSpeedPxPerMs);
+        classifier.setHysteresis(enabled ? PREDICTION_HYSTERESIS : 0);
+        deadZoneRatio = enabled ? PREDICTION_DEAD_ZONE_RATIO : 0;
+        classifier.setDeadZone(Math.min(getWidth(), getHeight()) * 0.5f * deadZoneRatio);
+        _recordConfig();
+    }
+
+    /**
+     * Returns the classifier, for reading its prediction counters.
+     */
+    @NonNull
+    public DirectionClassifier getClassifier() {
+        return classifier;
+    }
+
     /**
      * Sets the {@code OnDirectionChangedListener} to be notified when the directional input
      * supplied by the user changes. You may also pass {@code null} to disconnect a listener you
@@ -185,4 +368,24 @@ public class DPadView extends View {
     public void setListener(@Nullable OnDirectionChangedListener listener) {
         this.listener = listener;
     }
+
+    /**
+     * Sets the recorder the touch samples fed to the classifier and the directions it reports are
+     * recorded into, or {@code null} to stop recording. Only ever called on the main thread.
+     */
+    public void setRecorder(@Nullable InputRecorder recorder) {
+        this.recorder = recorder;
+        _recordConfig();
+    }
+
+    /**
+     * Sets the accounting the redraws of the view and the touch samples it handles are counted
+     * in, or {@code null} to stop counting them. Only ever called on the main thread.
+     */
+    public void setAccounting(@Nullable SessionAccounting accounting) {
+        this.accounting = accounting;
+        // Samples handled before are nobody's to count.
+        accountedSamples = classifier.getSampleCount();
+        accountedIgnoredSamples = classifier.getIgnoredSampleCount();
+    }
 }
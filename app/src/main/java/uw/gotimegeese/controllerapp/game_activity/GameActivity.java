@@ -2,71 +2,307 @@ package uw.gotimegeese.controllerapp.game_activity;
 
 import static uw.gotimegeese.controllerapp.Constants.*;
 
-import android.bluetooth.BluetoothSocket;
+import android.content.ComponentName;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.res.TypedArray;
+import android.hardware.input.InputManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.VibrationEffect;
+import android.os.Vibrator;
 import android.util.Log;
+import android.view.InputDevice;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
 import android.view.View;
+import android.widget.CompoundButton;
 import android.widget.TextView;
+import android.widget.Toast;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
 
+import uw.gotimegeese.controllerapp.ControllerApplication;
 import uw.gotimegeese.controllerapp.R;
+import uw.gotimegeese.controllerapp.StartupTrace;
+import uw.gotimegeese.controllerapp.connection.ControllerSession;
+import uw.gotimegeese.controllerapp.connection.InputShaper;
+import uw.gotimegeese.controllerapp.connection.ProtocolV2;
+import uw.gotimegeese.controllerapp.input.DirectionArbiter;
+import uw.gotimegeese.controllerapp.input.DirectionClassifier;
+import uw.gotimegeese.controllerapp.input.GamepadMapper;
+import uw.gotimegeese.controllerapp.input.InputRecorder;
+import uw.gotimegeese.controllerapp.metrics.SessionAccounting;
+import uw.gotimegeese.controllerapp.metrics.TraceBuffer;
+import uw.gotimegeese.controllerapp.service.ControllerService;
 import uw.gotimegeese.controllerapp.start_activity.StartActivity;
 
+/**
+ * Shows the D-Pad and relays the user's inputs to the game. The connection itself is owned by
+ * {@code ControllerService}, which this activity binds to while it is started, so that recreating
+ * the activity doesn't cost a reconnect.
+ * <p>
+ * On tablets, a second player can join over the same connection and gets a D-Pad of their own on
+ * the other side of the screen.
+ * <p>
+ * The first player can also steer with a gamepad or keyboard attached to the phone, or by tilting
+ * it. Their directions are merged with the D-Pad's, so the same direction isn't sent twice.
+ */
 public class GameActivity extends AppCompatActivity {
 
-    public static BluetoothSocket serverSocket;
-    public static int playerNumber;
+    // How long the "connection is slow" message stays up after the last reported stall.
+    private static final long STALL_MESSAGE_DURATION_MS = 2000;
+
+    // How often the debug overlay is refreshed while it is shown.
+    private static final long DEBUG_OVERLAY_REFRESH_MS = 500;
+
+    // Screens at least this wide (in DIPs) have room for a second player.
+    private static final int SPLIT_MODE_MIN_WIDTH_DP = 600;
+
+    // Where inputs are recorded to, relative to the app's files directory, and how much of the
+    // most recent input is kept.
+    private static final String RECORDING_DIR = "input_recording";
+    private static final int RECORDING_MAX_BYTES = 1024 * 1024;
+
+    // The sources steering the first player, merged by the arbiter.
+    private static final int SOURCE_DPAD = 0;
+    private static final int SOURCE_GAMEPAD = 1;
+    private static final int SOURCE_TILT = 2;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private TextView playerTextView, statusTextView, eventTextView, linkTextView, debugTextView;
+    private TextView extraPlayerTextView;
+    private View debugOverlay, splitBtn;
+    private CompoundButton shapingCheckBox, tiltCheckBox, recordCheckBox;
+    private DPadView dPadView, extraDPadView;
+
+    // The binder of ControllerService and the session it owns, while we are bound to it. The
+    // binder is read from the sensor thread too.
+    private volatile ControllerService.LocalBinder binder;
+    private ControllerSession session;
+    private int playerNumber, extraPlayerNumber;
+    private InputRecorder recorder;
+    // Whether a recorder is being opened on the disk executor.
+    private boolean startingRecording;
+    private TiltSource tiltSource;
+    // Whether tilting starts from the tilt the phone is held at, which is only taken when the
+    // user turns tilting on, not each time we are bound again.
+    private boolean calibrateTilt;
+    // Guarded by itself, since tilting steers from the sensor thread.
+    private final DirectionArbiter arbiter = new DirectionArbiter(3);
+    // Only accessed on the main thread, like the device the gamepad's dead zone was set for.
+    private final GamepadMapper gamepad = new GamepadMapper();
+    private int gamepadDeviceId = -1;
+    // The device whose keys last steered, which may be a gamepad's D-Pad or a keyboard.
+    private int keyDeviceId = -1;
+    private InputManager inputManager;
+    // The accounting of the session shown, kept while stopped so that resumes keep counting.
+    private SessionAccounting accounting;
+    private int unaccountedResumes;
+
+    private final Runnable hideStallMessage = () -> statusTextView.setVisibility(View.GONE);
+
+    private final Runnable refreshDebugOverlay = new Runnable() {
+        @Override
+        public void run() {
+            DirectionClassifier classifier = dPadView.getClassifier();
+            String latencySummary = "", accountingSummary = "";
+            SessionAccounting accounting = binder != null ? binder.updateAccounting() : null;
+            if (accounting != null) {
+                accountingSummary = "\n" + accounting.summarize();
+            }
+            if (session != null) {
+                InputShaper shaper = session.getInputSender().getShaper();
+                latencySummary = session.getLatencyStats().summarize()
+                        + "\nshaped: delivered " + shaper.getDeliveredCount()
+                        + ", deferred " + shaper.getDeferredCount()
+                        + ", suppressed " + shaper.getSuppressedCount();
+            }
+            debugTextView.setText(latencySummary
+                    + "\npredicted " + classifier.getPredictedCount()
+                    + ", confirmed " + classifier.getConfirmedCount()
+                    + ", corrected " + classifier.getCorrectedCount()
+                    + "\nduplicate directions " + _getDuplicateDirectionCount()
+                    + (recorder != null ? "\nrecorded " + recorder.getRecordedCount()
+                            + ", dropped " + recorder.getDroppedCount() : "")
+                    + accountingSummary);
+            handler.postDelayed(this, DEBUG_OVERLAY_REFRESH_MS);
+        }
+    };
+
+    // A gamepad unplugged or out of range while steering sends no more events, so its direction
+    // would be held until we stop. Only registered while started, since stopping resets the
+    // gamepad anyway.
+    private final InputManager.InputDeviceListener inputDeviceListener =
+            new InputManager.InputDeviceListener() {
+                @Override
+                public void onInputDeviceAdded(int deviceId) {}
+
+                @Override
+                public void onInputDeviceRemoved(int deviceId) {
+                    if (deviceId != gamepadDeviceId && deviceId != keyDeviceId) {
+                        return;
+                    }
+                    gamepadDeviceId = -1;
+                    keyDeviceId = -1;
+                    if (gamepad.reset(System.nanoTime())) {
+                        _steerFirstPlayer(SOURCE_GAMEPAD, gamepad.getDirection(),
+                                gamepad.getChangeTimeNanos());
+                    }
+                }
+
+                @Override
+                public void onInputDeviceChanged(int deviceId) {}
+            };
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            binder = (ControllerService.LocalBinder) service;
+            session = binder.getSession();
+            if (session == null) {
+                // The session ended while we weren't looking; there is nothing left to control.
+                _returnToStartActivity();
+                return;
+            }
+            binder.setListener(new ServiceListener());
+            _showSession(session);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            binder = null;
+            session = null;
+        }
+    };
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.game_activity_layout);
+        playerTextView = findViewById(R.id.game_activity_player_textView);
+        statusTextView = findViewById(R.id.game_activity_status_textView);
+        eventTextView = findViewById(R.id.game_activity_event_textView);
+        linkTextView = findViewById(R.id.game_activity_link_textView);
+        debugOverlay = findViewById(R.id.game_activity_debug_overlay);
+        debugTextView = findViewById(R.id.game_activity_debug_textView);
+        dPadView = findViewById(R.id.game_activity_dPadView);
+        extraPlayerTextView = findViewById(R.id.game_activity_extra_player_textView);
+        extraDPadView = findViewById(R.id.game_activity_extra_dPadView);
+        splitBtn = findViewById(R.id.game_activity_split_btn);
 
-        // Display the user's player number and color.
-        TextView textView = findViewById(R.id.game_activity_player_textView);
-        TypedArray colorArr = getResources().obtainTypedArray(R.array.player_colors);
-        textView.setTextColor(colorArr.getColor(playerNumber - 1, 0));
-        colorArr.recycle();
-        textView.setText(getString(R.string.game_activity_player_text, playerNumber));
-
-        // Register a listener to relay changes in the user's directional input to the server.
-        DPadView dPadView = findViewById(R.id.game_activity_dPadView);
-        dPadView.setListener(direction -> {
-            Log.d("GameActivity", "Direction: " + direction);
-            int data = CLIENT_DIR_NEUTRAL;
-            if (direction == 0) {
-                data = CLIENT_DIR_DOWN;
-            } else if (direction == 1) {
-                data = CLIENT_DIR_RIGHT;
-            } else if (direction == 2) {
-                data = CLIENT_DIR_UP;
-            } else if (direction == 3) {
-                data = CLIENT_DIR_LEFT;
-            }
-            sendToServer(data);
+        // Long pressing the player number toggles the debug overlay, which shows the input
+        // latency and lets the user try out predictive input.
+        playerTextView.setOnLongClickListener(v -> {
+            if (debugOverlay.getVisibility() == View.VISIBLE) {
+                debugOverlay.setVisibility(View.GONE);
+                handler.removeCallbacks(refreshDebugOverlay);
+            } else {
+                debugOverlay.setVisibility(View.VISIBLE);
+                refreshDebugOverlay.run();
+            }
+            return true;
+        });
+        CompoundButton predictiveCheckBox = findViewById(R.id.game_activity_predictive_checkBox);
+        predictiveCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            dPadView.setPredictiveInputEnabled(isChecked);
+            extraDPadView.setPredictiveInputEnabled(isChecked);
+        });
+        inputManager = (InputManager) getSystemService(INPUT_SERVICE);
+        // Tilting steers the first player, alongside their D-Pad. The phone is only listened to
+        // while we're bound to a session.
+        tiltSource = new TiltSource(this);
+        tiltCheckBox = findViewById(R.id.game_activity_tilt_checkBox);
+        tiltCheckBox.setVisibility(tiltSource.isAvailable() ? View.VISIBLE : View.GONE);
+        tiltCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (!isChecked) {
+                tiltSource.stop();
+                return;
+            }
+            calibrateTilt = true;
+            if (binder != null) {
+                _startTilt();
+            }
+        });
+        shapingCheckBox = findViewById(R.id.game_activity_shaping_checkBox);
+        shapingCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (session != null) {
+                _applyInputShaping(session);
+            }
+        });
+        recordCheckBox = findViewById(R.id.game_activity_record_checkBox);
+        recordCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            if (isChecked) {
+                _startRecording();
+            } else {
+                _stopRecording();
+            }
         });
 
-        // Register a listener for the exit button.
+        // The trace is only recorded in debug builds.
+        View dumpTraceBtn = findViewById(R.id.game_activity_dump_trace_btn);
+        dumpTraceBtn.setVisibility(TraceBuffer.isEnabled() ? View.VISIBLE : View.GONE);
+        dumpTraceBtn.setOnClickListener(v -> ControllerApplication.getDiskExecutor().execute(() -> {
+            File file = ControllerApplication.dumpTrace(this, "requested");
+            runOnUiThread(() -> {
+                if (file != null && !isDestroyed()) {
+                    Toast.makeText(this, getString(R.string.game_activity_trace_dumped_toast,
+                            file), Toast.LENGTH_SHORT).show();
+                }
+            });
+        }));
+
+        // Register listeners to relay changes in the users' directional input to the server, each
+        // D-Pad in its own player's slot.
+        dPadView.setListener(new DirectionRelay(0));
+        extraDPadView.setListener(new DirectionRelay(ControllerSession.EXTRA_PLAYER_SLOT));
+
+        // Register a listener for the split button, which asks for a second player. The second
+        // D-Pad shows up once the server answered.
+        splitBtn.setOnClickListener(v -> {
+            if (binder != null && binder.requestExtraPlayer()) {
+                splitBtn.setEnabled(false);
+            }
+        });
+
+        // Register a listener for the exit button. Exiting leaves the game, so the session ends
+        // here rather than surviving the trip back to StartActivity.
         View exitBtn = findViewById(R.id.game_activity_exit_btn);
         exitBtn.setOnClickListener(v -> {
-            startActivity(new Intent(this, StartActivity.class));
-            finish();
+            if (binder != null) {
+                binder.endSession();
+            }
+            _returnToStartActivity();
         });
 
         // Register a listener for the pause/resume button.
         View pauseResumeBtn = findViewById(R.id.game_activity_pause_resume_btn);
         pauseResumeBtn.setOnClickListener(v -> {
-            sendToServer(CLIENT_ACTION_PAUSE_RESUME);
+            if (binder != null) {
+                binder.sendPauseResume();
+            }
         });
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Binding creates the service if the session already ended, in which case it reports no
+        // session and we leave.
+        bindService(new Intent(this, ControllerService.class), serviceConnection,
+                BIND_AUTO_CREATE);
+        inputManager.registerInputDeviceListener(inputDeviceListener, handler);
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -80,20 +316,472 @@ public class GameActivity extends AppCompatActivity {
                 View.SYSTEM_UI_FLAG_LAYOUT_FULLSCREEN |
                 View.SYSTEM_UI_FLAG_HIDE_NAVIGATION |
                 View.SYSTEM_UI_FLAG_FULLSCREEN);
+        // We're usually resumed before being bound to the service, so the resume is counted
+        // once the session's accounting is known.
+        unaccountedResumes++;
+        if (accounting != null) {
+            _accountResumes();
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        inputManager.unregisterInputDeviceListener(inputDeviceListener);
+        tiltSource.stop();
+        if (gamepad.reset(System.nanoTime())) {
+            _steerFirstPlayer(SOURCE_GAMEPAD, gamepad.getDirection(), gamepad.getChangeTimeNanos());
+        }
+        if (binder != null) {
+            binder.setListener(null);
+        }
+        if (session != null && recorder != null) {
+            // Picked up again by _showSession() once we are bound again.
+            session.setWireTap(null);
+        }
+        unbindService(serviceConnection);
+        binder = null;
+        session = null;
+        super.onStop();
+    }
+
+    /**
+     * Displays the state of a session, which may have been going on for a while already.
+     */
+    private void _showSession(@NonNull ControllerSession session) {
+        // Display the user's player number and color.
+        playerNumber = session.getPlayerNumber();
+        playerTextView.setTextColor(_playerColor(playerNumber));
+        playerTextView.setText(getString(R.string.game_activity_player_text, playerNumber));
+        if (recorder != null) {
+            session.setWireTap(recorder);
+        }
+        _applyInputShaping(session);
+        if (tiltCheckBox.isChecked()) {
+            _startTilt();
+        }
+        if (session.getAccounting() != accounting) {
+            accounting = session.getAccounting();
+            dPadView.setAccounting(accounting);
+            extraDPadView.setAccounting(accounting);
+        }
+        if (accounting != null) {
+            _accountResumes();
+        }
+
+        // Show the second player's D-Pad if there is one, or offer to add one on large screens.
+        extraPlayerNumber = session.getExtraPlayerNumber();
+        boolean splitMode = extraPlayerNumber != 0;
+        if (splitMode) {
+            extraPlayerTextView.setTextColor(_playerColor(extraPlayerNumber));
+            extraPlayerTextView.setText(getString(R.string.game_activity_player_text,
+                    extraPlayerNumber));
+        }
+        extraPlayerTextView.setVisibility(splitMode ? View.VISIBLE : View.GONE);
+        extraDPadView.setVisibility(splitMode ? View.VISIBLE : View.GONE);
+        boolean canSplit = getResources().getConfiguration().smallestScreenWidthDp
+                >= SPLIT_MODE_MIN_WIDTH_DP && session.getProtocolVersion() == PROTOCOL_V2;
+        splitBtn.setVisibility(canSplit && !splitMode ? View.VISIBLE : View.GONE);
+        splitBtn.setEnabled(true);
+
+        if (session.isReconnecting()) {
+            statusTextView.setText(R.string.game_activity_reconnecting_text);
+            statusTextView.setVisibility(View.VISIBLE);
+        }
+        if (session.isGamePaused()) {
+            eventTextView.setText(R.string.game_activity_paused_text);
+            eventTextView.setVisibility(View.VISIBLE);
+        }
+        StartupTrace.endInputReady();
+    }
+
+    private void _accountResumes() {
+        while (unaccountedResumes > 0) {
+            accounting.onResume();
+            unaccountedResumes--;
+        }
+    }
+
+    private int _playerColor(int playerNumber) {
+        TypedArray colorArr = getResources().obtainTypedArray(R.array.player_colors);
+        int color = colorArr.getColor(playerNumber - 1, 0);
+        colorArr.recycle();
+        return color;
+    }
+
+    /**
+     * Relays the direction changes of one D-Pad to the server, in the slot of the player it
+     * belongs to.
+     */
+    private class DirectionRelay implements DPadView.OnDirectionChangedListener {
+
+        private final int slot;
+
+        DirectionRelay(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public void onDirectionChanged(int direction, long eventTimeNanos) {
+            if (slot == 0) {
+                _steerFirstPlayer(SOURCE_DPAD, direction, eventTimeNanos);
+            } else {
+                _sendDirection(slot, direction, eventTimeNanos);
+            }
+            if (binder != null) {
+                StartupTrace.endFirstInput();
+            }
+        }
+    }
+
+    /**
+     * Merges a direction change of one of the {@code SOURCE_*} steering the first player with the
+     * others', and sends the result if it changed. May be called from any thread.
+     */
+    private void _steerFirstPlayer(int source, int direction, long eventTimeNanos) {
+        synchronized (arbiter) {
+            if (arbiter.update(source, direction, eventTimeNanos)) {
+                _sendDirection(0, arbiter.getDirection(), arbiter.getChangeTimeNanos());
+            }
+        }
+    }
+
+    private long _getDuplicateDirectionCount() {
+        synchronized (arbiter) {
+            return arbiter.getDuplicateCount();
+        }
+    }
+
+    private void _sendDirection(int slot, int direction, long eventTimeNanos) {
+        long dispatchNanos = System.nanoTime();
+        int data = DirectionClassifier.toClientDirection(direction);
+        TraceBuffer.trace(TraceBuffer.EVENT_DIRECTION_QUEUED, dispatchNanos, slot << 8 | data);
+        ControllerService.LocalBinder binder = this.binder;
+        if (binder != null) {
+            binder.sendDirection(slot, data, eventTimeNanos, dispatchNanos);
+        }
+    }
+
+    private void _startTilt() {
+        tiltSource.start(getWindowManager().getDefaultDisplay().getRotation(), calibrateTilt,
+                (direction, eventTimeNanos) ->
+                        _steerFirstPlayer(SOURCE_TILT, direction, eventTimeNanos));
+        calibrateTilt = false;
+    }
+
+    /**
+     * Handles the keys of gamepads and keyboards ahead of the view hierarchy, so that they reach
+     * the server without going through focus navigation. Other keys, like back, are dispatched as
+     * usual.
+     */
+    @Override
+    public boolean dispatchKeyEvent(KeyEvent event) {
+        return _onKeyEvent(event) || super.dispatchKeyEvent(event);
+    }
+
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent event) {
+        if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+            StartupTrace.beginFirstInput();
+        }
+        return super.dispatchTouchEvent(event);
+    }
+
+    /**
+     * Handles the hats and analog sticks of gamepads ahead of the view hierarchy.
+     */
+    @Override
+    public boolean dispatchGenericMotionEvent(MotionEvent event) {
+        return _onJoystickEvent(event) || super.dispatchGenericMotionEvent(event);
+    }
+
+    /**
+     * @return whether the key steers or pauses, in which case it was consumed.
+     */
+    private boolean _onKeyEvent(@NonNull KeyEvent event) {
+        int button;
+        switch (event.getKeyCode()) {
+            case KeyEvent.KEYCODE_DPAD_UP:
+            case KeyEvent.KEYCODE_W:
+                button = GamepadMapper.BUTTON_UP;
+                break;
+            case KeyEvent.KEYCODE_DPAD_DOWN:
+            case KeyEvent.KEYCODE_S:
+                button = GamepadMapper.BUTTON_DOWN;
+                break;
+            case KeyEvent.KEYCODE_DPAD_LEFT:
+            case KeyEvent.KEYCODE_A:
+                button = GamepadMapper.BUTTON_LEFT;
+                break;
+            case KeyEvent.KEYCODE_DPAD_RIGHT:
+            case KeyEvent.KEYCODE_D:
+                button = GamepadMapper.BUTTON_RIGHT;
+                break;
+            case KeyEvent.KEYCODE_BUTTON_START:
+            case KeyEvent.KEYCODE_SPACE:
+                if (event.getAction() == KeyEvent.ACTION_DOWN && event.getRepeatCount() == 0
+                        && binder != null) {
+                    binder.sendPauseResume();
+                }
+                return true;
+            default:
+                return false;
+        }
+        int action = event.getAction();
+        // KeyEvent timestamps are in the uptimeMillis() time base, like MotionEvent's.
+        if (action == KeyEvent.ACTION_DOWN) {
+            keyDeviceId = event.getDeviceId();
+        }
+        if ((action == KeyEvent.ACTION_DOWN || action == KeyEvent.ACTION_UP)
+                && gamepad.onButton(button, action == KeyEvent.ACTION_DOWN,
+                        event.getEventTime() * 1_000_000L)) {
+            _steerFirstPlayer(SOURCE_GAMEPAD, gamepad.getDirection(), gamepad.getChangeTimeNanos());
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the event came from a joystick, in which case it was consumed.
+     */
+    private boolean _onJoystickEvent(@NonNull MotionEvent event) {
+        if ((event.getSource() & InputDevice.SOURCE_JOYSTICK) != InputDevice.SOURCE_JOYSTICK
+                || event.getActionMasked() != MotionEvent.ACTION_MOVE) {
+            return false;
+        }
+        if (event.getDeviceId() != gamepadDeviceId) {
+            gamepadDeviceId = event.getDeviceId();
+            gamepad.setDeadZone(_stickDeadZone(event));
+        }
+
+        // Like touches, joystick moves are batched. Walk the historical samples so that the
+        // change is timed when it happened rather than when the batch was delivered.
+        boolean changed = false;
+        int historySize = event.getHistorySize();
+        for (int h = 0; h < historySize; h++) {
+            changed |= gamepad.onAxes(event.getHistoricalAxisValue(MotionEvent.AXIS_HAT_X, h),
+                    event.getHistoricalAxisValue(MotionEvent.AXIS_HAT_Y, h),
+                    event.getHistoricalAxisValue(MotionEvent.AXIS_X, h),
+                    event.getHistoricalAxisValue(MotionEvent.AXIS_Y, h),
+                    event.getHistoricalEventTime(h) * 1_000_000L);
+        }
+        changed |= gamepad.onAxes(event.getAxisValue(MotionEvent.AXIS_HAT_X),
+                event.getAxisValue(MotionEvent.AXIS_HAT_Y),
+                event.getAxisValue(MotionEvent.AXIS_X),
+                event.getAxisValue(MotionEvent.AXIS_Y),
+                event.getEventTime() * 1_000_000L);
+        if (changed) {
+            _steerFirstPlayer(SOURCE_GAMEPAD, gamepad.getDirection(), gamepad.getChangeTimeNanos());
+        }
+        return true;
+    }
+
+    /**
+     * Returns the dead zone for the analog stick of the device which sent {@code event}, which is
+     * no smaller than the range the device itself reports as noise around the center.
+     */
+    private static float _stickDeadZone(@NonNull MotionEvent event) {
+        InputDevice device = event.getDevice();
+        InputDevice.MotionRange range = device != null
+                ? device.getMotionRange(MotionEvent.AXIS_X, event.getSource()) : null;
+        return range != null ? Math.max(GamepadMapper.DEFAULT_DEAD_ZONE, range.getFlat())
+                : GamepadMapper.DEFAULT_DEAD_ZONE;
+    }
+
+    /**
+     * Updates the UI with the events of the session. Called on the main thread.
+     */
+    private class ServiceListener implements ControllerService.Listener {
+
+        @Override
+        public void onWriteStalled(long blockedMs) {
+            statusTextView.setText(R.string.game_activity_connection_slow_text);
+            statusTextView.setVisibility(View.VISIBLE);
+            handler.removeCallbacks(hideStallMessage);
+            handler.postDelayed(hideStallMessage, STALL_MESSAGE_DURATION_MS);
+        }
+
+        @Override
+        public void onServerEvent(int type, int argument) {
+            switch (type) {
+                case ProtocolV2.EVENT_GAME_OVER:
+                    eventTextView.setText(argument == 0
+                            ? getString(R.string.game_activity_game_over_text)
+                            : getString(R.string.game_activity_game_over_winner_text, argument));
+                    eventTextView.setVisibility(View.VISIBLE);
+                    break;
+                case ProtocolV2.EVENT_PAUSE_STATE:
+                    eventTextView.setText(R.string.game_activity_paused_text);
+                    eventTextView.setVisibility(argument != 0 ? View.VISIBLE : View.GONE);
+                    break;
+                case ProtocolV2.EVENT_PLAYER_ELIMINATED:
+                    if (argument == playerNumber || argument == extraPlayerNumber) {
+                        eventTextView.setText(R.string.game_activity_eliminated_text);
+                        eventTextView.setVisibility(View.VISIBLE);
+                    }
+                    break;
+                case ProtocolV2.EVENT_VIBRATE:
+                    _vibrate(argument);
+                    break;
+                case ProtocolV2.EVENT_PLAYER_ADDED:
+                    if ((argument & 0xff) == SERVER_GAME_FULL_RESPONSE) {
+                        Toast.makeText(GameActivity.this, R.string.game_activity_no_room_toast,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                    if (session != null) {
+                        _showSession(session);
+                    }
+                    break;
+            }
+        }
+
+        @Override
+        public void onLinkStatsUpdated(int smoothedRttMs, int jitterMs) {
+            linkTextView.setText(getString(R.string.game_activity_link_text, smoothedRttMs,
+                    jitterMs));
+        }
+
+        @Override
+        public void onReconnecting() {
+            // Keep the message up until the connection is back, rather than for a fixed time.
+            handler.removeCallbacks(hideStallMessage);
+            statusTextView.setText(R.string.game_activity_reconnecting_text);
+            statusTextView.setVisibility(View.VISIBLE);
+        }
+
+        @Override
+        public void onReconnected(boolean slotReclaimed) {
+            statusTextView.setVisibility(View.GONE);
+            if (!slotReclaimed && session != null) {
+                _showSession(session);
+            }
+        }
+
+        @Override
+        public void onConnectionLost() {
+            Toast.makeText(GameActivity.this, R.string.connection_lost_toast,
+                    Toast.LENGTH_SHORT).show();
+            _returnToStartActivity();
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private void _vibrate(int durationMs) {
+        Vibrator vibrator = (Vibrator) getSystemService(VIBRATOR_SERVICE);
+        if (vibrator == null || !vibrator.hasVibrator()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            vibrator.vibrate(VibrationEffect.createOneShot(durationMs,
+                    VibrationEffect.DEFAULT_AMPLITUDE));
+        } else {
+            vibrator.vibrate(durationMs);
+        }
+    }
+
+    private void _returnToStartActivity() {
+        if (isFinishing()) {
+            return;
+        }
+        startActivity(new Intent(this, StartActivity.class));
+        finish();
+    }
+
+    /**
+     * Shapes the directions sent to the server unless the user turned shaping off in the debug
+     * overlay, see {@code InputShaper}.
+     */
+    private void _applyInputShaping(@NonNull ControllerSession session) {
+        if (shapingCheckBox.isChecked()) {
+            session.setInputShaping(InputShaper.DEFAULT_MIN_INTERVAL_MS,
+                    InputShaper.DEFAULT_FLIP_WINDOW_MS);
+        } else {
+            session.setInputShaping(0, 0);
+        }
+    }
+
+    /**
+     * Starts recording the inputs of the main D-Pad and the bytes sent to the server, replacing
+     * the previous recording. Recordings can be replayed with {@code InputReplayer}.
+     * <p>
+     * The recorder is opened on the disk executor, once the previous one was closed, and recording
+     * starts when it is opened if the record checkbox is still checked.
+     */
+    private void _startRecording() {
+        if (recorder != null || startingRecording) {
+            return;
+        }
+        startingRecording = true;
+        File dir = new File(getFilesDir(), RECORDING_DIR);
+        ControllerApplication.getDiskExecutor().execute(() -> {
+            InputRecorder opened;
+            try {
+                opened = new InputRecorder(dir, RECORDING_MAX_BYTES);
+            } catch (IOException ex) {
+                Log.w("GameActivity", "Can't start recording", ex);
+                opened = null;
+            }
+            InputRecorder finalOpened = opened;
+            runOnUiThread(() -> _onRecorderOpened(finalOpened));
+        });
     }
 
-    private void sendToServer(int data) {
-        try {
-            OutputStream out = serverSocket.getOutputStream();
-            out.write(data);
-        } catch (IOException ignored) {}
+    private void _onRecorderOpened(@Nullable InputRecorder opened) {
+        startingRecording = false;
+        if (opened == null) {
+            if (!isDestroyed()) {
+                Toast.makeText(this, R.string.game_activity_recording_failed_toast,
+                        Toast.LENGTH_SHORT).show();
+                recordCheckBox.setChecked(false);
+            }
+            return;
+        }
+        if (isDestroyed() || !recordCheckBox.isChecked()) {
+            _closeRecorder(opened);
+            return;
+        }
+        recorder = opened;
+        dPadView.setRecorder(recorder);
+        if (session != null) {
+            session.setWireTap(recorder);
+        }
+    }
+
+    private void _stopRecording() {
+        if (recorder == null) {
+            return;
+        }
+        dPadView.setRecorder(null);
+        if (session != null) {
+            session.setWireTap(null);
+        }
+        _closeRecorder(recorder);
+        recorder = null;
+    }
+
+    /**
+     * Closes {@code closing} on the disk executor, since closing waits for the recording to be
+     * written out.
+     */
+    private void _closeRecorder(@NonNull InputRecorder closing) {
+        ControllerApplication.getDiskExecutor().execute(() -> {
+            try {
+                closing.close();
+            } catch (IOException ex) {
+                Log.w("GameActivity", "Recording failed", ex);
+                runOnUiThread(() -> {
+                    if (!isDestroyed()) {
+                        Toast.makeText(this, R.string.game_activity_recording_failed_toast,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
+        });
     }
 
     @Override
     protected void onDestroy() {
-        try {
-            serverSocket.close();
-        } catch (IOException ignored) {}
+        tiltSource.close();
+        _stopRecording();
+        handler.removeCallbacksAndMessages(null);
         super.onDestroy();
     }
 }
@@ -0,0 +1,159 @@
+package uw.gotimegeese.controllerapp.game_activity;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import uw.gotimegeese.controllerapp.input.TiltQuantizer;
+import uw.gotimegeese.controllerapp.metrics.TraceBuffer;
+
+/**
+ * Steers by tilting the phone. Gravity readings are received and quantised into directions on a
+ * dedicated thread, which also calls the listener, so that neither the main thread nor any
+ * allocation is involved per sample. The listener must therefore be callable from any thread,
+ * like the {@code send*()} methods of {@code ControllerService.LocalBinder}.
+ */
+class TiltSource implements SensorEventListener {
+
+    private final SensorManager sensorManager;
+    @Nullable
+    private final Sensor sensor;
+
+    // The following fields are only accessed on the sensor thread.
+    private final TiltQuantizer quantizer = new TiltQuantizer();
+    private DPadView.OnDirectionChangedListener listener;
+    private int displayRotation;
+    // Sensor timestamps are in the elapsedRealtimeNanos() time base, which keeps counting during
+    // deep sleep, unlike System.nanoTime() which the rest of the input path uses.
+    private long clockOffsetNanos;
+
+    // The following fields are only accessed on the main thread. The sensor thread is kept
+    // across stop() and start(), so that everything it does happens in order.
+    private HandlerThread thread;
+    private Handler handler;
+    private boolean started;
+
+    TiltSource(@NonNull Context context) {
+        sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        // The gravity sensor already filters out the phone's own movement; the accelerometer
+        // works too, with more for the low-pass filter to do.
+        Sensor gravity = sensorManager.getDefaultSensor(Sensor.TYPE_GRAVITY);
+        sensor = gravity != null ? gravity
+                : sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+    }
+
+    boolean isAvailable() {
+        return sensor != null;
+    }
+
+    /**
+     * Starts steering. Must be called on the main thread.
+     *
+     * @param displayRotation the {@code Surface.ROTATION_*} of the display, to map the sensor's
+     *                        axes onto the screen's.
+     * @param calibrate       whether to take the tilt the phone is currently held at as neutral,
+     *                        rather than the one taken when steering last started that way.
+     */
+    void start(int displayRotation, boolean calibrate,
+               @NonNull DPadView.OnDirectionChangedListener listener) {
+        if (sensor == null || started) {
+            return;
+        }
+        started = true;
+        if (thread == null) {
+            thread = new HandlerThread("TiltSource", Process.THREAD_PRIORITY_DISPLAY);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        // Runs before the first reading, which is delivered through the same thread.
+        handler.post(() -> {
+            this.displayRotation = displayRotation;
+            this.listener = listener;
+            clockOffsetNanos = SystemClock.elapsedRealtimeNanos() - System.nanoTime();
+            if (calibrate) {
+                quantizer.calibrate();
+            }
+        });
+        sensorManager.registerListener(this, sensor, SensorManager.SENSOR_DELAY_GAME, handler);
+    }
+
+    /**
+     * Stops steering. The direction goes back to neutral if it wasn't already. Must be called on
+     * the main thread.
+     */
+    void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        sensorManager.unregisterListener(this);
+        handler.post(() -> {
+            if (quantizer.reset(System.nanoTime())) {
+                _onDirectionChanged();
+            }
+        });
+    }
+
+    /**
+     * Stops steering and lets the sensor thread finish. Must be called on the main thread.
+     */
+    void close() {
+        stop();
+        if (thread != null) {
+            thread.quitSafely();
+            thread = null;
+            handler = null;
+        }
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        // Rotate the readings from the sensor's axes, which follow the device's natural
+        // orientation, to the display's, with y pointing up.
+        float[] values = event.values;
+        float x, y;
+        switch (displayRotation) {
+            case Surface.ROTATION_90:
+                x = -values[1];
+                y = values[0];
+                break;
+            case Surface.ROTATION_180:
+                x = -values[0];
+                y = -values[1];
+                break;
+            case Surface.ROTATION_270:
+                x = values[1];
+                y = -values[0];
+                break;
+            default:
+                x = values[0];
+                y = values[1];
+                break;
+        }
+        // At rest the readings point up, away from the ground. The way the phone is tilted
+        // towards is the opposite of that, which in screen coordinates flips x only.
+        if (quantizer.onSample(-x, y, event.timestamp - clockOffsetNanos)) {
+            _onDirectionChanged();
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+
+    private void _onDirectionChanged() {
+        int direction = quantizer.getDirection();
+        long changeTimeNanos = quantizer.getChangeTimeNanos();
+        TraceBuffer.trace(TraceBuffer.EVENT_DIRECTION, changeTimeNanos, direction);
+        listener.onDirectionChanged(direction, changeTimeNanos);
+    }
+}
@@ -0,0 +1,477 @@
+package uw.gotimegeese.controllerapp.service;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+import androidx.core.content.ContextCompat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import uw.gotimegeese.controllerapp.BuildConfig;
+import uw.gotimegeese.controllerapp.ControllerApplication;
+import uw.gotimegeese.controllerapp.R;
+import uw.gotimegeese.controllerapp.connection.ControllerSession;
+import uw.gotimegeese.controllerapp.connection.InputSender;
+import uw.gotimegeese.controllerapp.connection.InputShaper;
+import uw.gotimegeese.controllerapp.connection.LinkMonitor;
+import uw.gotimegeese.controllerapp.game_activity.GameActivity;
+import uw.gotimegeese.controllerapp.metrics.InputLatencyStats;
+import uw.gotimegeese.controllerapp.metrics.SessionAccounting;
+
+/**
+ * Foreground service owning the {@code ControllerSession} of the game the user joined. Keeping the
+ * session here rather than in {@code GameActivity} means the connection to the server survives the
+ * activity being recreated, e.g. on a configuration change, instead of being torn down and joined
+ * again, which takes seconds over Bluetooth.
+ * <p>
+ * The service is started with {@link #startSession(Context, ControllerSession)} once the join
+ * handshake succeeded, and stops itself once the session ends. Activities bind to it and talk to
+ * the session through {@link LocalBinder}.
+ */
+public class ControllerService extends Service {
+
+    /**
+     * Receives the events of the session. All methods are called on the main thread.
+     */
+    public interface Listener {
+
+        void onWriteStalled(long blockedMs);
+
+        void onServerEvent(int type, int argument);
+
+        void onLinkStatsUpdated(int smoothedRttMs, int jitterMs);
+
+        /**
+         * Called when the connection was lost and the session is trying to re-establish it.
+         */
+        void onReconnecting();
+
+        /**
+         * Called once the connection was re-established. If the server didn't give us our old
+         * slot back, the session's player number has changed.
+         */
+        void onReconnected(boolean slotReclaimed);
+
+        /**
+         * Called when the connection to the server was lost. The session has already ended and
+         * the service is stopping.
+         */
+        void onConnectionLost();
+    }
+
+    /**
+     * The lightweight API handed out to bound activities. Must only be used on the main thread,
+     * except for the {@code send*()} methods which never block and may be called from any thread.
+     */
+    public class LocalBinder extends Binder {
+
+        /**
+         * Returns the current session, or {@code null} if there is none, in which case the bound
+         * activity has nothing to control and should leave.
+         */
+        @Nullable
+        public ControllerSession getSession() {
+            return session;
+        }
+
+        /**
+         * Sets the listener to be notified of the session's events, or {@code null} to detach it.
+         * Events arriving while no listener is set are dropped.
+         */
+        public void setListener(@Nullable Listener listener) {
+            ControllerService.this.listener = listener;
+        }
+
+        public void sendDirection(int data, long touchNanos, long dispatchNanos) {
+            ControllerSession session = ControllerService.this.session;
+            if (session != null) {
+                session.sendDirection(data, touchNanos, dispatchNanos);
+            }
+        }
+
+        public void sendDirection(int slot, int data, long touchNanos, long dispatchNanos) {
+            ControllerSession session = ControllerService.this.session;
+            if (session != null) {
+                session.sendDirection(slot, data, touchNanos, dispatchNanos);
+            }
+        }
+
+        /**
+         * Asks for a second player sharing the connection. See
+         * {@code ControllerSession.requestExtraPlayer()}.
+         */
+        public boolean requestExtraPlayer() {
+            ControllerSession session = ControllerService.this.session;
+            return session != null && session.requestExtraPlayer();
+        }
+
+        public void sendPauseResume() {
+            ControllerSession session = ControllerService.this.session;
+            if (session != null) {
+                session.sendPauseResume();
+            }
+        }
+
+        /**
+         * Charges the main thread's CPU time so far to the accounting of the current session and
+         * returns it, or {@code null} if there is no session.
+         */
+        @Nullable
+        public SessionAccounting updateAccounting() {
+            ControllerSession session = ControllerService.this.session;
+            return session != null ? _chargeUiCpu(session) : null;
+        }
+
+        /**
+         * Leaves the game: closes the connection and stops the service.
+         */
+        public void endSession() {
+            _endSession();
+        }
+    }
+
+    private static final String TAG = "ControllerService";
+
+    private static final String NOTIFICATION_CHANNEL_ID = "controller_session";
+    private static final int NOTIFICATION_ID = 1;
+
+    // The "what" of the messages relaying the session's events to the main thread. Events are
+    // relayed as pooled Messages rather than Runnables so that no allocation happens per event.
+    private static final int MSG_WRITE_STALLED = 1;
+    private static final int MSG_SERVER_EVENT = 2;
+    private static final int MSG_LINK_STATS = 3;
+    private static final int MSG_CONNECTION_LOST = 4;
+    private static final int MSG_RECONNECTING = 5;
+    private static final int MSG_RECONNECTED = 6;
+
+    // Debug.threadCpuTimeNanos() reads the calling thread's CPU clock without allocating.
+    private static final SessionAccounting.Clock ACCOUNTING_CLOCK = new SessionAccounting.Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public long threadCpuNanos() {
+            return Debug.threadCpuTimeNanos();
+        }
+    };
+
+    // The session handed over by startSession(), until the service picks it up. Sessions can't be
+    // put in an Intent, and the service is only ever started from within this process.
+    private static ControllerSession pendingSession;
+
+    private final Handler handler = new Handler(Looper.getMainLooper(), this::_handleMessage);
+    private final LocalBinder binder = new LocalBinder();
+
+    private volatile ControllerSession session;
+    private Listener listener;
+    // A reading of the main thread's CPU clock, taken when the session's accounting was last
+    // charged with it. The service runs on the main thread, like the activities.
+    private long uiCpuMark;
+
+    /**
+     * Starts the service in the foreground and hands it {@code session}, which it owns from then
+     * on. Any session the service already owned is closed.
+     */
+    public static void startSession(@NonNull Context context, @NonNull ControllerSession session) {
+        synchronized (ControllerService.class) {
+            if (pendingSession != null) {
+                pendingSession.close();
+            }
+            pendingSession = session;
+        }
+        ContextCompat.startForegroundService(context,
+                new Intent(context, ControllerService.class));
+    }
+
+    @Override
+    public int onStartCommand(@Nullable Intent intent, int flags, int startId) {
+        ControllerSession newSession;
+        synchronized (ControllerService.class) {
+            newSession = pendingSession;
+            pendingSession = null;
+        }
+        if (newSession == null) {
+            // We were restarted without a session to own, e.g. after the process died.
+            if (session == null) {
+                stopSelf(startId);
+            }
+            return START_NOT_STICKY;
+        }
+
+        if (session != null) {
+            _closeSession(session);
+        }
+        session = newSession;
+        newSession.setListener(new SessionListener(newSession));
+        newSession.setInputShaping(InputShaper.DEFAULT_MIN_INTERVAL_MS,
+                InputShaper.DEFAULT_FLIP_WINDOW_MS);
+        newSession.setAccounting(new SessionAccounting(ACCOUNTING_CLOCK));
+        uiCpuMark = Debug.threadCpuTimeNanos();
+        startForeground(NOTIFICATION_ID, _buildNotification(newSession));
+        Log.i(TAG, "Joined " + newSession.getServerName() + " as player "
+                + newSession.getPlayerNumber() + " in " + newSession.getJoinNanos() / 1_000_000
+                + "ms");
+        return START_NOT_STICKY;
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(@NonNull Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        handler.removeCallbacksAndMessages(null);
+        ControllerSession session = this.session;
+        this.session = null;
+        if (session != null) {
+            _closeSession(session);
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Relays the events of one session from its threads to the main thread. Events of a session
+     * which is no longer the current one are dropped.
+     */
+    private class SessionListener implements ControllerSession.Listener {
+
+        private final ControllerSession owner;
+
+        SessionListener(@NonNull ControllerSession owner) {
+            this.owner = owner;
+        }
+
+        @Override
+        public void onWriteStalled(long blockedNanos) {
+            Log.w(TAG, "Write blocked for " + blockedNanos / 1_000_000 + "ms");
+            handler.obtainMessage(MSG_WRITE_STALLED, (int) (blockedNanos / 1_000_000), 0, owner)
+                    .sendToTarget();
+        }
+
+        @Override
+        public void onServerEvent(int type, int argument) {
+            handler.obtainMessage(MSG_SERVER_EVENT, type, argument, owner).sendToTarget();
+        }
+
+        @Override
+        public void onLinkStatsUpdated(@NonNull LinkMonitor monitor) {
+            handler.obtainMessage(MSG_LINK_STATS, monitor.getSmoothedRttMicros() / 1000,
+                    monitor.getJitterMicros() / 1000, owner).sendToTarget();
+        }
+
+        @Override
+        public void onReconnecting() {
+            handler.obtainMessage(MSG_RECONNECTING, owner).sendToTarget();
+        }
+
+        @Override
+        public void onReconnected(long reconnectNanos, boolean slotReclaimed) {
+            Log.i(TAG, "Reconnected in " + reconnectNanos / 1_000_000 + "ms"
+                    + (slotReclaimed ? "" : ", as player " + owner.getPlayerNumber()));
+            handler.obtainMessage(MSG_RECONNECTED, slotReclaimed ? 1 : 0, 0, owner)
+                    .sendToTarget();
+        }
+
+        @Override
+        public void onConnectionLost() {
+            handler.obtainMessage(MSG_CONNECTION_LOST, owner).sendToTarget();
+        }
+    }
+
+    /**
+     * Handles the messages sent to {@code handler}.
+     */
+    private boolean _handleMessage(@NonNull Message msg) {
+        if (msg.obj != session) {
+            return true;
+        }
+        if (msg.what == MSG_CONNECTION_LOST) {
+            Log.w(TAG, "Lost the connection to " + session.getServerName());
+            _endSession();
+            if (listener != null) {
+                listener.onConnectionLost();
+            }
+            return true;
+        }
+        if (listener == null) {
+            return true;
+        }
+        switch (msg.what) {
+            case MSG_WRITE_STALLED:
+                listener.onWriteStalled(msg.arg1);
+                break;
+            case MSG_SERVER_EVENT:
+                listener.onServerEvent(msg.arg1, msg.arg2);
+                break;
+            case MSG_LINK_STATS:
+                listener.onLinkStatsUpdated(msg.arg1, msg.arg2);
+                break;
+            case MSG_RECONNECTING:
+                listener.onReconnecting();
+                break;
+            case MSG_RECONNECTED:
+                listener.onReconnected(msg.arg1 != 0);
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Closes the current session, if any, and stops the service.
+     */
+    private void _endSession() {
+        ControllerSession session = this.session;
+        this.session = null;
+        if (session != null) {
+            _closeSession(session);
+        }
+        stopForeground(true);
+        stopSelf();
+    }
+
+    /**
+     * Closes {@code session} and reports what happened during it.
+     */
+    private void _closeSession(@NonNull ControllerSession session) {
+        session.setListener(null);
+        session.close();
+        InputSender inputSender = session.getInputSender();
+        Log.i(TAG, "Inputs queued: " + inputSender.getQueuedCount()
+                + ", coalesced: " + inputSender.getCoalescedCount()
+                + ", held while paused: " + inputSender.getHeldWhilePausedCount()
+                + ", shaped: " + inputSender.getShaper().getDeferredCount() + " deferred, "
+                + inputSender.getShaper().getSuppressedCount() + " suppressed"
+                + ", messages written: " + inputSender.getWrittenCount()
+                + ", max write block: " + inputSender.getMaxWriteBlockNanos() / 1_000 + "us");
+        if (session.getReconnectCount() > 0) {
+            Log.i(TAG, "Reconnections: " + session.getReconnectCount() + ", p50 "
+                    + session.getReconnectTimes().getPercentileMicros(0.5) / 1_000 + "ms, max "
+                    + session.getReconnectTimes().getMaxMicros() / 1_000 + "ms");
+        }
+        _exportLatencyStats(session.getLatencyStats());
+        SessionAccounting accounting = _chargeUiCpu(session);
+        if (accounting != null) {
+            accounting.finish();
+            Log.i(TAG, "Session accounting: " + accounting.summarize().replace('\n', ';'));
+            _exportAccounting(accounting);
+        }
+    }
+
+    /**
+     * Writes the latency histograms of a session to a file in the app's files directory.
+     */
+    private void _exportLatencyStats(@NonNull InputLatencyStats latencyStats) {
+        if (latencyStats.touchToWire.getTotalCount() == 0) {
+            return;
+        }
+        StringWriter text = new StringWriter();
+        try (PrintWriter writer = new PrintWriter(text)) {
+            latencyStats.writeTo(writer);
+        }
+        _writeReport("latency-", text.toString(), "Latency histograms");
+    }
+
+    /**
+     * Writes {@code text} to a new file named after {@code prefix} and the current time, in the
+     * app's external files directory if there is one. The file is written on the disk executor,
+     * so the text must be complete already.
+     */
+    private void _writeReport(@NonNull String prefix, @NonNull String text,
+                              @NonNull String description) {
+        long timeMs = System.currentTimeMillis();
+        ControllerApplication.getDiskExecutor().execute(() -> {
+            File dir = getExternalFilesDir(null);
+            if (dir == null) {
+                dir = getFilesDir();
+            }
+            File file = new File(dir, prefix + timeMs + ".txt");
+            try (FileWriter writer = new FileWriter(file)) {
+                writer.write(text);
+                Log.i(TAG, description + " written to " + file);
+            } catch (IOException ex) {
+                Log.e(TAG, Log.getStackTraceString(ex));
+            }
+        });
+    }
+
+    /**
+     * Charges the main thread's CPU time since the last call to the accounting of
+     * {@code session}, which must be the current one. Must be called on the main thread.
+     */
+    @Nullable
+    private SessionAccounting _chargeUiCpu(@NonNull ControllerSession session) {
+        SessionAccounting accounting = session.getAccounting();
+        if (accounting != null) {
+            uiCpuMark = accounting.addThreadCpu(SessionAccounting.THREAD_UI, uiCpuMark);
+        }
+        return accounting;
+    }
+
+    /**
+     * Writes the accounting of a session to a file next to the latency histograms, tagged with the
+     * build so that reports from different builds can be told apart.
+     */
+    private void _exportAccounting(@NonNull SessionAccounting accounting) {
+        StringWriter text = new StringWriter();
+        try (PrintWriter writer = new PrintWriter(text)) {
+            writer.println("build " + BuildConfig.VERSION_NAME + "-" + BuildConfig.BUILD_TYPE);
+            accounting.writeTo(writer);
+        }
+        _writeReport("session-", text.toString(), "Session accounting");
+    }
+
+    @NonNull
+    private Notification _buildNotification(@NonNull ControllerSession session) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(NOTIFICATION_CHANNEL_ID,
+                    getString(R.string.controller_service_channel_name),
+                    NotificationManager.IMPORTANCE_LOW);
+            getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+
+        // Tapping the notification brings the user back to the game.
+        int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            flags |= PendingIntent.FLAG_IMMUTABLE;
+        }
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, GameActivity.class), flags);
+
+        return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.stat_sys_data_bluetooth)
+                .setContentTitle(getString(R.string.controller_service_notification_title,
+                        session.getPlayerNumber()))
+                .setContentText(session.getServerName())
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .setShowWhen(false)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .build();
+    }
+}
@@ -1,47 +1,121 @@
 package uw.gotimegeese.controllerapp.start_activity;
 
-import static uw.gotimegeese.controllerapp.Constants.*;
-
+import android.Manifest;
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.FrameLayout;
-import android.widget.RadioButton;
-import android.widget.RadioGroup;
-import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.app.ActivityCompat;
+import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import uw.gotimegeese.controllerapp.R;
+import uw.gotimegeese.controllerapp.bluetooth.BleAdvertisementSource;
+import uw.gotimegeese.controllerapp.bluetooth.HostProbeCache;
+import uw.gotimegeese.controllerapp.bluetooth.HostProber;
+import uw.gotimegeese.controllerapp.bluetooth.RfcommTransport;
+import uw.gotimegeese.controllerapp.connection.ConnectAttempt;
+import uw.gotimegeese.controllerapp.connection.ControllerTransport;
 import uw.gotimegeese.controllerapp.game_activity.GameActivity;
+import uw.gotimegeese.controllerapp.lobby.AdvertisementSource;
+import uw.gotimegeese.controllerapp.lobby.LobbyAdvertisement;
+import uw.gotimegeese.controllerapp.lobby.LobbyModel;
+import uw.gotimegeese.controllerapp.service.ControllerService;
 
 public class BluetoothAvailableView extends FrameLayout {
 
+    // How long connecting to a game and joining it may take before we give up.
+    private static final long CONNECT_TIMEOUT_MS = 15_000;
+
+    // Passed to requestPermissions() when nearby games are shown without the location permission.
+    static final int REQUEST_LOCATION_PERMISSION = 1;
+
+    // Nearby games that stop advertising for this long are taken off the list. Hosts advertise
+    // several times per second, so this only drops games that have gone away.
+    private static final long LOBBY_HOST_TIMEOUT_MS = 5000;
+    private static final long LOBBY_EXPIRY_INTERVAL_MS = 1000;
+
     private final BluetoothAdapter bluetoothAdapter;
+    private final HostProber hostProber;
+
+    // Reads the bonded devices, their names and their cached probe results, all of which may
+    // block on the Bluetooth stack or on disk, off the main thread.
+    private final ExecutorService listExecutor = Executors.newSingleThreadExecutor();
 
     private final Handler handler;
 
     private final TextView textView;
-    private final ScrollView scrollView;
-    private final RadioGroup radioGroup;
+    private final RecyclerView recyclerView;
+    private final DeviceListAdapter adapter;
     private final Button connectButton, refreshButton;
+    private final CheckBox nearbyCheckBox;
+
+    // What the list shows, or is about to once the adapter has worked out the differences. Only
+    // accessed on the main thread. The adapter is handed copies, so that changes made here while
+    // it is still diffing the previous list are never lost to, nor made to, that list.
+    private final List<LobbyDevice> devices = new ArrayList<>();
+
+    // While nearby games are shown, the list holds the games heard advertising instead of the
+    // bonded devices. The model is fed and read on the main thread only.
+    private final LobbyModel lobbyModel = new LobbyModel(LOBBY_HOST_TIMEOUT_MS);
+    private AdvertisementSource advertisementSource;
+    private boolean showingNearby;
+
+    private final Runnable expireLobby = new Runnable() {
+        @Override
+        public void run() {
+            if (lobbyModel.expire(SystemClock.elapsedRealtime())) {
+                _submitLobby();
+            }
+            handler.postDelayed(this, LOBBY_EXPIRY_INTERVAL_MS);
+        }
+    };
+
+    private final AdvertisementSource.Callback lobbyCallback = new AdvertisementSource.Callback() {
+        @Override
+        public void onAdvertisement(@NonNull LobbyAdvertisement advertisement, int rssi) {
+            handler.post(() -> _onAdvertisement(advertisement, rssi));
+        }
+
+        @Override
+        public void onSourceFailed(int errorCode) {
+            Log.w("Bluetooth", "Scanning for nearby games failed: " + errorCode);
+            handler.post(() -> {
+                Toast.makeText(getContext(), R.string.bluetooth_available_scan_failed_toast,
+                        Toast.LENGTH_SHORT).show();
+                nearbyCheckBox.setChecked(false);
+            });
+        }
+    };
+
+    private ConnectAttempt connectAttempt;
+    private ProgressDialog progressDialog;
 
     public BluetoothAvailableView(@NonNull Context context) {
         super(context);
@@ -49,129 +123,322 @@ public class BluetoothAvailableView extends FrameLayout {
         handler = new Handler(Looper.getMainLooper());
         bluetoothAdapter = ((BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE))
                 .getAdapter();
+        hostProber = new HostProber(context, this::_onProbed);
 
         View.inflate(context, R.layout.bluetooth_available_view, this);
         textView = findViewById(R.id.bluetooth_available_view_textView);
-        scrollView = findViewById(R.id.bluetooth_available_view_scrollView);
-        radioGroup = findViewById(R.id.bluetooth_available_view_radioGroup);
+        recyclerView = findViewById(R.id.bluetooth_available_view_recyclerView);
         connectButton = findViewById(R.id.bluetooth_available_view_connect_button);
         refreshButton = findViewById(R.id.bluetooth_available_view_refresh_button);
+        nearbyCheckBox = findViewById(R.id.bluetooth_available_view_nearby_checkBox);
+
+        // When the selected item is updated, we enable (or disable if the selection was cleared)
+        // the connect button.
+        adapter = new DeviceListAdapter(selected -> connectButton.setEnabled(selected != null));
+        recyclerView.setLayoutManager(new LinearLayoutManager(context));
+        recyclerView.setAdapter(adapter);
 
+        // Refreshing by hand also probes again the devices which weren't hosting a game when last
+        // probed, since the user may just have started one.
         refreshButton.setOnClickListener(v -> {
-            refresh();
-            Toast.makeText(context, R.string.refresh_complete_toast, Toast.LENGTH_SHORT).show();
+            _refresh(true, () -> Toast.makeText(context, R.string.refresh_complete_toast,
+                    Toast.LENGTH_SHORT).show());
         });
 
         connectButton.setOnClickListener(v -> {
-            int checkedId = radioGroup.getCheckedRadioButtonId();
-            if (checkedId != -1) {
-                View checkedView = radioGroup.findViewById(checkedId);
-                BluetoothDevice device = (BluetoothDevice) checkedView.getTag();
-                connectToDevice(device);
+            LobbyDevice selected = adapter.getSelected();
+            if (selected != null) {
+                connectToDevice(selected.device, selected.name);
             }
         });
 
-        // When the checked item is updated, we enable (or disable if the selection was cleared)
-        // the connect button.
-        radioGroup.setOnCheckedChangeListener((rg, checkedId) -> {
-            connectButton.setEnabled(checkedId != -1);
-        });
+        // Advertisements are only picked up over Bluetooth LE, which needs Lollipop.
+        if (BleAdvertisementSource.isSupported()) {
+            nearbyCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
+                if (isChecked) {
+                    _startNearby();
+                } else {
+                    _stopNearby();
+                }
+            });
+        } else {
+            nearbyCheckBox.setVisibility(View.GONE);
+        }
 
-        refresh();
+        // The list is first filled in by the owner calling refresh(), so that reading the bonded
+        // devices doesn't compete with inflating the view on the startup path.
+        connectButton.setEnabled(false);
     }
 
-    private void refresh() {
-        // Remove all the items in the RadioGroup. Start fresh :)
-        radioGroup.removeAllViews();
+    /**
+     * Updates the list with the bonded devices which are known to host a game, and with those we
+     * don't know about yet while they are being probed. The selection is kept if the selected
+     * device is still listed.
+     *
+     * While nearby games are shown, the games heard from so far are forgotten instead and the scan
+     * restarted (it stops with Bluetooth), so the list fills up again as advertisements arrive.
+     *
+     * @param onRefreshed run on the main thread once the list is up to date.
+     */
+    public void refresh(@Nullable Runnable onRefreshed) {
+        _refresh(false, onRefreshed);
+    }
 
-        Set<BluetoothDevice> pairedDevices = bluetoothAdapter.getBondedDevices();
-        if (pairedDevices == null || pairedDevices.isEmpty()) {
-            textView.setText(R.string.bluetooth_available_no_devices_message);
-            scrollView.setVisibility(View.GONE);
-        } else {
-            // Add a RadioButton for every device. Keep a reference to the relevant BluetoothDevice
-            // object in each RadioButton.
-            for (BluetoothDevice device : pairedDevices) {
-                RadioButton radioButton = new RadioButton(getContext());
-                radioButton.setText(device.getName());
-                radioButton.setTag(device);
-                radioGroup.addView(radioButton);
+    /**
+     * Implements {@code refresh()}.
+     *
+     * @param reprobe whether devices cached as not hosting a game are listed and probed again,
+     *                rather than left out.
+     */
+    private void _refresh(boolean reprobe, @Nullable Runnable onRefreshed) {
+        if (showingNearby) {
+            lobbyModel.clear();
+            _submitLobby();
+            advertisementSource.start(lobbyCallback);
+            if (onRefreshed != null) {
+                onRefreshed.run();
+            }
+            return;
+        }
+        listExecutor.execute(() -> {
+            List<LobbyDevice> devices = new ArrayList<>();
+            List<BluetoothDevice> toProbe = new ArrayList<>();
+            Set<BluetoothDevice> pairedDevices = bluetoothAdapter.getBondedDevices();
+            if (pairedDevices != null) {
+                for (BluetoothDevice device : pairedDevices) {
+                    int status = hostProber.getCachedStatus(device);
+                    if (status == HostProbeCache.STATUS_NOT_HOST) {
+                        if (!reprobe) {
+                            continue;
+                        }
+                        status = HostProbeCache.STATUS_UNKNOWN;
+                    }
+                    String name = device.getName();
+                    devices.add(new LobbyDevice(device, device.getAddress(),
+                            name != null ? name : device.getAddress(),
+                            status == HostProbeCache.STATUS_HOST));
+                    if (status == HostProbeCache.STATUS_UNKNOWN) {
+                        toProbe.add(device);
+                    }
+                }
+            }
+            handler.post(() -> {
+                // Nearby games may have been switched on in the meantime.
+                if (showingNearby) {
+                    return;
+                }
+                _submitList(devices);
+                for (BluetoothDevice device : toProbe) {
+                    hostProber.probe(device);
+                }
+                if (onRefreshed != null) {
+                    onRefreshed.run();
+                }
+            });
+        });
+    }
+
+    /**
+     * Updates the list once {@code HostProber} found out whether a device hosts a game.
+     */
+    private void _onProbed(@NonNull BluetoothDevice device, boolean isHost) {
+        if (showingNearby) {
+            return;
+        }
+        for (int i = 0; i < devices.size(); i++) {
+            if (!devices.get(i).address.equals(device.getAddress())) {
+                continue;
+            }
+            if (isHost) {
+                devices.set(i, devices.get(i).withKnownHost());
+            } else {
+                devices.remove(i);
             }
+            _showDevices();
+            return;
+        }
+    }
+
+    /**
+     * Forwarded by {@code StartActivity} once the user answered the location permission request
+     * made to show nearby games.
+     */
+    public void onLocationPermissionResult(boolean granted) {
+        if (granted) {
+            nearbyCheckBox.setChecked(true);
+        }
+    }
+
+    /**
+     * Starts listening for the advertisements of nearby games, or asks for the location
+     * permission scanning requires first. The list is emptied until the first games are heard.
+     */
+    private void _startNearby() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                && ContextCompat.checkSelfPermission(getContext(),
+                Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            // Unchecked until the permission is granted, see onLocationPermissionResult().
+            nearbyCheckBox.setChecked(false);
+            ActivityCompat.requestPermissions((Activity) getContext(),
+                    new String[] {Manifest.permission.ACCESS_FINE_LOCATION},
+                    REQUEST_LOCATION_PERMISSION);
+            return;
+        }
+        if (showingNearby) {
+            return;
+        }
+        showingNearby = true;
+        lobbyModel.clear();
+        _submitLobby();
+        if (advertisementSource == null) {
+            advertisementSource = new BleAdvertisementSource(bluetoothAdapter);
+        }
+        advertisementSource.start(lobbyCallback);
+        handler.postDelayed(expireLobby, LOBBY_EXPIRY_INTERVAL_MS);
+    }
+
+    /**
+     * Stops listening for nearby games and goes back to the bonded devices.
+     */
+    private void _stopNearby() {
+        if (!showingNearby) {
+            return;
+        }
+        showingNearby = false;
+        advertisementSource.stop();
+        handler.removeCallbacks(expireLobby);
+        lobbyModel.clear();
+        refresh(null);
+    }
+
+    private void _onAdvertisement(@NonNull LobbyAdvertisement advertisement, int rssi) {
+        // Advertisements already in flight when the scan stopped are dropped. Only advertisements
+        // that change what the list shows cause it to be rebuilt.
+        if (showingNearby && lobbyModel.onAdvertisement(advertisement, rssi,
+                SystemClock.elapsedRealtime())) {
+            _submitLobby();
+        }
+    }
 
+    private void _submitLobby() {
+        List<LobbyDevice> devices = new ArrayList<>();
+        for (LobbyModel.Host host : lobbyModel.getHosts()) {
+            LobbyAdvertisement ad = host.advertisement;
+            // The advertisement carries the host's classic address, which is what we connect to;
+            // getRemoteDevice() doesn't touch the Bluetooth stack, and the host needn't be paired.
+            devices.add(new LobbyDevice(bluetoothAdapter.getRemoteDevice(ad.hostAddress),
+                    ad.hostAddress, ad.gameName.isEmpty() ? ad.hostAddress : ad.gameName, true,
+                    ad.playersJoined, ad.capacity));
+        }
+        _submitList(devices);
+    }
+
+    private void _submitList(@NonNull List<LobbyDevice> newDevices) {
+        devices.clear();
+        devices.addAll(newDevices);
+        _showDevices();
+    }
+
+    private void _showDevices() {
+        adapter.submitList(new ArrayList<>(devices));
+        if (devices.isEmpty()) {
+            textView.setText(showingNearby ? R.string.bluetooth_available_searching_message
+                    : R.string.bluetooth_available_no_devices_message);
+            recyclerView.setVisibility(View.GONE);
+        } else {
             textView.setText(R.string.bluetooth_available_select_game_message);
-            scrollView.setVisibility(VISIBLE);
+            recyclerView.setVisibility(VISIBLE);
         }
+    }
 
-        // Disable the connect button regardless of what happened as the user's selection will
-        // be cleared as a result of the refresh.
-        connectButton.setEnabled(false);
+    @Override
+    protected void onDetachedFromWindow() {
+        if (showingNearby) {
+            advertisementSource.stop();
+            handler.removeCallbacks(expireLobby);
+            showingNearby = false;
+        }
+        hostProber.close();
+        listExecutor.shutdownNow();
+        ConnectAttempt attempt = connectAttempt;
+        if (attempt != null) {
+            // Forget the attempt first, so that its pending callback is ignored once the window
+            // is gone. Should it have joined already, nobody else will take the session.
+            connectAttempt = null;
+            attempt.cancel();
+            if (attempt.getOutcome() == ConnectAttempt.OUTCOME_JOINED) {
+                attempt.getSession().close();
+            }
+            progressDialog.dismiss();
+            progressDialog = null;
+        }
+        super.onDetachedFromWindow();
     }
 
     /**
      * Attempts to connect to the specified device as a client using {@code Constants.SERVER_UUID}.
      * A {@code ProgressDialog} will be shown during the connection process to prevent the user
-     * from interacting with the UI.
+     * from interacting with the UI; cancelling it abandons the attempt.
      * If successful, the present activity will be finished and {@code GameActivity} will be
      * launched. Otherwise, a toast message will be shown to the user explaining what went wrong.
      */
-    private void connectToDevice(@NonNull BluetoothDevice device) {
+    private void connectToDevice(@NonNull BluetoothDevice device, @NonNull String name) {
+        // Only a secure socket is tried. Racing an insecure one against it would only help if the
+        // server also listened for insecure connections.
+        List<ControllerTransport.Factory> factories =
+                Collections.singletonList(() -> new RfcommTransport(device, true));
+        connectAttempt = new ConnectAttempt(factories, CONNECT_TIMEOUT_MS, attempt -> {
+            handler.post(() -> _onConnectAttemptFinished(attempt, device));
+        });
+
         // First, show a ProgressDialog to prevent the user from interacting with the UI.
-        ProgressDialog progressDialog = new ProgressDialog(getContext());
-        progressDialog.setCancelable(false);
+        progressDialog = new ProgressDialog(getContext());
+        progressDialog.setCancelable(true);
         progressDialog.setCanceledOnTouchOutside(false);
+        progressDialog.setOnCancelListener(dialog -> connectAttempt.cancel());
         progressDialog.setMessage(getContext()
-                .getString(R.string.connecting_to_device_dialog_message, device.getName()));
+                .getString(R.string.connecting_to_device_dialog_message, name));
         progressDialog.show();
 
-        new Thread(() -> {
-            boolean connectionSuccessful = false;
-            BluetoothSocket socket = null;
-
-            try {
-                // Connect to the target device.
-                socket = device.createRfcommSocketToServiceRecord(SERVER_UUID);
-                socket.connect();
-
-                // Read one byte through the socket's input stream. The information we receive here
-                // will allow us to determine if we were accepted into the game.
-                int readResult;
-                InputStream in = socket.getInputStream();
-                do {
-                    readResult = in.read();
-                } while (readResult == -1);
-
-                if (readResult == SERVER_GAME_FULL_RESPONSE) {
-                    handler.post(() -> {
-                        Toast.makeText(getContext(), R.string.game_is_full_toast,
-                                Toast.LENGTH_SHORT).show();
-                    });
-                } else {
-                    connectionSuccessful = true;
-                    GameActivity.serverSocket = socket;
-                    GameActivity.playerNumber = readResult;
-                    handler.post(() -> {
-                        getContext().startActivity(new Intent(getContext(), GameActivity.class));
-                        ((Activity) getContext()).finish();
-                    });
-                }
-            } catch (IOException ex) {
-                Log.e("Bluetooth", Log.getStackTraceString(ex));
-                handler.post(() -> {
-                    Toast.makeText(getContext(), R.string.unable_to_connect_to_device_toast,
-                            Toast.LENGTH_SHORT).show();
-                });
-            }
+        // Connect to the target device and read the server's response. The information we receive
+        // here will allow us to determine if we were accepted into the game.
+        connectAttempt.start();
+    }
 
-            // If the connection was unsuccessful, close the socket.
-            if (!connectionSuccessful && socket != null) {
-                try {
-                    socket.close();
-                } catch (IOException ignored) {}
-            }
+    private void _onConnectAttemptFinished(@NonNull ConnectAttempt attempt,
+                                           @NonNull BluetoothDevice device) {
+        if (attempt != connectAttempt) {
+            return;
+        }
+        connectAttempt = null;
+        progressDialog.dismiss();
+        progressDialog = null;
+        Log.i("Bluetooth", "Connect attempt to " + device.getAddress() + " finished with outcome "
+                + attempt.getOutcome() + ", connect: " + attempt.getConnectNanos() / 1_000_000
+                + "ms, handshake: " + attempt.getHandshakeNanos() / 1_000_000 + "ms");
 
-            // We directly close the ProgressDialog here instead of posting a runnable on the
-            // handler because the documentation states dismiss() can be called from any thread.
-            progressDialog.dismiss();
-        }).start();
+        switch (attempt.getOutcome()) {
+            case ConnectAttempt.OUTCOME_JOINED:
+                // Hand the session over to the service before launching GameActivity, which
+                // binds to it. Should the connection drop later on, the session reconnects to the
+                // same device.
+                ControllerService.startSession(getContext(), attempt.getSession());
+                getContext().startActivity(new Intent(getContext(), GameActivity.class));
+                ((Activity) getContext()).finish();
+                break;
+            case ConnectAttempt.OUTCOME_GAME_FULL:
+                Toast.makeText(getContext(), R.string.game_is_full_toast,
+                        Toast.LENGTH_SHORT).show();
+                break;
+            case ConnectAttempt.OUTCOME_FAILED:
+                Log.e("Bluetooth", Log.getStackTraceString(attempt.getFailure()));
+                Toast.makeText(getContext(), R.string.unable_to_connect_to_device_toast,
+                        Toast.LENGTH_SHORT).show();
+                break;
+            case ConnectAttempt.OUTCOME_TIMED_OUT:
+                Toast.makeText(getContext(), R.string.connect_timed_out_toast,
+                        Toast.LENGTH_SHORT).show();
+                break;
+        }
     }
 }
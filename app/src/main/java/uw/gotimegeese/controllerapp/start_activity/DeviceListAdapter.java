@@ -0,0 +1,173 @@
+package uw.gotimegeese.controllerapp.start_activity;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.ViewGroup;
+import android.widget.RadioButton;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.List;
+
+import uw.gotimegeese.controllerapp.R;
+
+/**
+ * Backs the device list with recycled rows. New lists are diffed against the current one off the
+ * main thread, so that only the rows which actually changed are rebound. The selection is tracked
+ * by address and therefore survives refreshes, unless the selected device disappears or can no
+ * longer be joined.
+ */
+class DeviceListAdapter extends ListAdapter<LobbyDevice, DeviceListAdapter.ViewHolder> {
+
+    interface Listener {
+
+        /**
+         * Called on the main thread whenever the selection changes.
+         */
+        void onSelectionChanged(@Nullable LobbyDevice selected);
+    }
+
+    // Payload of the updates which only change whether a row is checked.
+    private static final Object PAYLOAD_SELECTION = new Object();
+
+    private static final DiffUtil.ItemCallback<LobbyDevice> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<LobbyDevice>() {
+                @Override
+                public boolean areItemsTheSame(@NonNull LobbyDevice oldItem,
+                                               @NonNull LobbyDevice newItem) {
+                    return oldItem.address.equals(newItem.address);
+                }
+
+                @Override
+                public boolean areContentsTheSame(@NonNull LobbyDevice oldItem,
+                                                  @NonNull LobbyDevice newItem) {
+                    return oldItem.name.equals(newItem.name)
+                            && oldItem.knownHost == newItem.knownHost
+                            && oldItem.playersJoined == newItem.playersJoined
+                            && oldItem.capacity == newItem.capacity;
+                }
+            };
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+
+        final RadioButton radioButton;
+
+        ViewHolder(@NonNull RadioButton radioButton) {
+            super(radioButton);
+            this.radioButton = radioButton;
+        }
+    }
+
+    private final Listener listener;
+    private String selectedAddress;
+
+    DeviceListAdapter(@NonNull Listener listener) {
+        super(DIFF_CALLBACK);
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the selected entry, or {@code null} if nothing is selected.
+     */
+    @Nullable
+    LobbyDevice getSelected() {
+        int position = _indexOf(selectedAddress);
+        return position != RecyclerView.NO_POSITION ? getItem(position) : null;
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        RadioButton radioButton = (RadioButton) LayoutInflater.from(parent.getContext())
+                .inflate(R.layout.lobby_device_item, parent, false);
+        ViewHolder holder = new ViewHolder(radioButton);
+        radioButton.setOnClickListener(v -> {
+            int position = holder.getBindingAdapterPosition();
+            if (position != RecyclerView.NO_POSITION && getItem(position).isJoinable()) {
+                _select(getItem(position).address);
+            }
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        LobbyDevice item = getItem(position);
+        Context context = holder.itemView.getContext();
+        if (!item.knownHost) {
+            holder.radioButton.setText(context.getString(
+                    R.string.bluetooth_available_probing_device_text, item.name));
+        } else if (item.capacity < 0) {
+            holder.radioButton.setText(item.name);
+        } else if (item.isJoinable()) {
+            holder.radioButton.setText(context.getString(
+                    R.string.bluetooth_available_lobby_game_text, item.name, item.playersJoined,
+                    item.capacity));
+        } else {
+            holder.radioButton.setText(context.getString(
+                    R.string.bluetooth_available_lobby_full_game_text, item.name));
+        }
+        holder.radioButton.setEnabled(item.isJoinable());
+        holder.radioButton.setChecked(item.address.equals(selectedAddress));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position,
+                                 @NonNull List<Object> payloads) {
+        if (!payloads.isEmpty() && _onlySelection(payloads)) {
+            holder.radioButton.setChecked(getItem(position).address.equals(selectedAddress));
+        } else {
+            onBindViewHolder(holder, position);
+        }
+    }
+
+    @Override
+    public void onCurrentListChanged(@NonNull List<LobbyDevice> previousList,
+                                     @NonNull List<LobbyDevice> currentList) {
+        // Drop the selection if the selected device is gone or has filled up.
+        LobbyDevice selected = getSelected();
+        if (selectedAddress != null && (selected == null || !selected.isJoinable())) {
+            selectedAddress = null;
+            listener.onSelectionChanged(null);
+        }
+    }
+
+    private void _select(@NonNull String address) {
+        if (address.equals(selectedAddress)) {
+            return;
+        }
+        int previous = _indexOf(selectedAddress);
+        selectedAddress = address;
+        if (previous != RecyclerView.NO_POSITION) {
+            notifyItemChanged(previous, PAYLOAD_SELECTION);
+        }
+        notifyItemChanged(_indexOf(address), PAYLOAD_SELECTION);
+        listener.onSelectionChanged(getSelected());
+    }
+
+    private int _indexOf(@Nullable String address) {
+        if (address == null) {
+            return RecyclerView.NO_POSITION;
+        }
+        List<LobbyDevice> list = getCurrentList();
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).address.equals(address)) {
+                return i;
+            }
+        }
+        return RecyclerView.NO_POSITION;
+    }
+
+    private static boolean _onlySelection(@NonNull List<Object> payloads) {
+        for (Object payload : payloads) {
+            if (payload != PAYLOAD_SELECTION) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,48 @@
+package uw.gotimegeese.controllerapp.start_activity;
+
+import android.bluetooth.BluetoothDevice;
+
+import androidx.annotation.NonNull;
+
+/**
+ * One entry of the device list. Immutable, with everything the list displays resolved up front so
+ * that binding an entry never has to ask the Bluetooth stack anything. Entries come either from
+ * the bonded devices, or from the advertisements of nearby games, in which case the number of
+ * players is known.
+ */
+final class LobbyDevice {
+
+    final BluetoothDevice device;
+    final String address;
+    final String name;
+
+    // Whether the device is known to host a game, as opposed to still being probed.
+    final boolean knownHost;
+
+    // The players in the game and how many it takes, or -1 if unknown.
+    final int playersJoined, capacity;
+
+    LobbyDevice(@NonNull BluetoothDevice device, @NonNull String address, @NonNull String name,
+                boolean knownHost) {
+        this(device, address, name, knownHost, -1, -1);
+    }
+
+    LobbyDevice(@NonNull BluetoothDevice device, @NonNull String address, @NonNull String name,
+                boolean knownHost, int playersJoined, int capacity) {
+        this.device = device;
+        this.address = address;
+        this.name = name;
+        this.knownHost = knownHost;
+        this.playersJoined = playersJoined;
+        this.capacity = capacity;
+    }
+
+    @NonNull
+    LobbyDevice withKnownHost() {
+        return new LobbyDevice(device, address, name, true, playersJoined, capacity);
+    }
+
+    boolean isJoinable() {
+        return capacity < 0 || playersJoined < capacity;
+    }
+}
@@ -6,6 +6,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.util.Log;
 import android.util.TypedValue;
@@ -13,17 +14,45 @@ import android.view.Gravity;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.FrameLayout;
+import android.widget.Toast;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 
+import java.util.Collections;
+
+import uw.gotimegeese.controllerapp.BuildConfig;
+import uw.gotimegeese.controllerapp.R;
+import uw.gotimegeese.controllerapp.connection.ConnectAttempt;
+import uw.gotimegeese.controllerapp.connection.ControllerTransport;
+import uw.gotimegeese.controllerapp.connection.TcpTransport;
+import uw.gotimegeese.controllerapp.game_activity.GameActivity;
+import uw.gotimegeese.controllerapp.service.ControllerService;
+
 public class StartActivity extends AppCompatActivity {
 
+    /**
+     * A {@code "host:port"} to join over TCP instead of picking a Bluetooth device, so that the
+     * startup benchmark can reach a game without any user interaction. Only honoured by the debug
+     * and benchmark builds, which are the only ones holding the INTERNET permission.
+     */
+    public static final String EXTRA_TCP_HOST = "uw.gotimegeese.controllerapp.TCP_HOST";
+
+    private static final int TCP_CONNECT_TIMEOUT_MS = 5000;
+
     private BroadcastReceiver bluetoothReceiver;
 
     private FrameLayout frameLayout;
 
+    // Created the first time they are needed and kept around afterwards, so that toggling
+    // Bluetooth doesn't rebuild the UI from scratch.
+    private BluetoothAvailableView bluetoothAvailableView;
+    private BluetoothDisabledView bluetoothDisabledView;
+
     private boolean isBluetoothEnabled;
+    private boolean reportedFullyDrawn;
+    private ConnectAttempt tcpAttempt;
 
     @Override
     protected void onCreate(@Nullable Bundle savedInstanceState) {
@@ -46,6 +75,11 @@ public class StartActivity extends AppCompatActivity {
         isBluetoothEnabled = ((BluetoothManager) getSystemService(BLUETOOTH_SERVICE))
                 .getAdapter().isEnabled();
         refreshUI();
+
+        String tcpHost = getIntent().getStringExtra(EXTRA_TCP_HOST);
+        if (tcpHost != null && (BuildConfig.DEBUG || "benchmark".equals(BuildConfig.BUILD_TYPE))) {
+            _connectOverTcp(tcpHost);
+        }
     }
 
     private class BluetoothReceiver extends BroadcastReceiver {
@@ -71,17 +105,59 @@ public class StartActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions,
+                                           @NonNull int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == BluetoothAvailableView.REQUEST_LOCATION_PERMISSION
+                && bluetoothAvailableView != null) {
+            bluetoothAvailableView.onLocationPermissionResult(grantResults.length > 0
+                    && grantResults[0] == PackageManager.PERMISSION_GRANTED);
+        }
+    }
+
     @Override
     protected void onDestroy() {
+        ConnectAttempt attempt = tcpAttempt;
+        if (attempt != null) {
+            // Its pending callback is ignored from now on, so a session it joined already would
+            // be left open.
+            tcpAttempt = null;
+            attempt.cancel();
+            if (attempt.getOutcome() == ConnectAttempt.OUTCOME_JOINED) {
+                attempt.getSession().close();
+            }
+        }
         unregisterReceiver(bluetoothReceiver);
         super.onDestroy();
     }
 
     private void refreshUI() {
-        frameLayout.removeAllViews();
-        View view = isBluetoothEnabled
-                ? new BluetoothAvailableView(this)
-                : new BluetoothDisabledView(this);
+        if (isBluetoothEnabled) {
+            if (bluetoothAvailableView == null) {
+                bluetoothAvailableView = new BluetoothAvailableView(this);
+                _addView(bluetoothAvailableView);
+                // The list is filled in off the main thread; the screen is only usable once it
+                // shows up.
+                bluetoothAvailableView.refresh(this::_reportFullyDrawn);
+            } else {
+                // Devices may have been paired while Bluetooth was off.
+                bluetoothAvailableView.refresh(null);
+            }
+        } else if (bluetoothDisabledView == null) {
+            bluetoothDisabledView = new BluetoothDisabledView(this);
+            _addView(bluetoothDisabledView);
+            _reportFullyDrawn();
+        }
+        if (bluetoothAvailableView != null) {
+            bluetoothAvailableView.setVisibility(isBluetoothEnabled ? View.VISIBLE : View.GONE);
+        }
+        if (bluetoothDisabledView != null) {
+            bluetoothDisabledView.setVisibility(isBluetoothEnabled ? View.GONE : View.VISIBLE);
+        }
+    }
+
+    private void _addView(@NonNull View view) {
         FrameLayout.LayoutParams lp =
                 new FrameLayout.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT,
                         ViewGroup.LayoutParams.WRAP_CONTENT);
@@ -89,6 +165,49 @@ public class StartActivity extends AppCompatActivity {
         view.setLayoutParams(lp);
         frameLayout.addView(view);
     }
-}
 
+    /**
+     * Reports the activity as fully drawn, once. Skipped when joining over TCP, where the list
+     * isn't waited for and {@code StartupTrace} marks when input is ready instead.
+     */
+    private void _reportFullyDrawn() {
+        if (reportedFullyDrawn || getIntent().hasExtra(EXTRA_TCP_HOST)) {
+            return;
+        }
+        reportedFullyDrawn = true;
+        reportFullyDrawn();
+    }
 
+    private void _connectOverTcp(@NonNull String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        String host;
+        int port;
+        try {
+            host = hostAndPort.substring(0, colon);
+            port = Integer.parseInt(hostAndPort.substring(colon + 1));
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            Log.w("StartActivity", "Ignoring malformed TCP host: " + hostAndPort);
+            return;
+        }
+        ControllerTransport.Factory factory =
+                () -> new TcpTransport(host, port, TCP_CONNECT_TIMEOUT_MS);
+        tcpAttempt = new ConnectAttempt(Collections.singletonList(factory),
+                TCP_CONNECT_TIMEOUT_MS, attempt -> runOnUiThread(() -> {
+                    if (attempt != tcpAttempt) {
+                        return;
+                    }
+                    tcpAttempt = null;
+                    if (attempt.getOutcome() == ConnectAttempt.OUTCOME_JOINED) {
+                        ControllerService.startSession(this, attempt.getSession());
+                        startActivity(new Intent(this, GameActivity.class));
+                        finish();
+                    } else {
+                        Log.w("StartActivity", "Joining " + hostAndPort + " finished with "
+                                + "outcome " + attempt.getOutcome());
+                        Toast.makeText(this, R.string.unable_to_connect_to_device_toast,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                }));
+        tcpAttempt.start();
+    }
+}
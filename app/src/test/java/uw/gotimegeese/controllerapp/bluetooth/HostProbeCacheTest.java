@@ -0,0 +1,82 @@
+package uw.gotimegeese.controllerapp.bluetooth;
+
+import static org.junit.Assert.*;
+import static uw.gotimegeese.controllerapp.Constants.*;
+import static uw.gotimegeese.controllerapp.bluetooth.HostProbeCache.*;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+public class HostProbeCacheTest {
+
+    private static class MapStorage implements HostProbeCache.Storage {
+
+        final Map<String, String> map = new HashMap<>();
+
+        @Nullable
+        @Override
+        public String get(@NonNull String key) {
+            return map.get(key);
+        }
+
+        @Override
+        public void put(@NonNull String key, @NonNull String value) {
+            map.put(key, value);
+        }
+    }
+
+    private long now = 1_000_000;
+
+    @Test
+    public void entries_expireAfterTheirTtl() {
+        MapStorage storage = new MapStorage();
+        HostProbeCache cache = new HostProbeCache(storage, () -> now, 1000, 100);
+        assertEquals(STATUS_UNKNOWN, cache.lookup("host"));
+
+        cache.record("host", true);
+        cache.record("headphones", false);
+        assertEquals(STATUS_HOST, cache.lookup("host"));
+        assertEquals(STATUS_NOT_HOST, cache.lookup("headphones"));
+
+        now += 100;
+        assertEquals(STATUS_HOST, cache.lookup("host"));
+        assertEquals(STATUS_UNKNOWN, cache.lookup("headphones"));
+
+        now += 900;
+        assertEquals(STATUS_UNKNOWN, cache.lookup("host"));
+    }
+
+    @Test
+    public void entries_surviveNewCacheOnSameStorage() {
+        MapStorage storage = new MapStorage();
+        new HostProbeCache(storage, () -> now, 1000, 100).record("host", true);
+        assertEquals(STATUS_HOST, new HostProbeCache(storage, () -> now, 1000, 100)
+                .lookup("host"));
+    }
+
+    @Test
+    public void corruptEntries_areUnknown() {
+        MapStorage storage = new MapStorage();
+        HostProbeCache cache = new HostProbeCache(storage, () -> now, 1000, 100);
+        storage.map.put("a", "garbage");
+        storage.map.put("b", "7:" + now);
+        storage.map.put("c", "1:" + (now + 5000));
+        assertEquals(STATUS_UNKNOWN, cache.lookup("a"));
+        assertEquals(STATUS_UNKNOWN, cache.lookup("b"));
+        assertEquals(STATUS_UNKNOWN, cache.lookup("c"));
+    }
+
+    @Test
+    public void isServerUuid_acceptsByteReversedUuid() {
+        assertTrue(isServerUuid(SERVER_UUID));
+        assertTrue(isServerUuid(UUID.fromString("1dabbcbd-2956-bf99-c444-6ceaf6d5af2c")));
+        assertFalse(isServerUuid(UUID.fromString("0000110b-0000-1000-8000-00805f9b34fb")));
+        assertEquals(SERVER_UUID, reverseBytes(reverseBytes(SERVER_UUID)));
+    }
+}
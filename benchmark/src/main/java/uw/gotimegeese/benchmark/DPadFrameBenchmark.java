@@ -0,0 +1,106 @@
+package uw.gotimegeese.benchmark;
+
+import static uw.gotimegeese.benchmark.StartupBenchmark.ITERATIONS;
+import static uw.gotimegeese.benchmark.StartupBenchmark.TARGET_PACKAGE;
+
+import android.content.Intent;
+import android.graphics.Point;
+import android.graphics.Rect;
+
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.FrameTimingMetric;
+import androidx.benchmark.macro.MacrobenchmarkScope;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.uiautomator.By;
+import androidx.test.uiautomator.UiObject2;
+import androidx.test.uiautomator.Until;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import kotlin.Unit;
+import uw.gotimegeese.controllerapp.connection.StandInServer;
+
+/**
+ * Measures the frame times of {@code GameActivity} while a finger slides around the D-Pad,
+ * pressing each arm in turn, as a thumb does when steering. Every change of arm redraws the
+ * D-Pad, so this is what the cached geometry of {@code DPadView} speeds up.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DPadFrameBenchmark {
+
+    // Extra for StartActivity.EXTRA_TCP_HOST, which this module can't reference.
+    private static final String EXTRA_TCP_HOST = TARGET_PACKAGE + ".TCP_HOST";
+    private static final String START_ACTIVITY = TARGET_PACKAGE + ".start_activity.StartActivity";
+    private static final long TIMEOUT_MS = 10_000;
+    // Every launch joins as a new player and the stand-in never frees a slot.
+    private static final int MAX_PLAYERS = 64;
+    // How many times the finger goes around the D-Pad per iteration, and how many move events
+    // each quarter turn is made of, about 5ms apart.
+    private static final int LAPS = 5;
+    private static final int STEPS_PER_ARM = 20;
+
+    @Rule
+    public final MacrobenchmarkRule benchmarkRule = new MacrobenchmarkRule();
+
+    private StandInServer server;
+    private int port;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StandInServer(MAX_PLAYERS);
+        port = server.listen();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void slideAroundDPad() {
+        Intent intent = new Intent(Intent.ACTION_MAIN)
+                .setClassName(TARGET_PACKAGE, START_ACTIVITY)
+                .putExtra(EXTRA_TCP_HOST, "127.0.0.1:" + port);
+        benchmarkRule.measureRepeated(TARGET_PACKAGE,
+                Collections.singletonList(new FrameTimingMetric()),
+                CompilationMode.DEFAULT, null, ITERATIONS,
+                scope -> {
+                    if (_findDPad(scope, 0) == null) {
+                        scope.startActivityAndWait(intent);
+                    }
+                    return Unit.INSTANCE;
+                },
+                scope -> {
+                    UiObject2 dPad = _findDPad(scope, TIMEOUT_MS);
+                    if (dPad == null) {
+                        throw new AssertionError("GameActivity didn't show up");
+                    }
+                    // Slide through the arms, halfway between the centre and the rim, without
+                    // lifting the finger.
+                    Rect bounds = dPad.getVisibleBounds();
+                    int cx = bounds.centerX(), cy = bounds.centerY();
+                    int r = Math.min(bounds.width(), bounds.height()) / 4;
+                    Point[] around = {new Point(cx, cy - r), new Point(cx + r, cy),
+                            new Point(cx, cy + r), new Point(cx - r, cy)};
+                    Point[] path = new Point[LAPS * around.length + 1];
+                    for (int i = 0; i < path.length; i++) {
+                        path[i] = around[i % around.length];
+                    }
+                    scope.getDevice().swipe(path, STEPS_PER_ARM);
+                    return Unit.INSTANCE;
+                });
+    }
+
+    private static UiObject2 _findDPad(MacrobenchmarkScope scope, long timeoutMs) {
+        return scope.getDevice().wait(
+                Until.findObject(By.res(TARGET_PACKAGE, "game_activity_dPadView")), timeoutMs);
+    }
+}
@@ -0,0 +1,109 @@
+package uw.gotimegeese.benchmark;
+
+import static uw.gotimegeese.benchmark.StartupBenchmark.ITERATIONS;
+import static uw.gotimegeese.benchmark.StartupBenchmark.TARGET_PACKAGE;
+
+import android.content.Intent;
+import android.graphics.Rect;
+
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.StartupMode;
+import androidx.benchmark.macro.TraceSectionMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.uiautomator.By;
+import androidx.test.uiautomator.UiObject2;
+import androidx.test.uiautomator.Until;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import kotlin.Unit;
+import uw.gotimegeese.controllerapp.connection.StandInServer;
+
+/**
+ * Measures how soon after a cold launch the user can steer: the app joins a
+ * {@code StandInServer} over TCP, switches to {@code GameActivity}, and the D-Pad is pressed as
+ * soon as it shows up. Both times are trace sections the app emits, see {@code StartupTrace}, so
+ * that they don't include how long this harness takes to find the D-Pad and press it:
+ * <ul>
+ *     <li>"InputReady", from the creation of the app until {@code GameActivity} shows the
+ *     session.</li>
+ *     <li>"FirstInput", from the touch on the D-Pad until the direction is sent.</li>
+ * </ul>
+ * The sections are only recorded on Android 10 and later.
+ */
+@RunWith(AndroidJUnit4.class)
+public class FirstInputBenchmark {
+
+    // Extra for StartActivity.EXTRA_TCP_HOST and sections of StartupTrace, which this module
+    // can't reference.
+    private static final String EXTRA_TCP_HOST = TARGET_PACKAGE + ".TCP_HOST";
+    private static final String INPUT_READY_SECTION = "InputReady";
+    private static final String FIRST_INPUT_SECTION = "FirstInput";
+    private static final String START_ACTIVITY = TARGET_PACKAGE + ".start_activity.StartActivity";
+    private static final long TIMEOUT_MS = 10_000;
+    // Every launch joins as a new player and the stand-in never frees a slot, so leave room for
+    // the warm-up runs too.
+    private static final int MAX_PLAYERS = 64;
+
+    @Rule
+    public final MacrobenchmarkRule benchmarkRule = new MacrobenchmarkRule();
+
+    private StandInServer server;
+    private int port;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StandInServer(MAX_PLAYERS);
+        port = server.listen();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void coldStartToFirstInput() {
+        Intent intent = new Intent(Intent.ACTION_MAIN)
+                .setClassName(TARGET_PACKAGE, START_ACTIVITY)
+                .putExtra(EXTRA_TCP_HOST, "127.0.0.1:" + port);
+        benchmarkRule.measureRepeated(TARGET_PACKAGE,
+                Arrays.asList(new TraceSectionMetric(INPUT_READY_SECTION),
+                        new TraceSectionMetric(FIRST_INPUT_SECTION)),
+                CompilationMode.DEFAULT, StartupMode.COLD, ITERATIONS,
+                scope -> {
+                    scope.pressHome();
+                    return Unit.INSTANCE;
+                },
+                scope -> {
+                    long framesBefore = server.getFramesReceived();
+                    scope.startActivityAndWait(intent);
+                    UiObject2 dPad = scope.getDevice().wait(
+                            Until.findObject(By.res(TARGET_PACKAGE, "game_activity_dPadView")),
+                            TIMEOUT_MS);
+                    if (dPad == null) {
+                        throw new AssertionError("GameActivity didn't show up");
+                    }
+                    // Press towards the top, the centre of the D-Pad is its dead zone.
+                    Rect bounds = dPad.getVisibleBounds();
+                    scope.getDevice().click(bounds.centerX(), bounds.top + bounds.height() / 8);
+                    // Keep the app running until the input arrived, so that it was really sent.
+                    try {
+                        if (!server.awaitFramesReceived(framesBefore + 1, TIMEOUT_MS)) {
+                            throw new AssertionError("No input reached the server");
+                        }
+                    } catch (InterruptedException ex) {
+                        throw new AssertionError(ex);
+                    }
+                    return Unit.INSTANCE;
+                });
+    }
+}
@@ -0,0 +1,54 @@
+package uw.gotimegeese.benchmark;
+
+import androidx.benchmark.macro.CompilationMode;
+import androidx.benchmark.macro.StartupMode;
+import androidx.benchmark.macro.StartupTimingMetric;
+import androidx.benchmark.macro.junit4.MacrobenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Collections;
+
+import kotlin.Unit;
+
+/**
+ * Measures how long the app takes to show the list of games, from a cold start (process not
+ * running) and from a warm one (process running, activity recreated). The initial display is
+ * the first frame of {@code StartActivity}, the full display its first filled in list.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmark {
+
+    static final String TARGET_PACKAGE = "uw.gotimegeese.controllerapp";
+    static final int ITERATIONS = 10;
+
+    @Rule
+    public final MacrobenchmarkRule benchmarkRule = new MacrobenchmarkRule();
+
+    @Test
+    public void coldStart() {
+        _measureStartup(StartupMode.COLD);
+    }
+
+    @Test
+    public void warmStart() {
+        _measureStartup(StartupMode.WARM);
+    }
+
+    private void _measureStartup(StartupMode startupMode) {
+        benchmarkRule.measureRepeated(TARGET_PACKAGE,
+                Collections.singletonList(new StartupTimingMetric()),
+                CompilationMode.DEFAULT, startupMode, ITERATIONS,
+                scope -> {
+                    scope.pressHome();
+                    return Unit.INSTANCE;
+                },
+                scope -> {
+                    scope.startActivityAndWait();
+                    return Unit.INSTANCE;
+                });
+    }
+}
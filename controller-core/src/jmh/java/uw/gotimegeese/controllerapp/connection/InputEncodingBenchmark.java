@@ -0,0 +1,90 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what happens to a direction update between the D-Pad and the wire: shaping it,
+ * encoding it into a {@code ProtocolV2} input frame, and decoding that frame on the other end.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InputEncodingBenchmark {
+
+    private static final int FRAMES = 64;
+
+    // A thumb jittering between two arms, with the occasional release.
+    private static final int[] DIRECTIONS = {
+            CLIENT_DIR_UP, CLIENT_DIR_RIGHT, CLIENT_DIR_UP, CLIENT_DIR_RIGHT, CLIENT_DIR_UP,
+            CLIENT_DIR_NEUTRAL, CLIENT_DIR_LEFT, CLIENT_DIR_DOWN
+    };
+
+    private final byte[] buffer = new byte[FRAMES * ProtocolV2.INPUT_FRAME_LENGTH];
+    private final InputFrameDecoder decoder = new InputFrameDecoder();
+    private InputShaper shaper;
+    private InputFrameDecoder.Callback callback;
+    private int sequence;
+    private long timeNanos;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        shaper = new InputShaper(ProtocolV2.MAX_SLOTS);
+        shaper.configure(InputShaper.DEFAULT_MIN_INTERVAL_MS, InputShaper.DEFAULT_FLIP_WINDOW_MS);
+        callback = new InputFrameDecoder.Callback() {
+            @Override
+            public void onInputFrame(int sequence, int timestampMicros, int actions) {
+                blackhole.consume(actions);
+            }
+
+            @Override
+            public void onPingFrame(int sequence, int clientTimeMicros) {}
+
+            @Override
+            public void onAddPlayerFrame(int slot) {}
+        };
+        // Start with a buffer of valid frames for the decoding benchmark.
+        encodeFrames();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int encodeFrames() {
+        int off = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            int actions = ProtocolV2.actionsForDirection(DIRECTIONS[i % DIRECTIONS.length])
+                    | ProtocolV2.actionsForSlot(i & 1);
+            off += ProtocolV2.encodeInput(buffer, off, sequence++,
+                    ProtocolV2.toFrameTimestamp(timeNanos += 4_000_000L), actions);
+        }
+        return off;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void decodeFrames() {
+        decoder.feed(buffer, 0, buffer.length, callback);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long shapeDirections() {
+        long sum = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            // Updates arrive every 4ms, faster than the shaper lets them through.
+            sum += shaper.offer(0, DIRECTIONS[i % DIRECTIONS.length], timeNanos += 4_000_000L);
+        }
+        return sum;
+    }
+}
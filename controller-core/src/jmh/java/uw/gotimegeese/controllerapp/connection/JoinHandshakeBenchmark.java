@@ -0,0 +1,70 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing the server's join response, on its own and as part of a whole version 2
+ * handshake over a {@code LoopbackTransport}. The stand-in server's response is written ahead of
+ * the hello it answers, so that the handshake runs on a single thread without context switches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JoinHandshakeBenchmark {
+
+    // A version 1 response, a version 2 response and a full game.
+    private static final int[] RESPONSES = {
+            3, 3 | SERVER_V2_ACCEPTED_FLAG, SERVER_GAME_FULL_RESPONSE
+    };
+
+    private final byte[] response = new byte[1 + JoinHandshake.RESUME_TOKEN_LENGTH];
+    private LoopbackTransport transport;
+    private InputStream serverIn;
+    private OutputStream serverOut;
+    private int nextResponse;
+
+    @Setup
+    public void setUp() {
+        transport = LoopbackTransport.createPair("benchmark");
+        serverIn = transport.getPeer().getInputStream();
+        serverOut = transport.getPeer().getOutputStream();
+        response[0] = (byte) (3 | SERVER_V2_ACCEPTED_FLAG);
+        for (int i = 1; i < response.length; i++) {
+            response[i] = (byte) (0x11 * i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        transport.close();
+    }
+
+    @Benchmark
+    public JoinHandshake.Result parseResponse() {
+        return JoinHandshake.parseJoinResponse(RESPONSES[nextResponse++ % RESPONSES.length], true);
+    }
+
+    @Benchmark
+    public long handshakeOverLoopback() throws IOException {
+        serverOut.write(response);
+        JoinHandshake.Result result = JoinHandshake.handshake(transport, true);
+        if (serverIn.read() != CLIENT_HELLO_V2) {
+            throw new IllegalStateException("Unexpected hello");
+        }
+        return result.resumeToken;
+    }
+}
@@ -0,0 +1,63 @@
+package uw.gotimegeese.controllerapp.input;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of classifying one touch sample, over a finger circling the D-Pad at 240Hz
+ * the way a user sweeping between arms would, with and without prediction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DirectionClassifierBenchmark {
+
+    private static final int SAMPLES = 960;
+    private static final long SAMPLE_INTERVAL_NANOS = 1_000_000_000L / 240;
+
+    @Param({"false", "true"})
+    public boolean prediction;
+
+    private final float[] xs = new float[SAMPLES], ys = new float[SAMPLES];
+    private DirectionClassifier classifier;
+    private long timeNanos;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < SAMPLES; i++) {
+            // Wobble the radius so that the finger also crosses the dead zone now and then.
+            double angle = i * Math.PI / 120;
+            double radius = 60 + 50 * Math.sin(i * Math.PI / 45);
+            xs[i] = (float) (200 + radius * Math.cos(angle));
+            ys[i] = (float) (200 + radius * Math.sin(angle));
+        }
+        classifier = new DirectionClassifier();
+        classifier.setCenter(200, 200);
+        classifier.setPrecision(2);
+        classifier.setDeadZone(20);
+        classifier.setHysteresis(0.15f);
+        classifier.setPrediction(prediction, 24_000_000L, 0.3f);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public int classifySweep() {
+        int changes = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            timeNanos += SAMPLE_INTERVAL_NANOS;
+            if (classifier.onSample(xs[i], ys[i], timeNanos)) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,36 @@
+package uw.gotimegeese.controllerapp;
+
+import java.util.UUID;
+
+public class Constants {
+
+    // The UUID for the server.
+    public static final UUID SERVER_UUID = UUID.fromString("2cafd5f6-ea6c-44c4-99bf-5629bdbcab1d");
+
+    // This is the response we expect to receive from the server if the game we're trying to join
+    // is already full.
+    public static final int SERVER_GAME_FULL_RESPONSE = 255;
+
+    public static final int CLIENT_DIR_UP = 1;
+    public static final int CLIENT_DIR_DOWN = 2;
+    public static final int CLIENT_DIR_LEFT = 3;
+    public static final int CLIENT_DIR_RIGHT = 4;
+    public static final int CLIENT_DIR_NEUTRAL = 5;
+
+    public static final int CLIENT_ACTION_PAUSE_RESUME = 200;
+
+    // Sent by the client right after connecting to offer version 2 of the protocol (see
+    // ProtocolV2). Servers that only speak version 1 ignore it.
+    public static final int CLIENT_HELLO_V2 = 202;
+
+    // Set in the join response (on top of the player number) by servers that accept version 2 of
+    // the protocol. Note that SERVER_GAME_FULL_RESPONSE also has this bit set.
+    public static final int SERVER_V2_ACCEPTED_FLAG = 0x80;
+
+    // Sent by the client instead of CLIENT_HELLO_V2 when reconnecting to a game it was in, followed
+    // by the resume token the server handed out when the client joined (see JoinHandshake).
+    public static final int CLIENT_HELLO_RESUME = 203;
+
+    public static final int PROTOCOL_V1 = 1;
+    public static final int PROTOCOL_V2 = 2;
+}
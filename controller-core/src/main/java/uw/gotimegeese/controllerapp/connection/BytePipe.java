@@ -0,0 +1,157 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A bounded, blocking, in-memory byte channel with one input side and one output side. Unlike
+ * {@code java.io.PipedInputStream}, it does not care which threads read and write, which makes it
+ * suitable for standing in for a socket.
+ */
+class BytePipe {
+
+    private final byte[] buffer;
+    private int readPos, size;
+    private boolean closed;
+
+    private final InputStream in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            return _read();
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            return _read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            synchronized (BytePipe.this) {
+                return size;
+            }
+        }
+
+        @Override
+        public void close() {
+            BytePipe.this.close();
+        }
+    };
+
+    private final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            _write(b);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            _write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            BytePipe.this.close();
+        }
+    };
+
+    BytePipe(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    InputStream getInputStream() {
+        return in;
+    }
+
+    OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * Closes the pipe. Pending and future reads drain what is left in the buffer and then report
+     * the end of the stream, while pending and future writes fail.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private synchronized int _read() throws IOException {
+        while (size == 0) {
+            if (closed) {
+                return -1;
+            }
+            _await();
+        }
+        int b = buffer[readPos] & 0xff;
+        readPos = (readPos + 1) % buffer.length;
+        size--;
+        notifyAll();
+        return b;
+    }
+
+    private synchronized int _read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (size == 0) {
+            if (closed) {
+                return -1;
+            }
+            _await();
+        }
+        int n = Math.min(len, size);
+        for (int i = 0; i < n; i++) {
+            b[off + i] = buffer[(readPos + i) % buffer.length];
+        }
+        readPos = (readPos + n) % buffer.length;
+        size -= n;
+        notifyAll();
+        return n;
+    }
+
+    private synchronized void _write(int b) throws IOException {
+        while (!closed && size == buffer.length) {
+            _await();
+        }
+        if (closed) {
+            throw new IOException("Pipe closed");
+        }
+        buffer[(readPos + size) % buffer.length] = (byte) b;
+        size++;
+        notifyAll();
+    }
+
+    private synchronized void _write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            while (!closed && size == buffer.length) {
+                _await();
+            }
+            if (closed) {
+                throw new IOException("Pipe closed");
+            }
+            int n = Math.min(len, buffer.length - size);
+            int writePos = (readPos + size) % buffer.length;
+            for (int i = 0; i < n; i++) {
+                buffer[(writePos + i) % buffer.length] = b[off + i];
+            }
+            size += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+    }
+
+    private void _await() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One attempt at connecting to a game and joining it, bounded by a deadline and cancellable at any
+ * point. Cancelling or running past the deadline closes the transports involved, which unblocks
+ * whatever connect or read is pending.
+ * <p>
+ * An attempt may be given several ways of reaching the same server, e.g. a secure and an insecure
+ * RFCOMM socket. They are connected concurrently and the first one to come up is used for the
+ * handshake; the others are closed. The session's reconnections then go through the factory which
+ * won.
+ * <p>
+ * The connecting and handshaking threads come from a shared pool, so that attempts don't each
+ * spawn threads of their own.
+ */
+public class ConnectAttempt {
+
+    public interface Listener {
+
+        /**
+         * Called once, on an arbitrary thread, when the attempt finished. See
+         * {@link #getOutcome()}.
+         */
+        void onFinished(@NonNull ConnectAttempt attempt);
+    }
+
+    public static final int OUTCOME_PENDING = 0;
+    public static final int OUTCOME_JOINED = 1;
+    public static final int OUTCOME_GAME_FULL = 2;
+    public static final int OUTCOME_FAILED = 3;
+    public static final int OUTCOME_TIMED_OUT = 4;
+    public static final int OUTCOME_CANCELLED = 5;
+
+    private static ExecutorService sharedExecutor;
+    private static ScheduledExecutorService sharedScheduler;
+
+    private final List<ControllerTransport.Factory> factories;
+    private final long timeoutMs;
+    private final Listener listener;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    private final Object lock = new Object();
+
+    // The following fields are guarded by lock.
+    private final List<ControllerTransport> transports = new ArrayList<>();
+    private ControllerTransport winner;
+    private int failedConnects;
+    private int outcome = OUTCOME_PENDING;
+    private ScheduledFuture<?> deadline;
+
+    private long startNanos;
+    private volatile long connectNanos, handshakeNanos;
+    private volatile ControllerSession session;
+    private volatile IOException failure;
+
+    /**
+     * Creates an attempt running on the shared pool.
+     *
+     * @param factories the ways of reaching the server, raced against each other.
+     * @param timeoutMs how long connecting and joining may take altogether.
+     */
+    public ConnectAttempt(@NonNull List<ControllerTransport.Factory> factories, long timeoutMs,
+                          @NonNull Listener listener) {
+        this(factories, timeoutMs, listener, _getSharedExecutor(), _getSharedScheduler());
+    }
+
+    public ConnectAttempt(@NonNull List<ControllerTransport.Factory> factories, long timeoutMs,
+                          @NonNull Listener listener, @NonNull ExecutorService executor,
+                          @NonNull ScheduledExecutorService scheduler) {
+        if (factories.isEmpty()) {
+            throw new IllegalArgumentException("No way to reach the server");
+        }
+        this.factories = new ArrayList<>(factories);
+        this.timeoutMs = timeoutMs;
+        this.listener = listener;
+        this.executor = executor;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Starts the attempt. Must only be called once.
+     */
+    public void start() {
+        synchronized (lock) {
+            startNanos = System.nanoTime();
+            deadline = scheduler.schedule(() -> _finish(OUTCOME_TIMED_OUT),
+                    timeoutMs, TimeUnit.MILLISECONDS);
+            for (ControllerTransport.Factory factory : factories) {
+                ControllerTransport transport = factory.create();
+                transports.add(transport);
+                executor.execute(() -> _connect(factory, transport));
+            }
+        }
+    }
+
+    /**
+     * Gives up on the attempt, unless it already finished.
+     */
+    public void cancel() {
+        _finish(OUTCOME_CANCELLED);
+    }
+
+    /**
+     * Returns one of the {@code OUTCOME_*} constants.
+     */
+    public int getOutcome() {
+        synchronized (lock) {
+            return outcome;
+        }
+    }
+
+    /**
+     * Returns the joined session if the outcome is {@code OUTCOME_JOINED}, otherwise
+     * {@code null}. The caller owns the session.
+     */
+    @Nullable
+    public ControllerSession getSession() {
+        return session;
+    }
+
+    /**
+     * Returns what went wrong if the outcome is {@code OUTCOME_FAILED}.
+     */
+    @Nullable
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns how long it took for the first transport to connect, or 0 if none did.
+     */
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    /**
+     * Returns how long the join handshake took once connected, or 0 if it didn't complete.
+     */
+    public long getHandshakeNanos() {
+        return handshakeNanos;
+    }
+
+    /**
+     * Connects {@code transport} and, if it is the first to connect, joins the game over it.
+     */
+    private void _connect(@NonNull ControllerTransport.Factory factory,
+                          @NonNull ControllerTransport transport) {
+        try {
+            transport.connect();
+        } catch (IOException ex) {
+            boolean allFailed;
+            synchronized (lock) {
+                allFailed = ++failedConnects == transports.size();
+            }
+            _closeQuietly(transport);
+            if (allFailed) {
+                failure = ex;
+                _finish(OUTCOME_FAILED);
+            }
+            return;
+        }
+
+        // Only the first transport to connect goes on to join; the others lost the race.
+        List<ControllerTransport> losers = new ArrayList<>();
+        synchronized (lock) {
+            if (outcome != OUTCOME_PENDING || winner != null) {
+                losers.add(transport);
+            } else {
+                winner = transport;
+                connectNanos = System.nanoTime() - startNanos;
+                for (ControllerTransport other : transports) {
+                    if (other != transport) {
+                        losers.add(other);
+                    }
+                }
+            }
+        }
+        for (ControllerTransport loser : losers) {
+            _closeQuietly(loser);
+        }
+        if (losers.contains(transport)) {
+            return;
+        }
+
+        try {
+            long handshakeStart = System.nanoTime();
+            JoinHandshake.Result result = JoinHandshake.handshake(transport, true);
+            handshakeNanos = System.nanoTime() - handshakeStart;
+            if (result.gameFull) {
+                _closeQuietly(transport);
+                _finish(OUTCOME_GAME_FULL);
+                return;
+            }
+            ControllerSession session = new ControllerSession(transport, result, factory,
+                    System.nanoTime() - startNanos);
+            this.session = session;
+            if (!_finish(OUTCOME_JOINED)) {
+                // We were cancelled or ran out of time while the session was being set up.
+                this.session = null;
+                session.close();
+            }
+        } catch (IOException ex) {
+            _closeQuietly(transport);
+            failure = ex;
+            _finish(OUTCOME_FAILED);
+        }
+    }
+
+    /**
+     * Settles the outcome of the attempt, closes whatever is left over and notifies the listener.
+     *
+     * @return false if the outcome was already settled.
+     */
+    private boolean _finish(int outcome) {
+        List<ControllerTransport> toClose = new ArrayList<>();
+        synchronized (lock) {
+            if (this.outcome != OUTCOME_PENDING) {
+                return false;
+            }
+            this.outcome = outcome;
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            if (outcome != OUTCOME_JOINED) {
+                toClose.addAll(transports);
+            }
+        }
+        // Closing unblocks a connect or read that is still pending.
+        for (ControllerTransport transport : toClose) {
+            _closeQuietly(transport);
+        }
+        listener.onFinished(this);
+        return true;
+    }
+
+    private static void _closeQuietly(@NonNull ControllerTransport transport) {
+        try {
+            transport.close();
+        } catch (IOException ignored) {}
+    }
+
+    @NonNull
+    private static synchronized ExecutorService _getSharedExecutor() {
+        if (sharedExecutor == null) {
+            sharedExecutor = Executors.newCachedThreadPool(_daemonThreads("ConnectAttempt"));
+        }
+        return sharedExecutor;
+    }
+
+    @NonNull
+    private static synchronized ScheduledExecutorService _getSharedScheduler() {
+        if (sharedScheduler == null) {
+            sharedScheduler = Executors.newSingleThreadScheduledExecutor(
+                    _daemonThreads("ConnectDeadline"));
+        }
+        return sharedScheduler;
+    }
+
+    @NonNull
+    private static ThreadFactory _daemonThreads(@NonNull String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,697 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import uw.gotimegeese.controllerapp.metrics.InputLatencyStats;
+import uw.gotimegeese.controllerapp.metrics.LatencyHistogram;
+import uw.gotimegeese.controllerapp.metrics.SessionAccounting;
+import uw.gotimegeese.controllerapp.metrics.TraceBuffer;
+
+/**
+ * Everything belonging to one joined game: the transport, the threads writing to and reading from
+ * it, the link monitor and the stats collected along the way. A session is created once the join
+ * handshake succeeded and lives until the connection is lost for good or {@link #close()} is
+ * called, independently of any UI.
+ * <p>
+ * If the server handed out a resume token and the session knows how to create new transports, a
+ * lost connection is re-established in the background: the session reconnects with exponential
+ * backoff, reclaims its slot with the token (see {@code JoinHandshake.resume()}) and replays the
+ * direction currently held. Inputs submitted while reconnecting are dropped, except that the
+ * newest direction is the one replayed.
+ * <p>
+ * Under version 2 of the protocol, a second player can share the connection (see
+ * {@code ProtocolV2}), e.g. for two people playing on one tablet. The extra player is added again
+ * after reconnecting, since resume tokens only cover the player who joined.
+ * <p>
+ * Events are reported to a single listener which can be swapped at any time, e.g. when the UI
+ * showing the session is recreated. Events arriving while no listener is set are dropped, except
+ * for the state needed to restore the UI, which can be queried.
+ */
+public class ControllerSession {
+
+    public interface Listener {
+
+        /**
+         * Called on the writer thread when a write blocked for longer than the stall threshold.
+         */
+        void onWriteStalled(long blockedNanos);
+
+        /**
+         * Called on the reader thread for every event sent by the server. See
+         * {@code ServerMessageDecoder.Callback.onServerEvent()}.
+         */
+        void onServerEvent(int type, int argument);
+
+        /**
+         * Called on the reader thread whenever a new round-trip measurement is available.
+         */
+        void onLinkStatsUpdated(@NonNull LinkMonitor monitor);
+
+        /**
+         * Called on an arbitrary thread when the connection was lost and the session started
+         * trying to re-establish it.
+         */
+        void onReconnecting();
+
+        /**
+         * Called on the reconnecting thread once the connection was re-established.
+         *
+         * @param reconnectNanos how long it took from noticing the loss to rejoining.
+         * @param slotReclaimed  whether the server gave us our old slot back. If it didn't, the
+         *                       player number has changed.
+         */
+        void onReconnected(long reconnectNanos, boolean slotReclaimed);
+
+        /**
+         * Called once, on an arbitrary thread, when the connection was lost for good. The session
+         * is already closed when this is called.
+         */
+        void onConnectionLost();
+    }
+
+    // Writes blocking for longer than this many milliseconds are reported to the listener.
+    private static final long WRITE_STALL_THRESHOLD_MS = 100;
+
+    // How often we ping the server, and how long we wait for a pong before considering the
+    // connection dead.
+    private static final long PING_INTERVAL_MS = 1000;
+    private static final long DEAD_LINK_TIMEOUT_MS = 3500;
+
+    // The default delay before the first reconnection attempt, which doubles after every failed
+    // attempt up to the maximum, and how long we keep trying before giving up.
+    private static final long RECONNECT_INITIAL_DELAY_MS = 250;
+    private static final long RECONNECT_MAX_DELAY_MS = 4000;
+    private static final long RECONNECT_GIVE_UP_MS = 30_000;
+
+    // Placeholder for "no direction submitted yet". The CLIENT_DIR_* constants are never 0.
+    private static final int NO_DIRECTION = 0;
+
+    /**
+     * The {@code ProtocolV2} slot of the extra player sharing the connection. The player who
+     * joined is in slot 0.
+     */
+    public static final int EXTRA_PLAYER_SLOT = 1;
+
+    @Nullable
+    private final ControllerTransport.Factory transportFactory;
+    private final long joinNanos;
+
+    private final InputLatencyStats latencyStats = new InputLatencyStats();
+    private final LatencyHistogram reconnectTimes = new LatencyHistogram();
+    private final Random random = new Random();
+
+    private final Object lock = new Object();
+
+    // The following fields are guarded by lock.
+    private boolean closed;
+    private boolean reconnecting;
+    private ControllerTransport reconnectTransport;
+    private Thread reconnectThread;
+    private long reconnectInitialDelayMs = RECONNECT_INITIAL_DELAY_MS;
+    private long reconnectMaxDelayMs = RECONNECT_MAX_DELAY_MS;
+    private long reconnectGiveUpMs = RECONNECT_GIVE_UP_MS;
+
+    private volatile Connection connection;
+    private volatile int playerNumber;
+    private volatile long resumeToken;
+    private volatile Listener listener;
+    private volatile boolean gamePaused;
+    private volatile boolean extraPlayerRequested;
+    private volatile int extraPlayerNumber;
+    private volatile InputSender.WireTap wireTap;
+    private volatile SessionAccounting accounting;
+    private volatile long shapingMinIntervalMs, shapingFlipWindowMs;
+    // The last direction submitted for each slot, to replay after reconnecting.
+    private final AtomicIntegerArray lastDirections = new AtomicIntegerArray(ProtocolV2.MAX_SLOTS);
+    private volatile int reconnectCount;
+
+    /**
+     * Starts a session on a transport which successfully completed the join handshake.
+     *
+     * @param transportFactory creates the transports to reconnect with, or {@code null} if the
+     *                         session shouldn't try to reconnect.
+     * @param joinNanos        how long connecting and joining took, for reporting.
+     */
+    public ControllerSession(@NonNull ControllerTransport transport,
+                             @NonNull JoinHandshake.Result joinResult,
+                             @Nullable ControllerTransport.Factory transportFactory,
+                             long joinNanos) throws IOException {
+        this.transportFactory = transportFactory;
+        this.joinNanos = joinNanos;
+        this.playerNumber = joinResult.playerNumber;
+        this.resumeToken = joinResult.resumeToken;
+        this.connection = new Connection(transport, joinResult.protocolVersion);
+    }
+
+    /**
+     * Connects the transport, performs the join handshake and starts a session which doesn't try
+     * to reconnect.
+     *
+     * @return the session, or {@code null} if the game is full, in which case the transport has
+     * been closed.
+     */
+    @Nullable
+    public static ControllerSession join(@NonNull ControllerTransport transport)
+            throws IOException {
+        return _join(transport, null);
+    }
+
+    /**
+     * Creates a transport, performs the join handshake over it and starts a session which
+     * reconnects through {@code transportFactory} if the connection is lost.
+     *
+     * @return the session, or {@code null} if the game is full.
+     */
+    @Nullable
+    public static ControllerSession join(@NonNull ControllerTransport.Factory transportFactory)
+            throws IOException {
+        return _join(transportFactory.create(), transportFactory);
+    }
+
+    /**
+     * Sets the listener to be notified of the session's events, or {@code null} to detach the
+     * current listener.
+     */
+    public void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Changes how the session retries after losing the connection. See the {@code RECONNECT_*}
+     * constants for the defaults.
+     */
+    public void setReconnectPolicy(long initialDelayMs, long maxDelayMs, long giveUpAfterMs) {
+        synchronized (lock) {
+            reconnectInitialDelayMs = initialDelayMs;
+            reconnectMaxDelayMs = maxDelayMs;
+            reconnectGiveUpMs = giveUpAfterMs;
+        }
+    }
+
+    /**
+     * Queues a direction update ({@code CLIENT_DIR_*}). See {@code InputSender.sendDirection()}.
+     */
+    public void sendDirection(int data, long touchNanos, long dispatchNanos) {
+        sendDirection(0, data, touchNanos, dispatchNanos);
+    }
+
+    /**
+     * Queues a direction update ({@code CLIENT_DIR_*}) for the player in the given slot, 0 or
+     * {@link #EXTRA_PLAYER_SLOT}. See {@code InputSender.sendDirection()}.
+     */
+    public void sendDirection(int slot, int data, long touchNanos, long dispatchNanos) {
+        lastDirections.set(slot, data);
+        connection.inputSender.sendDirection(slot, data, touchNanos, dispatchNanos);
+    }
+
+    /**
+     * Asks the server for a second player sharing this connection. The answer arrives as an
+     * {@code EVENT_PLAYER_ADDED} event, after which {@link #getExtraPlayerNumber()} is up to
+     * date.
+     *
+     * @return false if the protocol version doesn't allow sharing the connection.
+     */
+    public boolean requestExtraPlayer() {
+        Connection connection = this.connection;
+        if (connection.protocolVersion != PROTOCOL_V2) {
+            return false;
+        }
+        extraPlayerRequested = true;
+        connection.inputSender.sendAddPlayer(EXTRA_PLAYER_SLOT);
+        return true;
+    }
+
+    /**
+     * Queues a {@code CLIENT_ACTION_PAUSE_RESUME} action.
+     */
+    public void sendPauseResume() {
+        connection.inputSender.sendPauseResume();
+    }
+
+    /**
+     * Ends the session and closes the connection. The listener is not notified.
+     */
+    public void close() {
+        _close();
+    }
+
+    public boolean isClosed() {
+        synchronized (lock) {
+            return closed;
+        }
+    }
+
+    /**
+     * Returns whether the connection was lost and the session is trying to re-establish it.
+     */
+    public boolean isReconnecting() {
+        synchronized (lock) {
+            return reconnecting;
+        }
+    }
+
+    public int getPlayerNumber() {
+        return playerNumber;
+    }
+
+    /**
+     * Returns the number of the extra player sharing the connection, or 0 if there is none
+     * (yet).
+     */
+    public int getExtraPlayerNumber() {
+        return extraPlayerNumber;
+    }
+
+    public int getProtocolVersion() {
+        return connection.protocolVersion;
+    }
+
+    @NonNull
+    public String getServerName() {
+        return connection.transport.getName();
+    }
+
+    public long getJoinNanos() {
+        return joinNanos;
+    }
+
+    /**
+     * Returns whether the server last reported the game as paused.
+     */
+    public boolean isGamePaused() {
+        return gamePaused;
+    }
+
+    /**
+     * Returns the sender of the current connection. Its counters start over with every
+     * reconnection.
+     */
+    @NonNull
+    public InputSender getInputSender() {
+        return connection.inputSender;
+    }
+
+    /**
+     * Returns the link monitor of the current connection, or {@code null} under version 1 of the
+     * protocol.
+     */
+    @Nullable
+    public LinkMonitor getLinkMonitor() {
+        return connection.linkMonitor;
+    }
+
+    /**
+     * Sets the tap that sees the bytes written to the server, on this connection and on those
+     * made by reconnecting, or {@code null} to remove it.
+     */
+    public void setWireTap(@Nullable InputSender.WireTap wireTap) {
+        this.wireTap = wireTap;
+        connection.inputSender.setWireTap(wireTap);
+    }
+
+    /**
+     * Sets the accounting the connection's writes, reads and threads are charged to, on this
+     * connection and on those made by reconnecting, or {@code null} to stop charging them.
+     */
+    public void setAccounting(@Nullable SessionAccounting accounting) {
+        this.accounting = accounting;
+        Connection connection = this.connection;
+        connection.inputSender.setAccounting(accounting);
+        connection.serverMessageReader.setAccounting(accounting);
+    }
+
+    @Nullable
+    public SessionAccounting getAccounting() {
+        return accounting;
+    }
+
+    /**
+     * Configures the shaping of direction updates, on this connection and on those made by
+     * reconnecting. See {@code InputSender.setShaping()}.
+     */
+    public void setInputShaping(long minIntervalMs, long flipWindowMs) {
+        shapingMinIntervalMs = minIntervalMs;
+        shapingFlipWindowMs = flipWindowMs;
+        connection.inputSender.setShaping(minIntervalMs, flipWindowMs);
+    }
+
+    @NonNull
+    public InputLatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    /**
+     * Returns how long each successful reconnection took, from noticing the loss to rejoining.
+     * Only recorded into from the reconnecting thread.
+     */
+    @NonNull
+    public LatencyHistogram getReconnectTimes() {
+        return reconnectTimes;
+    }
+
+    public int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    @Nullable
+    private static ControllerSession _join(@NonNull ControllerTransport transport,
+                                           @Nullable ControllerTransport.Factory factory)
+            throws IOException {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            JoinHandshake.Result result = JoinHandshake.join(transport, true);
+            if (result.gameFull) {
+                return null;
+            }
+            ControllerSession session = new ControllerSession(transport, result, factory,
+                    System.nanoTime() - start);
+            success = true;
+            return session;
+        } finally {
+            if (!success) {
+                _closeQuietly(transport);
+            }
+        }
+    }
+
+    /**
+     * Closes the session.
+     *
+     * @return false if the session was already closed.
+     */
+    private boolean _close() {
+        Thread reconnectThread;
+        ControllerTransport reconnectTransport;
+        synchronized (lock) {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            reconnecting = false;
+            reconnectThread = this.reconnectThread;
+            reconnectTransport = this.reconnectTransport;
+        }
+        connection.close();
+        // Abort a reconnection attempt in progress, whether it is connecting or backing off.
+        if (reconnectTransport != null) {
+            _closeQuietly(reconnectTransport);
+        }
+        if (reconnectThread != null) {
+            reconnectThread.interrupt();
+        }
+        return true;
+    }
+
+    /**
+     * Handles the loss of {@code lost}: starts reconnecting if we can, or closes the session and
+     * reports the loss to the listener. Losses of connections which have already been replaced are
+     * ignored.
+     */
+    private void _onConnectionLost(@NonNull Connection lost) {
+        boolean canResume;
+        synchronized (lock) {
+            if (closed || reconnecting || lost != connection) {
+                return;
+            }
+            canResume = transportFactory != null && resumeToken != 0;
+            TraceBuffer.trace(TraceBuffer.EVENT_CONNECTION_LOST, 0);
+            if (canResume) {
+                reconnecting = true;
+                reconnectThread = new Thread(this::_reconnect, "SessionReconnect");
+                reconnectThread.setDaemon(true);
+            }
+        }
+        if (!canResume) {
+            _giveUp();
+            return;
+        }
+        lost.close();
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.onReconnecting();
+        }
+        synchronized (lock) {
+            if (reconnecting) {
+                reconnectThread.start();
+            }
+        }
+    }
+
+    /**
+     * Intended to only be used by the reconnecting thread. Tries to rejoin with the resume token
+     * until it succeeds, the session is closed or it is time to give up.
+     */
+    private void _reconnect() {
+        long start = System.nanoTime();
+        long delayMs, maxDelayMs, giveUpNanos;
+        synchronized (lock) {
+            delayMs = reconnectInitialDelayMs;
+            maxDelayMs = reconnectMaxDelayMs;
+            giveUpNanos = reconnectGiveUpMs * 1_000_000;
+        }
+
+        while (true) {
+            ControllerTransport transport = transportFactory.create();
+            boolean sessionClosed;
+            synchronized (lock) {
+                sessionClosed = closed;
+                if (!sessionClosed) {
+                    reconnectTransport = transport;
+                }
+            }
+            if (sessionClosed) {
+                // close() didn't know about the transport, which may hold a socket already.
+                _closeQuietly(transport);
+                return;
+            }
+
+            Connection newConnection = null;
+            JoinHandshake.Result result = null;
+            try {
+                result = JoinHandshake.resume(transport, resumeToken);
+                if (!result.gameFull) {
+                    newConnection = new Connection(transport, result.protocolVersion);
+                }
+            } catch (IOException ignored) {}
+            if (newConnection == null) {
+                _closeQuietly(transport);
+            }
+
+            boolean slotReclaimed = false;
+            synchronized (lock) {
+                reconnectTransport = null;
+                if (closed) {
+                    if (newConnection != null) {
+                        newConnection.close();
+                    }
+                    return;
+                }
+                if (newConnection != null) {
+                    slotReclaimed = result.playerNumber == playerNumber;
+                    connection = newConnection;
+                    playerNumber = result.playerNumber;
+                    resumeToken = result.resumeToken;
+                    reconnecting = false;
+                    reconnectThread = null;
+                }
+            }
+            if (newConnection != null) {
+                _onReconnected(newConnection, slotReclaimed, System.nanoTime() - start);
+                return;
+            }
+
+            // A full game means our slot is gone for good; there is no point in trying again.
+            long elapsedNanos = System.nanoTime() - start;
+            if ((result != null && result.gameFull)
+                    || elapsedNanos + delayMs * 1_000_000 > giveUpNanos) {
+                _giveUp();
+                return;
+            }
+
+            // Spread the attempts of controllers which lost their connection at the same time.
+            try {
+                Thread.sleep(delayMs + random.nextInt((int) (delayMs / 2) + 1));
+            } catch (InterruptedException ignored) {}
+            delayMs = Math.min(delayMs * 2, maxDelayMs);
+        }
+    }
+
+    /**
+     * Intended to only be used by the reconnecting thread, once the new connection has become the
+     * current one. Brings the server up to date and reports the reconnection.
+     */
+    private void _onReconnected(@NonNull Connection newConnection, boolean slotReclaimed,
+                                long reconnectNanos) {
+        reconnectCount++;
+        reconnectTimes.recordNanos(reconnectNanos);
+        TraceBuffer.trace(TraceBuffer.EVENT_RECONNECTED, (int) (reconnectNanos / 1_000_000));
+
+        // The server forgot what we were holding down when the connection was lost, as well as
+        // the extra player, which is added back before its direction is replayed.
+        newConnection.inputSender.setPaused(gamePaused);
+        extraPlayerNumber = 0;
+        if (extraPlayerRequested) {
+            newConnection.inputSender.sendAddPlayer(EXTRA_PLAYER_SLOT);
+        }
+        for (int slot = 0; slot < lastDirections.length(); slot++) {
+            int direction = lastDirections.get(slot);
+            if (direction != NO_DIRECTION && (slot == 0 || extraPlayerRequested)) {
+                long now = System.nanoTime();
+                newConnection.inputSender.sendDirection(slot, direction, now, now);
+            }
+        }
+
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.onReconnected(reconnectNanos, slotReclaimed);
+        }
+    }
+
+    /**
+     * Closes the session and reports the loss to the listener, unless the session was already
+     * closed.
+     */
+    private void _giveUp() {
+        if (!_close()) {
+            return;
+        }
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.onConnectionLost();
+        }
+    }
+
+    private static void _closeQuietly(@NonNull ControllerTransport transport) {
+        try {
+            transport.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * One connection to the server and the threads serving it. A session goes through several of
+     * these if it reconnects.
+     */
+    private class Connection {
+
+        final ControllerTransport transport;
+        final int protocolVersion;
+        final InputSender inputSender;
+        final ServerMessageReader serverMessageReader;
+        final LinkMonitor linkMonitor;
+
+        Connection(@NonNull ControllerTransport transport, int protocolVersion)
+                throws IOException {
+            this.transport = transport;
+            this.protocolVersion = protocolVersion;
+
+            ConnectionCallbacks callbacks = new ConnectionCallbacks(this);
+            inputSender = new InputSender(transport.getOutputStream(), protocolVersion, callbacks,
+                    WRITE_STALL_THRESHOLD_MS);
+            inputSender.setLatencyStats(latencyStats);
+            inputSender.setWireTap(wireTap);
+            inputSender.setAccounting(accounting);
+            inputSender.setShaping(shapingMinIntervalMs, shapingFlipWindowMs);
+            linkMonitor = protocolVersion == PROTOCOL_V2
+                    ? new LinkMonitor(inputSender, callbacks, PING_INTERVAL_MS,
+                            DEAD_LINK_TIMEOUT_MS)
+                    : null;
+            serverMessageReader = new ServerMessageReader(transport.getInputStream(),
+                    protocolVersion, callbacks);
+            serverMessageReader.setAccounting(accounting);
+        }
+
+        void close() {
+            if (linkMonitor != null) {
+                linkMonitor.close();
+            }
+            serverMessageReader.close();
+            inputSender.close();
+            _closeQuietly(transport);
+        }
+    }
+
+    /**
+     * Receives the callbacks of one connection's components and forwards them to the listener.
+     */
+    private class ConnectionCallbacks implements InputSender.Listener,
+            ServerMessageReader.Listener, LinkMonitor.Listener {
+
+        private final Connection owner;
+
+        ConnectionCallbacks(@NonNull Connection owner) {
+            this.owner = owner;
+        }
+
+        @Override
+        public void onWriteStalled(long blockedNanos) {
+            Listener listener = ControllerSession.this.listener;
+            if (listener != null) {
+                listener.onWriteStalled(blockedNanos);
+            }
+        }
+
+        @Override
+        public void onWriteFailed(@NonNull IOException ex) {
+            _onConnectionLost(owner);
+        }
+
+        @Override
+        public void onPong(int sequence, int clientTimeMicros, int serverReceiveTimeMicros,
+                           int serverSendTimeMicros) {
+            if (owner.linkMonitor != null) {
+                owner.linkMonitor.onPong(sequence, clientTimeMicros, serverReceiveTimeMicros,
+                        serverSendTimeMicros);
+            }
+        }
+
+        @Override
+        public void onServerEvent(int type, int argument) {
+            TraceBuffer.trace(TraceBuffer.EVENT_SERVER_EVENT, type << 16 | argument & 0xffff);
+            // Stop sending directions as soon as the game is paused, without a detour through
+            // the listener.
+            if (type == ProtocolV2.EVENT_PAUSE_STATE) {
+                gamePaused = argument != 0;
+                owner.inputSender.setPaused(gamePaused);
+            } else if (type == ProtocolV2.EVENT_PLAYER_ADDED
+                    && argument >>> 8 == EXTRA_PLAYER_SLOT) {
+                int player = argument & 0xff;
+                if (player == SERVER_GAME_FULL_RESPONSE) {
+                    extraPlayerRequested = false;
+                    extraPlayerNumber = 0;
+                } else {
+                    extraPlayerNumber = player;
+                }
+            }
+            Listener listener = ControllerSession.this.listener;
+            if (listener != null) {
+                listener.onServerEvent(type, argument);
+            }
+        }
+
+        @Override
+        public void onConnectionClosed(@Nullable IOException ex) {
+            _onConnectionLost(owner);
+        }
+
+        @Override
+        public void onLinkStatsUpdated(@NonNull LinkMonitor monitor) {
+            Listener listener = ControllerSession.this.listener;
+            if (listener != null) {
+                listener.onLinkStatsUpdated(monitor);
+            }
+        }
+
+        @Override
+        public void onLinkDead() {
+            _onConnectionLost(owner);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bidirectional byte stream between the controller and the game server. This lets the code
+ * speaking the controller protocol stay the same whether the bytes travel over RFCOMM, TCP or an
+ * in-process loopback.
+ */
+public interface ControllerTransport extends Closeable {
+
+    /**
+     * Creates new, unconnected transports to the same remote end, e.g. to reconnect after the
+     * connection was lost.
+     */
+    interface Factory {
+
+        @NonNull
+        ControllerTransport create();
+    }
+
+    /**
+     * Establishes the connection. Blocks until the connection is established or fails. Closing
+     * the transport from another thread aborts a pending connection attempt.
+     */
+    void connect() throws IOException;
+
+    @NonNull
+    InputStream getInputStream() throws IOException;
+
+    @NonNull
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Returns a human readable name for the remote end, suitable for display and logging.
+     */
+    @NonNull
+    String getName();
+}
@@ -0,0 +1,97 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static uw.gotimegeese.controllerapp.connection.ProtocolV2.*;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Reference decoder for the frames a client sends under {@code ProtocolV2}, meant to be reused on
+ * the server side. Bytes can be fed in chunks of any size; frames split across chunks are
+ * reassembled. Does not allocate after construction.
+ */
+public class InputFrameDecoder {
+
+    public interface Callback {
+
+        void onInputFrame(int sequence, int timestampMicros, int actions);
+
+        /**
+         * Called for every ping frame. The server should reply with a pong frame (see
+         * {@code ProtocolV2.encodePong()}) as soon as possible.
+         */
+        void onPingFrame(int sequence, int clientTimeMicros);
+
+        /**
+         * Called for every add-player frame. The server should reply with an
+         * {@code EVENT_PLAYER_ADDED} event.
+         */
+        void onAddPlayerFrame(int slot);
+    }
+
+    private final byte[] frame = new byte[Math.max(INPUT_FRAME_LENGTH, PING_FRAME_LENGTH)];
+    private int frameLen, expectedLen;
+    private long skippedBytes;
+
+    /**
+     * Decodes {@code len} bytes from {@code buf} starting at {@code off}, invoking the callback
+     * once for every complete frame. Bytes that can't be the start of a frame are skipped, which
+     * lets the decoder resynchronise after corruption.
+     */
+    public void feed(@NonNull byte[] buf, int off, int len, @NonNull Callback callback) {
+        for (int i = off; i < off + len; i++) {
+            byte b = buf[i];
+            if (frameLen == 0) {
+                expectedLen = _frameLength(b & 0xff);
+                if (expectedLen == 0) {
+                    skippedBytes++;
+                    continue;
+                }
+            }
+            frame[frameLen++] = b;
+            if (frameLen == expectedLen) {
+                frameLen = 0;
+                switch (frame[0] & 0xff) {
+                    case INPUT_FRAME_MARKER:
+                        callback.onInputFrame(getShort(frame, 1), getInt(frame, 3),
+                                frame[7] & 0xff);
+                        break;
+                    case PING_FRAME_MARKER:
+                        callback.onPingFrame(getShort(frame, 1), getInt(frame, 3));
+                        break;
+                    default:
+                        callback.onAddPlayerFrame(frame[1] & 0xff);
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes discarded so far because they weren't part of a frame.
+     */
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+
+    /**
+     * Returns true if {@code sequence} is newer than {@code lastSequence}, taking wrap-around of
+     * the 16 bit sequence numbers into account.
+     */
+    public static boolean isNewer(int sequence, int lastSequence) {
+        int diff = (sequence - lastSequence) & 0xffff;
+        return diff != 0 && diff < 0x8000;
+    }
+
+    private static int _frameLength(int marker) {
+        switch (marker) {
+            case INPUT_FRAME_MARKER:
+                return INPUT_FRAME_LENGTH;
+            case PING_FRAME_MARKER:
+                return PING_FRAME_LENGTH;
+            case ADD_PLAYER_FRAME_MARKER:
+                return ADD_PLAYER_FRAME_LENGTH;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,612 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uw.gotimegeese.controllerapp.metrics.InputLatencyStats;
+import uw.gotimegeese.controllerapp.metrics.SessionAccounting;
+import uw.gotimegeese.controllerapp.metrics.TraceBuffer;
+
+/**
+ * Owns the output stream of the connection to the server and writes the user's inputs to it from
+ * a dedicated thread, so that back-pressure on the link never blocks the thread producing the
+ * inputs.
+ * Direction updates are coalesced: if a new direction is submitted before the previous one was
+ * written, only the newest one is sent. Pause/resume actions are never dropped. While the game is
+ * paused, direction updates are held back and only the newest one is sent once it resumes.
+ * Inputs are encoded according to the protocol version negotiated during the join: one byte per
+ * input for version 1, or one {@code ProtocolV2} input frame per input for version 2.
+ * <p>
+ * Under version 2, the sender can carry the inputs of several players sharing the connection, each
+ * in its own {@code ProtocolV2} slot. Directions are coalesced per slot; pause/resume actions
+ * belong to the game rather than to a player and go out in slot 0.
+ * <p>
+ * Before being written, direction updates pass through an {@code InputShaper}, which may hold them
+ * back or drop them to limit their rate and suppress flip-flops. Shaping is off unless configured
+ * through {@link #setShaping(long, long)}.
+ */
+public class InputSender {
+
+    public interface Listener {
+
+        /**
+         * Called on the writer thread when a single write blocked for longer than the stall
+         * threshold supplied to the constructor.
+         */
+        void onWriteStalled(long blockedNanos);
+
+        /**
+         * Called on the writer thread when a write fails. No further writes are attempted after
+         * this is called.
+         */
+        void onWriteFailed(@NonNull IOException ex);
+    }
+
+    /**
+     * Sees every batch of bytes written to the connection, e.g. to record an input session.
+     */
+    public interface WireTap {
+
+        /**
+         * Called on the writer thread after {@code len} bytes of {@code buf} were written. The
+         * buffer is reused once this returns, so the bytes must be copied if they are kept.
+         */
+        void onBytesWritten(@NonNull byte[] buf, int off, int len, long timeNanos);
+    }
+
+    // Placeholder for "no direction waiting to be sent". The CLIENT_DIR_* constants are never 0.
+    private static final int NO_DIRECTION = 0;
+
+    // Placeholder for "no ping waiting to be sent". Ping sequence numbers are 16 bit.
+    private static final int NO_PING = -1;
+
+    private static final int SLOT_COUNT = ProtocolV2.MAX_SLOTS;
+
+    // Size of the buffer the writer thread assembles each batch of bytes into.
+    private static final int BUFFER_SIZE = 64;
+
+    private final OutputStream out;
+    private final int protocolVersion;
+    private final Listener listener;
+    private final long stallThresholdNanos;
+
+    private final Object lock = new Object();
+    private final Thread thread;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    // The following fields are guarded by lock. The arrays are indexed by slot, and the slots
+    // with a direction waiting to be sent are flagged in pendingDirectionSlots.
+    private final int[] pendingDirections = new int[SLOT_COUNT];
+    private final long[] pendingTouchNanos = new long[SLOT_COUNT];
+    private final long[] pendingDispatchNanos = new long[SLOT_COUNT];
+    private final long[] pendingDirectionNanos = new long[SLOT_COUNT];
+    private final boolean[] pendingDirectionHeld = new boolean[SLOT_COUNT];
+    private int pendingDirectionSlots;
+    // Slots whose pending direction the shaper is holding back, and until when.
+    private int heldDirectionSlots;
+    private final long[] heldUntilNanos = new long[SLOT_COUNT];
+    private final InputShaper shaper = new InputShaper(SLOT_COUNT);
+    private int pendingAddPlayerSlots;
+    private int pendingPauseResumeCount;
+    private long pendingPauseResumeNanos;
+    // Whether the pending direction of slot 0 was submitted before the pending pause/resume
+    // actions, in which case version 1 writes it first. A direction held back by the shaper still
+    // goes out once its hold expires.
+    private boolean directionBeforePauseResume;
+    private int pendingPing = NO_PING;
+    private boolean paused;
+    private boolean closed;
+
+    // The following fields are only accessed by the writer thread. The arrays hold what was taken
+    // from the pending ones for the batch being written, and the direction each slot holds.
+    private int bufferLen;
+    private int sequence;
+    private final int[] batchDirections = new int[SLOT_COUNT];
+    private final long[] batchTouchNanos = new long[SLOT_COUNT];
+    private final long[] batchDispatchNanos = new long[SLOT_COUNT];
+    private final long[] batchDirectionNanos = new long[SLOT_COUNT];
+    private final boolean[] batchDirectionHeld = new boolean[SLOT_COUNT];
+    private final int[] heldDirectionActions = new int[SLOT_COUNT];
+
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong heldWhilePausedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private volatile long maxWriteBlockNanos;
+    private volatile InputLatencyStats latencyStats;
+    private volatile WireTap wireTap;
+    private volatile SessionAccounting accounting;
+
+    /**
+     * Creates a sender writing to {@code out} and immediately starts its writer thread.
+     *
+     * @param protocolVersion  {@code PROTOCOL_V1} or {@code PROTOCOL_V2}.
+     * @param stallThresholdMs writes blocking for longer than this are reported to the listener.
+     */
+    public InputSender(@NonNull OutputStream out, int protocolVersion,
+                       @Nullable Listener listener, long stallThresholdMs) {
+        this.out = out;
+        this.protocolVersion = protocolVersion;
+        this.listener = listener;
+        this.stallThresholdNanos = stallThresholdMs * 1_000_000L;
+        thread = new Thread(this::_run, "InputSender");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a direction update ({@code CLIENT_DIR_*}) which is not the result of a touch event.
+     * Replaces any direction update that has not been written yet. Never blocks.
+     */
+    public void sendDirection(int data) {
+        long now = System.nanoTime();
+        sendDirection(data, now, now);
+    }
+
+    /**
+     * Queues a direction update ({@code CLIENT_DIR_*}). Replaces any direction update that has
+     * not been written yet. Never blocks.
+     *
+     * @param touchNanos    when the touch event causing this update happened.
+     * @param dispatchNanos when the update was dispatched to the direction listener.
+     */
+    public void sendDirection(int data, long touchNanos, long dispatchNanos) {
+        sendDirection(0, data, touchNanos, dispatchNanos);
+    }
+
+    /**
+     * Queues a direction update ({@code CLIENT_DIR_*}) for the player in the given
+     * {@code ProtocolV2} slot. Replaces any direction update for that slot that has not been
+     * written yet. Updates for slots other than 0 are dropped under version 1 of the protocol.
+     * Never blocks.
+     *
+     * @param touchNanos    when the touch event causing this update happened.
+     * @param dispatchNanos when the update was dispatched to the direction listener.
+     */
+    public void sendDirection(int slot, int data, long touchNanos, long dispatchNanos) {
+        if (slot < 0 || slot >= SLOT_COUNT) {
+            throw new IllegalArgumentException("Invalid slot: " + slot);
+        }
+        if (slot != 0 && protocolVersion != PROTOCOL_V2) {
+            return;
+        }
+        long now = System.nanoTime();
+        queuedCount.incrementAndGet();
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            if (paused) {
+                heldWhilePausedCount.incrementAndGet();
+            } else if ((pendingDirectionSlots & (1 << slot)) != 0) {
+                coalescedCount.incrementAndGet();
+            }
+            pendingDirections[slot] = data;
+            pendingDirectionHeld[slot] = paused;
+            pendingTouchNanos[slot] = touchNanos;
+            pendingDispatchNanos[slot] = dispatchNanos;
+            pendingDirectionNanos[slot] = now;
+            pendingDirectionSlots |= 1 << slot;
+            if (slot == 0) {
+                directionBeforePauseResume = false;
+            }
+            // The shaper gets to decide again about the newer direction.
+            heldDirectionSlots &= ~(1 << slot);
+            lock.notify();
+        }
+    }
+
+    /**
+     * Queues a {@code CLIENT_ACTION_PAUSE_RESUME} action. Unlike direction updates, these are
+     * never coalesced since each one toggles the state of the game. Never blocks.
+     */
+    public void sendPauseResume() {
+        long now = System.nanoTime();
+        queuedCount.incrementAndGet();
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            if (pendingPauseResumeCount == 0) {
+                directionBeforePauseResume = (pendingDirectionSlots & 1) != 0;
+            }
+            pendingPauseResumeCount++;
+            pendingPauseResumeNanos = now;
+            lock.notify();
+        }
+    }
+
+    /**
+     * Queues a {@code ProtocolV2} ping frame with the given sequence number. The frame is stamped
+     * with the time it is actually written. Replaces any ping that has not been written yet. Does
+     * nothing under version 1 of the protocol. Never blocks.
+     */
+    public void sendPing(int sequence) {
+        if (protocolVersion != PROTOCOL_V2) {
+            return;
+        }
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            pendingPing = sequence;
+            lock.notify();
+        }
+    }
+
+    /**
+     * Queues a {@code ProtocolV2} add-player frame asking the server for a player in the given
+     * slot. It is written ahead of any input frames taken in the same batch. Does nothing under
+     * version 1 of the protocol. Never blocks.
+     */
+    public void sendAddPlayer(int slot) {
+        if (slot <= 0 || slot >= SLOT_COUNT) {
+            throw new IllegalArgumentException("Invalid slot: " + slot);
+        }
+        if (protocolVersion != PROTOCOL_V2) {
+            return;
+        }
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            pendingAddPlayerSlots |= 1 << slot;
+            lock.notify();
+        }
+    }
+
+    /**
+     * Tells the sender whether the game is paused. While it is, direction updates are held back
+     * since the server has no use for them; the newest one is sent as soon as the game resumes.
+     */
+    public void setPaused(boolean paused) {
+        synchronized (lock) {
+            this.paused = paused;
+            for (int slot = 0; paused && slot < SLOT_COUNT; slot++) {
+                if ((pendingDirectionSlots & (1 << slot)) != 0) {
+                    pendingDirectionHeld[slot] = true;
+                }
+            }
+            lock.notify();
+        }
+    }
+
+    /**
+     * Configures the shaping of direction updates, see {@code InputShaper}. 0 turns a limit off.
+     *
+     * @param minIntervalMs the minimum time between two updates of a player.
+     * @param flipWindowMs  how long changing back to the previous direction is held back.
+     */
+    public void setShaping(long minIntervalMs, long flipWindowMs) {
+        synchronized (lock) {
+            shaper.configure(minIntervalMs, flipWindowMs);
+            // Let the writer thread reconsider what it is holding back.
+            heldDirectionSlots = 0;
+            lock.notify();
+        }
+    }
+
+    /**
+     * Returns the shaper, for reading its counters.
+     */
+    @NonNull
+    public InputShaper getShaper() {
+        return shaper;
+    }
+
+    /**
+     * Stops the writer thread. Anything that has not been written yet is discarded. Note that a
+     * write that is currently blocked will only return once the underlying connection is closed.
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notify();
+        }
+    }
+
+    public long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getHeldWhilePausedCount() {
+        return heldWhilePausedCount.get();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    public long getMaxWriteBlockNanos() {
+        return maxWriteBlockNanos;
+    }
+
+    /**
+     * Sets the stats the latency of every written direction update is recorded into, or
+     * {@code null} to stop recording. The stats are only ever recorded into from the writer thread.
+     */
+    public void setLatencyStats(@Nullable InputLatencyStats latencyStats) {
+        this.latencyStats = latencyStats;
+    }
+
+    /**
+     * Sets the tap that sees every batch of bytes written from now on, or {@code null} to remove
+     * it.
+     */
+    public void setWireTap(@Nullable WireTap wireTap) {
+        this.wireTap = wireTap;
+    }
+
+    /**
+     * Sets the accounting the writes, wakeups and CPU time of the writer thread are charged to,
+     * or {@code null} to stop charging them.
+     */
+    public void setAccounting(@Nullable SessionAccounting accounting) {
+        this.accounting = accounting;
+    }
+
+    private void _run() {
+        // A reading of this thread's CPU clock, taken when accounting was last updated.
+        long cpuMark = -1;
+        while (true) {
+            int directionSlots, addPlayerSlots, pauseResumeCount, ping;
+            long pauseResumeNanos;
+            boolean directionFirst;
+            int pausedDirection;
+
+            // Wait for something to send and take ownership of it.
+            synchronized (lock) {
+                while (!closed && (paused || !_shapeDirections())
+                        && pendingAddPlayerSlots == 0 && pendingPauseResumeCount == 0
+                        && pendingPing == NO_PING) {
+                    try {
+                        if (paused || heldDirectionSlots == 0) {
+                            lock.wait();
+                        } else {
+                            TimeUnit.NANOSECONDS.timedWait(lock, _nextHoldExpiry()
+                                    - System.nanoTime());
+                        }
+                    } catch (InterruptedException ignored) {}
+                }
+                if (closed) {
+                    return;
+                }
+                directionSlots = paused ? 0 : pendingDirectionSlots & ~heldDirectionSlots;
+                for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                    if ((directionSlots & (1 << slot)) != 0) {
+                        batchDirections[slot] = pendingDirections[slot];
+                        batchDirectionHeld[slot] = pendingDirectionHeld[slot];
+                        batchTouchNanos[slot] = pendingTouchNanos[slot];
+                        batchDispatchNanos[slot] = pendingDispatchNanos[slot];
+                        batchDirectionNanos[slot] = pendingDirectionNanos[slot];
+                    }
+                }
+                addPlayerSlots = pendingAddPlayerSlots;
+                pauseResumeCount = pendingPauseResumeCount;
+                pauseResumeNanos = pendingPauseResumeNanos;
+                directionFirst = directionBeforePauseResume && (directionSlots & 1) != 0;
+                pausedDirection = paused && pauseResumeCount > 0
+                        && (pendingDirectionSlots & 1) != 0 ? pendingDirections[0] : NO_DIRECTION;
+                ping = pendingPing;
+                pendingDirectionSlots &= ~directionSlots;
+                pendingAddPlayerSlots = 0;
+                pendingPauseResumeCount = 0;
+                directionBeforePauseResume = false;
+                pendingPing = NO_PING;
+            }
+            SessionAccounting accounting = this.accounting;
+            if (accounting != null) {
+                accounting.onWriterWakeup();
+            }
+
+            // Encode everything we took into as few writes as possible.
+            try {
+                if (protocolVersion == PROTOCOL_V2) {
+                    if (pausedDirection != NO_DIRECTION) {
+                        // Pause/resume frames carry the direction held now, even though it is
+                        // only sent on its own once the game resumes.
+                        heldDirectionActions[0] = ProtocolV2.actionsForDirection(pausedDirection);
+                    }
+                    // Players are added first, so that the server knows their slots by the time
+                    // their inputs arrive.
+                    for (int slot = 1; slot < SLOT_COUNT; slot++) {
+                        if ((addPlayerSlots & (1 << slot)) != 0) {
+                            _reserve(ProtocolV2.ADD_PLAYER_FRAME_LENGTH);
+                            bufferLen += ProtocolV2.encodeAddPlayer(buffer, bufferLen, slot);
+                        }
+                    }
+                    for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                        boolean hasDirection = (directionSlots & (1 << slot)) != 0;
+                        if (hasDirection || (slot == 0 && pauseResumeCount > 0)) {
+                            _encodeV2(slot, hasDirection ? batchDirections[slot] : NO_DIRECTION,
+                                    batchTouchNanos[slot], slot == 0 ? pauseResumeCount : 0,
+                                    pauseResumeNanos);
+                        }
+                    }
+                    if (ping != NO_PING) {
+                        _reserve(ProtocolV2.PING_FRAME_LENGTH);
+                        bufferLen += ProtocolV2.encodePing(buffer, bufferLen, ping,
+                                ProtocolV2.toFrameTimestamp(System.nanoTime()));
+                    }
+                } else {
+                    // In the order they were submitted, so that e.g. a direction followed by a
+                    // pause doesn't reach the server as a pause followed by a direction.
+                    if (directionFirst) {
+                        _append(batchDirections[0]);
+                    }
+                    for (int i = 0; i < pauseResumeCount; i++) {
+                        _append(CLIENT_ACTION_PAUSE_RESUME);
+                    }
+                    if ((directionSlots & 1) != 0 && !directionFirst) {
+                        _append(batchDirections[0]);
+                    }
+                }
+                _flush();
+            } catch (IOException ex) {
+                synchronized (lock) {
+                    closed = true;
+                }
+                if (listener != null) {
+                    listener.onWriteFailed(ex);
+                }
+                return;
+            }
+            if (accounting != null) {
+                cpuMark = cpuMark == -1 ? accounting.threadCpuNanos()
+                        : accounting.addThreadCpu(SessionAccounting.THREAD_WRITER, cpuMark);
+            }
+
+            // Directions held back during a pause would only skew the latency stats.
+            InputLatencyStats latencyStats = this.latencyStats;
+            if (latencyStats == null || directionSlots == 0) {
+                continue;
+            }
+            long writtenNanos = System.nanoTime();
+            for (int slot = 0; slot < SLOT_COUNT; slot++) {
+                if ((directionSlots & (1 << slot)) != 0 && !batchDirectionHeld[slot]) {
+                    latencyStats.record(batchTouchNanos[slot], batchDispatchNanos[slot],
+                            batchDirectionNanos[slot], writtenNanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Intended to only be used by the writer thread while holding the lock. Runs the pending
+     * directions that aren't held back past the shaper, dropping those it suppresses and holding
+     * back those it delays.
+     *
+     * @return whether any pending direction is ready to be sent.
+     */
+    private boolean _shapeDirections() {
+        long now = System.nanoTime();
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            int bit = 1 << slot;
+            if ((pendingDirectionSlots & bit) == 0) {
+                continue;
+            }
+            if ((heldDirectionSlots & bit) != 0) {
+                if (now - heldUntilNanos[slot] < 0) {
+                    continue;
+                }
+                heldDirectionSlots &= ~bit;
+            }
+            int decision = shaper.offer(slot, pendingDirections[slot], now);
+            if (decision == InputShaper.SUPPRESS) {
+                pendingDirectionSlots &= ~bit;
+            } else if (decision == InputShaper.HOLD) {
+                heldDirectionSlots |= bit;
+                heldUntilNanos[slot] = shaper.getHoldUntilNanos();
+            }
+        }
+        return (pendingDirectionSlots & ~heldDirectionSlots) != 0;
+    }
+
+    /**
+     * Intended to only be used by the writer thread while holding the lock. Returns when the
+     * first of the held back directions is due.
+     */
+    private long _nextHoldExpiry() {
+        long next = 0;
+        boolean found = false;
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            if ((heldDirectionSlots & (1 << slot)) != 0
+                    && (!found || heldUntilNanos[slot] - next < 0)) {
+                next = heldUntilNanos[slot];
+                found = true;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Intended to only be used by the writer thread. Encodes the inputs of one slot as version 2
+     * frames. Since every frame carries the held direction, pause/resume presses taken together
+     * with a direction update share the frame announcing the new direction. Frames announcing a
+     * direction are stamped with the time of the touch event that caused it.
+     */
+    private void _encodeV2(int slot, int direction, long touchNanos, int pauseResumeCount,
+                           long pauseResumeNanos) throws IOException {
+        long timestampNanos = pauseResumeNanos;
+        if (direction != NO_DIRECTION) {
+            heldDirectionActions[slot] = ProtocolV2.actionsForDirection(direction);
+            timestampNanos = touchNanos;
+        }
+        int frameCount = Math.max(direction != NO_DIRECTION ? 1 : 0, pauseResumeCount);
+        for (int i = 0; i < frameCount; i++) {
+            _reserve(ProtocolV2.INPUT_FRAME_LENGTH);
+            int actions = heldDirectionActions[slot] | ProtocolV2.actionsForSlot(slot)
+                    | (i < pauseResumeCount ? ProtocolV2.ACTION_PAUSE_RESUME : 0);
+            bufferLen += ProtocolV2.encodeInput(buffer, bufferLen, sequence,
+                    ProtocolV2.toFrameTimestamp(timestampNanos), actions);
+            sequence = (sequence + 1) & 0xffff;
+            writtenCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Intended to only be used by the writer thread. Flushes the buffer if {@code length} more
+     * bytes wouldn't fit in it.
+     */
+    private void _reserve(int length) throws IOException {
+        if (bufferLen + length > BUFFER_SIZE) {
+            _flush();
+        }
+    }
+
+    /**
+     * Intended to only be used by the writer thread. Appends a version 1 message to the buffer.
+     */
+    private void _append(int data) throws IOException {
+        if (bufferLen == BUFFER_SIZE) {
+            _flush();
+        }
+        buffer[bufferLen++] = (byte) data;
+        writtenCount.incrementAndGet();
+    }
+
+    /**
+     * Intended to only be used by the writer thread. Writes out the buffer and keeps track of how
+     * long the write blocked for.
+     */
+    private void _flush() throws IOException {
+        if (bufferLen == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        out.write(buffer, 0, bufferLen);
+        out.flush();
+        long end = System.nanoTime();
+        long blockedNanos = end - start;
+        TraceBuffer.trace(TraceBuffer.EVENT_WRITE, end, bufferLen);
+        WireTap wireTap = this.wireTap;
+        if (wireTap != null) {
+            wireTap.onBytesWritten(buffer, 0, bufferLen, end);
+        }
+        SessionAccounting accounting = this.accounting;
+        if (accounting != null) {
+            accounting.onWrite(bufferLen);
+        }
+        bufferLen = 0;
+
+        if (blockedNanos > maxWriteBlockNanos) {
+            maxWriteBlockNanos = blockedNanos;
+        }
+        if (blockedNanos > stallThresholdNanos && listener != null) {
+            TraceBuffer.trace(TraceBuffer.EVENT_WRITE_STALL, end,
+                    (int) Math.min(blockedNanos / 1000, Integer.MAX_VALUE));
+            listener.onWriteStalled(blockedNanos);
+        }
+    }
+}
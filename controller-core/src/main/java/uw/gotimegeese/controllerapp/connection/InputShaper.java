@@ -0,0 +1,157 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import java.util.Arrays;
+
+/**
+ * Decides when a player's direction updates are sent, to keep a jittery thumb from flooding the
+ * server. A thumb resting near a diagonal makes the D-Pad flip between two arms, up, right, up,
+ * right, each flip becoming a message the server processes. The shaper applies two limits per
+ * {@code ProtocolV2} slot:
+ * <ul>
+ *     <li>A minimum interval between updates, e.g. one game tick, since the server acts on at most
+ *     one direction per tick anyway.</li>
+ *     <li>A flip window: after a change of direction, changing back to the previous direction is
+ *     held back until the window has passed. If the direction changes yet again in the meantime,
+ *     the flip is suppressed altogether.</li>
+ * </ul>
+ * A change to a new direction is sent right away unless the minimum interval hasn't passed, so
+ * deliberate inputs are not delayed. Held updates are coalesced, and the last one is always sent
+ * once its hold expires, unless it matches what was sent last. Releasing the D-Pad and touching it
+ * again are never treated as flips, so tapping stays responsive.
+ * <p>
+ * Both limits are off by default. The shaper isn't thread-safe; {@code InputSender} only uses it
+ * while holding its lock. The counters may be read from any thread.
+ */
+public class InputShaper {
+
+    /** Returned by {@link #offer} when the update should be sent now. */
+    public static final int SEND_NOW = 0;
+    /** Returned by {@link #offer} when the update should be dropped, since it changes nothing. */
+    public static final int SUPPRESS = 1;
+    /**
+     * Returned by {@link #offer} when the update should be held until
+     * {@link #getHoldUntilNanos()}.
+     */
+    public static final int HOLD = 2;
+
+    /** A minimum interval of one tick of a game running at 60Hz. */
+    public static final long DEFAULT_MIN_INTERVAL_MS = 16;
+    /** Flips back within this long are likely a thumb resting on a diagonal. */
+    public static final long DEFAULT_FLIP_WINDOW_MS = 80;
+
+    private static final int NONE = -1;
+
+    private long minIntervalNanos;
+    private long flipWindowNanos;
+
+    // The last two directions sent per slot, and when the last one was.
+    private final int[] lastSent;
+    private final int[] previousSent;
+    private final long[] lastSentNanos;
+    // The direction held back per slot, if any.
+    private final int[] heldDirection;
+    // Until when the update last offered is to be held, if it is.
+    private long holdUntilNanos;
+
+    private volatile long deliveredCount, deferredCount, suppressedCount;
+
+    public InputShaper(int slotCount) {
+        lastSent = new int[slotCount];
+        previousSent = new int[slotCount];
+        lastSentNanos = new long[slotCount];
+        heldDirection = new int[slotCount];
+        Arrays.fill(lastSent, NONE);
+        Arrays.fill(previousSent, NONE);
+        Arrays.fill(heldDirection, NONE);
+    }
+
+    /**
+     * Sets the limits, in milliseconds. 0 turns a limit off.
+     */
+    public void configure(long minIntervalMs, long flipWindowMs) {
+        minIntervalNanos = minIntervalMs * 1_000_000L;
+        flipWindowNanos = flipWindowMs * 1_000_000L;
+    }
+
+    public boolean isEnabled() {
+        return minIntervalNanos > 0 || flipWindowNanos > 0;
+    }
+
+    /**
+     * Offers the newest direction update ({@code CLIENT_DIR_*}) of a slot.
+     *
+     * @return {@link #SEND_NOW}, in which case the update is taken as sent, {@link #SUPPRESS}, or
+     * {@link #HOLD}, in which case it should be offered again at {@link #getHoldUntilNanos()}
+     * unless a newer one replaced it.
+     */
+    public int offer(int slot, int direction, long nowNanos) {
+        int held = heldDirection[slot];
+        heldDirection[slot] = NONE;
+        if (lastSent[slot] != NONE) {
+            long earliest = lastSentNanos[slot] + minIntervalNanos;
+            if (direction == previousSent[slot] && direction != CLIENT_DIR_NEUTRAL
+                    && lastSent[slot] != CLIENT_DIR_NEUTRAL) {
+                earliest = Math.max(earliest, lastSentNanos[slot] + flipWindowNanos);
+            }
+            if (nowNanos - earliest < 0) {
+                if (direction == lastSent[slot]) {
+                    // Flipped back before we sent anything.
+                    suppressedCount++;
+                    return SUPPRESS;
+                }
+                heldDirection[slot] = direction;
+                holdUntilNanos = earliest;
+                return HOLD;
+            }
+            if (held != NONE && direction == lastSent[slot]) {
+                suppressedCount++;
+                return SUPPRESS;
+            }
+        }
+
+        if (direction == held) {
+            deferredCount++;
+        }
+        if (direction != lastSent[slot]) {
+            previousSent[slot] = lastSent[slot];
+        }
+        lastSent[slot] = direction;
+        lastSentNanos[slot] = nowNanos;
+        deliveredCount++;
+        return SEND_NOW;
+    }
+
+    /**
+     * Returns the {@code System.nanoTime()} until which the update last offered is to be held,
+     * when {@link #offer} returned {@link #HOLD}.
+     */
+    public long getHoldUntilNanos() {
+        return holdUntilNanos;
+    }
+
+    /**
+     * Returns the number of updates sent, including those that were held back first.
+     */
+    public long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     * Returns the number of updates that were held back and then sent. An update replacing a held
+     * one isn't counted unless it was held back itself.
+     */
+    public long getDeferredCount() {
+        return deferredCount;
+    }
+
+    /**
+     * Returns the number of updates dropped because the direction flipped back to the one last
+     * sent while they were held. Updates replaced by a newer one while held are counted by
+     * {@code InputSender.getCoalescedCount()} instead.
+     */
+    public long getSuppressedCount() {
+        return suppressedCount;
+    }
+}
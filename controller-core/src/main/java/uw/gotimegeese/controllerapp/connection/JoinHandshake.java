@@ -0,0 +1,152 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import androidx.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The handshake performed right after connecting to the server.
+ * <p>
+ * The client first sends {@code CLIENT_HELLO_V2} to offer version 2 of the protocol. The server
+ * then sends one byte which is either {@code SERVER_GAME_FULL_RESPONSE} or the player number we
+ * were assigned. Servers accepting version 2 set {@code SERVER_V2_ACCEPTED_FLAG} in that byte;
+ * older servers ignore the hello and reply with the bare player number, in which case we fall back
+ * to version 1.
+ * <p>
+ * Under version 2, the join response is followed by an 8 byte resume token, big-endian. A client
+ * which lost its connection can reclaim its slot by reconnecting and sending
+ * {@code CLIENT_HELLO_RESUME} followed by the token instead of {@code CLIENT_HELLO_V2}. The server
+ * replies exactly as it does to a join: with the player number the token belongs to if the slot is
+ * still held, or with a different one if it isn't, followed by a new token. A token of 0 means the
+ * server doesn't support resuming.
+ */
+public final class JoinHandshake {
+
+    /**
+     * The outcome of a successful handshake.
+     */
+    public static final class Result {
+
+        public final boolean gameFull;
+        public final int playerNumber;
+        public final int protocolVersion;
+
+        /**
+         * The token to reclaim the slot with after a disconnection, or 0 if there is none.
+         */
+        public final long resumeToken;
+
+        private Result(boolean gameFull, int playerNumber, int protocolVersion,
+                       long resumeToken) {
+            this.gameFull = gameFull;
+            this.playerNumber = playerNumber;
+            this.protocolVersion = protocolVersion;
+            this.resumeToken = resumeToken;
+        }
+    }
+
+    public static final int RESUME_TOKEN_LENGTH = 8;
+
+    private JoinHandshake() {}
+
+    /**
+     * Connects the transport and joins the game.
+     *
+     * @param offerV2 whether to offer version 2 of the protocol to the server.
+     */
+    @NonNull
+    public static Result join(@NonNull ControllerTransport transport, boolean offerV2)
+            throws IOException {
+        transport.connect();
+        return handshake(transport, offerV2);
+    }
+
+    /**
+     * Joins the game over a transport which is already connected.
+     *
+     * @param offerV2 whether to offer version 2 of the protocol to the server.
+     */
+    @NonNull
+    public static Result handshake(@NonNull ControllerTransport transport, boolean offerV2)
+            throws IOException {
+        if (offerV2) {
+            transport.getOutputStream().write(CLIENT_HELLO_V2);
+            transport.getOutputStream().flush();
+        }
+        return _readResult(transport.getInputStream(), offerV2);
+    }
+
+    /**
+     * Connects the transport and rejoins the game in the slot {@code resumeToken} was issued for.
+     * Whether the slot was actually reclaimed can be told from the player number in the result.
+     */
+    @NonNull
+    public static Result resume(@NonNull ControllerTransport transport, long resumeToken)
+            throws IOException {
+        transport.connect();
+        byte[] hello = new byte[1 + RESUME_TOKEN_LENGTH];
+        hello[0] = (byte) CLIENT_HELLO_RESUME;
+        for (int i = 0; i < RESUME_TOKEN_LENGTH; i++) {
+            hello[1 + i] = (byte) (resumeToken >>> (8 * (RESUME_TOKEN_LENGTH - 1 - i)));
+        }
+        transport.getOutputStream().write(hello);
+        transport.getOutputStream().flush();
+        return _readResult(transport.getInputStream(), true);
+    }
+
+    /**
+     * Blocks until the server's join response arrives and returns it.
+     *
+     * @throws EOFException if the server closed the connection before responding.
+     */
+    public static int readJoinResponse(@NonNull InputStream in) throws IOException {
+        int readResult = in.read();
+        if (readResult == -1) {
+            throw new EOFException("Connection closed before the server responded to the join");
+        }
+        return readResult;
+    }
+
+    /**
+     * Interprets the byte the server sent in response to the join.
+     *
+     * @param offeredV2 whether we offered version 2 of the protocol to the server.
+     */
+    @NonNull
+    public static Result parseJoinResponse(int response, boolean offeredV2) {
+        if (response == SERVER_GAME_FULL_RESPONSE) {
+            return new Result(true, 0, 0, 0);
+        }
+        if (offeredV2 && (response & SERVER_V2_ACCEPTED_FLAG) != 0) {
+            return new Result(false, response & ~SERVER_V2_ACCEPTED_FLAG, PROTOCOL_V2, 0);
+        }
+        return new Result(false, response, PROTOCOL_V1, 0);
+    }
+
+    /**
+     * Blocks until the resume token following a version 2 join response arrives and returns it.
+     *
+     * @throws EOFException if the server closed the connection before sending the whole token.
+     */
+    public static long readResumeToken(@NonNull InputStream in) throws IOException {
+        long token = 0;
+        for (int i = 0; i < RESUME_TOKEN_LENGTH; i++) {
+            token = (token << 8) | readJoinResponse(in);
+        }
+        return token;
+    }
+
+    @NonNull
+    private static Result _readResult(@NonNull InputStream in, boolean offeredV2)
+            throws IOException {
+        Result result = parseJoinResponse(readJoinResponse(in), offeredV2);
+        if (result.protocolVersion != PROTOCOL_V2) {
+            return result;
+        }
+        return new Result(false, result.playerNumber, PROTOCOL_V2, readResumeToken(in));
+    }
+}
@@ -0,0 +1,193 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import androidx.annotation.NonNull;
+
+import uw.gotimegeese.controllerapp.metrics.TraceBuffer;
+
+/**
+ * Keeps an eye on the health of a {@code ProtocolV2} connection by periodically pinging the server.
+ * From the pongs it measures the round-trip time and its jitter and estimates the offset between
+ * the server's clock and ours the way NTP does. If no pong arrives for a while, the link is
+ * declared dead, which bounds the time it takes to notice a lost connection regardless of whether
+ * a write ever fails.
+ * <p>
+ * Pongs are fed in by whoever reads the connection, typically a {@code ServerMessageReader}. Only
+ * pongs answering a ping that is still outstanding are taken into account; duplicated pongs, and
+ * pongs arriving after the answer to a newer ping, would otherwise be measured against the wrong
+ * ping.
+ */
+public class LinkMonitor {
+
+    public interface Listener {
+
+        /**
+         * Called on the thread that fed the pong whenever a new round-trip measurement is
+         * available.
+         */
+        void onLinkStatsUpdated(@NonNull LinkMonitor monitor);
+
+        /**
+         * Called on the monitor thread when no pong arrived within the dead link timeout. The
+         * monitor stops after this is called.
+         */
+        void onLinkDead();
+    }
+
+    // Number of recent measurements the clock offset is estimated from.
+    private static final int OFFSET_SAMPLES = 8;
+
+    // The sequence number preceding the first ping's. Ping sequence numbers are 16 bit.
+    private static final int NO_SEQUENCE = 0xffff;
+
+    private final InputSender sender;
+    private final Listener listener;
+    private final long pingIntervalMs;
+    private final long deadLinkTimeoutNanos;
+
+    private final Object lock = new Object();
+    private boolean closed;
+    private int nextSequence;
+    private volatile int lastSentSequence = NO_SEQUENCE;
+
+    private volatile long lastPongNanos;
+    private volatile int lastRttMicros, smoothedRttMicros, jitterMicros, clockOffsetMicros;
+    private volatile long pongCount, ignoredPongCount;
+
+    // The following fields are only accessed by the thread feeding the pongs.
+    private int lastAnsweredSequence = NO_SEQUENCE;
+    // Kept in floating point, since the small corrections of the smoothing would otherwise be
+    // rounded towards zero.
+    private float smoothedRtt, jitter;
+    private final int[] recentRtt = new int[OFFSET_SAMPLES];
+    private final int[] recentOffset = new int[OFFSET_SAMPLES];
+    private int recentCount, recentNext;
+
+    /**
+     * Creates a monitor sending its pings through {@code sender} and immediately starts pinging.
+     */
+    public LinkMonitor(@NonNull InputSender sender, @NonNull Listener listener,
+                       long pingIntervalMs, long deadLinkTimeoutMs) {
+        this.sender = sender;
+        this.listener = listener;
+        this.pingIntervalMs = pingIntervalMs;
+        this.deadLinkTimeoutNanos = deadLinkTimeoutMs * 1_000_000L;
+        lastPongNanos = System.nanoTime();
+        Thread thread = new Thread(this::_run, "LinkMonitor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notify();
+        }
+    }
+
+    /**
+     * Feeds a pong received from the server. Must always be called from the same thread.
+     */
+    public void onPong(int sequence, int clientTimeMicros, int serverReceiveTimeMicros,
+                       int serverSendTimeMicros) {
+        // Sequence numbers wrap around, so the pings still outstanding are those sent after the
+        // last one answered, up to the last one sent.
+        int outstanding = (lastSentSequence - lastAnsweredSequence) & 0xffff;
+        int ahead = (sequence - lastAnsweredSequence) & 0xffff;
+        if (ahead == 0 || ahead > outstanding) {
+            ignoredPongCount++;
+            return;
+        }
+        lastAnsweredSequence = sequence;
+
+        int nowMicros = ProtocolV2.toFrameTimestamp(System.nanoTime());
+        lastPongNanos = System.nanoTime();
+
+        // Subtracting wrapped 32 bit timestamps gives the right answer as long as the intervals
+        // involved are shorter than half the wrap-around period, which they are by far.
+        int rtt = (nowMicros - clientTimeMicros) - (serverSendTimeMicros - serverReceiveTimeMicros);
+        if (rtt < 0) {
+            rtt = 0;
+        }
+        TraceBuffer.trace(TraceBuffer.EVENT_PONG, rtt);
+        int offset = (serverReceiveTimeMicros - clientTimeMicros) - rtt / 2;
+
+        // Jitter is smoothed the way RTP does it, over the change between consecutive RTTs.
+        if (pongCount == 0) {
+            smoothedRtt = rtt;
+        } else {
+            int delta = Math.abs(rtt - lastRttMicros);
+            jitter += (delta - jitter) / 16;
+            smoothedRtt += (rtt - smoothedRtt) / 8;
+        }
+        lastRttMicros = rtt;
+        smoothedRttMicros = Math.round(smoothedRtt);
+        jitterMicros = Math.round(jitter);
+
+        // The measurement with the lowest RTT among the recent ones has the least queuing delay
+        // skewing it, so its offset is the most trustworthy.
+        recentRtt[recentNext] = rtt;
+        recentOffset[recentNext] = offset;
+        recentNext = (recentNext + 1) % OFFSET_SAMPLES;
+        recentCount = Math.min(recentCount + 1, OFFSET_SAMPLES);
+        int best = 0;
+        for (int i = 1; i < recentCount; i++) {
+            if (recentRtt[i] < recentRtt[best]) {
+                best = i;
+            }
+        }
+        clockOffsetMicros = recentOffset[best];
+        pongCount++;
+
+        listener.onLinkStatsUpdated(this);
+    }
+
+    public int getLastRttMicros() {
+        return lastRttMicros;
+    }
+
+    public int getSmoothedRttMicros() {
+        return smoothedRttMicros;
+    }
+
+    public int getJitterMicros() {
+        return jitterMicros;
+    }
+
+    /**
+     * Returns the estimated offset of the server's clock relative to ours, modulo 2^32
+     * microseconds. Adding it to one of our frame timestamps gives the corresponding server time.
+     */
+    public int getClockOffsetMicros() {
+        return clockOffsetMicros;
+    }
+
+    public long getPongCount() {
+        return pongCount;
+    }
+
+    /**
+     * Returns the number of pongs ignored because they didn't answer an outstanding ping.
+     */
+    public long getIgnoredPongCount() {
+        return ignoredPongCount;
+    }
+
+    private void _run() {
+        synchronized (lock) {
+            while (!closed) {
+                if (System.nanoTime() - lastPongNanos > deadLinkTimeoutNanos) {
+                    closed = true;
+                    listener.onLinkDead();
+                    return;
+                }
+                // Recorded first, since the pong may arrive before sendPing() returns.
+                lastSentSequence = nextSequence;
+                sender.sendPing(nextSequence);
+                nextSequence = (nextSequence + 1) & 0xffff;
+                try {
+                    lock.wait(pingIntervalMs);
+                } catch (InterruptedException ignored) {}
+            }
+        }
+    }
+}
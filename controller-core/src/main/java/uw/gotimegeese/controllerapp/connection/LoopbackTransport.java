@@ -0,0 +1,79 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An in-process {@code ControllerTransport}. Transports are created in connected pairs with
+ * {@link #createPair(String)}: whatever is written to one end can be read from the other, so one
+ * end can be handed to the controller code while a stand-in server drives the other.
+ */
+public class LoopbackTransport implements ControllerTransport {
+
+    // Roughly the amount of data an RFCOMM socket buffers before writes start blocking.
+    private static final int PIPE_CAPACITY = 4096;
+
+    private final String name;
+    private final BytePipe inbound, outbound;
+    private LoopbackTransport peer;
+
+    private LoopbackTransport(String name, BytePipe inbound, BytePipe outbound) {
+        this.name = name;
+        this.inbound = inbound;
+        this.outbound = outbound;
+    }
+
+    /**
+     * Creates two connected transports. Closing either end closes the connection in both
+     * directions, like a socket would.
+     */
+    @NonNull
+    public static LoopbackTransport createPair(@NonNull String name) {
+        BytePipe a = new BytePipe(PIPE_CAPACITY), b = new BytePipe(PIPE_CAPACITY);
+        LoopbackTransport client = new LoopbackTransport(name, a, b);
+        LoopbackTransport server = new LoopbackTransport(name + " (server end)", b, a);
+        client.peer = server;
+        server.peer = client;
+        return client;
+    }
+
+    /**
+     * Returns the other end of this transport.
+     */
+    @NonNull
+    public LoopbackTransport getPeer() {
+        return peer;
+    }
+
+    @Override
+    public void connect() {
+        // Both ends are connected from the moment they are created.
+    }
+
+    @NonNull
+    @Override
+    public InputStream getInputStream() {
+        return inbound.getInputStream();
+    }
+
+    @NonNull
+    @Override
+    public OutputStream getOutputStream() {
+        return outbound.getOutputStream();
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inbound.close();
+        outbound.close();
+    }
+}
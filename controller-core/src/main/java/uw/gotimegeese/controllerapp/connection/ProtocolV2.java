@@ -0,0 +1,256 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Encoding of version 2 of the controller protocol.
+ * <p>
+ * Version 1 sends one unframed byte per event. Version 2 is negotiated during the join (see
+ * {@code JoinHandshake}) and replaces it with fixed-size input frames:
+ * <pre>
+ *   offset  size  field
+ *   0       1     INPUT_FRAME_MARKER
+ *   1       2     sequence number, big-endian, wraps at 2^16
+ *   3       4     client timestamp in microseconds, big-endian, wraps at 2^32
+ *   7       1     action bitmask (ACTION_* below) and player slot (SLOT_MASK)
+ * </pre>
+ * Every frame carries the direction the user is currently holding (no direction bit set means
+ * neutral), so a server can safely drop frames whose sequence number is older than the newest one
+ * it has seen. {@code ACTION_PAUSE_RESUME} is an event rather than a state and is set in exactly
+ * one frame per button press; servers must honour it even in frames they otherwise consider stale.
+ * The timestamps come from a monotonic clock with an arbitrary origin, so only differences between
+ * them are meaningful.
+ * <p>
+ * To measure the round-trip time and the offset between the two clocks, the client periodically
+ * sends a ping frame, which the server must answer with a pong frame as soon as possible:
+ * <pre>
+ *   ping (client to server)          pong (server to client)
+ *   offset  size  field              offset  size  field
+ *   0       1     PING_FRAME_MARKER  0       1     PONG_FRAME_MARKER
+ *   1       2     sequence number    1       2     sequence number of the ping
+ *   3       4     client send time   3       4     client send time of the ping
+ *                                    7       4     server receive time of the ping
+ *                                    11      4     server send time of the pong
+ * </pre>
+ * All multi-byte fields are big-endian and all times are in microseconds on the sender's own
+ * monotonic clock, wrapping at 2^32.
+ * <p>
+ * Several players may share one connection, e.g. two people playing side by side on a tablet.
+ * The player joined by the handshake has slot 0; the client asks for more with add-player frames,
+ * and the bits under {@code SLOT_MASK} of an input frame tell which slot it is for:
+ * <pre>
+ *   offset  size  field
+ *   0       1     ADD_PLAYER_FRAME_MARKER
+ *   1       1     slot, from 1 to MAX_SLOTS - 1
+ * </pre>
+ * The server answers with an {@code EVENT_PLAYER_ADDED} event. Sequence numbers are shared by all
+ * slots of a connection. Added players belong to the connection rather than to the resume token,
+ * so a client has to add them again after reconnecting. Servers which don't support this skip the
+ * frame like any other unknown bytes, and never answer.
+ * <p>
+ * The server notifies the client of changes in the game with event frames:
+ * <pre>
+ *   offset  size  field
+ *   0       1     EVENT_FRAME_MARKER
+ *   1       1     event type (EVENT_* below)
+ *   2       2     argument, big-endian, meaning depends on the event type
+ * </pre>
+ */
+public final class ProtocolV2 {
+
+    public static final int INPUT_FRAME_MARKER = 0xF1;
+    public static final int INPUT_FRAME_LENGTH = 8;
+
+    public static final int PING_FRAME_MARKER = 0xF2;
+    public static final int PING_FRAME_LENGTH = 7;
+
+    public static final int PONG_FRAME_MARKER = 0xF3;
+    public static final int PONG_FRAME_LENGTH = 15;
+
+    public static final int EVENT_FRAME_MARKER = 0xF4;
+    public static final int EVENT_FRAME_LENGTH = 4;
+
+    public static final int ADD_PLAYER_FRAME_MARKER = 0xF5;
+    public static final int ADD_PLAYER_FRAME_LENGTH = 2;
+
+    // The game ended. The argument is the number of the winning player, or 0 if nobody won.
+    public static final int EVENT_GAME_OVER = 1;
+    // The game was paused or resumed. The argument is 1 if the game is now paused, 0 otherwise.
+    public static final int EVENT_PAUSE_STATE = 2;
+    // A player was eliminated. The argument is the number of the eliminated player.
+    public static final int EVENT_PLAYER_ELIMINATED = 3;
+    // The controller should vibrate. The argument is the duration in milliseconds.
+    public static final int EVENT_VIBRATE = 4;
+    // The answer to an add-player frame. The argument holds the slot in its high byte and the
+    // number of the player added in its low byte, or SERVER_GAME_FULL_RESPONSE if there was no
+    // room for another player.
+    public static final int EVENT_PLAYER_ADDED = 5;
+
+    public static final int ACTION_UP = 1;
+    public static final int ACTION_DOWN = 1 << 1;
+    public static final int ACTION_LEFT = 1 << 2;
+    public static final int ACTION_RIGHT = 1 << 3;
+    public static final int ACTION_PAUSE_RESUME = 1 << 4;
+
+    // The player slot an input frame is for is stored in these bits of the action bitmask.
+    public static final int SLOT_SHIFT = 5;
+    public static final int SLOT_MASK = 0x3 << SLOT_SHIFT;
+    public static final int MAX_SLOTS = 4;
+
+    private static final int DIRECTION_MASK = ACTION_UP | ACTION_DOWN | ACTION_LEFT | ACTION_RIGHT;
+
+    private ProtocolV2() {}
+
+    /**
+     * Writes an input frame into {@code buf} at {@code off}. Does not allocate.
+     *
+     * @return the number of bytes written, always {@code INPUT_FRAME_LENGTH}.
+     */
+    public static int encodeInput(@NonNull byte[] buf, int off, int sequence, int timestampMicros,
+                                  int actions) {
+        buf[off] = (byte) INPUT_FRAME_MARKER;
+        _putShort(buf, off + 1, sequence);
+        _putInt(buf, off + 3, timestampMicros);
+        buf[off + 7] = (byte) actions;
+        return INPUT_FRAME_LENGTH;
+    }
+
+    /**
+     * Writes a ping frame into {@code buf} at {@code off}. Does not allocate.
+     *
+     * @return the number of bytes written, always {@code PING_FRAME_LENGTH}.
+     */
+    public static int encodePing(@NonNull byte[] buf, int off, int sequence,
+                                 int clientTimeMicros) {
+        buf[off] = (byte) PING_FRAME_MARKER;
+        _putShort(buf, off + 1, sequence);
+        _putInt(buf, off + 3, clientTimeMicros);
+        return PING_FRAME_LENGTH;
+    }
+
+    /**
+     * Writes a pong frame into {@code buf} at {@code off}. Meant for servers. Does not allocate.
+     *
+     * @return the number of bytes written, always {@code PONG_FRAME_LENGTH}.
+     */
+    public static int encodePong(@NonNull byte[] buf, int off, int sequence, int clientTimeMicros,
+                                 int serverReceiveTimeMicros, int serverSendTimeMicros) {
+        buf[off] = (byte) PONG_FRAME_MARKER;
+        _putShort(buf, off + 1, sequence);
+        _putInt(buf, off + 3, clientTimeMicros);
+        _putInt(buf, off + 7, serverReceiveTimeMicros);
+        _putInt(buf, off + 11, serverSendTimeMicros);
+        return PONG_FRAME_LENGTH;
+    }
+
+    /**
+     * Writes an event frame into {@code buf} at {@code off}. Meant for servers. Does not allocate.
+     *
+     * @return the number of bytes written, always {@code EVENT_FRAME_LENGTH}.
+     */
+    public static int encodeEvent(@NonNull byte[] buf, int off, int type, int argument) {
+        buf[off] = (byte) EVENT_FRAME_MARKER;
+        buf[off + 1] = (byte) type;
+        _putShort(buf, off + 2, argument);
+        return EVENT_FRAME_LENGTH;
+    }
+
+    /**
+     * Writes an add-player frame into {@code buf} at {@code off}. Does not allocate.
+     *
+     * @return the number of bytes written, always {@code ADD_PLAYER_FRAME_LENGTH}.
+     */
+    public static int encodeAddPlayer(@NonNull byte[] buf, int off, int slot) {
+        buf[off] = (byte) ADD_PLAYER_FRAME_MARKER;
+        buf[off + 1] = (byte) slot;
+        return ADD_PLAYER_FRAME_LENGTH;
+    }
+
+    /**
+     * Returns the player slot an input frame's action bitmask is for.
+     */
+    public static int slotForActions(int actions) {
+        return (actions & SLOT_MASK) >>> SLOT_SHIFT;
+    }
+
+    /**
+     * Returns the bits marking an input frame as being for the given player slot.
+     */
+    public static int actionsForSlot(int slot) {
+        return (slot << SLOT_SHIFT) & SLOT_MASK;
+    }
+
+    /**
+     * Reads a big-endian unsigned 16 bit value.
+     */
+    public static int getShort(@NonNull byte[] buf, int off) {
+        return (buf[off] & 0xff) << 8 | (buf[off + 1] & 0xff);
+    }
+
+    /**
+     * Reads a big-endian 32 bit value.
+     */
+    public static int getInt(@NonNull byte[] buf, int off) {
+        return (buf[off] & 0xff) << 24 | (buf[off + 1] & 0xff) << 16
+                | (buf[off + 2] & 0xff) << 8 | (buf[off + 3] & 0xff);
+    }
+
+    /**
+     * Converts one of the {@code CLIENT_DIR_*} constants to its action bits.
+     */
+    public static int actionsForDirection(int clientDir) {
+        switch (clientDir) {
+            case CLIENT_DIR_UP:
+                return ACTION_UP;
+            case CLIENT_DIR_DOWN:
+                return ACTION_DOWN;
+            case CLIENT_DIR_LEFT:
+                return ACTION_LEFT;
+            case CLIENT_DIR_RIGHT:
+                return ACTION_RIGHT;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Converts the direction bits of an action bitmask back to one of the {@code CLIENT_DIR_*}
+     * constants.
+     */
+    public static int directionForActions(int actions) {
+        switch (actions & DIRECTION_MASK) {
+            case ACTION_UP:
+                return CLIENT_DIR_UP;
+            case ACTION_DOWN:
+                return CLIENT_DIR_DOWN;
+            case ACTION_LEFT:
+                return CLIENT_DIR_LEFT;
+            case ACTION_RIGHT:
+                return CLIENT_DIR_RIGHT;
+            default:
+                return CLIENT_DIR_NEUTRAL;
+        }
+    }
+
+    /**
+     * Returns the given timestamp in nanoseconds, as produced by {@code System.nanoTime()}, in the
+     * units used by input frames.
+     */
+    public static int toFrameTimestamp(long nanos) {
+        return (int) (nanos / 1000);
+    }
+
+    private static void _putShort(byte[] buf, int off, int value) {
+        buf[off] = (byte) (value >>> 8);
+        buf[off + 1] = (byte) value;
+    }
+
+    private static void _putInt(byte[] buf, int off, int value) {
+        buf[off] = (byte) (value >>> 24);
+        buf[off + 1] = (byte) (value >>> 16);
+        buf[off + 2] = (byte) (value >>> 8);
+        buf[off + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,75 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static uw.gotimegeese.controllerapp.connection.ProtocolV2.*;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Decodes the frames the server sends under {@code ProtocolV2}. Bytes can be fed in chunks of any
+ * size; frames split across chunks are reassembled. Does not allocate after construction.
+ */
+public class ServerMessageDecoder {
+
+    public interface Callback {
+
+        void onPong(int sequence, int clientTimeMicros, int serverReceiveTimeMicros,
+                    int serverSendTimeMicros);
+
+        /**
+         * @param type     one of the {@code ProtocolV2.EVENT_*} constants. Unknown types are
+         *                 passed through as well, so that newer servers don't break older
+         *                 clients; they should be ignored.
+         * @param argument the event's argument.
+         */
+        void onServerEvent(int type, int argument);
+    }
+
+    private final byte[] frame = new byte[PONG_FRAME_LENGTH];
+    private int frameLen, expectedLen;
+    private long skippedBytes;
+
+    /**
+     * Decodes {@code len} bytes from {@code buf} starting at {@code off}, invoking the callback
+     * once for every complete frame. Bytes that can't be the start of a frame are skipped.
+     */
+    public void feed(@NonNull byte[] buf, int off, int len, @NonNull Callback callback) {
+        for (int i = off; i < off + len; i++) {
+            byte b = buf[i];
+            if (frameLen == 0) {
+                expectedLen = _frameLength(b & 0xff);
+                if (expectedLen == 0) {
+                    skippedBytes++;
+                    continue;
+                }
+            }
+            frame[frameLen++] = b;
+            if (frameLen == expectedLen) {
+                frameLen = 0;
+                if ((frame[0] & 0xff) == PONG_FRAME_MARKER) {
+                    callback.onPong(getShort(frame, 1), getInt(frame, 3), getInt(frame, 7),
+                            getInt(frame, 11));
+                } else {
+                    callback.onServerEvent(frame[1] & 0xff, getShort(frame, 2));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes discarded so far because they weren't part of a frame.
+     */
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+
+    private static int _frameLength(int marker) {
+        switch (marker) {
+            case PONG_FRAME_MARKER:
+                return PONG_FRAME_LENGTH;
+            case EVENT_FRAME_MARKER:
+                return EVENT_FRAME_LENGTH;
+            default:
+                return 0;
+        }
+    }
+}
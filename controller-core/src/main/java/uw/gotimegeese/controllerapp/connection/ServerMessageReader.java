@@ -0,0 +1,96 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import uw.gotimegeese.controllerapp.metrics.SessionAccounting;
+
+/**
+ * Owns the input stream of the connection to the server once the join is complete and reads it
+ * from a dedicated thread. Under {@code ProtocolV2} the incoming bytes are decoded and passed on to
+ * the listener; under version 1 the server never sends anything after the join, but reading still
+ * tells us promptly when the connection is closed.
+ */
+public class ServerMessageReader {
+
+    public interface Listener extends ServerMessageDecoder.Callback {
+
+        /**
+         * Called on the reader thread when the connection was closed by the server or failed. Not
+         * called if the reader was closed with {@link #close()}.
+         *
+         * @param ex the error that occurred, or {@code null} if the server closed the connection.
+         */
+        void onConnectionClosed(@Nullable IOException ex);
+    }
+
+    private static final int BUFFER_SIZE = 256;
+
+    private final InputStream in;
+    private final int protocolVersion;
+    private final Listener listener;
+    private final ServerMessageDecoder decoder = new ServerMessageDecoder();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private volatile boolean closed;
+    private volatile SessionAccounting accounting;
+
+    /**
+     * Creates a reader for {@code in} and immediately starts its reader thread.
+     */
+    public ServerMessageReader(@NonNull InputStream in, int protocolVersion,
+                               @NonNull Listener listener) {
+        this.in = in;
+        this.protocolVersion = protocolVersion;
+        this.listener = listener;
+        Thread thread = new Thread(this::_run, "ServerMessageReader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops reporting to the listener. The reader thread itself only exits once the underlying
+     * connection is closed.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Sets the accounting the bytes read and the CPU time of the reader thread are charged to, or
+     * {@code null} to stop charging them.
+     */
+    public void setAccounting(@Nullable SessionAccounting accounting) {
+        this.accounting = accounting;
+    }
+
+    private void _run() {
+        IOException error = null;
+        // A reading of this thread's CPU clock, taken when accounting was last updated.
+        long cpuMark = -1;
+        try {
+            int len;
+            while ((len = in.read(buffer)) != -1 && !closed) {
+                if (protocolVersion == PROTOCOL_V2) {
+                    decoder.feed(buffer, 0, len, listener);
+                }
+                SessionAccounting accounting = this.accounting;
+                if (accounting != null) {
+                    accounting.onRead(len);
+                    cpuMark = cpuMark == -1 ? accounting.threadCpuNanos()
+                            : accounting.addThreadCpu(SessionAccounting.THREAD_READER, cpuMark);
+                }
+            }
+        } catch (IOException ex) {
+            error = ex;
+        }
+        if (!closed) {
+            listener.onConnectionClosed(error);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A {@code ControllerTransport} over a plain TCP connection. Useful to talk to a stand-in server
+ * on a development machine that has no Bluetooth radio.
+ */
+public class TcpTransport implements ControllerTransport {
+
+    private final String host;
+    private final int port;
+    private final int connectTimeoutMs;
+    private final Socket socket = new Socket();
+
+    public TcpTransport(@NonNull String host, int port, int connectTimeoutMs) {
+        this.host = host;
+        this.port = port;
+        this.connectTimeoutMs = connectTimeoutMs;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        // Inputs are tiny and latency sensitive, so don't let Nagle's algorithm hold them back.
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+    }
+
+    @NonNull
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return socket.getInputStream();
+    }
+
+    @NonNull
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return socket.getOutputStream();
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+        return host + ":" + port;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
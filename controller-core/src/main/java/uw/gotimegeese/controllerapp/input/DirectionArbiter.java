@@ -0,0 +1,88 @@
+package uw.gotimegeese.controllerapp.input;
+
+import static uw.gotimegeese.controllerapp.input.DirectionClassifier.DIR_NONE;
+
+/**
+ * Merges the directions of several sources steering the same player, e.g. the on-screen D-Pad and
+ * a gamepad, into one. The source which most recently took a direction wins; when it goes back to
+ * {@code DIR_NONE}, the most recent of the sources still holding one takes over. A change is only
+ * reported when the merged direction actually changes, so the same direction coming from two
+ * sources is only sent once.
+ * <p>
+ * Does not allocate after construction. Not thread safe.
+ */
+public class DirectionArbiter {
+
+    private final int[] directions;
+    // The order in which the sources took their current direction, higher being more recent.
+    private final long[] takenAt;
+    private long nextOrder = 1;
+
+    private int direction = DIR_NONE;
+    private long changeTimeNanos;
+    private long duplicateCount;
+
+    /**
+     * @param sourceCount the number of sources, which are identified by an index below it.
+     */
+    public DirectionArbiter(int sourceCount) {
+        directions = new int[sourceCount];
+        takenAt = new long[sourceCount];
+        for (int i = 0; i < sourceCount; i++) {
+            directions[i] = DIR_NONE;
+        }
+    }
+
+    /**
+     * Sets the direction of {@code source} to one of the {@code DirectionClassifier.DIR_*}
+     * constants.
+     *
+     * @param timeNanos when the source changed direction, reported as the change time if the
+     *                  merged direction changes as a result.
+     * @return true if the merged direction changed as a result.
+     */
+    public boolean update(int source, int direction, long timeNanos) {
+        if (directions[source] == direction) {
+            return false;
+        }
+        directions[source] = direction;
+        takenAt[source] = direction != DIR_NONE ? nextOrder++ : 0;
+
+        int newDirection = DIR_NONE;
+        long newest = 0;
+        for (int i = 0; i < directions.length; i++) {
+            if (takenAt[i] > newest) {
+                newest = takenAt[i];
+                newDirection = directions[i];
+            }
+        }
+        if (newDirection == this.direction) {
+            if (direction != DIR_NONE) {
+                duplicateCount++;
+            }
+            return false;
+        }
+        this.direction = newDirection;
+        changeTimeNanos = timeNanos;
+        return true;
+    }
+
+    /**
+     * Returns the merged direction, one of the {@code DirectionClassifier.DIR_*} constants.
+     */
+    public int getDirection() {
+        return direction;
+    }
+
+    public long getChangeTimeNanos() {
+        return changeTimeNanos;
+    }
+
+    /**
+     * Returns the number of times a source took the direction which was already the merged one,
+     * which then wasn't sent again.
+     */
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+}
@@ -0,0 +1,375 @@
+package uw.gotimegeese.controllerapp.input;
+
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import androidx.annotation.NonNull;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Turns the position of the user's finger on a D-Pad into one of four directions. Kept free of
+ * Android classes so that recorded or synthetic touch streams can be replayed through it on the
+ * JVM.
+ * <p>
+ * Samples should be fed in the order they happened, including the historical samples batched into
+ * a single {@code MotionEvent}, so that the moment the finger crossed into a new direction is known
+ * precisely rather than rounded up to the time the batch was delivered.
+ * <p>
+ * Besides the plain classification, the classifier supports:
+ * <ul>
+ *     <li>A dead zone around the center in which the direction doesn't change.</li>
+ *     <li>Hysteresis at the diagonals, so that a finger resting near 45 degrees doesn't make the
+ *     direction flap between two arms.</li>
+ *     <li>Prediction: when the finger moves fast and steadily towards another arm, the direction
+ *     of that arm is reported before the finger actually crosses the boundary. If the finger then
+ *     doesn't follow through, the prediction is corrected.</li>
+ * </ul>
+ */
+public class DirectionClassifier {
+
+    public static final int DIR_NONE = -1;
+    public static final int DIR_DOWN = 0;
+    public static final int DIR_RIGHT = 1;
+    public static final int DIR_UP = 2;
+    public static final int DIR_LEFT = 3;
+
+    // The number of bytes written by writeConfig().
+    public static final int CONFIG_LENGTH = 5 * 4 + 1 + 8 + 4;
+
+    // Number of recent samples the finger's velocity is estimated from.
+    private static final int VELOCITY_SAMPLES = 4;
+
+    // Minimum cosine of the angle between the older and the newer half of the recent movement for
+    // the movement to count as steady enough to extrapolate.
+    private static final float MIN_STEADINESS = 0.8f;
+
+    private float centerX, centerY;
+    private float precisionPx;
+    private float deadZonePx;
+    private float hysteresis;
+
+    private boolean predictionEnabled;
+    private long predictionLookaheadNanos;
+    private float predictionMinSpeedPxPerMs;
+
+    private float touchX = -1, touchY = -1;
+    private int actualDirection = DIR_NONE;
+    private int direction = DIR_NONE;
+    private long changeTimeNanos;
+
+    // Recent samples used to estimate the finger's velocity, as a ring buffer.
+    private final float[] recentX = new float[VELOCITY_SAMPLES];
+    private final float[] recentY = new float[VELOCITY_SAMPLES];
+    private final long[] recentTime = new long[VELOCITY_SAMPLES];
+    private int recentCount, recentNext;
+
+    private int pendingPrediction = DIR_NONE;
+    private long predictedCount, confirmedCount, correctedCount;
+    private long sampleCount, ignoredSampleCount;
+
+    /**
+     * Sets the center of the D-Pad, in the same coordinate space as the samples.
+     */
+    public void setCenter(float centerX, float centerY) {
+        this.centerX = centerX;
+        this.centerY = centerY;
+    }
+
+    /**
+     * Sets the distance by which the finger must move before we consider it to have moved.
+     */
+    public void setPrecision(float precisionPx) {
+        this.precisionPx = precisionPx;
+    }
+
+    /**
+     * Sets the radius around the center within which the direction doesn't change. 0 disables the
+     * dead zone.
+     */
+    public void setDeadZone(float deadZonePx) {
+        this.deadZonePx = deadZonePx;
+    }
+
+    /**
+     * Sets how far past the diagonal the finger must go before the direction switches to the
+     * other axis, as a fraction: to switch from a horizontal to a vertical direction, the vertical
+     * offset must exceed the horizontal one by this fraction, and vice versa. 0 disables the
+     * hysteresis.
+     */
+    public void setHysteresis(float hysteresis) {
+        this.hysteresis = hysteresis;
+    }
+
+    /**
+     * Configures prediction.
+     *
+     * @param lookaheadNanos     how far into the future the finger's movement is extrapolated.
+     * @param minSpeedPxPerMs    the finger must move at least this fast for a prediction to be
+     *                           made.
+     */
+    public void setPrediction(boolean enabled, long lookaheadNanos, float minSpeedPxPerMs) {
+        predictionEnabled = enabled;
+        predictionLookaheadNanos = lookaheadNanos;
+        predictionMinSpeedPxPerMs = minSpeedPxPerMs;
+    }
+
+    /**
+     * Writes the configuration set through the {@code set*()} methods, so that a recorded touch
+     * stream can later be replayed through a classifier configured the same way. Writes
+     * {@link #CONFIG_LENGTH} bytes.
+     */
+    public void writeConfig(@NonNull DataOutput out) throws IOException {
+        out.writeFloat(centerX);
+        out.writeFloat(centerY);
+        out.writeFloat(precisionPx);
+        out.writeFloat(deadZonePx);
+        out.writeFloat(hysteresis);
+        out.writeBoolean(predictionEnabled);
+        out.writeLong(predictionLookaheadNanos);
+        out.writeFloat(predictionMinSpeedPxPerMs);
+    }
+
+    /**
+     * Applies a configuration written by {@link #writeConfig(DataOutput)}.
+     */
+    public void readConfig(@NonNull DataInput in) throws IOException {
+        setCenter(in.readFloat(), in.readFloat());
+        setPrecision(in.readFloat());
+        setDeadZone(in.readFloat());
+        setHysteresis(in.readFloat());
+        boolean enabled = in.readBoolean();
+        setPrediction(enabled, in.readLong(), in.readFloat());
+    }
+
+    /**
+     * Feeds one position of the user's finger.
+     *
+     * @return true if the direction changed as a result.
+     */
+    public boolean onSample(float x, float y, long timeNanos) {
+        _addRecentSample(x, y, timeNanos);
+        sampleCount++;
+
+        // Only handle the change if the we currently don't have a direction or if the user's
+        // finger has moved a significant enough distance to warrant an update.
+        if (direction != DIR_NONE && Math.abs(touchX - x) <= precisionPx
+                && Math.abs(touchY - y) <= precisionPx) {
+            ignoredSampleCount++;
+            return false;
+        }
+        touchX = x;
+        touchY = y;
+
+        // Determine the direction the finger is actually pointing at.
+        float dx = x - centerX, dy = y - centerY;
+        if (!_inDeadZone(dx, dy)) {
+            actualDirection = classify(dx, dy, actualDirection, hysteresis);
+        }
+
+        // See if the finger is about to cross into another direction.
+        int newDirection = actualDirection;
+        if (predictionEnabled) {
+            int predicted = _predict();
+            if (predicted != DIR_NONE) {
+                newDirection = predicted;
+            }
+        }
+
+        // Settle the outcome of an earlier prediction.
+        if (pendingPrediction != DIR_NONE) {
+            if (actualDirection == pendingPrediction) {
+                confirmedCount++;
+                pendingPrediction = DIR_NONE;
+            } else if (newDirection != pendingPrediction) {
+                correctedCount++;
+                pendingPrediction = DIR_NONE;
+            }
+        }
+        if (newDirection != actualDirection && newDirection != direction) {
+            predictedCount++;
+            pendingPrediction = newDirection;
+        }
+
+        return _setDirection(newDirection, timeNanos);
+    }
+
+    /**
+     * Notifies the classifier that the finger left the D-Pad.
+     *
+     * @return true if the direction changed as a result.
+     */
+    public boolean onRelease(long timeNanos) {
+        if (pendingPrediction != DIR_NONE) {
+            correctedCount++;
+            pendingPrediction = DIR_NONE;
+        }
+        recentCount = 0;
+        actualDirection = DIR_NONE;
+        return _setDirection(DIR_NONE, timeNanos);
+    }
+
+    /**
+     * Maps one of the {@code DIR_*} constants to the {@code CLIENT_DIR_*} value sent to the
+     * server.
+     */
+    public static int toClientDirection(int direction) {
+        switch (direction) {
+            case DIR_DOWN:
+                return CLIENT_DIR_DOWN;
+            case DIR_RIGHT:
+                return CLIENT_DIR_RIGHT;
+            case DIR_UP:
+                return CLIENT_DIR_UP;
+            case DIR_LEFT:
+                return CLIENT_DIR_LEFT;
+            default:
+                return CLIENT_DIR_NEUTRAL;
+        }
+    }
+
+    /**
+     * Returns one of the {@code DIR_*} constants.
+     */
+    public int getDirection() {
+        return direction;
+    }
+
+    /**
+     * Returns the timestamp of the sample at which the current direction was first detected.
+     */
+    public long getChangeTimeNanos() {
+        return changeTimeNanos;
+    }
+
+    /**
+     * Returns the number of directions reported before the finger actually reached them.
+     */
+    public long getPredictedCount() {
+        return predictedCount;
+    }
+
+    /**
+     * Returns the number of predictions the finger followed through on.
+     */
+    public long getConfirmedCount() {
+        return confirmedCount;
+    }
+
+    /**
+     * Returns the number of predictions that had to be taken back because the finger didn't follow
+     * through.
+     */
+    public long getCorrectedCount() {
+        return correctedCount;
+    }
+
+    /**
+     * Returns the number of samples fed so far.
+     */
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Returns the number of samples which were ignored because the finger hadn't moved by more
+     * than the precision since the last one handled.
+     */
+    public long getIgnoredSampleCount() {
+        return ignoredSampleCount;
+    }
+
+    /**
+     * Returns the direction for the given offset from the center of the D-Pad.
+     */
+    public static int classify(float dx, float dy) {
+        if (Math.abs(dx) > Math.abs(dy)) {
+            return dx > 0 ? DIR_RIGHT : DIR_LEFT;
+        } else {
+            return dy > 0 ? DIR_DOWN : DIR_UP;
+        }
+    }
+
+    /**
+     * Returns the direction for the given offset from the center of the D-Pad, favouring the axis
+     * of {@code current} by the given hysteresis.
+     */
+    public static int classify(float dx, float dy, int current, float hysteresis) {
+        boolean horizontal;
+        if (current == DIR_LEFT || current == DIR_RIGHT) {
+            horizontal = Math.abs(dy) <= Math.abs(dx) * (1 + hysteresis);
+        } else if (current == DIR_UP || current == DIR_DOWN) {
+            horizontal = Math.abs(dx) > Math.abs(dy) * (1 + hysteresis);
+        } else {
+            return classify(dx, dy);
+        }
+        if (horizontal) {
+            return dx > 0 ? DIR_RIGHT : DIR_LEFT;
+        } else {
+            return dy > 0 ? DIR_DOWN : DIR_UP;
+        }
+    }
+
+    private boolean _inDeadZone(float dx, float dy) {
+        return deadZonePx > 0 && dx * dx + dy * dy < deadZonePx * deadZonePx;
+    }
+
+    private void _addRecentSample(float x, float y, long timeNanos) {
+        recentX[recentNext] = x;
+        recentY[recentNext] = y;
+        recentTime[recentNext] = timeNanos;
+        recentNext = (recentNext + 1) % VELOCITY_SAMPLES;
+        recentCount = Math.min(recentCount + 1, VELOCITY_SAMPLES);
+    }
+
+    /**
+     * Extrapolates the finger's recent movement and returns the direction it is about to cross
+     * into, or {@code DIR_NONE} if there is no confident prediction of a change.
+     */
+    private int _predict() {
+        if (recentCount < 3) {
+            return DIR_NONE;
+        }
+        int newest = (recentNext + VELOCITY_SAMPLES - 1) % VELOCITY_SAMPLES;
+        int oldest = (recentNext + VELOCITY_SAMPLES - recentCount) % VELOCITY_SAMPLES;
+        int middle = (oldest + (recentCount - 1) / 2) % VELOCITY_SAMPLES;
+        long dt = recentTime[newest] - recentTime[oldest];
+        if (dt <= 0) {
+            return DIR_NONE;
+        }
+
+        // The finger must be moving fast enough...
+        float vx = (recentX[newest] - recentX[oldest]) / dt;
+        float vy = (recentY[newest] - recentY[oldest]) / dt;
+        float speedPxPerMs = (float) Math.sqrt(vx * vx + vy * vy) * 1_000_000;
+        if (speedPxPerMs < predictionMinSpeedPxPerMs) {
+            return DIR_NONE;
+        }
+
+        // ...and steadily, i.e. the older and newer halves of the movement must roughly agree.
+        float ax = recentX[middle] - recentX[oldest], ay = recentY[middle] - recentY[oldest];
+        float bx = recentX[newest] - recentX[middle], by = recentY[newest] - recentY[middle];
+        double lengths = Math.sqrt((ax * ax + ay * ay) * (bx * bx + by * by));
+        if (lengths == 0 || (ax * bx + ay * by) / lengths < MIN_STEADINESS) {
+            return DIR_NONE;
+        }
+
+        float px = recentX[newest] + vx * predictionLookaheadNanos - centerX;
+        float py = recentY[newest] + vy * predictionLookaheadNanos - centerY;
+        if (_inDeadZone(px, py)) {
+            return DIR_NONE;
+        }
+        int predicted = classify(px, py, actualDirection, hysteresis);
+        return predicted != actualDirection ? predicted : DIR_NONE;
+    }
+
+    private boolean _setDirection(int newDirection, long timeNanos) {
+        if (newDirection == direction) {
+            return false;
+        }
+        direction = newDirection;
+        changeTimeNanos = timeNanos;
+        return true;
+    }
+}
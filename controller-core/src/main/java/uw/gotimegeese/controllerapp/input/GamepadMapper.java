@@ -0,0 +1,134 @@
+package uw.gotimegeese.controllerapp.input;
+
+import static uw.gotimegeese.controllerapp.input.DirectionClassifier.*;
+
+/**
+ * Turns the state of a physical gamepad or keyboard into one of the {@code DirectionClassifier}
+ * directions. Kept free of Android classes: the caller maps key codes to the {@code BUTTON_*}
+ * constants and reads the axes out of the motion events, which keeps this testable with synthetic
+ * events on the JVM.
+ * <p>
+ * Gamepads steer in three ways, merged like separate sources by a {@code DirectionArbiter}:
+ * <ul>
+ *     <li>Direction buttons, on keyboards and on pads reporting their D-Pad as keys. The most
+ *     recently pressed of the buttons held wins.</li>
+ *     <li>The hat, which most pads report their D-Pad as. It only ever reads -1, 0 or 1.</li>
+ *     <li>The analog stick, which is ignored within a dead zone around its center. Once out of
+ *     it, the stick has to come back below a smaller radius to return to neutral, so that it
+ *     doesn't flap at the edge, and crossing a diagonal has hysteresis, as in
+ *     {@code DirectionClassifier}.</li>
+ * </ul>
+ * Axes are in the range [-1, 1], with y pointing down as on Android. Does not allocate after
+ * construction. Not thread safe.
+ */
+public class GamepadMapper {
+
+    public static final int BUTTON_UP = 0;
+    public static final int BUTTON_DOWN = 1;
+    public static final int BUTTON_LEFT = 2;
+    public static final int BUTTON_RIGHT = 3;
+
+    public static final float DEFAULT_DEAD_ZONE = 0.25f;
+    // The stick returns to neutral below this fraction of the dead zone.
+    private static final float RELEASE_RATIO = 0.75f;
+    private static final float DIAGONAL_HYSTERESIS = 0.2f;
+
+    private static final int SOURCE_BUTTONS = 0;
+    private static final int SOURCE_HAT = 1;
+    private static final int SOURCE_STICK = 2;
+
+    private static final int[] BUTTON_DIRECTIONS = {DIR_UP, DIR_DOWN, DIR_LEFT, DIR_RIGHT};
+
+    private final DirectionArbiter arbiter = new DirectionArbiter(3);
+    // The order in which the held buttons were pressed, 0 for those which aren't.
+    private final long[] pressedAt = new long[BUTTON_DIRECTIONS.length];
+    private long nextOrder = 1;
+    private int stickDirection = DIR_NONE;
+    private float deadZone = DEFAULT_DEAD_ZONE;
+
+    /**
+     * Sets the radius around the analog stick's center within which it doesn't steer. Should be no
+     * smaller than the flat range the device reports.
+     */
+    public void setDeadZone(float deadZone) {
+        this.deadZone = deadZone;
+    }
+
+    /**
+     * Feeds a press or release of one of the {@code BUTTON_*} buttons.
+     *
+     * @return true if the direction changed as a result.
+     */
+    public boolean onButton(int button, boolean pressed, long timeNanos) {
+        if (pressed) {
+            if (pressedAt[button] != 0) {
+                // A key repeat.
+                return false;
+            }
+            pressedAt[button] = nextOrder++;
+        } else {
+            pressedAt[button] = 0;
+        }
+        int direction = DIR_NONE;
+        long newest = 0;
+        for (int i = 0; i < pressedAt.length; i++) {
+            if (pressedAt[i] > newest) {
+                newest = pressedAt[i];
+                direction = BUTTON_DIRECTIONS[i];
+            }
+        }
+        return arbiter.update(SOURCE_BUTTONS, direction, timeNanos);
+    }
+
+    /**
+     * Feeds one reading of the hat and the analog stick.
+     *
+     * @return true if the direction changed as a result.
+     */
+    public boolean onAxes(float hatX, float hatY, float stickX, float stickY, long timeNanos) {
+        int hatDirection = Math.abs(hatX) > 0.5f || Math.abs(hatY) > 0.5f
+                ? classify(hatX, hatY) : DIR_NONE;
+        boolean changed = arbiter.update(SOURCE_HAT, hatDirection, timeNanos);
+
+        float magnitudeSq = stickX * stickX + stickY * stickY;
+        if (stickDirection == DIR_NONE) {
+            if (magnitudeSq > deadZone * deadZone) {
+                stickDirection = classify(stickX, stickY);
+            }
+        } else {
+            float releaseRadius = deadZone * RELEASE_RATIO;
+            stickDirection = magnitudeSq < releaseRadius * releaseRadius ? DIR_NONE
+                    : classify(stickX, stickY, stickDirection, DIAGONAL_HYSTERESIS);
+        }
+        return arbiter.update(SOURCE_STICK, stickDirection, timeNanos) || changed;
+    }
+
+    /**
+     * Releases every button and centers the axes, e.g. when the gamepad is disconnected.
+     *
+     * @return true if the direction changed as a result.
+     */
+    public boolean reset(long timeNanos) {
+        for (int i = 0; i < pressedAt.length; i++) {
+            pressedAt[i] = 0;
+        }
+        stickDirection = DIR_NONE;
+        boolean changed = arbiter.update(SOURCE_BUTTONS, DIR_NONE, timeNanos);
+        changed |= arbiter.update(SOURCE_HAT, DIR_NONE, timeNanos);
+        return arbiter.update(SOURCE_STICK, DIR_NONE, timeNanos) || changed;
+    }
+
+    /**
+     * Returns one of the {@code DirectionClassifier.DIR_*} constants.
+     */
+    public int getDirection() {
+        return arbiter.getDirection();
+    }
+
+    /**
+     * Returns the timestamp of the event at which the current direction was taken.
+     */
+    public long getChangeTimeNanos() {
+        return arbiter.getChangeTimeNanos();
+    }
+}
@@ -0,0 +1,347 @@
+package uw.gotimegeese.controllerapp.input;
+
+import static uw.gotimegeese.controllerapp.input.InputRecording.*;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uw.gotimegeese.controllerapp.connection.InputSender;
+
+/**
+ * Records an input session in the format described by {@code InputRecording}: the D-Pad's
+ * configuration, the touch samples fed to its classifier, the directions it reported and the
+ * bytes written to the server.
+ * <p>
+ * Recording must not slow down the input path, so records are appended to an in-memory buffer
+ * under a short lock and written to disk by a background thread, about once a second or as soon as
+ * the buffer is half full. Should the disk fall behind, records are dropped rather than waited
+ * for. The recording is bounded: once the current segment reaches half of the maximum size it
+ * replaces the previous segment and a new one is started, so at least the last half of the
+ * maximum size worth of input is always kept.
+ */
+public class InputRecorder implements InputSender.WireTap, Closeable {
+
+    // Size of each of the two buffers records are appended to.
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    // How often the buffer is written out if it doesn't fill up.
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    // Upper bound on the size of a record without its payload: a type and a 64-bit varint.
+    private static final int MAX_RECORD_OVERHEAD = 1 + 10;
+
+    private final File dir;
+    private final int segmentLimit;
+
+    private final Object lock = new Object();
+    private final Thread thread;
+
+    // The following fields are guarded by lock. The buffer records are appended to is handed over
+    // to the writer thread whole, and the spare one, which the writer thread is done with by then,
+    // takes its place.
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private byte[] spareBuffer = new byte[BUFFER_SIZE];
+    private int bufferLen;
+    private int rotateAt = -1;
+    private long lastTimeNanos;
+    private int segmentLen;
+    private final byte[] lastConfig = new byte[DirectionClassifier.CONFIG_LENGTH];
+    private boolean hasConfig;
+    private boolean closed;
+
+    // Only accessed by the writer thread.
+    private FileOutputStream out;
+
+    private final AtomicLong recordedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile IOException failure;
+
+    // Reused for encoding the classifier's configuration.
+    private final ByteArrayOutputStream configBytes =
+            new ByteArrayOutputStream(DirectionClassifier.CONFIG_LENGTH);
+    private final DataOutputStream configOut = new DataOutputStream(configBytes);
+
+    /**
+     * Starts a new recording in {@code dir}, replacing any recording already there, and starts
+     * the recorder's writer thread.
+     *
+     * @param maxBytes the maximum size of the recording on disk, at least 64 KiB.
+     * @throws IOException if the recording can't be created.
+     */
+    public InputRecorder(@NonNull File dir, int maxBytes) throws IOException {
+        // A segment must span at least two buffers, so that a buffer holds at most one rotation.
+        if (maxBytes < 4 * BUFFER_SIZE) {
+            throw new IllegalArgumentException("maxBytes too small: " + maxBytes);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        this.dir = dir;
+        this.segmentLimit = maxBytes / 2;
+
+        File previous = new File(dir, PREVIOUS_SEGMENT);
+        if (previous.exists() && !previous.delete()) {
+            throw new IOException("Can't delete " + previous);
+        }
+        out = new FileOutputStream(new File(dir, CURRENT_SEGMENT));
+        _putHeader(System.nanoTime());
+
+        thread = new Thread(this::_run, "InputRecorder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Records the configuration of the classifier the following samples are fed to. Must be
+     * called before the first sample and whenever the configuration changes.
+     */
+    public void recordConfig(@NonNull DirectionClassifier classifier) {
+        synchronized (lock) {
+            configBytes.reset();
+            try {
+                classifier.writeConfig(configOut);
+            } catch (IOException ex) {
+                // Not thrown by a ByteArrayOutputStream.
+                throw new AssertionError(ex);
+            }
+            byte[] config = configBytes.toByteArray();
+            System.arraycopy(config, 0, lastConfig, 0, config.length);
+            hasConfig = true;
+            if (_begin(RECORD_CONFIG, System.nanoTime(), config.length)) {
+                System.arraycopy(config, 0, buffer, bufferLen, config.length);
+                bufferLen += config.length;
+            }
+        }
+    }
+
+    /**
+     * Records a position of the finger fed to the classifier.
+     */
+    public void recordSample(float x, float y, long timeNanos) {
+        synchronized (lock) {
+            if (_begin(RECORD_SAMPLE, timeNanos, 8)) {
+                _putInt(Float.floatToIntBits(x));
+                _putInt(Float.floatToIntBits(y));
+            }
+        }
+    }
+
+    /**
+     * Records the finger being lifted.
+     */
+    public void recordRelease(long timeNanos) {
+        synchronized (lock) {
+            _begin(RECORD_RELEASE, timeNanos, 0);
+        }
+    }
+
+    /**
+     * Records a direction ({@code DirectionClassifier.DIR_*}) reported by the classifier.
+     */
+    public void recordDirection(int direction, long timeNanos) {
+        synchronized (lock) {
+            if (_begin(RECORD_DIRECTION, timeNanos, 1)) {
+                buffer[bufferLen++] = (byte) direction;
+            }
+        }
+    }
+
+    /**
+     * Records the bytes written to the server.
+     */
+    @Override
+    public void onBytesWritten(@NonNull byte[] buf, int off, int len, long timeNanos) {
+        synchronized (lock) {
+            if (_begin(RECORD_SENT, timeNanos, 5 + len)) {
+                _putVarint(len);
+                System.arraycopy(buf, off, buffer, bufferLen, len);
+                bufferLen += len;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of records appended so far, including those not written to disk yet.
+     */
+    public long getRecordedCount() {
+        return recordedCount.get();
+    }
+
+    /**
+     * Returns the number of records dropped because the disk fell behind or failed.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Stops recording, writes out what was recorded and waits for the writer thread to finish.
+     *
+     * @throws IOException if writing the recording failed at any point.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Intended to only be used while holding the lock. Starts a record of at most
+     * {@code maxPayload} bytes, starting a new segment first if the current one is full. A new
+     * segment repeats the last configuration, so that it can be replayed without the previous one.
+     *
+     * @return whether there was room for the record; if not, it is counted as dropped.
+     */
+    private boolean _begin(int type, long timeNanos, int maxPayload) {
+        int maxLength = MAX_RECORD_OVERHEAD + maxPayload;
+        boolean rotate = segmentLen + maxLength > segmentLimit;
+        int configLength = 2 + lastConfig.length;
+        int needed = maxLength + (rotate ? HEADER_LENGTH + configLength : 0);
+        if (closed || failure != null || bufferLen + needed > BUFFER_SIZE || (rotate
+                && rotateAt != -1)) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        if (rotate) {
+            rotateAt = bufferLen;
+            segmentLen = 0;
+            _putHeader(timeNanos);
+            if (hasConfig) {
+                buffer[bufferLen++] = RECORD_CONFIG;
+                buffer[bufferLen++] = 0;
+                System.arraycopy(lastConfig, 0, buffer, bufferLen, lastConfig.length);
+                bufferLen += lastConfig.length;
+                segmentLen += configLength;
+            }
+        }
+
+        int start = bufferLen;
+        buffer[bufferLen++] = (byte) type;
+        long delta = timeNanos - lastTimeNanos;
+        _putVarint((delta << 1) ^ (delta >> 63));
+        lastTimeNanos = timeNanos;
+        // The payload is yet to be appended, but it never exceeds maxPayload.
+        segmentLen += bufferLen - start + maxPayload;
+        recordedCount.incrementAndGet();
+
+        if (bufferLen >= BUFFER_SIZE / 2) {
+            lock.notifyAll();
+        }
+        return true;
+    }
+
+    private void _putHeader(long baseNanos) {
+        _putInt(MAGIC);
+        buffer[bufferLen++] = FORMAT_VERSION;
+        _putInt((int) (baseNanos >>> 32));
+        _putInt((int) baseNanos);
+        lastTimeNanos = baseNanos;
+        segmentLen += HEADER_LENGTH;
+    }
+
+    private void _putInt(int value) {
+        buffer[bufferLen++] = (byte) (value >>> 24);
+        buffer[bufferLen++] = (byte) (value >>> 16);
+        buffer[bufferLen++] = (byte) (value >>> 8);
+        buffer[bufferLen++] = (byte) value;
+    }
+
+    private void _putVarint(long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer[bufferLen++] = (byte) (value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        buffer[bufferLen++] = (byte) value;
+    }
+
+    private void _run() {
+        while (true) {
+            byte[] data;
+            int len, rotation;
+            boolean last;
+
+            // Wait for the buffer to fill up or the flush interval to pass, then take it over.
+            synchronized (lock) {
+                long deadline = System.currentTimeMillis() + FLUSH_INTERVAL_MS;
+                long remaining;
+                while (!closed && bufferLen < BUFFER_SIZE / 2
+                        && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    try {
+                        lock.wait(remaining);
+                    } catch (InterruptedException ignored) {}
+                }
+                data = buffer;
+                len = bufferLen;
+                rotation = rotateAt;
+                last = closed;
+                buffer = spareBuffer;
+                spareBuffer = data;
+                bufferLen = 0;
+                rotateAt = -1;
+            }
+
+            if (failure == null) {
+                try {
+                    _write(data, len, rotation);
+                } catch (IOException ex) {
+                    failure = ex;
+                }
+            }
+
+            if (last) {
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    if (failure == null) {
+                        failure = ex;
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Intended to only be used by the writer thread. Writes out a buffer, moving on to a new
+     * segment at {@code rotation} unless it is -1.
+     */
+    private void _write(@NonNull byte[] data, int len, int rotation) throws IOException {
+        if (rotation == -1) {
+            out.write(data, 0, len);
+            return;
+        }
+        out.write(data, 0, rotation);
+        out.close();
+        File current = new File(dir, CURRENT_SEGMENT);
+        File previous = new File(dir, PREVIOUS_SEGMENT);
+        if (previous.exists() && !previous.delete() || !current.renameTo(previous)) {
+            throw new IOException("Can't rotate " + current);
+        }
+        out = new FileOutputStream(current);
+        out.write(data, rotation, len - rotation);
+    }
+}
@@ -0,0 +1,263 @@
+package uw.gotimegeese.controllerapp.input;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * A recorded input session as written by {@code InputRecorder}, read back into memory.
+ * <p>
+ * A recording is a directory holding up to two segments, the previous one and the current one,
+ * which are replayed in that order. Each segment is a header followed by records:
+ * <pre>
+ *   header                           record
+ *   offset  size  field              size  field
+ *   0       4     MAGIC              1     record type (RECORD_* below)
+ *   4       1     FORMAT_VERSION     1-10  time since the previous record in nanoseconds,
+ *   5       8     base time, ns                zigzag varint (may be negative)
+ *                                    ...   payload, depending on the type
+ * </pre>
+ * The time of the first record of a segment is relative to the segment's base time. All times are
+ * in the time base of {@code System.nanoTime()}. Payloads:
+ * <ul>
+ *     <li>{@code RECORD_CONFIG}: the classifier's configuration, see
+ *     {@code DirectionClassifier.writeConfig()}.</li>
+ *     <li>{@code RECORD_SAMPLE}: the x and y coordinates of the finger as two big-endian floats.
+ *     </li>
+ *     <li>{@code RECORD_RELEASE}: nothing.</li>
+ *     <li>{@code RECORD_DIRECTION}: the direction reported, one signed byte
+ *     ({@code DirectionClassifier.DIR_*}).</li>
+ *     <li>{@code RECORD_SENT}: the bytes written to the connection, a varint length followed by
+ *     the bytes.</li>
+ * </ul>
+ * A segment cut short by a crash is read up to its last complete record.
+ */
+public final class InputRecording {
+
+    public static final int RECORD_CONFIG = 1;
+    public static final int RECORD_SAMPLE = 2;
+    public static final int RECORD_RELEASE = 3;
+    public static final int RECORD_DIRECTION = 4;
+    public static final int RECORD_SENT = 5;
+
+    static final int MAGIC = 0x47474952;
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_LENGTH = 4 + 1 + 8;
+
+    static final String CURRENT_SEGMENT = "input.rec";
+    static final String PREVIOUS_SEGMENT = "input.rec.1";
+
+    // The records, in parallel arrays. Payloads of config and sent records live in payload, at
+    // the offset stored in ints.
+    private int count;
+    private byte[] types = new byte[256];
+    private long[] timesNanos = new long[256];
+    private float[] xs = new float[256], ys = new float[256];
+    private int[] ints = new int[256], lengths = new int[256];
+    private byte[] payload = new byte[1024];
+    private int payloadLength;
+
+    private InputRecording() {}
+
+    /**
+     * Reads the recording in {@code dir}. A missing directory reads as an empty recording.
+     *
+     * @throws IOException if a segment can't be read or isn't a recording.
+     */
+    @NonNull
+    public static InputRecording read(@NonNull File dir) throws IOException {
+        InputRecording recording = new InputRecording();
+        for (String name : new String[] {PREVIOUS_SEGMENT, CURRENT_SEGMENT}) {
+            File file = new File(dir, name);
+            if (file.exists()) {
+                try (InputStream in = new FileInputStream(file)) {
+                    recording._readSegment(_readAll(in));
+                }
+            }
+        }
+        return recording;
+    }
+
+    /**
+     * Reads a recording from the bytes of its segments, in the order they were written.
+     */
+    @NonNull
+    public static InputRecording read(@NonNull byte[]... segments) throws IOException {
+        InputRecording recording = new InputRecording();
+        for (byte[] segment : segments) {
+            recording._readSegment(segment);
+        }
+        return recording;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns one of the {@code RECORD_*} constants.
+     */
+    public int getType(int index) {
+        return types[index];
+    }
+
+    public long getTimeNanos(int index) {
+        return timesNanos[index];
+    }
+
+    public float getX(int index) {
+        return xs[index];
+    }
+
+    public float getY(int index) {
+        return ys[index];
+    }
+
+    /**
+     * Returns the direction of a {@code RECORD_DIRECTION} record.
+     */
+    public int getDirection(int index) {
+        return ints[index];
+    }
+
+    /**
+     * Applies the configuration of a {@code RECORD_CONFIG} record to the classifier.
+     */
+    public void applyConfig(int index, @NonNull DirectionClassifier classifier) throws IOException {
+        classifier.readConfig(new DataInputStream(
+                new ByteArrayInputStream(payload, ints[index], lengths[index])));
+    }
+
+    /**
+     * Returns the number of bytes of a {@code RECORD_SENT} record.
+     */
+    public int getSentLength(int index) {
+        return lengths[index];
+    }
+
+    /**
+     * Copies the bytes of a {@code RECORD_SENT} record into {@code buf} at {@code off}.
+     */
+    public void getSentBytes(int index, @NonNull byte[] buf, int off) {
+        System.arraycopy(payload, ints[index], buf, off, lengths[index]);
+    }
+
+    private void _readSegment(@NonNull byte[] data) throws IOException {
+        if (data.length < HEADER_LENGTH || _getInt(data, 0) != MAGIC) {
+            throw new IOException("Not an input recording");
+        }
+        if (data[4] != FORMAT_VERSION) {
+            throw new IOException("Unsupported recording version " + data[4]);
+        }
+        long time = (long) _getInt(data, 5) << 32 | (_getInt(data, 9) & 0xffffffffL);
+        int[] pos = {HEADER_LENGTH};
+        while (pos[0] < data.length) {
+            int start = pos[0];
+            try {
+                int type = data[pos[0]++];
+                long zigzag = _readVarint(data, pos);
+                time += (zigzag >>> 1) ^ -(zigzag & 1);
+                _ensureCapacity();
+                types[count] = (byte) type;
+                timesNanos[count] = time;
+                switch (type) {
+                    case RECORD_SAMPLE:
+                        _check(data, pos[0] + 8);
+                        xs[count] = Float.intBitsToFloat(_getInt(data, pos[0]));
+                        ys[count] = Float.intBitsToFloat(_getInt(data, pos[0] + 4));
+                        pos[0] += 8;
+                        break;
+                    case RECORD_RELEASE:
+                        break;
+                    case RECORD_DIRECTION:
+                        _check(data, pos[0] + 1);
+                        ints[count] = data[pos[0]++];
+                        break;
+                    case RECORD_CONFIG:
+                    case RECORD_SENT: {
+                        int length = type == RECORD_CONFIG ? DirectionClassifier.CONFIG_LENGTH
+                                : (int) _readVarint(data, pos);
+                        _check(data, pos[0] + length);
+                        _appendPayload(data, pos[0], length);
+                        pos[0] += length;
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown record type " + type + " at " + start);
+                }
+                count++;
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                // The last record was only partially written.
+                return;
+            }
+        }
+    }
+
+    private void _appendPayload(@NonNull byte[] data, int off, int length) {
+        if (payloadLength + length > payload.length) {
+            payload = Arrays.copyOf(payload, Math.max(payload.length * 2, payloadLength + length));
+        }
+        System.arraycopy(data, off, payload, payloadLength, length);
+        ints[count] = payloadLength;
+        lengths[count] = length;
+        payloadLength += length;
+    }
+
+    private void _ensureCapacity() {
+        if (count < types.length) {
+            return;
+        }
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        timesNanos = Arrays.copyOf(timesNanos, capacity);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        ints = Arrays.copyOf(ints, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+    }
+
+    /**
+     * Throws if fewer than {@code end} bytes are available, i.e. the record is cut short.
+     */
+    private static void _check(@NonNull byte[] data, int end) {
+        if (end > data.length) {
+            throw new ArrayIndexOutOfBoundsException(end);
+        }
+    }
+
+    private static long _readVarint(@NonNull byte[] data, @NonNull int[] pos) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = data[pos[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int _getInt(@NonNull byte[] data, int off) {
+        return (data[off] & 0xff) << 24 | (data[off + 1] & 0xff) << 16
+                | (data[off + 2] & 0xff) << 8 | (data[off + 3] & 0xff);
+    }
+
+    @NonNull
+    private static byte[] _readAll(@NonNull InputStream in) throws IOException {
+        byte[] buf = new byte[8192];
+        int len = 0, n;
+        while ((n = in.read(buf, len, buf.length - len)) != -1) {
+            len += n;
+            if (len == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+        }
+        return Arrays.copyOf(buf, len);
+    }
+}
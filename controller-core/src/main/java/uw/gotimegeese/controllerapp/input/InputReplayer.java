@@ -0,0 +1,146 @@
+package uw.gotimegeese.controllerapp.input;
+
+import static uw.gotimegeese.controllerapp.input.InputRecording.*;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Plays an {@code InputRecording} back, either through a classifier to reproduce the directions
+ * it reported, or onto a connection to reproduce what was sent to the server.
+ */
+public final class InputReplayer {
+
+    public interface DirectionListener {
+
+        /**
+         * Called for every change of direction ({@code DirectionClassifier.DIR_*}) during the
+         * replay.
+         */
+        void onDirectionChanged(int direction, long timeNanos);
+    }
+
+    private InputReplayer() {}
+
+    /**
+     * Feeds the recorded touch samples through {@code classifier}, configured as it was when they
+     * were recorded, and reports the changes of direction that result. Given the same recording,
+     * a classifier reports the same directions at the same times, so comparing them to the
+     * recorded ones (see {@link #countMismatches}) shows whether the classifier's behavior changed.
+     *
+     * @return the number of changes of direction.
+     */
+    public static int replayDirections(@NonNull InputRecording recording,
+                                       @NonNull DirectionClassifier classifier,
+                                       @Nullable DirectionListener listener) throws IOException {
+        int changes = 0;
+        for (int i = 0; i < recording.size(); i++) {
+            long timeNanos = recording.getTimeNanos(i);
+            boolean changed;
+            switch (recording.getType(i)) {
+                case RECORD_CONFIG:
+                    recording.applyConfig(i, classifier);
+                    continue;
+                case RECORD_SAMPLE:
+                    changed = classifier.onSample(recording.getX(i), recording.getY(i),
+                            timeNanos);
+                    break;
+                case RECORD_RELEASE:
+                    changed = classifier.onRelease(timeNanos);
+                    break;
+                default:
+                    continue;
+            }
+            if (changed) {
+                changes++;
+                if (listener != null) {
+                    listener.onDirectionChanged(classifier.getDirection(),
+                            classifier.getChangeTimeNanos());
+                }
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Replays the recording through a fresh classifier and counts the recorded directions that
+     * differ from the replayed ones, either in value or in time, plus any surplus on either side.
+     * A recording whose oldest segment was dropped starts in the middle of the session, so a touch
+     * in progress at that point may not replay exactly.
+     */
+    public static int countMismatches(@NonNull InputRecording recording) throws IOException {
+        int[] mismatches = {0};
+        // Recorded direction records, walked in step with the replayed changes.
+        int[] next = {_nextDirection(recording, 0)};
+        replayDirections(recording, new DirectionClassifier(), (direction, timeNanos) -> {
+            int i = next[0];
+            if (i == -1 || recording.getDirection(i) != direction
+                    || recording.getTimeNanos(i) != timeNanos) {
+                mismatches[0]++;
+            }
+            if (i != -1) {
+                next[0] = _nextDirection(recording, i + 1);
+            }
+        });
+        while (next[0] != -1) {
+            mismatches[0]++;
+            next[0] = _nextDirection(recording, next[0] + 1);
+        }
+        return mismatches[0];
+    }
+
+    /**
+     * Writes the recorded bytes that were sent to the server to {@code out}, e.g. a connection to
+     * a test server.
+     *
+     * @param realTime whether to keep the original time between writes, rather than writing
+     *                 everything as fast as possible.
+     * @return the number of bytes written.
+     */
+    public static long replaySent(@NonNull InputRecording recording, @NonNull OutputStream out,
+                                  boolean realTime) throws IOException, InterruptedException {
+        byte[] buf = new byte[256];
+        long written = 0;
+        long firstRecordedNanos = 0, startNanos = 0;
+        boolean started = false;
+        for (int i = 0; i < recording.size(); i++) {
+            if (recording.getType(i) != RECORD_SENT) {
+                continue;
+            }
+            if (realTime) {
+                long recordedNanos = recording.getTimeNanos(i);
+                if (!started) {
+                    firstRecordedNanos = recordedNanos;
+                    startNanos = System.nanoTime();
+                    started = true;
+                }
+                long waitNanos = startNanos + (recordedNanos - firstRecordedNanos)
+                        - System.nanoTime();
+                if (waitNanos > 0) {
+                    Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+                }
+            }
+            int len = recording.getSentLength(i);
+            if (len > buf.length) {
+                buf = new byte[len];
+            }
+            recording.getSentBytes(i, buf, 0);
+            out.write(buf, 0, len);
+            out.flush();
+            written += len;
+        }
+        return written;
+    }
+
+    private static int _nextDirection(@NonNull InputRecording recording, int from) {
+        for (int i = from; i < recording.size(); i++) {
+            if (recording.getType(i) == RECORD_DIRECTION) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
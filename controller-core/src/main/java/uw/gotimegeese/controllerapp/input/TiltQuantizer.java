@@ -0,0 +1,189 @@
+package uw.gotimegeese.controllerapp.input;
+
+import static uw.gotimegeese.controllerapp.input.DirectionClassifier.*;
+
+/**
+ * Turns the tilt of the phone into one of the four directions of {@code DirectionClassifier}, or
+ * {@code DIR_NONE} while the phone is held level. Kept free of Android classes so that recorded or
+ * synthetic sensor streams can be replayed through it on the JVM.
+ * <p>
+ * Samples are gravity readings in screen coordinates, like touches: x grows towards the right
+ * edge of the screen and y towards its bottom edge, so that tilting the right edge down steers
+ * right. Each sample goes through:
+ * <ul>
+ *     <li>A low-pass filter smoothing out the shaking of the user's hands, with a time constant
+ *     so that its lag doesn't depend on the sensor's rate.</li>
+ *     <li>A calibration offset, the tilt at which the user holds the phone at rest.</li>
+ *     <li>Hysteresis on the magnitude, so that a tilt near the threshold doesn't make the direction
+ *     flap between neutral and an arm: a direction is entered past one threshold and only left
+ *     below a lower one.</li>
+ *     <li>Hysteresis at the diagonals, as in {@code DirectionClassifier}.</li>
+ * </ul>
+ * Does not allocate. Must only be used from one thread.
+ */
+public class TiltQuantizer {
+
+    public static final long DEFAULT_TIME_CONSTANT_NANOS = 40_000_000;
+    // Roughly 15 and 9 degrees of tilt, in m/s^2.
+    public static final float DEFAULT_ENTER_THRESHOLD = 2.5f;
+    public static final float DEFAULT_EXIT_THRESHOLD = 1.5f;
+    public static final float DEFAULT_DIAGONAL_HYSTERESIS = 0.2f;
+
+    private long timeConstantNanos = DEFAULT_TIME_CONSTANT_NANOS;
+    private float enterThreshold = DEFAULT_ENTER_THRESHOLD;
+    private float exitThreshold = DEFAULT_EXIT_THRESHOLD;
+    private float diagonalHysteresis = DEFAULT_DIAGONAL_HYSTERESIS;
+
+    private float offsetX, offsetY;
+    private boolean calibrationPending;
+
+    private boolean primed;
+    private float filteredX, filteredY;
+    private long lastSampleNanos;
+
+    private int direction = DIR_NONE;
+    private long changeTimeNanos;
+    private long sampleCount, changeCount;
+
+    /**
+     * Sets the time constant of the low-pass filter. Higher values steady the direction at the
+     * cost of lag. 0 disables the filter.
+     */
+    public void setTimeConstant(long timeConstantNanos) {
+        this.timeConstantNanos = timeConstantNanos;
+    }
+
+    /**
+     * Sets the tilt past which a direction is entered and the one below which it is left again, in
+     * the unit of the samples. {@code exitThreshold} must not exceed {@code enterThreshold}.
+     */
+    public void setThresholds(float enterThreshold, float exitThreshold) {
+        if (exitThreshold > enterThreshold) {
+            throw new IllegalArgumentException("Exit threshold above the enter threshold");
+        }
+        this.enterThreshold = enterThreshold;
+        this.exitThreshold = exitThreshold;
+    }
+
+    /**
+     * Sets the hysteresis at the diagonals. See {@code DirectionClassifier.setHysteresis()}.
+     */
+    public void setDiagonalHysteresis(float diagonalHysteresis) {
+        this.diagonalHysteresis = diagonalHysteresis;
+    }
+
+    /**
+     * Takes the tilt of the next sample as the one the phone is held at rest, which then steers
+     * nowhere. The filter restarts from that sample, so the direction is neutral right away.
+     */
+    public void calibrate() {
+        calibrationPending = true;
+    }
+
+    /**
+     * Sets the tilt at which the phone is held at rest directly, e.g. from an earlier calibration.
+     */
+    public void setOffset(float offsetX, float offsetY) {
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+    }
+
+    public float getOffsetX() {
+        return offsetX;
+    }
+
+    public float getOffsetY() {
+        return offsetY;
+    }
+
+    /**
+     * Feeds one gravity reading.
+     *
+     * @return true if the direction changed as a result.
+     */
+    public boolean onSample(float x, float y, long timeNanos) {
+        sampleCount++;
+        if (!primed || calibrationPending) {
+            // Start the filter from the first sample rather than from zero, which would otherwise
+            // take a few time constants to settle.
+            filteredX = x;
+            filteredY = y;
+            primed = true;
+        } else {
+            long dtNanos = timeNanos - lastSampleNanos;
+            if (timeConstantNanos <= 0) {
+                filteredX = x;
+                filteredY = y;
+            } else if (dtNanos > 0) {
+                // The smoothing factor of an RC filter, so that the filter behaves the same
+                // whatever the sensor's rate.
+                float alpha = (float) dtNanos / (timeConstantNanos + dtNanos);
+                filteredX += alpha * (x - filteredX);
+                filteredY += alpha * (y - filteredY);
+            }
+        }
+        lastSampleNanos = timeNanos;
+        if (calibrationPending) {
+            offsetX = filteredX;
+            offsetY = filteredY;
+            calibrationPending = false;
+        }
+
+        float dx = filteredX - offsetX, dy = filteredY - offsetY;
+        float magnitudeSq = dx * dx + dy * dy;
+        int newDirection;
+        if (direction == DIR_NONE) {
+            newDirection = magnitudeSq > enterThreshold * enterThreshold
+                    ? classify(dx, dy) : DIR_NONE;
+        } else {
+            newDirection = magnitudeSq < exitThreshold * exitThreshold
+                    ? DIR_NONE : classify(dx, dy, direction, diagonalHysteresis);
+        }
+        if (newDirection == direction) {
+            return false;
+        }
+        direction = newDirection;
+        changeTimeNanos = timeNanos;
+        changeCount++;
+        return true;
+    }
+
+    /**
+     * Forgets the filter's state, e.g. when the sensor is turned off, and goes back to
+     * {@code DIR_NONE}. The calibration is kept.
+     *
+     * @return true if the direction changed as a result.
+     */
+    public boolean reset(long timeNanos) {
+        primed = false;
+        if (direction == DIR_NONE) {
+            return false;
+        }
+        direction = DIR_NONE;
+        changeTimeNanos = timeNanos;
+        changeCount++;
+        return true;
+    }
+
+    /**
+     * Returns one of the {@code DirectionClassifier.DIR_*} constants.
+     */
+    public int getDirection() {
+        return direction;
+    }
+
+    /**
+     * Returns the timestamp of the sample at which the current direction was first detected.
+     */
+    public long getChangeTimeNanos() {
+        return changeTimeNanos;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public long getChangeCount() {
+        return changeCount;
+    }
+}
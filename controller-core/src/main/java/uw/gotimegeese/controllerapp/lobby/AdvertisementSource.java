@@ -0,0 +1,28 @@
+package uw.gotimegeese.controllerapp.lobby;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Something that picks up the {@code LobbyAdvertisement}s of the games around us, e.g. a Bluetooth
+ * LE scanner, or a fake one in tests.
+ */
+public interface AdvertisementSource {
+
+    interface Callback {
+
+        /**
+         * Called, on an arbitrary thread, for every advertisement received. The same host is
+         * typically reported many times per second.
+         */
+        void onAdvertisement(@NonNull LobbyAdvertisement advertisement, int rssi);
+
+        /**
+         * Called, on an arbitrary thread, if the source stopped working.
+         */
+        void onSourceFailed(int errorCode);
+    }
+
+    void start(@NonNull Callback callback);
+
+    void stop();
+}
@@ -0,0 +1,125 @@
+package uw.gotimegeese.controllerapp.lobby;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.charset.Charset;
+
+/**
+ * The compact advertisement game hosts broadcast over Bluetooth LE so that controllers can see the
+ * games around them, and how full they are, before connecting to any. It travels as manufacturer
+ * specific data under {@link #COMPANY_ID}:
+ * <pre>
+ * offset  size  field
+ *  0      1     MAGIC
+ *  1      1     highest protocol version the host speaks
+ *  2      1     players joined
+ *  3      1     capacity
+ *  4      6     the host's classic Bluetooth address, most significant byte first
+ * 10      0-12  game name, UTF-8
+ * </pre>
+ * Together with the flags and the manufacturer data header, this fits in the 31 bytes of a legacy
+ * advertisement. The classic address is needed because the host's LE address is usually a random
+ * one, which can't be used to open an RFCOMM socket.
+ */
+public final class LobbyAdvertisement {
+
+    // The company identifier reserved for testing, since we don't have one of our own.
+    public static final int COMPANY_ID = 0xffff;
+
+    public static final int MAGIC = 0x47;
+
+    public static final int HEADER_LENGTH = 10;
+    public static final int MAX_NAME_LENGTH = 12;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public final int protocolVersion;
+    public final int playersJoined;
+    public final int capacity;
+    public final String hostAddress;
+    public final String gameName;
+
+    public LobbyAdvertisement(int protocolVersion, int playersJoined, int capacity,
+                              @NonNull String hostAddress, @NonNull String gameName) {
+        this.protocolVersion = protocolVersion;
+        this.playersJoined = playersJoined;
+        this.capacity = capacity;
+        this.hostAddress = hostAddress;
+        this.gameName = gameName;
+    }
+
+    public boolean hasOpenSlots() {
+        return playersJoined < capacity;
+    }
+
+    /**
+     * Parses the manufacturer specific data of an advertisement.
+     *
+     * @return the advertisement, or {@code null} if the data isn't a lobby advertisement.
+     */
+    @Nullable
+    public static LobbyAdvertisement parse(@Nullable byte[] data) {
+        if (data == null || data.length < HEADER_LENGTH
+                || data.length > HEADER_LENGTH + MAX_NAME_LENGTH || (data[0] & 0xff) != MAGIC) {
+            return null;
+        }
+        int capacity = data[3] & 0xff;
+        if (capacity == 0) {
+            return null;
+        }
+        StringBuilder address = new StringBuilder(17);
+        for (int i = 0; i < 6; i++) {
+            if (i > 0) {
+                address.append(':');
+            }
+            address.append(Character.toUpperCase(Character.forDigit((data[4 + i] >> 4) & 0xf, 16)));
+            address.append(Character.toUpperCase(Character.forDigit(data[4 + i] & 0xf, 16)));
+        }
+        String name = new String(data, HEADER_LENGTH, data.length - HEADER_LENGTH, UTF_8);
+        return new LobbyAdvertisement(data[1] & 0xff, data[2] & 0xff, capacity,
+                address.toString(), name);
+    }
+
+    /**
+     * Encodes the advertisement as manufacturer specific data. The game name is cut short if it
+     * doesn't fit.
+     *
+     * @throws IllegalArgumentException if the host address isn't of the form
+     *                                  {@code "AA:BB:CC:DD:EE:FF"}.
+     */
+    @NonNull
+    public byte[] encode() {
+        byte[] name = gameName.getBytes(UTF_8);
+        int nameLength = Math.min(name.length, MAX_NAME_LENGTH);
+        // Don't cut a multi-byte character in half.
+        while (nameLength < name.length && nameLength > 0 && (name[nameLength] & 0xc0) == 0x80) {
+            nameLength--;
+        }
+        byte[] data = new byte[HEADER_LENGTH + nameLength];
+        data[0] = (byte) MAGIC;
+        data[1] = (byte) protocolVersion;
+        data[2] = (byte) playersJoined;
+        data[3] = (byte) capacity;
+        String[] octets = hostAddress.split(":");
+        if (octets.length != 6) {
+            throw new IllegalArgumentException("Invalid address: " + hostAddress);
+        }
+        for (int i = 0; i < 6; i++) {
+            data[4 + i] = (byte) Integer.parseInt(octets[i], 16);
+        }
+        System.arraycopy(name, 0, data, HEADER_LENGTH, nameLength);
+        return data;
+    }
+
+    /**
+     * Returns whether the advertisement shows the same thing as {@code other}.
+     */
+    public boolean sameContents(@NonNull LobbyAdvertisement other) {
+        return protocolVersion == other.protocolVersion
+                && playersJoined == other.playersJoined
+                && capacity == other.capacity
+                && hostAddress.equals(other.hostAddress)
+                && gameName.equals(other.gameName);
+    }
+}
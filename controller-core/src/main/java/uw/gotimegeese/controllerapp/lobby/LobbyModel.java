@@ -0,0 +1,99 @@
+package uw.gotimegeese.controllerapp.lobby;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The games currently advertised around us, built up incrementally from the advertisements as they
+ * arrive. Hosts that haven't been heard from for a while are dropped. Not thread safe; meant to be
+ * fed and read on the main thread.
+ */
+public class LobbyModel {
+
+    /**
+     * A host as last heard from.
+     */
+    public static final class Host {
+
+        public final LobbyAdvertisement advertisement;
+        public final int rssi;
+        public final long lastSeenMillis;
+
+        Host(@NonNull LobbyAdvertisement advertisement, int rssi, long lastSeenMillis) {
+            this.advertisement = advertisement;
+            this.rssi = rssi;
+            this.lastSeenMillis = lastSeenMillis;
+        }
+    }
+
+    // Games with open slots first, then by name.
+    private static final Comparator<Host> HOST_ORDER = (a, b) -> {
+        boolean aOpen = a.advertisement.hasOpenSlots(), bOpen = b.advertisement.hasOpenSlots();
+        if (aOpen != bOpen) {
+            return aOpen ? -1 : 1;
+        }
+        int byName = a.advertisement.gameName.compareToIgnoreCase(b.advertisement.gameName);
+        return byName != 0 ? byName
+                : a.advertisement.hostAddress.compareTo(b.advertisement.hostAddress);
+    };
+
+    private final long hostTimeoutMs;
+    private final Map<String, Host> hosts = new HashMap<>();
+
+    /**
+     * @param hostTimeoutMs hosts not heard from for this long are dropped.
+     */
+    public LobbyModel(long hostTimeoutMs) {
+        this.hostTimeoutMs = hostTimeoutMs;
+    }
+
+    /**
+     * Records an advertisement.
+     *
+     * @return true if what the lobby shows changed, i.e. a new host appeared or a known one
+     * advertised something different. Repeated identical advertisements only refresh the host.
+     */
+    public boolean onAdvertisement(@NonNull LobbyAdvertisement advertisement, int rssi,
+                                   long nowMillis) {
+        Host previous = hosts.put(advertisement.hostAddress,
+                new Host(advertisement, rssi, nowMillis));
+        return previous == null || !previous.advertisement.sameContents(advertisement);
+    }
+
+    /**
+     * Drops the hosts not heard from within the timeout.
+     *
+     * @return true if any host was dropped.
+     */
+    public boolean expire(long nowMillis) {
+        boolean changed = false;
+        for (Iterator<Host> it = hosts.values().iterator(); it.hasNext(); ) {
+            if (nowMillis - it.next().lastSeenMillis >= hostTimeoutMs) {
+                it.remove();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns the hosts, the ones with open slots first.
+     */
+    @NonNull
+    public List<Host> getHosts() {
+        List<Host> list = new ArrayList<>(hosts.values());
+        Collections.sort(list, HOST_ORDER);
+        return list;
+    }
+
+    public void clear() {
+        hosts.clear();
+    }
+}
@@ -0,0 +1,75 @@
+package uw.gotimegeese.controllerapp.metrics;
+
+import androidx.annotation.NonNull;
+
+import java.io.PrintWriter;
+
+/**
+ * Latency of direction inputs broken down into the stages they go through between the user's
+ * finger and the wire:
+ * <ul>
+ *     <li>touch -> dispatch: from the {@code MotionEvent}'s timestamp until the direction listener
+ *     is invoked.</li>
+ *     <li>dispatch -> enqueue: time spent in the listener before the input is handed to the
+ *     {@code InputSender}.</li>
+ *     <li>enqueue -> wire: time spent waiting for and inside the write to the connection.</li>
+ *     <li>touch -> wire: the sum of the above.</li>
+ * </ul>
+ * All timestamps must come from {@code System.nanoTime()}, which shares its time base with
+ * {@code SystemClock.uptimeMillis()} and thus with {@code MotionEvent.getEventTime()}.
+ */
+public class InputLatencyStats {
+
+    public final LatencyHistogram touchToDispatch = new LatencyHistogram();
+    public final LatencyHistogram dispatchToEnqueue = new LatencyHistogram();
+    public final LatencyHistogram enqueueToWire = new LatencyHistogram();
+    public final LatencyHistogram touchToWire = new LatencyHistogram();
+
+    /**
+     * Records the timestamps of one input which just finished being written. Must only be called
+     * from one thread. Does not allocate.
+     */
+    public void record(long touchNanos, long dispatchNanos, long enqueueNanos, long wireNanos) {
+        touchToDispatch.recordNanos(dispatchNanos - touchNanos);
+        dispatchToEnqueue.recordNanos(enqueueNanos - dispatchNanos);
+        enqueueToWire.recordNanos(wireNanos - enqueueNanos);
+        touchToWire.recordNanos(wireNanos - touchNanos);
+    }
+
+    /**
+     * Returns a short multi-line summary of the percentiles, suitable for an on-screen overlay.
+     */
+    @NonNull
+    public String summarize() {
+        return _summarize("touch->dispatch", touchToDispatch) + "\n"
+                + _summarize("dispatch->enqueue", dispatchToEnqueue) + "\n"
+                + _summarize("enqueue->wire", enqueueToWire) + "\n"
+                + _summarize("touch->wire", touchToWire);
+    }
+
+    /**
+     * Writes out the complete histograms.
+     */
+    public void writeTo(@NonNull PrintWriter writer) {
+        writer.println("# touch_to_dispatch");
+        touchToDispatch.writeTo(writer);
+        writer.println("# dispatch_to_enqueue");
+        dispatchToEnqueue.writeTo(writer);
+        writer.println("# enqueue_to_wire");
+        enqueueToWire.writeTo(writer);
+        writer.println("# touch_to_wire");
+        touchToWire.writeTo(writer);
+    }
+
+    private static String _summarize(String label, LatencyHistogram histogram) {
+        return label + ": p50 " + _ms(histogram.getPercentileMicros(0.5))
+                + " p95 " + _ms(histogram.getPercentileMicros(0.95))
+                + " p99 " + _ms(histogram.getPercentileMicros(0.99))
+                + " max " + _ms(histogram.getMaxMicros()) + " (n=" + histogram.getTotalCount()
+                + ")";
+    }
+
+    private static String _ms(long micros) {
+        return micros / 1000 + "." + (micros % 1000) / 100 + "ms";
+    }
+}
@@ -0,0 +1,140 @@
+package uw.gotimegeese.controllerapp.metrics;
+
+import androidx.annotation.NonNull;
+
+import java.io.PrintWriter;
+
+/**
+ * A fixed-memory histogram of latencies in microseconds. Buckets are log-linear: values below 16us
+ * get a bucket each and every power of two above that is split into 16 buckets, which keeps the
+ * relative error of reported percentiles under 6.25% up to {@code MAX_TRACKABLE_MICROS}. Larger
+ * values are counted in the last bucket, though {@link #getMaxMicros()} stays exact.
+ * <p>
+ * Recording does not allocate. The histogram expects a single recording thread; other threads may
+ * read it while it is being recorded into, in which case they see a slightly stale view.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 24;
+    private static final int BUCKET_COUNT =
+            SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    public static final long MAX_TRACKABLE_MICROS = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private volatile long totalCount;
+    private volatile long maxMicros;
+
+    public void recordNanos(long nanos) {
+        recordMicros(nanos / 1000);
+    }
+
+    public void recordMicros(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        counts[_bucketIndex(Math.min(micros, MAX_TRACKABLE_MICROS))]++;
+        totalCount++;
+        if (micros > maxMicros) {
+            maxMicros = micros;
+        }
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros;
+    }
+
+    /**
+     * Returns the value below which the given fraction of the recorded values fall, rounded up to
+     * the upper bound of its bucket. Returns 0 if nothing was recorded.
+     *
+     * @param quantile a value between 0 and 1, e.g. 0.99 for the 99th percentile.
+     */
+    public long getPercentileMicros(double quantile) {
+        long total = totalCount;
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(_bucketUpperBound(i), maxMicros);
+            }
+        }
+        return maxMicros;
+    }
+
+    /**
+     * Adds the values recorded into {@code other} to this histogram, e.g. to aggregate the
+     * histograms of several threads once they are done recording.
+     */
+    public void add(@NonNull LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        if (other.maxMicros > maxMicros) {
+            maxMicros = other.maxMicros;
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = 0;
+        }
+        totalCount = 0;
+        maxMicros = 0;
+    }
+
+    /**
+     * Writes a summary line followed by one line per non-empty bucket, in the form
+     * {@code <lower bound us> <upper bound us> <count>}.
+     */
+    public void writeTo(@NonNull PrintWriter writer) {
+        writer.println("count=" + totalCount
+                + " p50=" + getPercentileMicros(0.5)
+                + " p95=" + getPercentileMicros(0.95)
+                + " p99=" + getPercentileMicros(0.99)
+                + " max=" + maxMicros);
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (counts[i] != 0) {
+                writer.println(_bucketLowerBound(i) + " " + _bucketUpperBound(i) + " "
+                        + counts[i]);
+            }
+        }
+    }
+
+    private static int _bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long _bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        int subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    private static long _bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        return _bucketLowerBound(index) + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
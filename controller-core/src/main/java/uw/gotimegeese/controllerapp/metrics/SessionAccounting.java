@@ -0,0 +1,218 @@
+package uw.gotimegeese.controllerapp.metrics;
+
+import androidx.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the work a session makes the phone do, so that builds can be compared on what drains
+ * the battery over a long session: redraws of the D-Pads, touch samples handled or ignored by the
+ * classifier's precision filter, activity resumes, bytes and writes sent, wakeups of the writer
+ * thread, and the CPU time of the threads involved.
+ * <p>
+ * Every counter may be updated from any thread and costs an atomic increment. CPU time is
+ * charged by the threads themselves, since a thread can only cheaply read its own CPU clock: a
+ * thread takes a reading with {@link #threadCpuNanos()} and then periodically hands it back to
+ * {@link #addThreadCpu(int, long)}, which charges the time used in between.
+ */
+public class SessionAccounting {
+
+    /**
+     * The clocks the accounting reads, injected so that it runs on the JVM and in tests.
+     */
+    public interface Clock {
+
+        /**
+         * Returns a monotonic timestamp, e.g. {@code System.nanoTime()}.
+         */
+        long nanoTime();
+
+        /**
+         * Returns the CPU time used by the calling thread so far, e.g.
+         * {@code Debug.threadCpuTimeNanos()} on Android.
+         */
+        long threadCpuNanos();
+    }
+
+    public static final int THREAD_UI = 0;
+    public static final int THREAD_WRITER = 1;
+    public static final int THREAD_READER = 2;
+    private static final String[] THREAD_NAMES = {"ui", "writer", "reader"};
+
+    private final Clock clock;
+    private final long startNanos;
+    private volatile long finishNanos;
+    private volatile boolean finished;
+
+    private final AtomicLong redrawCount = new AtomicLong();
+    private final AtomicLong touchSampleCount = new AtomicLong();
+    private final AtomicLong ignoredTouchSampleCount = new AtomicLong();
+    private final AtomicLong resumeCount = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong writerWakeupCount = new AtomicLong();
+    private final AtomicLongArray threadCpuNanos = new AtomicLongArray(THREAD_NAMES.length);
+
+    public SessionAccounting(@NonNull Clock clock) {
+        this.clock = clock;
+        this.startNanos = clock.nanoTime();
+    }
+
+    public void onRedraw() {
+        redrawCount.incrementAndGet();
+    }
+
+    /**
+     * Adds touch samples fed to a direction classifier.
+     *
+     * @param ignored how many of the {@code samples} the precision filter discarded.
+     */
+    public void addTouchSamples(long samples, long ignored) {
+        touchSampleCount.addAndGet(samples);
+        ignoredTouchSampleCount.addAndGet(ignored);
+    }
+
+    public void onResume() {
+        resumeCount.incrementAndGet();
+    }
+
+    /**
+     * Adds one write of {@code bytes} bytes to the connection.
+     */
+    public void onWrite(int bytes) {
+        writeCount.incrementAndGet();
+        bytesSent.addAndGet(bytes);
+    }
+
+    public void onRead(int bytes) {
+        bytesReceived.addAndGet(bytes);
+    }
+
+    public void onWriterWakeup() {
+        writerWakeupCount.incrementAndGet();
+    }
+
+    /**
+     * Returns a reading of the calling thread's CPU clock to pass to
+     * {@link #addThreadCpu(int, long)} later on.
+     */
+    public long threadCpuNanos() {
+        return clock.threadCpuNanos();
+    }
+
+    /**
+     * Charges {@code thread} (one of the {@code THREAD_*} constants) with the CPU time the calling
+     * thread used since {@code sinceCpuNanos} was read.
+     *
+     * @return a fresh reading, to pass in next time.
+     */
+    public long addThreadCpu(int thread, long sinceCpuNanos) {
+        long now = clock.threadCpuNanos();
+        threadCpuNanos.addAndGet(thread, now - sinceCpuNanos);
+        return now;
+    }
+
+    /**
+     * Marks the end of the session, after which its duration no longer grows. Counters may still
+     * be updated by threads winding down.
+     */
+    public void finish() {
+        if (!finished) {
+            finishNanos = clock.nanoTime();
+            finished = true;
+        }
+    }
+
+    public long getDurationNanos() {
+        return (finished ? finishNanos : clock.nanoTime()) - startNanos;
+    }
+
+    public long getRedrawCount() {
+        return redrawCount.get();
+    }
+
+    public long getTouchSampleCount() {
+        return touchSampleCount.get();
+    }
+
+    public long getIgnoredTouchSampleCount() {
+        return ignoredTouchSampleCount.get();
+    }
+
+    public long getResumeCount() {
+        return resumeCount.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getWriterWakeupCount() {
+        return writerWakeupCount.get();
+    }
+
+    public long getThreadCpuNanos(int thread) {
+        return threadCpuNanos.get(thread);
+    }
+
+    /**
+     * Returns a short multi-line summary, suitable for an on-screen overlay.
+     */
+    @NonNull
+    public String summarize() {
+        long durationMs = Math.max(1, getDurationNanos() / 1_000_000);
+        long touches = getTouchSampleCount(), ignored = getIgnoredTouchSampleCount();
+        return "session " + durationMs / 1000 + "s, " + getResumeCount() + " resumes\n"
+                + "redraws " + getRedrawCount() + " (" + _perSecond(getRedrawCount(), durationMs)
+                + "/s), touches " + (touches - ignored) + " used + " + ignored + " ignored\n"
+                + "sent " + getBytesSent() + "B in " + getWriteCount() + " writes, "
+                + getWriterWakeupCount() + " wakeups, received " + getBytesReceived() + "B\n"
+                + "cpu " + _cpuSummary();
+    }
+
+    /**
+     * Writes out every counter as a {@code name value} line, for comparing sessions across builds.
+     */
+    public void writeTo(@NonNull PrintWriter writer) {
+        writer.println("duration_ms " + getDurationNanos() / 1_000_000);
+        writer.println("resumes " + getResumeCount());
+        writer.println("redraws " + getRedrawCount());
+        writer.println("touch_samples " + getTouchSampleCount());
+        writer.println("touch_samples_ignored " + getIgnoredTouchSampleCount());
+        writer.println("bytes_sent " + getBytesSent());
+        writer.println("writes " + getWriteCount());
+        writer.println("writer_wakeups " + getWriterWakeupCount());
+        writer.println("bytes_received " + getBytesReceived());
+        for (int i = 0; i < THREAD_NAMES.length; i++) {
+            writer.println("cpu_" + THREAD_NAMES[i] + "_ms " + getThreadCpuNanos(i) / 1_000_000);
+        }
+    }
+
+    private String _cpuSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < THREAD_NAMES.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(THREAD_NAMES[i]).append(' ').append(getThreadCpuNanos(i) / 1_000_000)
+                    .append("ms");
+        }
+        return sb.toString();
+    }
+
+    private static String _perSecond(long count, long durationMs) {
+        long tenths = count * 10_000 / durationMs;
+        return tenths / 10 + "." + tenths % 10;
+    }
+}
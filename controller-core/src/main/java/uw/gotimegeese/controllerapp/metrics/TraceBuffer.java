@@ -0,0 +1,163 @@
+package uw.gotimegeese.controllerapp.metrics;
+
+import androidx.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size in-memory trace of what happened on the input path, meant to be dumped when
+ * something went wrong. Each entry is an event id, a {@code System.nanoTime()} timestamp and an
+ * int payload, stored in preallocated arrays used as a ring buffer, so that tracing never
+ * allocates and costs little more than a few array stores. Once full, the oldest entries are
+ * overwritten.
+ * <p>
+ * Events are recorded through the static {@code trace()} methods into the shared buffer, which do
+ * nothing until tracing is enabled. Calls to them are removed altogether from release builds by
+ * ProGuard, see {@code proguard-rules.pro}.
+ * <p>
+ * Any thread may record. An entry being overwritten while the buffer is dumped may show up torn,
+ * which is acceptable for a diagnostic aid.
+ */
+public final class TraceBuffer {
+
+    // The events traced. Payloads are described next to each.
+    /** A finger touched a D-Pad. Payload: the pointer id. */
+    public static final int EVENT_TOUCH_DOWN = 1;
+    /** The last finger was lifted off a D-Pad. Payload: the pointer id. */
+    public static final int EVENT_TOUCH_UP = 2;
+    /** A D-Pad reported a new direction. Payload: {@code DirectionClassifier.DIR_*}. */
+    public static final int EVENT_DIRECTION = 3;
+    /** A direction was queued for sending. Payload: {@code (slot << 8) | CLIENT_DIR_*}. */
+    public static final int EVENT_DIRECTION_QUEUED = 4;
+    /** A batch of bytes was written to the server. Payload: the number of bytes. */
+    public static final int EVENT_WRITE = 5;
+    /** A write blocked for too long. Payload: how long, in microseconds. */
+    public static final int EVENT_WRITE_STALL = 6;
+    /** The server sent an event. Payload: {@code (type << 16) | argument}. */
+    public static final int EVENT_SERVER_EVENT = 7;
+    /** A pong was received. Payload: the round trip time in microseconds. */
+    public static final int EVENT_PONG = 8;
+    /** The connection was lost. Payload: none. */
+    public static final int EVENT_CONNECTION_LOST = 9;
+    /** The session reconnected. Payload: how long it took, in milliseconds. */
+    public static final int EVENT_RECONNECTED = 10;
+
+    private static final String[] EVENT_NAMES = {
+            "?", "touch-down", "touch-up", "direction", "direction-queued", "write", "write-stall",
+            "server-event", "pong", "connection-lost", "reconnected"
+    };
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final TraceBuffer shared = new TraceBuffer(DEFAULT_CAPACITY);
+    private static volatile boolean enabled;
+
+    private final int[] events;
+    private final long[] timesNanos;
+    private final int[] payloads;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * @param capacity the number of entries kept, rounded up to a power of two.
+     */
+    public TraceBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        events = new int[size];
+        timesNanos = new long[size];
+        payloads = new int[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Returns the buffer the static {@code trace()} methods record into.
+     */
+    @NonNull
+    public static TraceBuffer getShared() {
+        return shared;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        TraceBuffer.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records an event that happened now into the shared buffer, if tracing is enabled.
+     */
+    public static void trace(int event, int payload) {
+        if (enabled) {
+            shared.record(event, System.nanoTime(), payload);
+        }
+    }
+
+    /**
+     * Records an event that happened at {@code timeNanos} into the shared buffer, if tracing is
+     * enabled.
+     */
+    public static void trace(int event, long timeNanos, int payload) {
+        if (enabled) {
+            shared.record(event, timeNanos, payload);
+        }
+    }
+
+    public void record(int event, long timeNanos, int payload) {
+        int index = (int) next.getAndIncrement() & mask;
+        events[index] = event;
+        timesNanos[index] = timeNanos;
+        payloads[index] = payload;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Returns the number of entries currently held, at most the capacity.
+     */
+    public int size() {
+        return (int) Math.min(next.get(), mask + 1);
+    }
+
+    /**
+     * Returns the number of entries recorded since the buffer was created or last cleared,
+     * including those overwritten since.
+     */
+    public long getRecordedCount() {
+        return next.get();
+    }
+
+    public void clear() {
+        next.set(0);
+    }
+
+    /**
+     * Prints the entries held, oldest first, one per line. Times are in milliseconds relative to
+     * the newest entry.
+     */
+    public void dump(@NonNull PrintWriter writer) {
+        long end = next.get();
+        long start = Math.max(0, end - (mask + 1));
+        if (end == start) {
+            writer.println("(trace empty)");
+            return;
+        }
+        long newestNanos = timesNanos[(int) (end - 1) & mask];
+        for (long i = start; i < end; i++) {
+            int index = (int) i & mask;
+            writer.println(String.format(Locale.ROOT, "%10.3f %-16s %d",
+                    (timesNanos[index] - newestNanos) / 1e6, eventName(events[index]),
+                    payloads[index]));
+        }
+    }
+
+    @NonNull
+    public static String eventName(int event) {
+        return event > 0 && event < EVENT_NAMES.length ? EVENT_NAMES[event] : "event-" + event;
+    }
+}
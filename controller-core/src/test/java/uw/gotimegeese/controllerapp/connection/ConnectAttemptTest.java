@@ -0,0 +1,149 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static org.junit.Assert.*;
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ConnectAttemptTest {
+
+    private static class Listener implements ConnectAttempt.Listener {
+
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        @Override
+        public void onFinished(@NonNull ConnectAttempt attempt) {
+            finished.countDown();
+        }
+    }
+
+    /**
+     * A transport whose connection never comes up; connecting blocks until it is closed.
+     */
+    private static class HangingTransport implements ControllerTransport {
+
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public void connect() throws IOException {
+            try {
+                closed.await();
+            } catch (InterruptedException ignored) {}
+            throw new IOException("Transport closed");
+        }
+
+        @NonNull
+        @Override
+        public InputStream getInputStream() throws IOException {
+            throw new IOException("Transport not connected");
+        }
+
+        @NonNull
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Transport not connected");
+        }
+
+        @NonNull
+        @Override
+        public String getName() {
+            return "hanging";
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    @Test
+    public void join_recordsPhaseTimings() throws Exception {
+        StandInServer server = new StandInServer(4);
+        Listener listener = new Listener();
+        ConnectAttempt attempt = new ConnectAttempt(Collections.singletonList(server), 5000,
+                listener);
+        attempt.start();
+
+        assertTrue(listener.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(ConnectAttempt.OUTCOME_JOINED, attempt.getOutcome());
+        assertNotNull(attempt.getSession());
+        assertEquals(1, attempt.getSession().getPlayerNumber());
+        assertTrue(attempt.getConnectNanos() > 0);
+        assertTrue(attempt.getHandshakeNanos() > 0);
+        attempt.getSession().close();
+    }
+
+    @Test
+    public void silentServer_timesOutAndClosesTransport() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("silent");
+        Listener listener = new Listener();
+        ConnectAttempt attempt = new ConnectAttempt(Collections.singletonList(() -> transport),
+                200, listener);
+        long start = System.nanoTime();
+        attempt.start();
+
+        assertTrue(listener.finished.await(5, TimeUnit.SECONDS));
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        assertEquals(ConnectAttempt.OUTCOME_TIMED_OUT, attempt.getOutcome());
+        assertTrue("took " + elapsedMs + "ms", elapsedMs >= 200 && elapsedMs < 1000);
+        assertNull(attempt.getSession());
+
+        // The handshake's pending read was unblocked by closing the transport.
+        InputStream serverIn = transport.getPeer().getInputStream();
+        assertEquals(CLIENT_HELLO_V2, serverIn.read());
+        assertEquals(-1, serverIn.read());
+    }
+
+    @Test
+    public void cancel_unblocksPendingConnect() throws Exception {
+        HangingTransport transport = new HangingTransport();
+        Listener listener = new Listener();
+        ConnectAttempt attempt = new ConnectAttempt(Collections.singletonList(() -> transport),
+                60_000, listener);
+        attempt.start();
+        attempt.cancel();
+
+        assertTrue(listener.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(ConnectAttempt.OUTCOME_CANCELLED, attempt.getOutcome());
+        assertTrue(transport.closed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void race_firstTransportToConnectWins() throws Exception {
+        HangingTransport hanging = new HangingTransport();
+        StandInServer server = new StandInServer(4);
+        Listener listener = new Listener();
+        ConnectAttempt attempt = new ConnectAttempt(Arrays.asList(() -> hanging, server), 5000,
+                listener);
+        attempt.start();
+
+        assertTrue(listener.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(ConnectAttempt.OUTCOME_JOINED, attempt.getOutcome());
+        assertTrue(hanging.closed.await(5, TimeUnit.SECONDS));
+        attempt.getSession().close();
+    }
+
+    @Test
+    public void allTransportsFail_reportsFailure() throws Exception {
+        StandInServer server = new StandInServer(4);
+        server.refuseConnections(1);
+        Listener listener = new Listener();
+        ConnectAttempt attempt = new ConnectAttempt(Collections.singletonList(server), 5000,
+                listener);
+        attempt.start();
+
+        assertTrue(listener.finished.await(5, TimeUnit.SECONDS));
+        assertEquals(ConnectAttempt.OUTCOME_FAILED, attempt.getOutcome());
+        assertNotNull(attempt.getFailure());
+    }
+}
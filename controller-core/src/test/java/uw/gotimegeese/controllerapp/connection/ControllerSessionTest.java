@@ -0,0 +1,255 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static org.junit.Assert.*;
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks that a {@code ControllerSession} outlives the UI listening to it and the connection it
+ * started with.
+ */
+public class ControllerSessionTest {
+
+    private static class Listener implements ControllerSession.Listener {
+
+        final CountDownLatch connectionLost = new CountDownLatch(1);
+        final CountDownLatch reconnected = new CountDownLatch(1);
+        final Semaphore playersAdded = new Semaphore(0);
+        volatile boolean slotReclaimed;
+
+        @Override
+        public void onWriteStalled(long blockedNanos) {}
+
+        @Override
+        public void onServerEvent(int type, int argument) {
+            if (type == ProtocolV2.EVENT_PLAYER_ADDED) {
+                playersAdded.release();
+            }
+        }
+
+        @Override
+        public void onLinkStatsUpdated(@NonNull LinkMonitor monitor) {}
+
+        @Override
+        public void onReconnecting() {}
+
+        @Override
+        public void onReconnected(long reconnectNanos, boolean slotReclaimed) {
+            this.slotReclaimed = slotReclaimed;
+            reconnected.countDown();
+        }
+
+        @Override
+        public void onConnectionLost() {
+            connectionLost.countDown();
+        }
+    }
+
+    @Test
+    public void session_survivesListenerSwap() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        InputStream serverIn = transport.getPeer().getInputStream();
+        transport.getPeer().getOutputStream().write(2);
+        ControllerSession session = ControllerSession.join(transport);
+        assertNotNull(session);
+        assertEquals(2, session.getPlayerNumber());
+        assertEquals(CLIENT_HELLO_V2, serverIn.read());
+        session.setListener(new Listener());
+
+        session.sendDirection(CLIENT_DIR_UP, System.nanoTime(), System.nanoTime());
+        assertEquals(CLIENT_DIR_UP, serverIn.read());
+
+        // The activity goes away, e.g. because of a rotation. Inputs still get through.
+        session.setListener(null);
+        session.sendDirection(CLIENT_DIR_LEFT, System.nanoTime(), System.nanoTime());
+        assertEquals(CLIENT_DIR_LEFT, serverIn.read());
+
+        // The new activity picks up where the old one left off.
+        session.setListener(new Listener());
+        session.sendDirection(CLIENT_DIR_DOWN, System.nanoTime(), System.nanoTime());
+        assertEquals(CLIENT_DIR_DOWN, serverIn.read());
+        assertFalse(session.isClosed());
+        session.close();
+        assertTrue(session.isClosed());
+    }
+
+    @Test
+    public void serverHangsUp_reportsConnectionLost() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        transport.getPeer().getOutputStream().write(1);
+        ControllerSession session = ControllerSession.join(transport);
+        assertNotNull(session);
+        Listener listener = new Listener();
+        session.setListener(listener);
+
+        transport.getPeer().close();
+        assertTrue(listener.connectionLost.await(5, TimeUnit.SECONDS));
+        assertTrue(session.isClosed());
+    }
+
+    @Test
+    public void fullGame_closesTransport() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        transport.getPeer().getOutputStream().write(SERVER_GAME_FULL_RESPONSE);
+        assertNull(ControllerSession.join(transport));
+        assertEquals(CLIENT_HELLO_V2, transport.getPeer().getInputStream().read());
+        assertEquals(-1, transport.getPeer().getInputStream().read());
+    }
+
+    @Test
+    public void droppedLink_reconnectsIntoSameSlotAndReplaysDirection() throws Exception {
+        StandInServer server = new StandInServer(4);
+        // Take slot 1 so that a fresh join would be handed a different one.
+        assertNotNull(ControllerSession.join(server.create()));
+        ControllerSession session = ControllerSession.join(server);
+        assertNotNull(session);
+        assertEquals(2, session.getPlayerNumber());
+        session.setReconnectPolicy(10, 80, 5000);
+        Listener listener = new Listener();
+        session.setListener(listener);
+
+        session.sendDirection(CLIENT_DIR_LEFT, System.nanoTime(), System.nanoTime());
+        assertTrue(server.awaitActions(2, ProtocolV2.ACTION_LEFT, 5000));
+
+        // Drop the link and fail the first few attempts, forcing the session to back off.
+        server.refuseConnections(3);
+        server.dropConnections();
+        assertTrue(listener.reconnected.await(5, TimeUnit.SECONDS));
+        assertTrue(listener.slotReclaimed);
+        assertEquals(2, session.getPlayerNumber());
+        assertEquals(1, session.getReconnectCount());
+        assertFalse(session.isReconnecting());
+
+        // The server is told the held direction again, having forgotten it when the player
+        // resumed, and new inputs go over the new link.
+        assertTrue(server.awaitActions(2, ProtocolV2.ACTION_LEFT, 5000));
+        session.sendDirection(CLIENT_DIR_UP, System.nanoTime(), System.nanoTime());
+        assertTrue(server.awaitActions(2, ProtocolV2.ACTION_UP, 5000));
+        session.close();
+    }
+
+    @Test
+    public void extraPlayer_sharesConnectionAndIsAddedBackAfterReconnecting() throws Exception {
+        StandInServer server = new StandInServer(3);
+        ControllerSession session = ControllerSession.join(server);
+        assertNotNull(session);
+        session.setReconnectPolicy(10, 80, 5000);
+        Listener listener = new Listener();
+        session.setListener(listener);
+
+        assertTrue(session.requestExtraPlayer());
+        assertTrue(listener.playersAdded.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals(2, session.getExtraPlayerNumber());
+
+        // Both players' inputs travel over the one connection.
+        long now = System.nanoTime();
+        session.sendDirection(0, CLIENT_DIR_LEFT, now, now);
+        session.sendDirection(ControllerSession.EXTRA_PLAYER_SLOT, CLIENT_DIR_RIGHT, now, now);
+        assertTrue(server.awaitActions(1, ProtocolV2.ACTION_LEFT, 5000));
+        assertTrue(server.awaitActions(2, ProtocolV2.ACTION_RIGHT, 5000));
+
+        // The stand-in server doesn't free the extra player's slot, so it comes back as player 3
+        // with its direction replayed.
+        server.dropConnections();
+        assertTrue(listener.reconnected.await(5, TimeUnit.SECONDS));
+        assertTrue(listener.playersAdded.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals(1, session.getPlayerNumber());
+        assertEquals(3, session.getExtraPlayerNumber());
+        assertTrue(server.awaitActions(3, ProtocolV2.ACTION_RIGHT, 5000));
+        session.close();
+    }
+
+    @Test
+    public void closedWhileReconnecting_closesTheNewTransport() throws Exception {
+        StandInServer server = new StandInServer(4);
+        AtomicReference<ControllerSession> reconnecting = new AtomicReference<>();
+        CountDownLatch transportClosed = new CountDownLatch(1);
+        ControllerSession session = ControllerSession.join(() -> {
+            ControllerTransport transport = server.create();
+            ControllerSession closing = reconnecting.get();
+            if (closing == null) {
+                return transport;
+            }
+            // The session is closed while the reconnecting thread creates the transport.
+            closing.close();
+            return new ClosingTransport(transport, transportClosed);
+        });
+        assertNotNull(session);
+        session.setReconnectPolicy(10, 80, 5000);
+        reconnecting.set(session);
+
+        server.dropConnections();
+        assertTrue(transportClosed.await(5, TimeUnit.SECONDS));
+        assertTrue(session.isClosed());
+    }
+
+    @Test
+    public void unreachableServer_givesUp() throws Exception {
+        StandInServer server = new StandInServer(4);
+        ControllerSession session = ControllerSession.join(server);
+        assertNotNull(session);
+        session.setReconnectPolicy(10, 20, 200);
+        Listener listener = new Listener();
+        session.setListener(listener);
+
+        server.refuseConnections(Integer.MAX_VALUE);
+        server.dropConnections();
+        assertTrue(listener.connectionLost.await(5, TimeUnit.SECONDS));
+        assertTrue(session.isClosed());
+        assertEquals(1, listener.reconnected.getCount());
+    }
+
+    /**
+     * Counts down a latch when closed.
+     */
+    private static class ClosingTransport implements ControllerTransport {
+
+        private final ControllerTransport transport;
+        private final CountDownLatch closed;
+
+        ClosingTransport(@NonNull ControllerTransport transport, @NonNull CountDownLatch closed) {
+            this.transport = transport;
+            this.closed = closed;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            transport.connect();
+        }
+
+        @NonNull
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return transport.getInputStream();
+        }
+
+        @NonNull
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return transport.getOutputStream();
+        }
+
+        @NonNull
+        @Override
+        public String getName() {
+            return transport.getName();
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed.countDown();
+            transport.close();
+        }
+    }
+}
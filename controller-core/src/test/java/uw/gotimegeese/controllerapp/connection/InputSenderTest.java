@@ -0,0 +1,136 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static org.junit.Assert.*;
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class InputSenderTest {
+
+    @Test
+    public void v1_keepsDirectionAndPauseInSubmissionOrder() throws Exception {
+        GatedOutputStream out = new GatedOutputStream();
+        InputSender sender = new InputSender(out, PROTOCOL_V1, null, 100);
+
+        // Keep the writer thread busy with a first pause, so that what follows is taken in one
+        // batch.
+        sender.sendPauseResume();
+        assertTrue(out.firstWrite.await(1, TimeUnit.SECONDS));
+        sender.sendDirection(CLIENT_DIR_UP);
+        sender.sendPauseResume();
+        sender.sendPauseResume();
+        out.gate.countDown();
+        assertArrayEquals(new byte[]{CLIENT_DIR_UP, (byte) CLIENT_ACTION_PAUSE_RESUME,
+                (byte) CLIENT_ACTION_PAUSE_RESUME}, out.awaitBytes(3));
+
+        // A direction submitted after the pause replaces the earlier one and follows the pause.
+        out.reset();
+        sender.sendPauseResume();
+        assertTrue(out.firstWrite.await(1, TimeUnit.SECONDS));
+        sender.sendDirection(CLIENT_DIR_UP);
+        sender.sendPauseResume();
+        sender.sendDirection(CLIENT_DIR_RIGHT);
+        out.gate.countDown();
+        assertArrayEquals(new byte[]{(byte) CLIENT_ACTION_PAUSE_RESUME, CLIENT_DIR_RIGHT},
+                out.awaitBytes(2));
+        sender.close();
+    }
+
+    @Test
+    public void v2_pauseFramesCarryTheDirectionHeldWhilePaused() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        InputSender sender = new InputSender(transport.getOutputStream(), PROTOCOL_V2, null, 100);
+        DataInputStream serverIn = new DataInputStream(transport.getPeer().getInputStream());
+
+        sender.sendDirection(CLIENT_DIR_LEFT);
+        assertEquals(ProtocolV2.ACTION_LEFT, _readActions(serverIn));
+        sender.setPaused(true);
+        sender.sendDirection(CLIENT_DIR_UP);
+        sender.sendPauseResume();
+        assertEquals(ProtocolV2.ACTION_UP | ProtocolV2.ACTION_PAUSE_RESUME,
+                _readActions(serverIn));
+
+        sender.close();
+        transport.close();
+    }
+
+    private static int _readActions(DataInputStream in) throws IOException {
+        byte[] frame = new byte[ProtocolV2.INPUT_FRAME_LENGTH];
+        in.readFully(frame);
+        int[] actions = new int[1];
+        new InputFrameDecoder().feed(frame, 0, frame.length, new InputFrameDecoder.Callback() {
+            @Override
+            public void onInputFrame(int sequence, int timestampMicros, int frameActions) {
+                actions[0] = frameActions;
+            }
+
+            @Override
+            public void onPingFrame(int sequence, int clientTimeMicros) {}
+
+            @Override
+            public void onAddPlayerFrame(int slot) {}
+        });
+        return actions[0];
+    }
+
+    /**
+     * Blocks the first write until the gate is opened.
+     */
+    private static class GatedOutputStream extends OutputStream {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        volatile CountDownLatch firstWrite = new CountDownLatch(1);
+        volatile CountDownLatch gate = new CountDownLatch(1);
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            CountDownLatch firstWrite = this.firstWrite;
+            if (firstWrite.getCount() > 0) {
+                firstWrite.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException ex) {
+                    throw new AssertionError(ex);
+                }
+            }
+            synchronized (bytes) {
+                bytes.write(b, off, len);
+                bytes.notifyAll();
+            }
+        }
+
+        void reset() {
+            synchronized (bytes) {
+                bytes.reset();
+            }
+            gate = new CountDownLatch(1);
+            firstWrite = new CountDownLatch(1);
+        }
+
+        /**
+         * Waits for {@code count} bytes past the first write and returns everything written.
+         */
+        byte[] awaitBytes(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 1000;
+            synchronized (bytes) {
+                while (bytes.size() < 1 + count && System.currentTimeMillis() < deadline) {
+                    bytes.wait(50);
+                }
+                return Arrays.copyOfRange(bytes.toByteArray(), 1, bytes.size());
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static org.junit.Assert.*;
+import static uw.gotimegeese.controllerapp.Constants.*;
+import static uw.gotimegeese.controllerapp.connection.InputShaper.*;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+
+public class InputShaperTest {
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void disabled_sendsEverything() {
+        InputShaper shaper = new InputShaper(1);
+        assertFalse(shaper.isEnabled());
+        assertEquals(SEND_NOW, shaper.offer(0, CLIENT_DIR_UP, 0));
+        assertEquals(SEND_NOW, shaper.offer(0, CLIENT_DIR_RIGHT, 1));
+        assertEquals(SEND_NOW, shaper.offer(0, CLIENT_DIR_UP, 2));
+        assertEquals(3, shaper.getDeliveredCount());
+    }
+
+    @Test
+    public void flipWindow_suppressesFlipFlopsAndDeliversFinalState() {
+        InputShaper shaper = new InputShaper(1);
+        shaper.configure(0, 80);
+        assertEquals(SEND_NOW, shaper.offer(0, CLIENT_DIR_UP, 0));
+
+        // A change to a new direction goes out right away.
+        assertEquals(SEND_NOW, shaper.offer(0, CLIENT_DIR_RIGHT, 10 * MS));
+
+        // Flipping back is held until the window has passed, and dropped if the thumb flips
+        // again in the meantime.
+        assertEquals(HOLD, shaper.offer(0, CLIENT_DIR_UP, 20 * MS));
+        assertEquals(90 * MS, shaper.getHoldUntilNanos());
+        assertEquals(SUPPRESS, shaper.offer(0, CLIENT_DIR_RIGHT, 30 * MS));
+        assertEquals(HOLD, shaper.offer(0, CLIENT_DIR_UP, 40 * MS));
+        assertEquals(90 * MS, shaper.getHoldUntilNanos());
+
+        // Once the window passed, the final state is delivered.
+        assertEquals(SEND_NOW, shaper.offer(0, CLIENT_DIR_UP, 90 * MS));
+        assertEquals(3, shaper.getDeliveredCount());
+        assertEquals(1, shaper.getDeferredCount());
+        assertEquals(1, shaper.getSuppressedCount());
+
+        // Releasing is never mistaken for a flip.
+        assertEquals(SEND_NOW, shaper.offer(0, CLIENT_DIR_NEUTRAL, 95 * MS));
+        assertEquals(SEND_NOW, shaper.offer(0, CLIENT_DIR_UP, 96 * MS));
+        assertEquals(SEND_NOW, shaper.offer(0, CLIENT_DIR_NEUTRAL, 97 * MS));
+    }
+
+    @Test
+    public void minInterval_limitsRatePerSlot() {
+        InputShaper shaper = new InputShaper(2);
+        shaper.configure(16, 0);
+        assertEquals(SEND_NOW, shaper.offer(0, CLIENT_DIR_UP, 0));
+        assertEquals(SEND_NOW, shaper.offer(1, CLIENT_DIR_UP, MS));
+        assertEquals(HOLD, shaper.offer(0, CLIENT_DIR_LEFT, 5 * MS));
+        assertEquals(16 * MS, shaper.getHoldUntilNanos());
+        assertEquals(SEND_NOW, shaper.offer(0, CLIENT_DIR_LEFT, 16 * MS));
+        assertEquals(1, shaper.getDeferredCount());
+    }
+
+    @Test
+    public void deferredCount_ignoresUpdatesReplacingAHeldOne() {
+        InputShaper shaper = new InputShaper(1);
+        shaper.configure(16, 0);
+        assertEquals(SEND_NOW, shaper.offer(0, CLIENT_DIR_UP, 0));
+        assertEquals(HOLD, shaper.offer(0, CLIENT_DIR_LEFT, 5 * MS));
+
+        // A newer direction replaced the held one once the interval passed, and went out at once.
+        assertEquals(SEND_NOW, shaper.offer(0, CLIENT_DIR_DOWN, 16 * MS));
+        assertEquals(0, shaper.getDeferredCount());
+        assertEquals(2, shaper.getDeliveredCount());
+    }
+
+    @Test
+    public void sender_deliversHeldDirectionOnceWindowPassed() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        InputSender sender = new InputSender(transport.getOutputStream(), PROTOCOL_V1, null, 100);
+        sender.setShaping(0, 200);
+        InputStream serverIn = transport.getPeer().getInputStream();
+
+        sender.sendDirection(CLIENT_DIR_UP);
+        assertEquals(CLIENT_DIR_UP, serverIn.read());
+        sender.sendDirection(CLIENT_DIR_RIGHT);
+        assertEquals(CLIENT_DIR_RIGHT, serverIn.read());
+        long start = System.nanoTime();
+        sender.sendDirection(CLIENT_DIR_UP);
+        sender.sendDirection(CLIENT_DIR_RIGHT);
+        sender.sendDirection(CLIENT_DIR_UP);
+
+        assertEquals(CLIENT_DIR_UP, serverIn.read());
+        long elapsedMs = (System.nanoTime() - start) / MS;
+        assertTrue("took " + elapsedMs + "ms", elapsedMs >= 150);
+        assertEquals(0, serverIn.available());
+        assertEquals(3, sender.getShaper().getDeliveredCount());
+
+        sender.close();
+        transport.close();
+    }
+}
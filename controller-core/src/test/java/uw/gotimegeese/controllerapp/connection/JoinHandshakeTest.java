@@ -0,0 +1,125 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static org.junit.Assert.*;
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Exercises the join handshake and the direction stream over the transports that don't need a
+ * Bluetooth radio.
+ */
+public class JoinHandshakeTest {
+
+    @Test
+    public void join_overLoopback_returnsPlayerNumber() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        transport.getPeer().getOutputStream().write(3);
+        JoinHandshake.Result result = JoinHandshake.join(transport, false);
+        assertFalse(result.gameFull);
+        assertEquals(3, result.playerNumber);
+        assertEquals(PROTOCOL_V1, result.protocolVersion);
+        transport.close();
+    }
+
+    @Test
+    public void join_overLoopback_detectsFullGame() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        transport.getPeer().getOutputStream().write(SERVER_GAME_FULL_RESPONSE);
+        assertTrue(JoinHandshake.join(transport, true).gameFull);
+        transport.close();
+    }
+
+    @Test
+    public void join_v2Server_negotiatesV2() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        transport.getPeer().getOutputStream().write(new byte[] {
+                (byte) (2 | SERVER_V2_ACCEPTED_FLAG), 0, 0, 0, 0, 0x12, 0x34, 0x56, 0x78});
+        JoinHandshake.Result result = JoinHandshake.join(transport, true);
+        assertEquals(CLIENT_HELLO_V2, transport.getPeer().getInputStream().read());
+        assertEquals(2, result.playerNumber);
+        assertEquals(PROTOCOL_V2, result.protocolVersion);
+        assertEquals(0x12345678L, result.resumeToken);
+        transport.close();
+    }
+
+    @Test
+    public void join_v1Server_fallsBackToV1() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        transport.getPeer().getOutputStream().write(4);
+        JoinHandshake.Result result = JoinHandshake.join(transport, true);
+        assertEquals(4, result.playerNumber);
+        assertEquals(PROTOCOL_V1, result.protocolVersion);
+        transport.close();
+    }
+
+    @Test
+    public void resume_sendsTokenAndReadsNewOne() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        transport.getPeer().getOutputStream().write(new byte[] {
+                (byte) (3 | SERVER_V2_ACCEPTED_FLAG), (byte) 0xff, 0, 0, 0, 0, 0, 0, 1});
+        JoinHandshake.Result result = JoinHandshake.resume(transport, 0x0102030405060708L);
+
+        InputStream serverIn = transport.getPeer().getInputStream();
+        assertEquals(CLIENT_HELLO_RESUME, serverIn.read());
+        assertEquals(0x0102030405060708L, JoinHandshake.readResumeToken(serverIn));
+        assertEquals(3, result.playerNumber);
+        assertEquals(PROTOCOL_V2, result.protocolVersion);
+        assertEquals(0xff00000000000001L, result.resumeToken);
+        transport.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void join_serverHangsUp_throws() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        transport.getPeer().close();
+        JoinHandshake.join(transport, false);
+    }
+
+    @Test
+    public void directions_overLoopback_arriveInOrder() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        transport.getPeer().getOutputStream().write(1);
+        assertEquals(1, JoinHandshake.join(transport, false).playerNumber);
+
+        InputSender sender = new InputSender(transport.getOutputStream(), PROTOCOL_V1, null, 100);
+        InputStream serverIn = transport.getPeer().getInputStream();
+        int[] directions = {CLIENT_DIR_UP, CLIENT_DIR_RIGHT, CLIENT_DIR_DOWN, CLIENT_DIR_NEUTRAL};
+        for (int direction : directions) {
+            sender.sendDirection(direction);
+            assertEquals(direction, serverIn.read());
+        }
+        sender.sendPauseResume();
+        assertEquals(CLIENT_ACTION_PAUSE_RESUME, serverIn.read());
+
+        sender.close();
+        transport.close();
+    }
+
+    @Test
+    public void join_overTcp_returnsPlayerNumber() throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            Thread server = new Thread(() -> {
+                try (Socket client = serverSocket.accept()) {
+                    client.getOutputStream().write(2);
+                    // Echo the first input back so the client knows it arrived.
+                    client.getOutputStream().write(client.getInputStream().read());
+                } catch (IOException ignored) {}
+            });
+            server.start();
+
+            TcpTransport transport = new TcpTransport("127.0.0.1", serverSocket.getLocalPort(),
+                    1000);
+            assertEquals(2, JoinHandshake.join(transport, false).playerNumber);
+            transport.getOutputStream().write(CLIENT_DIR_LEFT);
+            assertEquals(CLIENT_DIR_LEFT, transport.getInputStream().read());
+            transport.close();
+            server.join();
+        }
+    }
+}
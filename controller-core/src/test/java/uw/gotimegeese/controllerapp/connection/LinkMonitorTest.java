@@ -0,0 +1,155 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static org.junit.Assert.*;
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@code LinkMonitor} against a stand-in server on the other end of a loopback transport.
+ */
+public class LinkMonitorTest {
+
+    // The stand-in server's clock runs this far ahead of ours.
+    private static final int SERVER_CLOCK_OFFSET_MICROS = 5_000_000;
+
+    private static class Listener implements ServerMessageReader.Listener, LinkMonitor.Listener {
+
+        final CountDownLatch statsUpdated = new CountDownLatch(3);
+        final CountDownLatch linkDead = new CountDownLatch(1);
+        volatile LinkMonitor monitor;
+
+        @Override
+        public void onPong(int sequence, int clientTimeMicros, int serverReceiveTimeMicros,
+                           int serverSendTimeMicros) {
+            monitor.onPong(sequence, clientTimeMicros, serverReceiveTimeMicros,
+                    serverSendTimeMicros);
+        }
+
+        @Override
+        public void onServerEvent(int type, int argument) {}
+
+        @Override
+        public void onConnectionClosed(@Nullable IOException ex) {}
+
+        @Override
+        public void onLinkStatsUpdated(@NonNull LinkMonitor monitor) {
+            statsUpdated.countDown();
+        }
+
+        @Override
+        public void onLinkDead() {
+            linkDead.countDown();
+        }
+    }
+
+    @Test
+    public void pongs_yieldRttAndClockOffset() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        Thread server = new Thread(() -> _answerPings(transport.getPeer()));
+        server.start();
+
+        InputSender sender = new InputSender(transport.getOutputStream(), PROTOCOL_V2, null, 100);
+        Listener listener = new Listener();
+        listener.monitor = new LinkMonitor(sender, listener, 10, 1000);
+        new ServerMessageReader(transport.getInputStream(), PROTOCOL_V2, listener);
+
+        assertTrue(listener.statsUpdated.await(5, TimeUnit.SECONDS));
+        LinkMonitor monitor = listener.monitor;
+        assertTrue(monitor.getLastRttMicros() >= 0);
+        assertTrue(monitor.getLastRttMicros() < 500_000);
+        assertEquals(SERVER_CLOCK_OFFSET_MICROS, monitor.getClockOffsetMicros(),
+                monitor.getLastRttMicros() + 1000);
+
+        monitor.close();
+        sender.close();
+        transport.close();
+        server.join();
+    }
+
+    @Test
+    public void silentServer_isDetectedWithinTimeout() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        InputSender sender = new InputSender(transport.getOutputStream(), PROTOCOL_V2, null, 100);
+        Listener listener = new Listener();
+        long start = System.nanoTime();
+        listener.monitor = new LinkMonitor(sender, listener, 10, 200);
+
+        assertTrue(listener.linkDead.await(5, TimeUnit.SECONDS));
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        assertTrue("took " + elapsedMs + "ms", elapsedMs >= 200 && elapsedMs < 1000);
+
+        sender.close();
+        transport.close();
+    }
+
+    @Test
+    public void pongs_notAnsweringAnOutstandingPingAreIgnored() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        InputSender sender = new InputSender(transport.getOutputStream(), PROTOCOL_V2, null, 100);
+        Listener listener = new Listener();
+        // Long enough an interval that only the first ping is sent.
+        LinkMonitor monitor = new LinkMonitor(sender, listener, 60_000, 120_000);
+        listener.monitor = monitor;
+        byte[] ping = new byte[ProtocolV2.PING_FRAME_LENGTH];
+        new DataInputStream(transport.getPeer().getInputStream()).readFully(ping);
+
+        int now = ProtocolV2.toFrameTimestamp(System.nanoTime());
+        // Not sent yet.
+        monitor.onPong(1, now, now, now);
+        assertEquals(0, monitor.getPongCount());
+        monitor.onPong(0, now, now, now);
+        assertEquals(1, monitor.getPongCount());
+        // Already answered.
+        monitor.onPong(0, now, now, now);
+        assertEquals(1, monitor.getPongCount());
+        assertEquals(2, monitor.getIgnoredPongCount());
+
+        monitor.close();
+        sender.close();
+        transport.close();
+    }
+
+    /**
+     * Decodes the client's frames and answers every ping with a pong, stamped with a clock that
+     * runs {@code SERVER_CLOCK_OFFSET_MICROS} ahead of the client's.
+     */
+    private static void _answerPings(LoopbackTransport transport) {
+        try {
+            InputStream in = transport.getInputStream();
+            OutputStream out = transport.getOutputStream();
+            byte[] readBuf = new byte[64], pong = new byte[ProtocolV2.PONG_FRAME_LENGTH];
+            InputFrameDecoder decoder = new InputFrameDecoder();
+            int len;
+            while ((len = in.read(readBuf)) != -1) {
+                decoder.feed(readBuf, 0, len, new InputFrameDecoder.Callback() {
+                    @Override
+                    public void onInputFrame(int sequence, int timestampMicros, int actions) {}
+
+                    @Override
+                    public void onPingFrame(int sequence, int clientTimeMicros) {
+                        int now = ProtocolV2.toFrameTimestamp(System.nanoTime())
+                                + SERVER_CLOCK_OFFSET_MICROS;
+                        ProtocolV2.encodePong(pong, 0, sequence, clientTimeMicros, now, now);
+                        try {
+                            out.write(pong);
+                        } catch (IOException ignored) {}
+                    }
+
+                    @Override
+                    public void onAddPlayerFrame(int slot) {}
+                });
+            }
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,207 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static org.junit.Assert.*;
+import static uw.gotimegeese.controllerapp.Constants.*;
+import static uw.gotimegeese.controllerapp.connection.ProtocolV2.*;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ProtocolV2Test {
+
+    private static class RecordingCallback implements InputFrameDecoder.Callback {
+
+        final List<int[]> frames = new ArrayList<>();
+        final List<int[]> pings = new ArrayList<>();
+        final List<Integer> addedSlots = new ArrayList<>();
+
+        @Override
+        public void onInputFrame(int sequence, int timestampMicros, int actions) {
+            frames.add(new int[]{sequence, timestampMicros, actions});
+        }
+
+        @Override
+        public void onPingFrame(int sequence, int clientTimeMicros) {
+            pings.add(new int[]{sequence, clientTimeMicros});
+        }
+
+        @Override
+        public void onAddPlayerFrame(int slot) {
+            addedSlots.add(slot);
+        }
+    }
+
+    @Test
+    public void encodeDecode_roundTrips() {
+        byte[] buf = new byte[INPUT_FRAME_LENGTH];
+        assertEquals(INPUT_FRAME_LENGTH, encodeInput(buf, 0, 0xfffe, 0x89abcdef,
+                ACTION_LEFT | ACTION_PAUSE_RESUME));
+
+        RecordingCallback callback = new RecordingCallback();
+        new InputFrameDecoder().feed(buf, 0, buf.length, callback);
+        assertEquals(1, callback.frames.size());
+        assertArrayEquals(new int[]{0xfffe, 0x89abcdef, ACTION_LEFT | ACTION_PAUSE_RESUME},
+                callback.frames.get(0));
+    }
+
+    @Test
+    public void decoder_reassemblesSplitFramesAndSkipsGarbage() {
+        byte[] buf = new byte[2 * INPUT_FRAME_LENGTH + 1];
+        buf[0] = 42;
+        encodeInput(buf, 1, 1, 100, ACTION_UP);
+        encodeInput(buf, 1 + INPUT_FRAME_LENGTH, 2, 200, ACTION_DOWN);
+
+        RecordingCallback callback = new RecordingCallback();
+        InputFrameDecoder decoder = new InputFrameDecoder();
+        for (int i = 0; i < buf.length; i++) {
+            decoder.feed(buf, i, 1, callback);
+        }
+        assertEquals(2, callback.frames.size());
+        assertEquals(CLIENT_DIR_UP, directionForActions(callback.frames.get(0)[2]));
+        assertEquals(CLIENT_DIR_DOWN, directionForActions(callback.frames.get(1)[2]));
+        assertEquals(1, decoder.getSkippedBytes());
+    }
+
+    @Test
+    public void decoder_separatesPingsFromInputs() {
+        byte[] buf = new byte[INPUT_FRAME_LENGTH + PING_FRAME_LENGTH];
+        encodePing(buf, 0, 7, -5);
+        encodeInput(buf, PING_FRAME_LENGTH, 8, 100, ACTION_UP);
+
+        RecordingCallback callback = new RecordingCallback();
+        new InputFrameDecoder().feed(buf, 0, buf.length, callback);
+        assertEquals(1, callback.pings.size());
+        assertArrayEquals(new int[]{7, -5}, callback.pings.get(0));
+        assertEquals(1, callback.frames.size());
+    }
+
+    @Test
+    public void serverDecoder_decodesEventsAndPongs() {
+        byte[] buf = new byte[EVENT_FRAME_LENGTH + PONG_FRAME_LENGTH + EVENT_FRAME_LENGTH];
+        int off = encodeEvent(buf, 0, EVENT_PAUSE_STATE, 1);
+        off += encodePong(buf, off, 3, 10, 20, 30);
+        encodeEvent(buf, off, EVENT_VIBRATE, 300);
+
+        List<int[]> received = new ArrayList<>();
+        new ServerMessageDecoder().feed(buf, 0, buf.length, new ServerMessageDecoder.Callback() {
+            @Override
+            public void onPong(int sequence, int clientTimeMicros, int serverReceiveTimeMicros,
+                               int serverSendTimeMicros) {
+                received.add(new int[]{sequence, clientTimeMicros, serverReceiveTimeMicros,
+                        serverSendTimeMicros});
+            }
+
+            @Override
+            public void onServerEvent(int type, int argument) {
+                received.add(new int[]{type, argument});
+            }
+        });
+        assertEquals(3, received.size());
+        assertArrayEquals(new int[]{EVENT_PAUSE_STATE, 1}, received.get(0));
+        assertArrayEquals(new int[]{3, 10, 20, 30}, received.get(1));
+        assertArrayEquals(new int[]{EVENT_VIBRATE, 300}, received.get(2));
+    }
+
+    @Test
+    public void sender_whilePaused_holdsDirectionsUntilResumed() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        InputSender sender = new InputSender(transport.getOutputStream(), PROTOCOL_V1, null, 100);
+        InputStream serverIn = transport.getPeer().getInputStream();
+
+        sender.setPaused(true);
+        sender.sendDirection(CLIENT_DIR_UP);
+        sender.sendDirection(CLIENT_DIR_LEFT);
+        sender.sendPauseResume();
+        assertEquals(CLIENT_ACTION_PAUSE_RESUME, serverIn.read());
+        Thread.sleep(50);
+        assertEquals(0, serverIn.available());
+
+        sender.setPaused(false);
+        assertEquals(CLIENT_DIR_LEFT, serverIn.read());
+        assertEquals(2, sender.getHeldWhilePausedCount());
+
+        sender.close();
+        transport.close();
+    }
+
+    @Test
+    public void isNewer_handlesWrapAround() {
+        assertTrue(InputFrameDecoder.isNewer(1, 0));
+        assertTrue(InputFrameDecoder.isNewer(0, 0xffff));
+        assertFalse(InputFrameDecoder.isNewer(0xffff, 0));
+        assertFalse(InputFrameDecoder.isNewer(5, 5));
+    }
+
+    @Test
+    public void sender_inV2Mode_writesFramesCarryingHeldDirection() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        InputSender sender = new InputSender(transport.getOutputStream(), PROTOCOL_V2, null, 100);
+        InputStream serverIn = transport.getPeer().getInputStream();
+        RecordingCallback callback = new RecordingCallback();
+        InputFrameDecoder decoder = new InputFrameDecoder();
+        byte[] frame = new byte[INPUT_FRAME_LENGTH];
+
+        sender.sendDirection(CLIENT_DIR_RIGHT);
+        _readFully(serverIn, frame);
+        decoder.feed(frame, 0, frame.length, callback);
+        sender.sendPauseResume();
+        _readFully(serverIn, frame);
+        decoder.feed(frame, 0, frame.length, callback);
+
+        assertEquals(2, callback.frames.size());
+        assertEquals(0, callback.frames.get(0)[0]);
+        assertEquals(ACTION_RIGHT, callback.frames.get(0)[2]);
+        assertEquals(1, callback.frames.get(1)[0]);
+        assertEquals(ACTION_RIGHT | ACTION_PAUSE_RESUME, callback.frames.get(1)[2]);
+
+        sender.close();
+        transport.close();
+    }
+
+    @Test
+    public void sender_inV2Mode_multiplexesSlots() throws Exception {
+        LoopbackTransport transport = LoopbackTransport.createPair("test");
+        InputSender sender = new InputSender(transport.getOutputStream(), PROTOCOL_V2, null, 100);
+        InputStream serverIn = transport.getPeer().getInputStream();
+        RecordingCallback callback = new RecordingCallback();
+        InputFrameDecoder decoder = new InputFrameDecoder();
+
+        sender.sendAddPlayer(1);
+        byte[] addPlayer = new byte[ADD_PLAYER_FRAME_LENGTH];
+        _readFully(serverIn, addPlayer);
+        decoder.feed(addPlayer, 0, addPlayer.length, callback);
+        assertEquals(Collections.singletonList(1), callback.addedSlots);
+
+        // Directions of different slots are never coalesced with each other.
+        sender.setPaused(true);
+        sender.sendDirection(0, CLIENT_DIR_UP, 0, 0);
+        sender.sendDirection(1, CLIENT_DIR_LEFT, 0, 0);
+        sender.sendDirection(1, CLIENT_DIR_DOWN, 0, 0);
+        sender.setPaused(false);
+        byte[] frames = new byte[2 * INPUT_FRAME_LENGTH];
+        _readFully(serverIn, frames);
+        decoder.feed(frames, 0, frames.length, callback);
+
+        assertEquals(2, callback.frames.size());
+        assertEquals(0, slotForActions(callback.frames.get(0)[2]));
+        assertEquals(CLIENT_DIR_UP, directionForActions(callback.frames.get(0)[2]));
+        assertEquals(1, slotForActions(callback.frames.get(1)[2]));
+        assertEquals(CLIENT_DIR_DOWN, directionForActions(callback.frames.get(1)[2]));
+
+        sender.close();
+        transport.close();
+    }
+
+    private static void _readFully(InputStream in, byte[] buf) throws Exception {
+        int off = 0;
+        while (off < buf.length) {
+            int n = in.read(buf, off, buf.length - off);
+            assertNotEquals(-1, n);
+            off += n;
+        }
+    }
+}
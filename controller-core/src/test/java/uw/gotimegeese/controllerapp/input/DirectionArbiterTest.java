@@ -0,0 +1,43 @@
+package uw.gotimegeese.controllerapp.input;
+
+import static org.junit.Assert.*;
+import static uw.gotimegeese.controllerapp.input.DirectionClassifier.*;
+
+import org.junit.Test;
+
+public class DirectionArbiterTest {
+
+    private static final int TOUCH = 0, GAMEPAD = 1;
+
+    @Test
+    public void sameDirectionFromTwoSources_isOnlyReportedOnce() {
+        DirectionArbiter arbiter = new DirectionArbiter(2);
+        assertTrue(arbiter.update(TOUCH, DIR_UP, 10));
+        assertFalse(arbiter.update(GAMEPAD, DIR_UP, 20));
+        assertEquals(1, arbiter.getDuplicateCount());
+        assertEquals(10, arbiter.getChangeTimeNanos());
+
+        // Still held on the gamepad, so letting go of the screen changes nothing.
+        assertFalse(arbiter.update(TOUCH, DIR_NONE, 30));
+        assertTrue(arbiter.update(GAMEPAD, DIR_NONE, 40));
+        assertEquals(DIR_NONE, arbiter.getDirection());
+        assertEquals(40, arbiter.getChangeTimeNanos());
+    }
+
+    @Test
+    public void newestSourceWins_andHandsBackOnRelease() {
+        DirectionArbiter arbiter = new DirectionArbiter(2);
+        arbiter.update(TOUCH, DIR_LEFT, 10);
+        assertTrue(arbiter.update(GAMEPAD, DIR_DOWN, 20));
+        assertEquals(DIR_DOWN, arbiter.getDirection());
+
+        // The screen changing direction takes over again.
+        assertTrue(arbiter.update(TOUCH, DIR_RIGHT, 30));
+        assertEquals(DIR_RIGHT, arbiter.getDirection());
+
+        // Once the screen is released, the gamepad's direction is still held.
+        assertTrue(arbiter.update(TOUCH, DIR_NONE, 40));
+        assertEquals(DIR_DOWN, arbiter.getDirection());
+        assertEquals(40, arbiter.getChangeTimeNanos());
+    }
+}
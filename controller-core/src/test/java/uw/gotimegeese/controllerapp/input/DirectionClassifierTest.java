@@ -0,0 +1,190 @@
+package uw.gotimegeese.controllerapp.input;
+
+import static org.junit.Assert.*;
+import static uw.gotimegeese.controllerapp.Constants.*;
+import static uw.gotimegeese.controllerapp.input.DirectionClassifier.*;
+
+import org.junit.Test;
+
+/**
+ * Replays a synthetic touch stream, sampled at 240Hz and delivered in batches once per 60Hz
+ * frame the way Android batches {@code ACTION_MOVE}s, to compare how precisely the direction
+ * change is timed when only the newest sample of each batch is looked at versus when the
+ * historical samples are walked as well.
+ */
+public class DirectionClassifierTest {
+
+    private static final long SAMPLE_INTERVAL_NANOS = 1_000_000_000L / 240;
+    private static final int SAMPLES_PER_FRAME = 4;
+
+    @Test
+    public void classify_picksDominantAxis() {
+        assertEquals(DIR_RIGHT, classify(10, 5));
+        assertEquals(DIR_LEFT, classify(-10, 5));
+        assertEquals(DIR_DOWN, classify(5, 10));
+        assertEquals(DIR_UP, classify(5, -10));
+    }
+
+    @Test
+    public void toClientDirection_mapsEveryDirection() {
+        assertEquals(CLIENT_DIR_DOWN, toClientDirection(DIR_DOWN));
+        assertEquals(CLIENT_DIR_RIGHT, toClientDirection(DIR_RIGHT));
+        assertEquals(CLIENT_DIR_UP, toClientDirection(DIR_UP));
+        assertEquals(CLIENT_DIR_LEFT, toClientDirection(DIR_LEFT));
+        assertEquals(CLIENT_DIR_NEUTRAL, toClientDirection(DIR_NONE));
+    }
+
+    @Test
+    public void onSample_ignoresMovesBelowPrecision() {
+        DirectionClassifier classifier = _newClassifier();
+        assertTrue(classifier.onSample(100, 180, 0));
+        assertFalse(classifier.onSample(101, 181, 1));
+        assertEquals(DIR_DOWN, classifier.getDirection());
+        assertEquals(2, classifier.getSampleCount());
+        assertEquals(1, classifier.getIgnoredSampleCount());
+        assertTrue(classifier.onRelease(2));
+        assertEquals(DIR_NONE, classifier.getDirection());
+    }
+
+    @Test
+    public void replay_walkingHistoricalSamples_reducesDetectionDelay() {
+        long maxDelayWithHistory = 0, maxDelayLatestOnly = 0;
+
+        // Try every phase of the crossing relative to the frame boundary.
+        for (int phase = 0; phase < SAMPLES_PER_FRAME; phase++) {
+            float[][] samples = _sweepFromDownToRight(phase);
+            long crossingNanos = _firstSampleInDirection(samples, DIR_RIGHT) * SAMPLE_INTERVAL_NANOS;
+
+            maxDelayWithHistory = Math.max(maxDelayWithHistory,
+                    _replay(samples, true) - crossingNanos);
+            maxDelayLatestOnly = Math.max(maxDelayLatestOnly,
+                    _replay(samples, false) - crossingNanos);
+        }
+
+        assertEquals(0, maxDelayWithHistory);
+        assertEquals((SAMPLES_PER_FRAME - 1) * SAMPLE_INTERVAL_NANOS, maxDelayLatestOnly);
+    }
+
+    @Test
+    public void hysteresis_preventsFlappingAtTheDiagonal() {
+        DirectionClassifier plain = _newClassifier();
+        DirectionClassifier damped = _newClassifier();
+        damped.setHysteresis(0.15f);
+
+        // A thumb jittering by a few pixels around the down-right diagonal.
+        int plainChanges = 0, dampedChanges = 0;
+        for (int i = 0; i < 20; i++) {
+            float jitter = i % 2 == 0 ? 3 : -3;
+            if (plain.onSample(160 + jitter, 160 - jitter, i)) {
+                plainChanges++;
+            }
+            if (damped.onSample(160 + jitter, 160 - jitter, i)) {
+                dampedChanges++;
+            }
+        }
+        assertEquals(20, plainChanges);
+        assertEquals(1, dampedChanges);
+    }
+
+    @Test
+    public void deadZone_keepsDirectionNearTheCenter() {
+        DirectionClassifier classifier = _newClassifier();
+        classifier.setDeadZone(20);
+        classifier.onSample(100, 150, 0);
+        assertEquals(DIR_DOWN, classifier.getDirection());
+        classifier.onSample(110, 95, 1);
+        assertEquals(DIR_DOWN, classifier.getDirection());
+        classifier.onSample(150, 95, 2);
+        assertEquals(DIR_RIGHT, classifier.getDirection());
+    }
+
+    @Test
+    public void prediction_reportsChangeBeforeTheCrossing() {
+        DirectionClassifier predictive = _newClassifier();
+        predictive.setPrediction(true, 24_000_000L, 0.3f);
+
+        float[][] samples = _sweepFromDownToRight(0);
+        long crossingNanos = _firstSampleInDirection(samples, DIR_RIGHT) * SAMPLE_INTERVAL_NANOS;
+        long reportedNanos = -1;
+        for (int i = 0; i < samples.length; i++) {
+            predictive.onSample(samples[i][0], samples[i][1], i * SAMPLE_INTERVAL_NANOS);
+            if (reportedNanos == -1 && predictive.getDirection() == DIR_RIGHT) {
+                reportedNanos = predictive.getChangeTimeNanos();
+            }
+        }
+        assertTrue(reportedNanos < crossingNanos);
+        assertEquals(1, predictive.getPredictedCount());
+
+        // The finger followed through, so nothing got corrected.
+        assertEquals(1, predictive.getConfirmedCount());
+        assertEquals(0, predictive.getCorrectedCount());
+    }
+
+    @Test
+    public void prediction_isCorrectedWhenTheFingerStops() {
+        DirectionClassifier predictive = _newClassifier();
+        predictive.setPrediction(true, 24_000_000L, 0.3f);
+
+        // Start the sweep, but stop just short of the diagonal and hold still.
+        float[][] samples = _sweepFromDownToRight(0);
+        int stop = _firstSampleInDirection(samples, DIR_RIGHT) - 1;
+        for (int i = 0; i <= stop; i++) {
+            predictive.onSample(samples[i][0], samples[i][1], i * SAMPLE_INTERVAL_NANOS);
+        }
+        assertEquals(DIR_RIGHT, predictive.getDirection());
+        for (int i = 1; i <= 8; i++) {
+            predictive.onSample(samples[stop][0] - i * 2, samples[stop][1] + i * 2,
+                    (stop + i) * SAMPLE_INTERVAL_NANOS);
+        }
+        assertEquals(DIR_DOWN, predictive.getDirection());
+        assertEquals(1, predictive.getCorrectedCount());
+    }
+
+    private static DirectionClassifier _newClassifier() {
+        DirectionClassifier classifier = new DirectionClassifier();
+        classifier.setCenter(100, 100);
+        classifier.setPrecision(1.5f);
+        return classifier;
+    }
+
+    /**
+     * Returns samples of a finger sliding from the bottom arm of the pad to the right arm, padded
+     * with {@code phase} extra samples at the start to shift the crossing within a frame.
+     */
+    private static float[][] _sweepFromDownToRight(int phase) {
+        int count = 24 + phase;
+        float[][] samples = new float[count][];
+        for (int i = 0; i < count; i++) {
+            float t = Math.max(0, i - phase) / 23f;
+            samples[i] = new float[]{100 + 80 * t, 180 - 80 * t};
+        }
+        return samples;
+    }
+
+    private static int _firstSampleInDirection(float[][] samples, int direction) {
+        for (int i = 0; i < samples.length; i++) {
+            if (classify(samples[i][0] - 100, samples[i][1] - 100) == direction) {
+                return i;
+            }
+        }
+        throw new AssertionError();
+    }
+
+    /**
+     * Feeds the samples through a classifier in frame-sized batches and returns the timestamp
+     * reported for the change to {@code DIR_RIGHT}.
+     */
+    private static long _replay(float[][] samples, boolean walkHistory) {
+        DirectionClassifier classifier = _newClassifier();
+        for (int end = SAMPLES_PER_FRAME; end <= samples.length; end += SAMPLES_PER_FRAME) {
+            int start = walkHistory ? end - SAMPLES_PER_FRAME : end - 1;
+            for (int i = start; i < end; i++) {
+                classifier.onSample(samples[i][0], samples[i][1], i * SAMPLE_INTERVAL_NANOS);
+            }
+            if (classifier.getDirection() == DIR_RIGHT) {
+                return classifier.getChangeTimeNanos();
+            }
+        }
+        throw new AssertionError("Never detected the change");
+    }
+}
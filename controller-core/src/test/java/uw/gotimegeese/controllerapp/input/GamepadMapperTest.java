@@ -0,0 +1,79 @@
+package uw.gotimegeese.controllerapp.input;
+
+import static org.junit.Assert.*;
+import static uw.gotimegeese.controllerapp.input.DirectionClassifier.*;
+import static uw.gotimegeese.controllerapp.input.GamepadMapper.*;
+
+import org.junit.Test;
+
+/**
+ * Feeds synthetic key and joystick events, as {@code GameActivity} extracts them from Android's
+ * {@code KeyEvent}s and {@code MotionEvent}s.
+ */
+public class GamepadMapperTest {
+
+    @Test
+    public void buttons_newestHeldButtonWins_andRepeatsAreIgnored() {
+        GamepadMapper mapper = new GamepadMapper();
+        assertTrue(mapper.onButton(BUTTON_LEFT, true, 10));
+        assertFalse(mapper.onButton(BUTTON_LEFT, true, 15));
+        assertTrue(mapper.onButton(BUTTON_UP, true, 20));
+        assertEquals(DIR_UP, mapper.getDirection());
+
+        assertTrue(mapper.onButton(BUTTON_UP, false, 30));
+        assertEquals(DIR_LEFT, mapper.getDirection());
+        assertEquals(30, mapper.getChangeTimeNanos());
+        assertTrue(mapper.onButton(BUTTON_LEFT, false, 40));
+        assertEquals(DIR_NONE, mapper.getDirection());
+    }
+
+    @Test
+    public void hat_mapsToDirections() {
+        GamepadMapper mapper = new GamepadMapper();
+        assertTrue(mapper.onAxes(0, -1, 0, 0, 10));
+        assertEquals(DIR_UP, mapper.getDirection());
+        assertTrue(mapper.onAxes(1, 0, 0, 0, 20));
+        assertEquals(DIR_RIGHT, mapper.getDirection());
+        assertTrue(mapper.onAxes(0, 0, 0, 0, 30));
+        assertEquals(DIR_NONE, mapper.getDirection());
+    }
+
+    @Test
+    public void stick_ignoresTheDeadZone_andReleasesBelowASmallerRadius() {
+        GamepadMapper mapper = new GamepadMapper();
+        mapper.setDeadZone(0.3f);
+        // Resting noise.
+        assertFalse(mapper.onAxes(0, 0, 0.1f, -0.2f, 10));
+        assertEquals(DIR_NONE, mapper.getDirection());
+
+        assertTrue(mapper.onAxes(0, 0, 0.05f, 0.4f, 20));
+        assertEquals(DIR_DOWN, mapper.getDirection());
+        // Drifting back inside the dead zone, but not far enough to let go.
+        assertFalse(mapper.onAxes(0, 0, 0, 0.25f, 30));
+        assertTrue(mapper.onAxes(0, 0, 0, 0.1f, 40));
+        assertEquals(DIR_NONE, mapper.getDirection());
+        assertEquals(40, mapper.getChangeTimeNanos());
+    }
+
+    @Test
+    public void stick_hasHysteresisAtTheDiagonal() {
+        GamepadMapper mapper = new GamepadMapper();
+        assertTrue(mapper.onAxes(0, 0, 0.8f, 0.1f, 10));
+        assertEquals(DIR_RIGHT, mapper.getDirection());
+        // Just past the diagonal isn't enough to switch axes.
+        assertFalse(mapper.onAxes(0, 0, 0.6f, 0.65f, 20));
+        assertTrue(mapper.onAxes(0, 0, 0.5f, 0.7f, 30));
+        assertEquals(DIR_DOWN, mapper.getDirection());
+    }
+
+    @Test
+    public void reset_releasesEverything() {
+        GamepadMapper mapper = new GamepadMapper();
+        mapper.onButton(BUTTON_RIGHT, true, 10);
+        mapper.onAxes(0, 1, 0, 0, 20);
+        assertTrue(mapper.reset(30));
+        assertEquals(DIR_NONE, mapper.getDirection());
+        // The button counts as released, so pressing it again steers.
+        assertTrue(mapper.onButton(BUTTON_RIGHT, true, 40));
+    }
+}
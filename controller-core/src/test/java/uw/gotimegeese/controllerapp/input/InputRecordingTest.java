@@ -0,0 +1,177 @@
+package uw.gotimegeese.controllerapp.input;
+
+import static org.junit.Assert.*;
+import static uw.gotimegeese.controllerapp.input.InputRecording.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class InputRecordingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip_readsBackEveryRecord() throws Exception {
+        File dir = folder.newFolder();
+        DirectionClassifier classifier = new DirectionClassifier();
+        classifier.setCenter(100, 100);
+        classifier.setHysteresis(0.15f);
+        byte[] sent = {(byte) 0xF1, 1, 2, 3, 4, 5, 6, 7};
+
+        InputRecorder recorder = new InputRecorder(dir, 64 * 1024);
+        recorder.recordConfig(classifier);
+        recorder.recordSample(10.5f, -3.25f, 1_000);
+        recorder.recordDirection(DirectionClassifier.DIR_LEFT, 900);
+        recorder.onBytesWritten(sent, 0, sent.length, 5_000);
+        recorder.recordRelease(4_000);
+        recorder.close();
+        assertEquals(5, recorder.getRecordedCount());
+        assertEquals(0, recorder.getDroppedCount());
+
+        InputRecording recording = InputRecording.read(dir);
+        assertEquals(5, recording.size());
+        assertEquals(RECORD_CONFIG, recording.getType(0));
+        DirectionClassifier replayed = new DirectionClassifier();
+        recording.applyConfig(0, replayed);
+        assertEquals(DirectionClassifier.DIR_RIGHT, _classifyOnce(replayed, 150, 100));
+
+        assertEquals(RECORD_SAMPLE, recording.getType(1));
+        assertEquals(1_000, recording.getTimeNanos(1));
+        assertEquals(10.5f, recording.getX(1), 0);
+        assertEquals(-3.25f, recording.getY(1), 0);
+
+        // Times may go backwards, e.g. when the change of direction was detected in the past.
+        assertEquals(RECORD_DIRECTION, recording.getType(2));
+        assertEquals(900, recording.getTimeNanos(2));
+        assertEquals(DirectionClassifier.DIR_LEFT, recording.getDirection(2));
+
+        assertEquals(RECORD_SENT, recording.getType(3));
+        assertEquals(5_000, recording.getTimeNanos(3));
+        byte[] bytes = new byte[recording.getSentLength(3)];
+        recording.getSentBytes(3, bytes, 0);
+        assertArrayEquals(sent, bytes);
+
+        assertEquals(RECORD_RELEASE, recording.getType(4));
+        assertEquals(4_000, recording.getTimeNanos(4));
+
+        // A recording cut short in the middle of its last record reads up to that record.
+        byte[] segment = _readFile(new File(dir, CURRENT_SEGMENT));
+        assertEquals(4, InputRecording.read(Arrays.copyOf(segment, segment.length - 1)).size());
+        assertEquals(3, InputRecording.read(Arrays.copyOf(segment, segment.length - 4)).size());
+    }
+
+    @Test
+    public void replay_reproducesRecordedDirectionsAndBytes() throws Exception {
+        File dir = folder.newFolder();
+        DirectionClassifier classifier = new DirectionClassifier();
+        classifier.setCenter(200, 200);
+        classifier.setPrecision(2);
+        classifier.setDeadZone(20);
+        classifier.setHysteresis(0.15f);
+        classifier.setPrediction(true, 24_000_000L, 0.3f);
+
+        // Record a finger circling the D-Pad twice at 240Hz, fed to the classifier the way
+        // DPadView does.
+        InputRecorder recorder = new InputRecorder(dir, 64 * 1024);
+        recorder.recordConfig(classifier);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        long time = 0;
+        for (int i = 0; i < 480; i++, time += 4_166_667) {
+            double angle = i * Math.PI / 120;
+            float x = (float) (200 + 150 * Math.cos(angle));
+            float y = (float) (200 + 150 * Math.sin(angle));
+            recorder.recordSample(x, y, time);
+            if (classifier.onSample(x, y, time)) {
+                recorder.recordDirection(classifier.getDirection(),
+                        classifier.getChangeTimeNanos());
+                byte[] frame = {(byte) 0xF1, (byte) classifier.getDirection()};
+                recorder.onBytesWritten(frame, 0, frame.length, time);
+                sent.write(frame);
+            }
+        }
+        recorder.recordRelease(time);
+        if (classifier.onRelease(time)) {
+            recorder.recordDirection(classifier.getDirection(), classifier.getChangeTimeNanos());
+        }
+        recorder.close();
+
+        InputRecording recording = InputRecording.read(dir);
+        int[] changes = {0};
+        int count = InputReplayer.replayDirections(recording, new DirectionClassifier(),
+                (direction, timeNanos) -> changes[0]++);
+        assertTrue("only " + count + " changes", count >= 8);
+        assertEquals(count, changes[0]);
+        assertEquals(0, InputReplayer.countMismatches(recording));
+
+        ByteArrayOutputStream replayed = new ByteArrayOutputStream();
+        assertEquals(sent.size(), InputReplayer.replaySent(recording, replayed, false));
+        assertArrayEquals(sent.toByteArray(), replayed.toByteArray());
+    }
+
+    @Test
+    public void rotation_boundsSizeAndKeepsNewestRecords() throws Exception {
+        File dir = folder.newFolder();
+        int maxBytes = 64 * 1024;
+        int total = 20_000;
+        InputRecorder recorder = new InputRecorder(dir, maxBytes);
+        recorder.recordConfig(new DirectionClassifier());
+        for (int i = 0; i < total; i++) {
+            recorder.recordSample(i, 0, i * 1_000_000L);
+            if (i % 500 == 0) {
+                // Give the writer thread a chance to keep up.
+                Thread.sleep(5);
+            }
+        }
+        recorder.close();
+
+        File current = new File(dir, CURRENT_SEGMENT);
+        File previous = new File(dir, PREVIOUS_SEGMENT);
+        assertTrue(previous.exists());
+        assertTrue(current.length() <= maxBytes / 2);
+        assertTrue(previous.length() <= maxBytes / 2);
+
+        // Only the newest samples are left, in order, and each segment starts with the
+        // configuration so that it can be replayed on its own.
+        InputRecording recording = InputRecording.read(dir);
+        assertEquals(RECORD_CONFIG, recording.getType(0));
+        float lastX = -1;
+        int samples = 0;
+        for (int i = 0; i < recording.size(); i++) {
+            if (recording.getType(i) == RECORD_SAMPLE) {
+                assertTrue(recording.getX(i) > lastX);
+                assertEquals((long) recording.getX(i) * 1_000_000L, recording.getTimeNanos(i));
+                lastX = recording.getX(i);
+                samples++;
+            }
+        }
+        assertTrue(samples > 0 && samples < total);
+        if (recorder.getDroppedCount() == 0) {
+            assertEquals(total - 1, lastX, 0);
+        }
+    }
+
+    private static int _classifyOnce(DirectionClassifier classifier, float x, float y) {
+        classifier.onSample(x, y, 0);
+        return classifier.getDirection();
+    }
+
+    private static byte[] _readFile(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int len = 0, n;
+            while (len < data.length && (n = in.read(data, len, data.length - len)) != -1) {
+                len += n;
+            }
+            return data;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package uw.gotimegeese.controllerapp.input;
+
+import static org.junit.Assert.*;
+import static uw.gotimegeese.controllerapp.input.DirectionClassifier.*;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Replays synthetic gravity readings, sampled at 50Hz like {@code SENSOR_DELAY_GAME} and
+ * sprinkled with the noise of a hand holding the phone, to check how quickly tilts are picked up
+ * and how steady the direction stays while the phone hovers around a threshold.
+ */
+public class TiltQuantizerTest {
+
+    private static final long SAMPLE_INTERVAL_NANOS = 20_000_000;
+    // Standard deviation of the hand's shaking, in m/s^2.
+    private static final float NOISE = 0.4f;
+
+    @Test
+    public void calibrate_takesTheRestingTiltAsNeutral() {
+        TiltQuantizer quantizer = new TiltQuantizer();
+        quantizer.calibrate();
+        // Held tilted towards the user, like phones usually are.
+        assertFalse(quantizer.onSample(0, 5, 0));
+        assertEquals(DIR_NONE, quantizer.getDirection());
+        assertEquals(5, quantizer.getOffsetY(), 0);
+
+        long t = 0;
+        while (quantizer.getDirection() == DIR_NONE) {
+            t += SAMPLE_INTERVAL_NANOS;
+            quantizer.onSample(-4, 5, t);
+        }
+        assertEquals(DIR_LEFT, quantizer.getDirection());
+        assertTrue(quantizer.reset(t));
+        assertEquals(DIR_NONE, quantizer.getDirection());
+        assertEquals(5, quantizer.getOffsetY(), 0);
+    }
+
+    @Test
+    public void replay_stepIsDetectedWithinTheFilterLag() {
+        float[][] samples = new float[50][];
+        Random random = new Random(1);
+        for (int i = 0; i < samples.length; i++) {
+            // Tilted down, i.e. the bottom edge lowered, from the tenth sample on.
+            samples[i] = new float[]{_noise(random), (i < 10 ? 0 : 4) + _noise(random)};
+        }
+        TiltQuantizer quantizer = new TiltQuantizer();
+        int[] changes = _replay(quantizer, samples);
+        assertEquals(DIR_DOWN, quantizer.getDirection());
+        assertEquals(1, quantizer.getChangeCount());
+
+        long delayNanos = quantizer.getChangeTimeNanos() - 10 * SAMPLE_INTERVAL_NANOS;
+        assertTrue("Detected after " + delayNanos / 1_000_000 + "ms",
+                delayNanos <= 4 * SAMPLE_INTERVAL_NANOS);
+        assertEquals(1, changes[DIR_DOWN]);
+    }
+
+    @Test
+    public void replay_hoveringAtTheThresholdDoesNotFlap() {
+        float[][] samples = new float[500][];
+        Random random = new Random(2);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new float[]{TiltQuantizer.DEFAULT_ENTER_THRESHOLD + _noise(random),
+                    _noise(random)};
+        }
+
+        TiltQuantizer shaped = new TiltQuantizer();
+        _replay(shaped, samples);
+        TiltQuantizer raw = new TiltQuantizer();
+        raw.setTimeConstant(0);
+        raw.setThresholds(TiltQuantizer.DEFAULT_ENTER_THRESHOLD,
+                TiltQuantizer.DEFAULT_ENTER_THRESHOLD);
+        _replay(raw, samples);
+
+        assertTrue("Changed " + shaped.getChangeCount() + " times",
+                shaped.getChangeCount() <= 4);
+        assertTrue("Changed only " + raw.getChangeCount() + " times unfiltered",
+                raw.getChangeCount() > 10 * shaped.getChangeCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setThresholds_rejectsExitAboveEnter() {
+        new TiltQuantizer().setThresholds(1, 2);
+    }
+
+    private static float _noise(Random random) {
+        return (float) random.nextGaussian() * NOISE;
+    }
+
+    /**
+     * Feeds the samples through the quantizer, which is calibrated level, and returns how many
+     * times each direction was entered.
+     */
+    private static int[] _replay(TiltQuantizer quantizer, float[][] samples) {
+        quantizer.setOffset(0, 0);
+        int[] changes = new int[4];
+        for (int i = 0; i < samples.length; i++) {
+            if (quantizer.onSample(samples[i][0], samples[i][1], i * SAMPLE_INTERVAL_NANOS)
+                    && quantizer.getDirection() != DIR_NONE) {
+                changes[quantizer.getDirection()]++;
+            }
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,33 @@
+package uw.gotimegeese.controllerapp.lobby;
+
+import androidx.annotation.NonNull;
+
+/**
+ * An {@code AdvertisementSource} fed by the test. Advertisements are delivered as the raw
+ * manufacturer specific data a scanner would see, so they go through parsing like real ones.
+ */
+class FakeAdvertisementSource implements AdvertisementSource {
+
+    private Callback callback;
+
+    @Override
+    public void start(@NonNull Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public void stop() {
+        callback = null;
+    }
+
+    /**
+     * Delivers the data as if it was heard over the air. Data that isn't a lobby advertisement is
+     * dropped, like the scanner's filter would.
+     */
+    void deliver(@NonNull byte[] data, int rssi) {
+        LobbyAdvertisement advertisement = LobbyAdvertisement.parse(data);
+        if (callback != null && advertisement != null) {
+            callback.onAdvertisement(advertisement, rssi);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package uw.gotimegeese.controllerapp.lobby;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LobbyAdvertisementTest {
+
+    @Test
+    public void encode_roundTrips() {
+        LobbyAdvertisement ad = new LobbyAdvertisement(2, 3, 4, "0A:1B:2C:3D:4E:5F", "Geese");
+        byte[] data = ad.encode();
+        assertEquals(LobbyAdvertisement.HEADER_LENGTH + 5, data.length);
+
+        LobbyAdvertisement parsed = LobbyAdvertisement.parse(data);
+        assertNotNull(parsed);
+        assertTrue(parsed.sameContents(ad));
+        assertTrue(parsed.hasOpenSlots());
+    }
+
+    @Test
+    public void encode_cutsLongNamesOnCharacterBoundaries() {
+        // Eleven ASCII characters followed by a two byte one, which doesn't fit.
+        String name = "Honk honk h\u00e9";
+        LobbyAdvertisement ad = new LobbyAdvertisement(2, 0, 4, "00:00:00:00:00:01", name);
+        byte[] data = ad.encode();
+        assertEquals(LobbyAdvertisement.HEADER_LENGTH + 11, data.length);
+        assertEquals("Honk honk h", LobbyAdvertisement.parse(data).gameName);
+    }
+
+    @Test
+    public void parse_rejectsOtherData() {
+        byte[] data = new LobbyAdvertisement(2, 4, 4, "00:00:00:00:00:01", "").encode();
+        assertNotNull(LobbyAdvertisement.parse(data));
+        assertFalse(LobbyAdvertisement.parse(data).hasOpenSlots());
+
+        assertNull(LobbyAdvertisement.parse(null));
+        assertNull(LobbyAdvertisement.parse(new byte[3]));
+        byte[] badMagic = data.clone();
+        badMagic[0] = 0;
+        assertNull(LobbyAdvertisement.parse(badMagic));
+        byte[] noCapacity = data.clone();
+        noCapacity[3] = 0;
+        assertNull(LobbyAdvertisement.parse(noCapacity));
+        int tooLong = LobbyAdvertisement.HEADER_LENGTH + LobbyAdvertisement.MAX_NAME_LENGTH + 1;
+        assertNull(LobbyAdvertisement.parse(new byte[tooLong]));
+    }
+}
@@ -0,0 +1,94 @@
+package uw.gotimegeese.controllerapp.lobby;
+
+import static org.junit.Assert.*;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class LobbyModelTest {
+
+    private static final String HOST_A = "00:00:00:00:00:0A";
+    private static final String HOST_B = "00:00:00:00:00:0B";
+
+    private long now = 1_000;
+
+    @Test
+    public void repeatedAdvertisements_onlyChangeTheLobbyOnce() {
+        LobbyModel model = new LobbyModel(5000);
+        LobbyAdvertisement ad = new LobbyAdvertisement(2, 1, 4, HOST_A, "Pond");
+        assertTrue(model.onAdvertisement(ad, -60, now));
+        assertFalse(model.onAdvertisement(ad, -58, now + 100));
+        assertFalse(model.onAdvertisement(new LobbyAdvertisement(2, 1, 4, HOST_A, "Pond"), -59,
+                now + 200));
+
+        // A player joined.
+        assertTrue(model.onAdvertisement(new LobbyAdvertisement(2, 2, 4, HOST_A, "Pond"), -59,
+                now + 300));
+        List<LobbyModel.Host> hosts = model.getHosts();
+        assertEquals(1, hosts.size());
+        assertEquals(2, hosts.get(0).advertisement.playersJoined);
+        assertEquals(now + 300, hosts.get(0).lastSeenMillis);
+    }
+
+    @Test
+    public void silentHosts_expire() {
+        LobbyModel model = new LobbyModel(5000);
+        model.onAdvertisement(new LobbyAdvertisement(2, 1, 4, HOST_A, "Pond"), -60, now);
+        model.onAdvertisement(new LobbyAdvertisement(2, 1, 4, HOST_B, "Lake"), -60, now + 3000);
+
+        assertFalse(model.expire(now + 4999));
+        assertTrue(model.expire(now + 5000));
+        assertEquals(1, model.getHosts().size());
+        assertEquals(HOST_B, model.getHosts().get(0).advertisement.hostAddress);
+        assertFalse(model.expire(now + 5000));
+    }
+
+    @Test
+    public void openGames_areListedFirst() {
+        LobbyModel model = new LobbyModel(5000);
+        model.onAdvertisement(new LobbyAdvertisement(2, 4, 4, HOST_A, "Anserine"), -60, now);
+        model.onAdvertisement(new LobbyAdvertisement(2, 0, 4, HOST_B, "Pond"), -60, now);
+        model.onAdvertisement(new LobbyAdvertisement(2, 3, 4, "00:00:00:00:00:0C", "lake"), -60,
+                now);
+
+        List<LobbyModel.Host> hosts = model.getHosts();
+        assertEquals("lake", hosts.get(0).advertisement.gameName);
+        assertEquals("Pond", hosts.get(1).advertisement.gameName);
+        assertEquals("Anserine", hosts.get(2).advertisement.gameName);
+    }
+
+    @Test
+    public void fakeSource_feedsTheModel() {
+        LobbyModel model = new LobbyModel(5000);
+        int[] changes = {0};
+        FakeAdvertisementSource source = new FakeAdvertisementSource();
+        source.start(new AdvertisementSource.Callback() {
+            @Override
+            public void onAdvertisement(@NonNull LobbyAdvertisement advertisement, int rssi) {
+                if (model.onAdvertisement(advertisement, rssi, now)) {
+                    changes[0]++;
+                }
+            }
+
+            @Override
+            public void onSourceFailed(int errorCode) {
+                fail();
+            }
+        });
+
+        byte[] data = new LobbyAdvertisement(2, 1, 4, HOST_A, "Pond").encode();
+        for (int i = 0; i < 10; i++) {
+            source.deliver(data, -60);
+        }
+        source.deliver(new byte[] {1, 2, 3}, -60);
+        assertEquals(1, changes[0]);
+        assertEquals(1, model.getHosts().size());
+
+        source.stop();
+        source.deliver(new LobbyAdvertisement(2, 1, 4, HOST_B, "Lake").encode(), -60);
+        assertEquals(1, model.getHosts().size());
+    }
+}
@@ -0,0 +1,58 @@
+package uw.gotimegeese.controllerapp.metrics;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void percentiles_areWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.recordMicros(i * 100);
+        }
+        assertEquals(1000, histogram.getTotalCount());
+        assertEquals(100_000, histogram.getMaxMicros());
+        _assertClose(50_000, histogram.getPercentileMicros(0.5));
+        _assertClose(95_000, histogram.getPercentileMicros(0.95));
+        _assertClose(99_000, histogram.getPercentileMicros(0.99));
+        assertEquals(100_000, histogram.getPercentileMicros(1));
+    }
+
+    @Test
+    public void hugeValues_areClampedButMaxIsExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordMicros(Long.MAX_VALUE / 2);
+        assertEquals(Long.MAX_VALUE / 2, histogram.getMaxMicros());
+        assertEquals(LatencyHistogram.MAX_TRACKABLE_MICROS, histogram.getPercentileMicros(0.5));
+    }
+
+    @Test
+    public void reset_clearsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordMicros(5);
+        histogram.reset();
+        assertEquals(0, histogram.getTotalCount());
+        assertEquals(0, histogram.getPercentileMicros(0.5));
+    }
+
+    @Test
+    public void add_aggregatesCountsAndMax() {
+        LatencyHistogram a = new LatencyHistogram(), b = new LatencyHistogram();
+        for (int i = 1; i <= 500; i++) {
+            a.recordMicros(i);
+            b.recordMicros(500 + i);
+        }
+        a.add(b);
+        assertEquals(1000, a.getTotalCount());
+        assertEquals(1000, a.getMaxMicros());
+        _assertClose(500, a.getPercentileMicros(0.5));
+        assertEquals(500, b.getTotalCount());
+    }
+
+    private static void _assertClose(long expected, long actual) {
+        assertTrue("expected ~" + expected + " but was " + actual,
+                actual >= expected && actual <= expected * 1.0625);
+    }
+}
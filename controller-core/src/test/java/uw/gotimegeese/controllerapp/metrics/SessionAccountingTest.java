@@ -0,0 +1,95 @@
+package uw.gotimegeese.controllerapp.metrics;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class SessionAccountingTest {
+
+    /**
+     * A clock which only moves when told to. Every thread shares the same CPU clock.
+     */
+    private static class FakeClock implements SessionAccounting.Clock {
+
+        long nanos, cpuNanos;
+
+        @Override
+        public long nanoTime() {
+            return nanos;
+        }
+
+        @Override
+        public long threadCpuNanos() {
+            return cpuNanos;
+        }
+    }
+
+    @Test
+    public void addThreadCpu_chargesTimeSinceTheLastReading() {
+        FakeClock clock = new FakeClock();
+        SessionAccounting accounting = new SessionAccounting(clock);
+
+        clock.cpuNanos = 1_000_000;
+        long mark = accounting.threadCpuNanos();
+        clock.cpuNanos = 3_000_000;
+        mark = accounting.addThreadCpu(SessionAccounting.THREAD_WRITER, mark);
+        clock.cpuNanos = 7_000_000;
+        accounting.addThreadCpu(SessionAccounting.THREAD_WRITER, mark);
+
+        assertEquals(6_000_000, accounting.getThreadCpuNanos(SessionAccounting.THREAD_WRITER));
+        assertEquals(0, accounting.getThreadCpuNanos(SessionAccounting.THREAD_UI));
+    }
+
+    @Test
+    public void finish_freezesTheDuration() {
+        FakeClock clock = new FakeClock();
+        clock.nanos = 5_000_000_000L;
+        SessionAccounting accounting = new SessionAccounting(clock);
+
+        clock.nanos += 2_000_000_000L;
+        assertEquals(2_000_000_000L, accounting.getDurationNanos());
+        accounting.finish();
+        clock.nanos += 2_000_000_000L;
+        accounting.finish();
+        assertEquals(2_000_000_000L, accounting.getDurationNanos());
+    }
+
+    @Test
+    public void report_listsEveryCounter() {
+        FakeClock clock = new FakeClock();
+        SessionAccounting accounting = new SessionAccounting(clock);
+        for (int i = 0; i < 30; i++) {
+            accounting.onRedraw();
+        }
+        accounting.addTouchSamples(10, 4);
+        accounting.onResume();
+        accounting.onWrite(8);
+        accounting.onWrite(15);
+        accounting.onWriterWakeup();
+        accounting.onRead(4);
+        clock.nanos = 10_000_000_000L;
+        accounting.finish();
+
+        StringWriter out = new StringWriter();
+        try (PrintWriter writer = new PrintWriter(out)) {
+            accounting.writeTo(writer);
+        }
+        String report = out.toString();
+        assertTrue(report.contains("duration_ms 10000\n"));
+        assertTrue(report.contains("resumes 1\n"));
+        assertTrue(report.contains("redraws 30\n"));
+        assertTrue(report.contains("touch_samples 10\n"));
+        assertTrue(report.contains("touch_samples_ignored 4\n"));
+        assertTrue(report.contains("bytes_sent 23\n"));
+        assertTrue(report.contains("writes 2\n"));
+        assertTrue(report.contains("writer_wakeups 1\n"));
+        assertTrue(report.contains("bytes_received 4\n"));
+        assertTrue(report.contains("cpu_reader_ms 0\n"));
+
+        String summary = accounting.summarize();
+        assertTrue(summary, summary.contains("redraws 30 (3.0/s), touches 6 used + 4 ignored"));
+    }
+}
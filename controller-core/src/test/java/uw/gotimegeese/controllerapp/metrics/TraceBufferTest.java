@@ -0,0 +1,63 @@
+package uw.gotimegeese.controllerapp.metrics;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class TraceBufferTest {
+
+    @Test
+    public void capacity_roundsUpToPowerOfTwo() {
+        assertEquals(8, new TraceBuffer(5).getCapacity());
+        assertEquals(4096, new TraceBuffer(TraceBuffer.DEFAULT_CAPACITY).getCapacity());
+    }
+
+    @Test
+    public void dump_showsNewestEntriesOldestFirst() {
+        TraceBuffer buffer = new TraceBuffer(4);
+        for (int i = 0; i < 6; i++) {
+            buffer.record(TraceBuffer.EVENT_DIRECTION, i * 1_000_000L, i);
+        }
+        assertEquals(4, buffer.size());
+        assertEquals(6, buffer.getRecordedCount());
+
+        String[] lines = _dump(buffer).split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("-3.000 direction 2", lines[0].trim().replaceAll("\\s+", " "));
+        assertEquals("0.000 direction 5", lines[3].trim().replaceAll("\\s+", " "));
+
+        buffer.clear();
+        assertEquals(0, buffer.size());
+        assertEquals("(trace empty)", _dump(buffer).trim());
+    }
+
+    @Test
+    public void trace_onlyRecordsWhileEnabled() {
+        TraceBuffer shared = TraceBuffer.getShared();
+        shared.clear();
+        TraceBuffer.trace(TraceBuffer.EVENT_WRITE, 8);
+        assertEquals(0, shared.size());
+
+        TraceBuffer.setEnabled(true);
+        try {
+            TraceBuffer.trace(TraceBuffer.EVENT_WRITE, 8);
+            TraceBuffer.trace(TraceBuffer.EVENT_PONG, 123L, 4500);
+        } finally {
+            TraceBuffer.setEnabled(false);
+            assertEquals(2, shared.size());
+            assertTrue(_dump(shared).contains("pong"));
+            shared.clear();
+        }
+    }
+
+    private static String _dump(TraceBuffer buffer) {
+        StringWriter text = new StringWriter();
+        PrintWriter writer = new PrintWriter(text);
+        buffer.dump(writer);
+        writer.flush();
+        return text.toString();
+    }
+}
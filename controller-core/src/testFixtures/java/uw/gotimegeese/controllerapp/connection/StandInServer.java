@@ -0,0 +1,408 @@
+package uw.gotimegeese.controllerapp.connection;
+
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import uw.gotimegeese.controllerapp.metrics.LatencyHistogram;
+
+/**
+ * A minimal game server speaking version 2 of the protocol, standing in for the real one in unit
+ * tests, the load generator and the startup benchmarks. Clients reach it through loopback
+ * transports it hands out as a {@code ControllerTransport.Factory}, or over TCP on the loopback
+ * interface once {@link #listen()} was called.
+ * <p>
+ * It assigns slots, issues and honours resume tokens, answers pings, adds players sharing a
+ * connection, and keeps per player the last actions they sent and how long their input frames
+ * took to arrive. The delivery latency is only meaningful when the client stamps its frames with
+ * the same clock, i.e. runs on the same machine. A player's last actions are forgotten whenever a
+ * client joins, resumes or is added as them, so that only frames sent since count. Slots are never
+ * freed, as if every player who left might still resume.
+ */
+public class StandInServer implements ControllerTransport.Factory, Closeable {
+
+    /**
+     * What the server saw of one player. Only written by the thread serving the player's
+     * connection.
+     */
+    public static final class PlayerStats {
+
+        public final LatencyHistogram deliveryLatency = new LatencyHistogram();
+        public volatile long framesReceived;
+        public volatile long staleFrames;
+    }
+
+    // Placeholder for "no frame received from the player since they joined".
+    private static final int NO_ACTIONS = -1;
+
+    private final int maxPlayers;
+    private final Random random = new Random();
+
+    // The following fields are guarded by this. Players are indexed by number, from 1.
+    private final Map<Long, Integer> playerForToken = new HashMap<>();
+    private final PlayerStats[] players;
+    private final int[] lastActions;
+    private final List<Closeable> connections = new ArrayList<>();
+    private final List<Thread> servingThreads = new ArrayList<>();
+    private int connectionsToRefuse;
+    private long framesReceived;
+    private ServerSocket serverSocket;
+    private boolean closed;
+
+    public StandInServer(int maxPlayers) {
+        this.maxPlayers = maxPlayers;
+        players = new PlayerStats[maxPlayers + 1];
+        lastActions = new int[maxPlayers + 1];
+        Arrays.fill(lastActions, NO_ACTIONS);
+    }
+
+    @NonNull
+    @Override
+    public ControllerTransport create() {
+        LoopbackTransport transport = LoopbackTransport.createPair("stand-in");
+        LoopbackTransport serverEnd = transport.getPeer();
+        if (_admit(serverEnd)) {
+            _startServing(serverEnd, serverEnd.getInputStream(), serverEnd.getOutputStream());
+        }
+        return transport;
+    }
+
+    /**
+     * Starts accepting TCP connections on an ephemeral port of the loopback interface, in addition
+     * to the loopback transports.
+     *
+     * @return the port.
+     */
+    public int listen() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        synchronized (this) {
+            if (closed || this.serverSocket != null) {
+                _closeQuietly(serverSocket);
+                throw new IllegalStateException(closed ? "Closed" : "Already listening");
+            }
+            this.serverSocket = serverSocket;
+        }
+        Thread thread = new Thread(() -> _accept(serverSocket), "StandInServer-accept");
+        thread.setDaemon(true);
+        thread.start();
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Makes the next {@code count} connection attempts fail right away.
+     */
+    public synchronized void refuseConnections(int count) {
+        connectionsToRefuse = count;
+    }
+
+    /**
+     * Drops every connection, as if the link went down, without freeing the slots.
+     */
+    public void dropConnections() {
+        List<Closeable> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<>(connections);
+            connections.clear();
+        }
+        for (Closeable connection : dropped) {
+            _closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Waits until {@code player} last sent {@code actions}.
+     *
+     * @return false if that didn't happen within the timeout.
+     */
+    public synchronized boolean awaitActions(int player, int actions, long timeoutMs)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (lastActions[player] != actions) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until at least {@code count} input frames were received in total, from every player.
+     *
+     * @return false if that didn't happen within the timeout.
+     */
+    public synchronized boolean awaitFramesReceived(long count, long timeoutMs)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (framesReceived < count) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of input frames received in total, from every player.
+     */
+    public synchronized long getFramesReceived() {
+        return framesReceived;
+    }
+
+    /**
+     * Returns what the server saw of the given player, or {@code null} if nobody joined as them.
+     */
+    @Nullable
+    public synchronized PlayerStats getPlayerStats(int player) {
+        return player > 0 && player <= maxPlayers ? players[player] : null;
+    }
+
+    /**
+     * Waits until every client that connected so far hung up and everything they sent was read,
+     * after which the players' stats no longer change.
+     *
+     * @return false if some connection was still open when the timeout expired.
+     */
+    public boolean awaitConnectionsClosed(long timeoutMs) throws InterruptedException {
+        List<Thread> threads;
+        synchronized (this) {
+            threads = new ArrayList<>(servingThreads);
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (Thread thread : threads) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining > 0) {
+                thread.join(remaining);
+            }
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops listening and drops every connection. Doesn't wait for the connections to be served
+     * to the end, see {@link #awaitConnectionsClosed(long)}.
+     */
+    @Override
+    public void close() {
+        ServerSocket serverSocket;
+        synchronized (this) {
+            closed = true;
+            serverSocket = this.serverSocket;
+        }
+        if (serverSocket != null) {
+            _closeQuietly(serverSocket);
+        }
+        dropConnections();
+    }
+
+    private void _accept(@NonNull ServerSocket serverSocket) {
+        while (true) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException ex) {
+                return;
+            }
+            try {
+                socket.setTcpNoDelay(true);
+                if (_admit(socket)) {
+                    _startServing(socket, socket.getInputStream(), socket.getOutputStream());
+                }
+            } catch (IOException ex) {
+                _closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * Takes a new connection into account, or closes it if connections are being refused.
+     *
+     * @return whether the connection is to be served.
+     */
+    private boolean _admit(@NonNull Closeable connection) {
+        boolean refuse;
+        synchronized (this) {
+            refuse = closed || connectionsToRefuse > 0;
+            if (refuse) {
+                connectionsToRefuse = Math.max(connectionsToRefuse - 1, 0);
+            } else {
+                connections.add(connection);
+            }
+        }
+        if (refuse) {
+            _closeQuietly(connection);
+        }
+        return !refuse;
+    }
+
+    private void _startServing(@NonNull Closeable connection, @NonNull InputStream in,
+                               @NonNull OutputStream out) {
+        Thread thread = new Thread(() -> _serve(connection, in, out), "StandInServer");
+        thread.setDaemon(true);
+        synchronized (this) {
+            servingThreads.add(thread);
+        }
+        thread.start();
+    }
+
+    private void _serve(@NonNull Closeable connection, @NonNull InputStream in,
+                        @NonNull OutputStream out) {
+        try {
+            int player = _handleJoin(in, out);
+            if (player == 0) {
+                return;
+            }
+
+            // The players on this connection, by slot.
+            int[] slotPlayers = new int[ProtocolV2.MAX_SLOTS];
+            slotPlayers[0] = player;
+            byte[] readBuf = new byte[256], pong = new byte[ProtocolV2.PONG_FRAME_LENGTH];
+            byte[] event = new byte[ProtocolV2.EVENT_FRAME_LENGTH];
+            InputFrameDecoder decoder = new InputFrameDecoder();
+            InputFrameDecoder.Callback callback = new InputFrameDecoder.Callback() {
+                private int lastSequence = -1;
+
+                @Override
+                public void onInputFrame(int sequence, int timestampMicros, int actions) {
+                    int slotPlayer = slotPlayers[ProtocolV2.slotForActions(actions)];
+                    if (slotPlayer == 0) {
+                        return;
+                    }
+                    PlayerStats stats = getPlayerStats(slotPlayer);
+                    // The subtraction wraps like the timestamps do.
+                    stats.deliveryLatency.recordMicros(
+                            ProtocolV2.toFrameTimestamp(System.nanoTime()) - timestampMicros);
+                    if (lastSequence != -1 && !InputFrameDecoder.isNewer(sequence, lastSequence)) {
+                        stats.staleFrames++;
+                    }
+                    lastSequence = sequence;
+                    stats.framesReceived++;
+                    synchronized (StandInServer.this) {
+                        lastActions[slotPlayer] = actions
+                                & ~(ProtocolV2.ACTION_PAUSE_RESUME | ProtocolV2.SLOT_MASK);
+                        framesReceived++;
+                        StandInServer.this.notifyAll();
+                    }
+                }
+
+                @Override
+                public void onAddPlayerFrame(int slot) {
+                    int added = slotPlayers[slot] != 0 ? slotPlayers[slot] : _takeSlot();
+                    slotPlayers[slot] = added;
+                    if (added != 0) {
+                        _forgetActions(added);
+                    }
+                    ProtocolV2.encodeEvent(event, 0, ProtocolV2.EVENT_PLAYER_ADDED,
+                            slot << 8 | (added != 0 ? added : SERVER_GAME_FULL_RESPONSE));
+                    try {
+                        out.write(event);
+                    } catch (IOException ignored) {}
+                }
+
+                @Override
+                public void onPingFrame(int sequence, int clientTimeMicros) {
+                    int now = ProtocolV2.toFrameTimestamp(System.nanoTime());
+                    ProtocolV2.encodePong(pong, 0, sequence, clientTimeMicros, now, now);
+                    try {
+                        out.write(pong);
+                    } catch (IOException ignored) {}
+                }
+            };
+            int len;
+            while ((len = in.read(readBuf)) != -1) {
+                decoder.feed(readBuf, 0, len, callback);
+            }
+        } catch (IOException ignored) {
+        } finally {
+            synchronized (this) {
+                connections.remove(connection);
+            }
+            _closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Reads the client's hello and replies to it.
+     *
+     * @return the player the client joined as, or 0 if the game is full.
+     */
+    private int _handleJoin(@NonNull InputStream in, @NonNull OutputStream out)
+            throws IOException {
+        int hello = JoinHandshake.readJoinResponse(in);
+        int player = 0;
+        synchronized (this) {
+            if (hello == CLIENT_HELLO_RESUME) {
+                Integer previous = playerForToken.remove(JoinHandshake.readResumeToken(in));
+                if (previous != null) {
+                    player = previous;
+                }
+            }
+            if (player == 0) {
+                player = _takeSlot();
+            }
+        }
+        if (player == 0) {
+            out.write(SERVER_GAME_FULL_RESPONSE);
+            return 0;
+        }
+
+        long token = random.nextLong() | 1;
+        synchronized (this) {
+            playerForToken.put(token, player);
+            lastActions[player] = NO_ACTIONS;
+        }
+        byte[] response = new byte[1 + JoinHandshake.RESUME_TOKEN_LENGTH];
+        response[0] = (byte) (player | SERVER_V2_ACCEPTED_FLAG);
+        for (int i = 1; i < response.length; i++) {
+            response[i] = (byte) (token >>> (8 * (response.length - 1 - i)));
+        }
+        out.write(response);
+        return player;
+    }
+
+    private synchronized void _forgetActions(int player) {
+        lastActions[player] = NO_ACTIONS;
+    }
+
+    /**
+     * Takes the lowest free slot.
+     *
+     * @return the player number of the slot, or 0 if the game is full.
+     */
+    private synchronized int _takeSlot() {
+        for (int i = 1; i <= maxPlayers; i++) {
+            if (players[i] == null) {
+                players[i] = new PlayerStats();
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static void _closeQuietly(@NonNull Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,19 @@
+package uw.gotimegeese.loadgen;
+
+/**
+ * The inputs a virtual controller sends: a sequence of directions and the pauses between them.
+ * Each virtual controller has its own instance, so implementations need not be thread safe.
+ */
+public interface InputPattern {
+
+    /**
+     * Returns the next direction to send, one of the {@code CLIENT_DIR_*} constants.
+     */
+    int nextDirection();
+
+    /**
+     * Returns how long to wait after sending the direction last returned by
+     * {@link #nextDirection()}.
+     */
+    long nextDelayNanos();
+}
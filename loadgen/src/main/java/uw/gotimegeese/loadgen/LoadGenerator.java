@@ -0,0 +1,257 @@
+package uw.gotimegeese.loadgen;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import uw.gotimegeese.controllerapp.connection.ControllerSession;
+import uw.gotimegeese.controllerapp.connection.StandInServer;
+import uw.gotimegeese.controllerapp.connection.TcpTransport;
+import uw.gotimegeese.controllerapp.metrics.LatencyHistogram;
+
+/**
+ * Spawns virtual controllers against a game host and reports how the host coped: per controller
+ * the join latency, the rate inputs were sent at and how many were written, and the latency from
+ * submitting an input to it reaching the host. Usage:
+ * <pre>
+ *   loadgen [--controllers=N] [--duration=SECONDS] [--pattern=walk|flip|replay]
+ *           [--interval=MS] [--session=FILE] [--host=HOST --port=PORT]
+ * </pre>
+ * Without a host, an in-process {@code StandInServer} is started, which also measures the delivery
+ * latency of every input frame. Against a real host only the round-trip time of pings can be
+ * measured.
+ */
+public class LoadGenerator {
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    // How long joining may take before the run starts without the controllers still joining.
+    private static final long JOIN_WAIT_MS = 10_000;
+
+    // How long the stand-in may take to read what the stopped controllers sent last.
+    private static final long DRAIN_TIMEOUT_MS = 5000;
+
+    /**
+     * What a run left behind, once every controller stopped.
+     */
+    static final class Result {
+
+        @NonNull
+        final List<VirtualController> controllers;
+        // Null when running against a real host.
+        @Nullable
+        final StandInServer standIn;
+        // Whether the stand-in read everything the controllers sent before its stats were taken.
+        final boolean drained;
+
+        Result(@NonNull List<VirtualController> controllers, @Nullable StandInServer standIn,
+               boolean drained) {
+            this.controllers = controllers;
+            this.standIn = standIn;
+            this.drained = drained;
+        }
+    }
+
+    private int controllerCount = 8;
+    private long durationMs = 10_000;
+    private String patternName = "walk";
+    private long intervalMs = 50;
+    private File sessionFile;
+    private String host;
+    private int port;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator._parseArgs(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(2);
+        }
+        Result result = generator.run();
+        _report(result);
+    }
+
+    LoadGenerator() {}
+
+    LoadGenerator(int controllerCount, long durationMs, @NonNull String patternName,
+                  long intervalMs) {
+        this.controllerCount = controllerCount;
+        this.durationMs = durationMs;
+        this.patternName = patternName;
+        this.intervalMs = intervalMs;
+    }
+
+    private void _parseArgs(@NonNull String[] args) {
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq == -1) {
+                throw new IllegalArgumentException("Invalid argument: " + arg);
+            }
+            String name = arg.substring(2, eq), value = arg.substring(eq + 1);
+            try {
+                switch (name) {
+                    case "controllers":
+                        controllerCount = Integer.parseInt(value);
+                        break;
+                    case "duration":
+                        durationMs = Long.parseLong(value) * 1000;
+                        break;
+                    case "pattern":
+                        patternName = value;
+                        break;
+                    case "interval":
+                        intervalMs = Long.parseLong(value);
+                        break;
+                    case "session":
+                        sessionFile = new File(value);
+                        break;
+                    case "host":
+                        host = value;
+                        break;
+                    case "port":
+                        port = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument: " + arg);
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Invalid number: " + arg);
+            }
+        }
+        if ("replay".equals(patternName) && sessionFile == null) {
+            throw new IllegalArgumentException("--pattern=replay needs --session=FILE");
+        }
+    }
+
+    @NonNull
+    private InputPattern _createPattern(int index) throws IOException {
+        switch (patternName) {
+            case "walk":
+                return new RandomWalkPattern(index, intervalMs);
+            case "flip":
+                return new RapidFlipPattern(intervalMs);
+            case "replay":
+                return ReplayPattern.load(sessionFile);
+            default:
+                throw new IllegalArgumentException("Unknown pattern: " + patternName);
+        }
+    }
+
+    /**
+     * Runs the controllers for the configured duration and stops them.
+     */
+    @NonNull
+    Result run() throws IOException, InterruptedException {
+        StandInServer standIn = null;
+        String targetHost = host;
+        int targetPort = port;
+        if (targetHost == null) {
+            standIn = new StandInServer(controllerCount);
+            targetHost = "127.0.0.1";
+            targetPort = standIn.listen();
+        }
+
+        List<VirtualController> controllers = new ArrayList<>();
+        String finalHost = targetHost;
+        int finalPort = targetPort;
+        for (int i = 0; i < controllerCount; i++) {
+            controllers.add(new VirtualController(i,
+                    () -> new TcpTransport(finalHost, finalPort, CONNECT_TIMEOUT_MS),
+                    _createPattern(i)));
+        }
+        System.out.println("Starting " + controllerCount + " controllers against " + targetHost
+                + ":" + targetPort + ", pattern " + patternName + ", for " + durationMs + "ms");
+        for (VirtualController controller : controllers) {
+            controller.start();
+        }
+        _awaitJoined(controllers);
+        Thread.sleep(durationMs);
+        for (VirtualController controller : controllers) {
+            controller.stop();
+        }
+        // The controllers hung up, so once the stand-in read their last frames its stats are final.
+        boolean drained = true;
+        if (standIn != null) {
+            drained = standIn.awaitConnectionsClosed(DRAIN_TIMEOUT_MS);
+            standIn.close();
+        }
+        return new Result(controllers, standIn, drained);
+    }
+
+    private static void _awaitJoined(@NonNull List<VirtualController> controllers)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + JOIN_WAIT_MS;
+        for (VirtualController controller : controllers) {
+            while (controller.getSession() == null && controller.getFailure() == null
+                    && !controller.isGameFull() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static void _report(@NonNull Result result) {
+        List<VirtualController> controllers = result.controllers;
+        StandInServer standIn = result.standIn;
+        PrintWriter out = new PrintWriter(System.out, true);
+        LatencyHistogram joinLatency = new LatencyHistogram();
+        LatencyHistogram deliveryLatency = new LatencyHistogram();
+        long totalSent = 0, totalWritten = 0;
+
+        out.println("ctrl player   join_ms    sent  rate/s  written  coalesced  deliv_p50  "
+                + "deliv_p99  rtt_us");
+        for (VirtualController controller : controllers) {
+            ControllerSession session = controller.getSession();
+            if (session == null) {
+                out.println(String.format(Locale.ROOT, "%4d %s", controller.getIndex(),
+                        controller.isGameFull() ? "game full"
+                                : "failed: " + controller.getFailure()));
+                continue;
+            }
+            joinLatency.recordNanos(session.getJoinNanos());
+            totalSent += controller.getSentCount();
+            totalWritten += session.getInputSender().getWrittenCount();
+
+            long p50 = -1, p99 = -1;
+            StandInServer.PlayerStats stats = standIn != null
+                    ? standIn.getPlayerStats(session.getPlayerNumber()) : null;
+            if (stats != null) {
+                p50 = stats.deliveryLatency.getPercentileMicros(0.5);
+                p99 = stats.deliveryLatency.getPercentileMicros(0.99);
+                deliveryLatency.add(stats.deliveryLatency);
+            }
+            out.println(String.format(Locale.ROOT,
+                    "%4d %6d %9.2f %7d %7.1f %8d %10d %10d %10d %7d",
+                    controller.getIndex(), session.getPlayerNumber(),
+                    session.getJoinNanos() / 1e6, controller.getSentCount(),
+                    controller.getSendRate(), session.getInputSender().getWrittenCount(),
+                    session.getInputSender().getCoalescedCount(), p50, p99,
+                    controller.getSmoothedRttMicros()));
+        }
+
+        out.println();
+        out.println("sent " + totalSent + ", written " + totalWritten);
+        out.println("join latency (us): " + _summarize(joinLatency));
+        if (standIn != null) {
+            out.println("delivery latency (us): " + _summarize(deliveryLatency));
+            if (!result.drained) {
+                out.println("warning: the stand-in was still reading when its stats were taken");
+            }
+        }
+    }
+
+    @NonNull
+    private static String _summarize(@NonNull LatencyHistogram histogram) {
+        return "count=" + histogram.getTotalCount()
+                + " p50=" + histogram.getPercentileMicros(0.5)
+                + " p95=" + histogram.getPercentileMicros(0.95)
+                + " p99=" + histogram.getPercentileMicros(0.99)
+                + " max=" + histogram.getMaxMicros();
+    }
+}
@@ -0,0 +1,50 @@
+package uw.gotimegeese.loadgen;
+
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import java.util.Random;
+
+/**
+ * Plays like a person steering a goose around: mostly turns left or right relative to the current
+ * direction, sometimes lets go of the D-Pad, and holds each direction for a random time around the
+ * mean interval.
+ */
+public class RandomWalkPattern implements InputPattern {
+
+    // The directions in clockwise order, so that turning is a step to a neighbour.
+    private static final int[] CLOCKWISE = {
+            CLIENT_DIR_UP, CLIENT_DIR_RIGHT, CLIENT_DIR_DOWN, CLIENT_DIR_LEFT
+    };
+
+    // The chance of letting go of the D-Pad instead of turning.
+    private static final double RELEASE_PROBABILITY = 0.1;
+
+    private final Random random;
+    private final long meanIntervalNanos;
+    private int index = -1;
+
+    public RandomWalkPattern(long seed, long meanIntervalMs) {
+        this.random = new Random(seed);
+        this.meanIntervalNanos = meanIntervalMs * 1_000_000L;
+    }
+
+    @Override
+    public int nextDirection() {
+        if (index == -1) {
+            index = random.nextInt(CLOCKWISE.length);
+            return CLOCKWISE[index];
+        }
+        if (random.nextDouble() < RELEASE_PROBABILITY) {
+            index = -1;
+            return CLIENT_DIR_NEUTRAL;
+        }
+        index = (index + (random.nextBoolean() ? 1 : CLOCKWISE.length - 1)) % CLOCKWISE.length;
+        return CLOCKWISE[index];
+    }
+
+    @Override
+    public long nextDelayNanos() {
+        // Uniform between half and one and a half times the mean.
+        return meanIntervalNanos / 2 + (long) (random.nextDouble() * meanIntervalNanos);
+    }
+}
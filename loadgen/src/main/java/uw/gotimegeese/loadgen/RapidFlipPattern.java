@@ -0,0 +1,28 @@
+package uw.gotimegeese.loadgen;
+
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+/**
+ * Flips between left and right at a fixed interval, the worst case for coalescing on the sender
+ * and for the host's input handling.
+ */
+public class RapidFlipPattern implements InputPattern {
+
+    private final long intervalNanos;
+    private boolean left;
+
+    public RapidFlipPattern(long intervalMs) {
+        this.intervalNanos = intervalMs * 1_000_000L;
+    }
+
+    @Override
+    public int nextDirection() {
+        left = !left;
+        return left ? CLIENT_DIR_LEFT : CLIENT_DIR_RIGHT;
+    }
+
+    @Override
+    public long nextDelayNanos() {
+        return intervalNanos;
+    }
+}
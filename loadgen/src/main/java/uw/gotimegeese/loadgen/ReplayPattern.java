@@ -0,0 +1,108 @@
+package uw.gotimegeese.loadgen;
+
+import static uw.gotimegeese.controllerapp.Constants.*;
+
+import androidx.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Replays a recorded session over and over. Sessions are text files with one input per line, in
+ * the form {@code <delay ms> <up|down|left|right|neutral>}, where the delay is the time since the
+ * previous input. Empty lines and lines starting with {@code #} are ignored.
+ */
+public class ReplayPattern implements InputPattern {
+
+    private final int[] directions;
+    private final long[] delaysNanos;
+    private int next;
+
+    public ReplayPattern(@NonNull int[] directions, @NonNull long[] delaysNanos) {
+        if (directions.length == 0 || directions.length != delaysNanos.length) {
+            throw new IllegalArgumentException("Nothing to replay");
+        }
+        this.directions = directions;
+        this.delaysNanos = delaysNanos;
+    }
+
+    /**
+     * Reads a session in the format described above.
+     *
+     * @throws IOException if the file can't be read or isn't a valid session.
+     */
+    @NonNull
+    public static ReplayPattern load(@NonNull File file) throws IOException {
+        List<int[]> inputs = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), Charset.forName("UTF-8")))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                int direction = fields.length == 2 ? _parseDirection(fields[1]) : -1;
+                if (direction == -1) {
+                    throw new IOException(file + ":" + lineNumber + ": invalid input: " + line);
+                }
+                try {
+                    inputs.add(new int[] {Integer.parseInt(fields[0]), direction});
+                } catch (NumberFormatException ex) {
+                    throw new IOException(file + ":" + lineNumber + ": invalid delay: " + line);
+                }
+            }
+        }
+        if (inputs.isEmpty()) {
+            throw new IOException(file + ": no inputs");
+        }
+
+        // The delay on each line precedes its input, whereas the pattern waits after sending.
+        int[] directions = new int[inputs.size()];
+        long[] delaysNanos = new long[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            directions[i] = inputs.get(i)[1];
+            delaysNanos[i] = inputs.get((i + 1) % inputs.size())[0] * 1_000_000L;
+        }
+        return new ReplayPattern(directions, delaysNanos);
+    }
+
+    @Override
+    public int nextDirection() {
+        return directions[next];
+    }
+
+    @Override
+    public long nextDelayNanos() {
+        long delay = delaysNanos[next];
+        next = (next + 1) % directions.length;
+        return delay;
+    }
+
+    private static int _parseDirection(@NonNull String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "up":
+                return CLIENT_DIR_UP;
+            case "down":
+                return CLIENT_DIR_DOWN;
+            case "left":
+                return CLIENT_DIR_LEFT;
+            case "right":
+                return CLIENT_DIR_RIGHT;
+            case "neutral":
+                return CLIENT_DIR_NEUTRAL;
+            default:
+                return -1;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package uw.gotimegeese.loadgen;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import uw.gotimegeese.controllerapp.connection.ControllerSession;
+import uw.gotimegeese.controllerapp.connection.ControllerTransport;
+import uw.gotimegeese.controllerapp.connection.LinkMonitor;
+
+/**
+ * A controller without a user: joins the game through the same handshake and session the app
+ * uses, then sends the inputs of an {@code InputPattern} until told to stop.
+ */
+public class VirtualController {
+
+    private final int index;
+    private final ControllerTransport.Factory transportFactory;
+    private final InputPattern pattern;
+    private final Thread thread;
+
+    private volatile boolean stopped;
+    private volatile ControllerSession session;
+    private volatile IOException failure;
+    private volatile boolean gameFull;
+    private volatile long sentCount;
+    private volatile long sendingNanos;
+
+    public VirtualController(int index, @NonNull ControllerTransport.Factory transportFactory,
+                             @NonNull InputPattern pattern) {
+        this.index = index;
+        this.transportFactory = transportFactory;
+        this.pattern = pattern;
+        thread = new Thread(this::_run, "VirtualController-" + index);
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops sending, waits for the controller's thread to finish and closes the session. The
+     * session's stats stay readable.
+     */
+    public void stop() throws InterruptedException {
+        stopped = true;
+        LockSupport.unpark(thread);
+        thread.join();
+        ControllerSession session = this.session;
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the session, or {@code null} if the controller didn't (yet) join.
+     */
+    @Nullable
+    public ControllerSession getSession() {
+        return session;
+    }
+
+    /**
+     * Returns why joining failed, or {@code null} if it didn't.
+     */
+    @Nullable
+    public IOException getFailure() {
+        return failure;
+    }
+
+    public boolean isGameFull() {
+        return gameFull;
+    }
+
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    /**
+     * Returns the rate at which the controller submitted inputs, in inputs per second.
+     */
+    public double getSendRate() {
+        long nanos = sendingNanos;
+        return nanos > 0 ? sentCount * 1e9 / nanos : 0;
+    }
+
+    /**
+     * Returns the smoothed round-trip time to the host in microseconds, or -1 if unknown.
+     */
+    public int getSmoothedRttMicros() {
+        ControllerSession session = this.session;
+        LinkMonitor monitor = session != null ? session.getLinkMonitor() : null;
+        return monitor != null && monitor.getPongCount() > 0 ? monitor.getSmoothedRttMicros() : -1;
+    }
+
+    private void _run() {
+        ControllerSession session;
+        try {
+            // Virtual controllers measure the host; they shouldn't paper over failures by
+            // reconnecting.
+            session = ControllerSession.join(transportFactory.create());
+        } catch (IOException ex) {
+            failure = ex;
+            return;
+        }
+        if (session == null) {
+            gameFull = true;
+            return;
+        }
+        this.session = session;
+
+        long start = System.nanoTime();
+        long sent = 0;
+        while (!stopped && !session.isClosed()) {
+            long now = System.nanoTime();
+            session.sendDirection(pattern.nextDirection(), now, now);
+            sentCount = ++sent;
+            sendingNanos = System.nanoTime() - start;
+            LockSupport.parkNanos(pattern.nextDelayNanos());
+        }
+        sendingNanos = System.nanoTime() - start;
+    }
+}
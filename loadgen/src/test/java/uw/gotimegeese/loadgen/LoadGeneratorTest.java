@@ -0,0 +1,35 @@
+package uw.gotimegeese.loadgen;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import uw.gotimegeese.controllerapp.connection.ControllerSession;
+import uw.gotimegeese.controllerapp.connection.StandInServer;
+
+/**
+ * Runs a few controllers against the stand-in server and checks that what they sent all arrived
+ * and was accounted for.
+ */
+public class LoadGeneratorTest {
+
+    @Test
+    public void run_everyControllerJoinsAndItsFramesArrive() throws Exception {
+        LoadGenerator.Result result = new LoadGenerator(3, 500, "flip", 20).run();
+
+        assertTrue(result.drained);
+        assertNotNull(result.standIn);
+        assertEquals(3, result.controllers.size());
+        for (VirtualController controller : result.controllers) {
+            ControllerSession session = controller.getSession();
+            assertNotNull("Controller " + controller.getIndex() + " didn't join", session);
+            assertTrue(controller.getSentCount() > 0);
+
+            StandInServer.PlayerStats stats =
+                    result.standIn.getPlayerStats(session.getPlayerNumber());
+            assertNotNull(stats);
+            assertTrue(stats.framesReceived > 0);
+            assertEquals(stats.framesReceived, stats.deliveryLatency.getTotalCount());
+        }
+    }
+}